@@ -7,12 +7,12 @@ import android.app.ActionBar.TabListener;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.FragmentTransaction;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.view.ViewPager;
@@ -23,10 +23,21 @@ import android.view.MenuItem;
 import android.widget.Toast;
 
 import com.chordgrid.drive.DriveClientManager;
+import com.chordgrid.model.InternPool;
+import com.chordgrid.model.JsonTuneBook;
+import com.chordgrid.model.MappedTextTuneBook;
+import com.chordgrid.model.ParseDiagnostics;
 import com.chordgrid.model.Rhythm;
 import com.chordgrid.model.Tune;
 import com.chordgrid.model.TuneBook;
+import com.chordgrid.model.TuneBookAutosave;
+import com.chordgrid.model.TuneBookFileSaver;
+import com.chordgrid.model.TuneBookJournal;
+import com.chordgrid.model.TuneBookMerger;
+import com.chordgrid.model.TuneBookSnapshotCache;
+import com.chordgrid.model.TuneBookStore;
 import com.chordgrid.model.TuneSet;
+import com.chordgrid.model.TuneSimilarityIndex;
 import com.chordgrid.settings.UserSettingsActivity;
 import com.chordgrid.tunes.DisplayTuneGridActivity;
 import com.chordgrid.tunes.ExpandableTunesListFragment;
@@ -34,17 +45,20 @@ import com.chordgrid.tunes.TuneMetadataDialogFragment;
 import com.chordgrid.tunesets.TuneSetAdapter;
 import com.chordgrid.util.FileUtils;
 import com.chordgrid.util.LogUtils;
-import com.chordgrid.util.StorageUtil;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.Future;
 
 public class MainActivity extends FragmentActivity implements TabListener {
 
@@ -62,6 +76,11 @@ public class MainActivity extends FragmentActivity implements TabListener {
      * Drive file ID key.
      */
     private static final String EXTRA_FILE_ID = "resourceId";
+    /**
+     * The size from which My Tunebook is mapped rather than parsed, its tune bodies being
+     * parsed on demand.
+     */
+    private static final long MAPPED_TUNEBOOK_MIN_SIZE = 4 * 1024 * 1024;
 
     /**
      * Drive file ID.
@@ -87,6 +106,26 @@ public class MainActivity extends FragmentActivity implements TabListener {
      */
     private String tunebookFileName = "myTunebook.txt";
 
+    /**
+     * Records the changes to My Tunebook while it is displayed.
+     */
+    private TuneBookJournal mJournal;
+
+    /**
+     * My Tunebook when it is large enough to be mapped, or null.
+     */
+    private MappedTextTuneBook mMappedTunebook;
+
+    /**
+     * Saves the current tunebook after it changes, when it has no journal.
+     */
+    private TuneBookAutosave mAutosave;
+
+    /**
+     * Mirrors the current tunebook for the {@link com.chordgrid.model.TuneBookProvider}.
+     */
+    private TuneBookStore mStore;
+
     private ViewPager viewPager;
     private TunesAndSetsTabPagerAdapter adapter;
     private ActionBar actionBar;
@@ -139,6 +178,10 @@ public class MainActivity extends FragmentActivity implements TabListener {
             try {
                 setTunebook(loadLocalTunebook());
                 setUseMyTunebook();
+                openJournal();
+                if (mJournal == null)
+                    startAutosave();
+                attachStore();
                 //loadResourceTunebook();
             } catch (Exception e) {
                 Log.e(TAG, e.getMessage());
@@ -208,11 +251,23 @@ public class MainActivity extends FragmentActivity implements TabListener {
         Log.d(TAG, "Application stopping");
 
         Rhythm.saveKnownRhyhms(getApplicationContext());
-        saveTuneBook();
+        saveTuneBookIfNotJournaled();
+        markStoreSynced();
+        if (mMappedTunebook != null)
+            Log.d(TAG, "Mapped tunebook: " + mMappedTunebook);
+        Log.d(TAG, "Intern pool: " + InternPool.getReport());
 
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        stopAutosave();
+        closeJournal();
+        detachStore();
+        super.onDestroy();
+    }
+
     /**
      * Called when the activity becomes visible.
      */
@@ -232,7 +287,7 @@ public class MainActivity extends FragmentActivity implements TabListener {
             driveClientManager.onActivityPause();
 
         Rhythm.saveKnownRhyhms(getApplicationContext());
-        saveTuneBook();
+        saveTuneBookIfNotJournaled();
 
         super.onPause();
     }
@@ -329,25 +384,127 @@ public class MainActivity extends FragmentActivity implements TabListener {
      * @param aTunebook The tunebook to save.
      * @param path      The path where to save it.
      */
-    private void saveTuneBook(TuneBook aTunebook, String path) {
+    private void saveTuneBook(final TuneBook aTunebook, final String path) {
         Log.d(TAG, "Saving tunebook to " + path);
-        FileOutputStream fileOutput;
-        try {
-            fileOutput = openFileOutput(path, Context.MODE_PRIVATE);
-            if (path.endsWith(".xml"))
-                aTunebook.xmlSerialize(fileOutput);
-            else
-                aTunebook.serialize(fileOutput);
-            fileOutput.close();
-        } catch (Exception e) {
-            Log.e(TAG, "Cannot serialize tunebook!", e);
+        if (path.endsWith(".xml")) {
+            TuneBookFileSaver.exportAsync(aTunebook, getTunebookFile(path), TuneBookFileSaver.Format.XML,
+                    createSaveListener());
+            return;
+        }
+        if (path.endsWith(".json")) {
+            TuneBookFileSaver.exportAsync(aTunebook, getTunebookFile(path), TuneBookFileSaver.Format.JSON,
+                    createSaveListener());
+            return;
         }
+
+        TuneBookFileSaver.saveAsync(aTunebook, getTunebookFile(path), getSnapshotCache(path), createSaveListener());
+    }
+
+    private File getTunebookFile(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : getFileStreamPath(path);
+    }
+
+    private TuneBookFileSaver.Listener createSaveListener() {
+        return new TuneBookFileSaver.Listener() {
+            @Override
+            public void onSaved(File file) {
+                // The snapshot is taken along with the file, in the background
+            }
+
+            @Override
+            public void onSaveFailed(File file, IOException e) {
+                Log.e(TAG, "Cannot serialize tunebook!", e);
+            }
+        };
     }
 
     private void saveTuneBook() {
         saveTuneBook(tunebook, getCurrentTunebookFilename());
     }
 
+    /**
+     * Saves the current tunebook if it changed, unless its changes are already recorded by the
+     * journal.
+     */
+    private void saveTuneBookIfNotJournaled() {
+        if (mJournal != null && !mJournal.hasFailed())
+            return;
+        if (mJournal == null && mAutosave != null)
+            mAutosave.flush();
+        else
+            saveTuneBook();
+    }
+
+    /**
+     * Starts saving the current tunebook in the background whenever it changes.
+     */
+    private void startAutosave() {
+        stopAutosave();
+        String path = getCurrentTunebookFilename();
+        if (path.endsWith(".xml") || path.endsWith(".json"))
+            return;
+        mAutosave = new TuneBookAutosave(tunebook, getTunebookFile(path), getSnapshotCache(path),
+                createSaveListener());
+        mAutosave.start();
+    }
+
+    private void stopAutosave() {
+        if (mAutosave != null) {
+            mAutosave.stop();
+            mAutosave = null;
+        }
+    }
+
+    /**
+     * Starts recording the changes to My Tunebook in its journal.
+     */
+    private void openJournal() {
+        closeJournal();
+        TuneBookJournal journal = new TuneBookJournal(getFileStreamPath(tunebookFileName));
+        try {
+            journal.attach(tunebook);
+            mJournal = journal;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open the tunebook journal, saving the whole tunebook instead", e);
+            journal.close();
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+    }
+
+    /**
+     * Copies the current tunebook to the store in the background, unless the store still matches
+     * the files of My Tunebook, then mirrors its changes.
+     */
+    private void attachStore() {
+        if (mStore == null)
+            mStore = TuneBookStore.getInstance(this);
+        mStore.attach(tunebook, mJournal != null ? mJournal.getFilesKey() : null);
+    }
+
+    /**
+     * Records that the store matches the files of My Tunebook, every change being in its journal
+     * once the entries still queued are written.
+     */
+    private void markStoreSynced() {
+        if (mStore == null || mJournal == null)
+            return;
+        Future<String> filesKey = mJournal.getFilesKey();
+        if (filesKey != null)
+            mStore.markSynced(filesKey);
+    }
+
+    private void detachStore() {
+        if (mStore != null)
+            mStore.detach();
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////////////
     // Activity results
     //////////////////////////////////////////////////////////////////////////////////////////////
@@ -495,20 +652,28 @@ public class MainActivity extends FragmentActivity implements TabListener {
     private void openFromFileView(final String filePath) {
         Log.d(TAG, "Opening file " + filePath + " with VIEW action");
 
+        closeJournal();
+        stopAutosave();
         setUseOtherTunebook(filePath);
 
         try {
-            String fileContents = StorageUtil.getStringFromFile(filePath);
             int lastDot = filePath.lastIndexOf('.');
             if (lastDot >= 0) {
                 String extension = filePath.substring(lastDot + 1);
-                if ("txt".equalsIgnoreCase(extension))
-                    tunebook = new TuneBook(fileContents);
-                else {
+                if ("txt".equalsIgnoreCase(extension)) {
+                    tunebook = new TuneBook(new FileReader(filePath));
+                    startAutosave();
+                } else if ("xml".equalsIgnoreCase(extension)) {
+                    tunebook = TuneBook.xmlParse(new FileInputStream(filePath));
+                } else if ("json".equalsIgnoreCase(extension)) {
+                    tunebook = JsonTuneBook.read(new FileInputStream(filePath));
+                } else {
                     showMessage(String.format(
                             "Unexpected file extension '.%s'!", extension));
                     finish();
+                    return;
                 }
+                attachStore();
             } else {
                 showMessage(String.format("Unexpected file nature %s!",
                         filePath));
@@ -575,11 +740,53 @@ public class MainActivity extends FragmentActivity implements TabListener {
      * ************************************************************************
      */
 
+    /**
+     * Gets the cache of the parsed local tunebook.
+     */
+    private TuneBookSnapshotCache getSnapshotCache() {
+        return new TuneBookSnapshotCache(getFileStreamPath(tunebookFileName));
+    }
+
+    /**
+     * Gets the cache to update when saving a tunebook file, if it is the local tunebook.
+     */
+    private TuneBookSnapshotCache getSnapshotCache(String path) {
+        // A mapped tunebook is never loaded from the snapshot
+        return tunebookFileName.equals(path) && mMappedTunebook == null ? getSnapshotCache() : null;
+    }
+
     private TuneBook loadLocalTunebook() throws Exception {
         try {
             Log.d(TAG, "Looking for a local tunebook file: " + tunebookFileName);
+            File file = getFileStreamPath(tunebookFileName);
+            long start = SystemClock.elapsedRealtime();
+            if (file.length() >= MAPPED_TUNEBOOK_MIN_SIZE) {
+                mMappedTunebook = MappedTextTuneBook.open(file, MappedTextTuneBook.DEFAULT_MAX_RESIDENT_TUNES,
+                        new ParseDiagnostics());
+                TuneBook mappedTunebook = mMappedTunebook.getTuneBook();
+                Log.d(TAG, String.format("Mapped %d tunes from %s in %d ms", mappedTunebook.countTunes(),
+                        tunebookFileName, SystemClock.elapsedRealtime() - start));
+                new TuneBookJournal(file).replay(mappedTunebook);
+                return mappedTunebook;
+            }
+
+            TuneBookSnapshotCache snapshotCache = getSnapshotCache();
+            TuneBook snapshot = snapshotCache.load();
+            if (snapshot != null) {
+                Log.d(TAG, String.format("Loaded %d tunes from the snapshot of %s in %d ms",
+                        snapshot.countTunes(), tunebookFileName, SystemClock.elapsedRealtime() - start));
+                new TuneBookJournal(getFileStreamPath(tunebookFileName)).replay(snapshot);
+                return snapshot;
+            }
+
             FileInputStream inputStream = openFileInput(tunebookFileName);
-            return new TuneBook(StorageUtil.convertStreamToString(inputStream));
+            start = SystemClock.elapsedRealtime();
+            TuneBook localTunebook = new TuneBook(new InputStreamReader(inputStream), true);
+            Log.d(TAG, String.format("Parsed %d tunes from %s in %d ms", localTunebook.countTunes(),
+                    tunebookFileName, SystemClock.elapsedRealtime() - start));
+            snapshotCache.saveAsync(localTunebook);
+            new TuneBookJournal(getFileStreamPath(tunebookFileName)).replay(localTunebook);
+            return localTunebook;
         } catch (FileNotFoundException e) {
             Log.i(TAG, String.format("File %s not found, use resource instead",
                     tunebookFileName));
@@ -590,9 +797,8 @@ public class MainActivity extends FragmentActivity implements TabListener {
     private TuneBook loadResourceTunebook() throws Exception {
         Log.i(TAG, String.format("File %s not found, use resource instead",
                 tunebookFileName));
-        String testText = StorageUtil.convertStreamToString(getResources()
-                .openRawResource(R.raw.tunebook1));
-        return new TuneBook(testText);
+        return new TuneBook(new InputStreamReader(getResources()
+                .openRawResource(R.raw.tunebook1)));
     }
 
     /**
@@ -709,19 +915,50 @@ public class MainActivity extends FragmentActivity implements TabListener {
             return;
         }
 
-        // Do merge with current tunebook
+        // Do merge with current tunebook; it completes on this thread, once the observer is added
+        final TuneBookMerger merger = myTunebook.mergeAsync(this, tunebook, true);
         myTunebook.addObserver(new Observer() {
             @Override
             public void update(Observable observable, Object data) {
                 if (data instanceof TuneBook.ChangedStatus) {
                     TuneBook.ChangedStatus status = (TuneBook.ChangedStatus) data;
                     if (data == TuneBook.ChangedStatus.MergeComplete) {
-                        saveTuneBook((TuneBook) observable, tunebookFileName);
+                        TuneBook merged = (TuneBook) observable;
+                        saveTuneBook(merged, tunebookFileName);
+                        showLikelyDuplicates(merged, merger.getLikelyDuplicates());
                     }
                 }
             }
         });
-        myTunebook.mergeAsync(this, tunebook);
+    }
+
+    /**
+     * Lists the merged tunes which may duplicate a tune already in the tunebook.
+     */
+    private void showLikelyDuplicates(TuneBook merged, Map<String, List<TuneSimilarityIndex.Candidate>> duplicates) {
+        if (duplicates.isEmpty())
+            return;
+        StringBuilder message = new StringBuilder();
+        for (Map.Entry<String, List<TuneSimilarityIndex.Candidate>> entry : duplicates.entrySet()) {
+            Tune tune = merged.getTuneFromId(entry.getKey());
+            if (tune == null)
+                continue;
+            StringBuilder candidates = new StringBuilder();
+            for (TuneSimilarityIndex.Candidate candidate : entry.getValue()) {
+                if (candidates.length() > 0)
+                    candidates.append(", ");
+                candidates.append(getString(R.string.likely_duplicate_fmt, candidate.getTune().getTitle(),
+                        Math.round(100 * candidate.getScore())));
+            }
+            if (message.length() > 0)
+                message.append("\n\n");
+            message.append(getString(R.string.likely_duplicates_of_fmt, tune.getTitle(), candidates));
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.likely_duplicates)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null)
+                .create().show();
     }
 
     /**
@@ -0,0 +1,572 @@
+package com.chordgrid.model;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reads and writes tunebooks in a compact binary format, meant to be memory-mapped.
+ * <p/>
+ * The file starts with a header giving the format version and the number of items of each
+ * kind, followed by a string table (ids, titles, keys, labels and chord symbols, each stored
+ * once) and by arrays of fixed-width records: rhythms, tunes, parts, lines, measures, chords,
+ * sets and set tunes. A record refers to strings by their number in the table, and to its
+ * children by the first child record and the number of children. All values are big-endian
+ * 32-bit integers.
+ * <p/>
+ * Opening a binary tunebook only reads the tune headers and the sets: the parts of a tune are
+ * built from the mapped records the first time they are needed. The mapped file must not be
+ * modified while the tunebook is in use, so a new version should be written to another file
+ * and renamed over the old one.
+ * <p/>
+ * The text format of {@link TuneBook#toString()} remains the interchange format, see
+ * {@link #convertTextToBinary(Reader, OutputStream, ParseDiagnostics)} and
+ * {@link #convertBinaryToText(File, OutputStream)}.
+ */
+public final class BinaryTuneBook {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "BinaryTuneBook";
+
+    /**
+     * The first bytes of a binary tunebook, "CGTB".
+     */
+    private static final int MAGIC = 0x43475442;
+
+    /**
+     * The version written, and the only one read.
+     */
+    public static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int NO_STRING = -1;
+    private static final int NO_RHYTHM = -1;
+    private static final int LINE_REPETITION = 1;
+
+    // Header: magic, version, then the counts below
+    private static final int COUNT_STRINGS = 0;
+    private static final int COUNT_STRING_BYTES = 1;
+    private static final int COUNT_RHYTHMS = 2;
+    private static final int COUNT_TUNES = 3;
+    private static final int COUNT_PARTS = 4;
+    private static final int COUNT_LINES = 5;
+    private static final int COUNT_MEASURES = 6;
+    private static final int COUNT_CHORDS = 7;
+    private static final int COUNT_SETS = 8;
+    private static final int COUNT_SET_TUNES = 9;
+    private static final int COUNTS = 10;
+    private static final int HEADER_SIZE = 4 * (2 + COUNTS);
+
+    // Record sizes, in ints
+    private static final int RHYTHM_RECORD = 3;  // name, signature, beats per bar
+    private static final int TUNE_RECORD = 7;    // id, index, name, rhythm, key, first part, part count
+    private static final int PART_RECORD = 3;    // label, first line, line count
+    private static final int LINE_RECORD = 3;    // flags, first measure, measure count
+    private static final int MEASURE_RECORD = 2; // first chord, chord count
+    private static final int CHORD_RECORD = 1;   // value
+    private static final int SET_RECORD = 3;     // name, first set tune, set tune count
+    private static final int SET_TUNE_RECORD = 1; // tune
+
+    private BinaryTuneBook() {
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Conversion
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts a tunebook text representation to the binary format.
+     *
+     * @param reader      The source of the serialized tune book text (closed when done).
+     * @param out         Receives the binary tunebook (not closed).
+     * @param diagnostics Receives the warnings and errors found in the text.
+     * @throws IOException
+     */
+    public static void convertTextToBinary(Reader reader, OutputStream out, ParseDiagnostics diagnostics)
+            throws IOException {
+        write(new TuneBook(reader, false, diagnostics), out);
+    }
+
+    /**
+     * Converts a binary tunebook to its text representation.
+     *
+     * @param file The binary tunebook.
+     * @param out  Receives the serialized tune book text (not closed).
+     * @throws IOException
+     */
+    public static void convertBinaryToText(File file, OutputStream out) throws IOException {
+        read(file).serialize(out);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Writing
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes a tunebook in the binary format.
+     *
+     * @param tuneBook The tunebook to write.
+     * @param out      Receives the binary tunebook (not closed).
+     * @throws IOException
+     */
+    public static void write(TuneBook tuneBook, OutputStream out) throws IOException {
+        new RecordWriter(tuneBook).write(out);
+    }
+
+    /**
+     * Lays out the records of a tunebook in memory, then writes them.
+     * <p/>
+     * The rhythms, tunes and sets are captured when the writer is created, so that it can write
+     * them on another thread; tunes are replaced rather than modified when edited, so only the
+     * sets are copied.
+     */
+    static class RecordWriter {
+
+        private final List<Rhythm> mRhythmList;
+        private final List<Tune> mTuneList;
+        private final List<String> mSetNames = new ArrayList<String>();
+        private final List<List<Tune>> mSetTuneLists = new ArrayList<List<Tune>>();
+
+        private final HashMap<String, Integer> mStringIds = new HashMap<String, Integer>();
+        private final ArrayList<byte[]> mStrings = new ArrayList<byte[]>();
+        private int mStringBytes;
+        private final IntArray mRhythms = new IntArray();
+        private final IntArray mTunes = new IntArray();
+        private final IntArray mParts = new IntArray();
+        private final IntArray mLines = new IntArray();
+        private final IntArray mMeasures = new IntArray();
+        private final IntArray mChords = new IntArray();
+        private final IntArray mSets = new IntArray();
+        private final IntArray mSetTunes = new IntArray();
+
+        RecordWriter(TuneBook tuneBook) {
+            // The declared rhythms are known rhythms too once read back, even if no tune plays them
+            mRhythmList = tuneBook.getRhythms();
+            mTuneList = new ArrayList<Tune>(tuneBook.getTunes());
+            for (TuneSet set : tuneBook.getTuneSets()) {
+                mSetNames.add(set.getName());
+                mSetTuneLists.add(new ArrayList<Tune>(set.getTunes()));
+            }
+        }
+
+        /**
+         * Writes the captured tunebook, once.
+         */
+        void write(OutputStream out) throws IOException {
+            HashMap<Rhythm, Integer> rhythmIds = new HashMap<Rhythm, Integer>();
+            for (Rhythm rhythm : mRhythmList) {
+                rhythmIds.put(rhythm, rhythmIds.size());
+                mRhythms.add(getStringId(rhythm.getName()));
+                mRhythms.add(getStringId(rhythm.getSignature()));
+                mRhythms.add(rhythm.getBeatsPerBar());
+            }
+
+            ArrayList<Tune> tunes = new ArrayList<Tune>(mTuneList);
+            Collections.sort(tunes, new Comparator<Tune>() {
+                @Override
+                public int compare(Tune lhs, Tune rhs) {
+                    return lhs.getIndex() < rhs.getIndex() ? -1 : (lhs.getIndex() == rhs.getIndex() ? 0 : 1);
+                }
+            });
+            HashMap<String, Integer> tuneIds = new HashMap<String, Integer>();
+            for (Tune tune : tunes) {
+                tuneIds.put(tune.getId(), tuneIds.size());
+                addTune(tune, rhythmIds);
+            }
+
+            for (int s = 0; s < mSetNames.size(); s++) {
+                String setName = mSetNames.get(s);
+                int firstTune = mSetTunes.size();
+                for (Tune tune : mSetTuneLists.get(s)) {
+                    Integer tuneId = tuneIds.get(tune.getId());
+                    if (tuneId != null)
+                        mSetTunes.add(tuneId);
+                    else
+                        Log.w(TAG, String.format("Tune '%s' of set '%s' is not in the tunebook, skip.",
+                                tune.getId(), setName));
+                }
+                mSets.add(getStringId(setName));
+                mSets.add(firstTune);
+                mSets.add(mSetTunes.size() - firstTune);
+            }
+
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(mStrings.size());
+            data.writeInt(mStringBytes);
+            data.writeInt(mRhythms.size() / RHYTHM_RECORD);
+            data.writeInt(mTunes.size() / TUNE_RECORD);
+            data.writeInt(mParts.size() / PART_RECORD);
+            data.writeInt(mLines.size() / LINE_RECORD);
+            data.writeInt(mMeasures.size() / MEASURE_RECORD);
+            data.writeInt(mChords.size() / CHORD_RECORD);
+            data.writeInt(mSets.size() / SET_RECORD);
+            data.writeInt(mSetTunes.size() / SET_TUNE_RECORD);
+
+            int offset = 0;
+            for (byte[] string : mStrings) {
+                data.writeInt(offset);
+                offset += string.length;
+            }
+            data.writeInt(offset);
+            for (byte[] string : mStrings)
+                data.write(string);
+            for (int i = offset; i % 4 != 0; i++)
+                data.writeByte(0);
+
+            mRhythms.writeTo(data);
+            mTunes.writeTo(data);
+            mParts.writeTo(data);
+            mLines.writeTo(data);
+            mMeasures.writeTo(data);
+            mChords.writeTo(data);
+            mSets.writeTo(data);
+            mSetTunes.writeTo(data);
+            data.flush();
+            Log.d(TAG, String.format("Wrote %d tunes, %d sets and %d strings", tunes.size(),
+                    mSets.size() / SET_RECORD, mStrings.size()));
+        }
+
+        private void addTune(Tune tune, HashMap<Rhythm, Integer> rhythmIds) {
+            int firstPart = mParts.size() / PART_RECORD;
+            List<TunePart> parts = tune.getParts();
+            for (TunePart part : parts) {
+                mParts.add(getStringId(part.getLabel()));
+                mParts.add(mLines.size() / LINE_RECORD);
+                mParts.add(part.countLines());
+                for (Line line : part.getLines()) {
+                    mLines.add(line.hasRepetition() ? LINE_REPETITION : 0);
+                    mLines.add(mMeasures.size() / MEASURE_RECORD);
+                    mLines.add(line.countMeasures());
+                    for (Measure measure : line.getMeasures()) {
+                        mMeasures.add(mChords.size() / CHORD_RECORD);
+                        mMeasures.add(measure.countChords());
+                        for (Chord chord : measure.getChords())
+                            mChords.add(getStringId(chord.getValue()));
+                    }
+                }
+            }
+
+            Integer rhythmId = tune.getRhythm() == null ? null : rhythmIds.get(tune.getRhythm());
+            mTunes.add(getStringId(tune.getId()));
+            mTunes.add(tune.getIndex());
+            mTunes.add(getStringId(tune.getName()));
+            mTunes.add(rhythmId == null ? NO_RHYTHM : rhythmId);
+            mTunes.add(getStringId(tune.getKey()));
+            mTunes.add(firstPart);
+            mTunes.add(parts.size());
+        }
+
+        private int getStringId(String string) {
+            if (string == null)
+                return NO_STRING;
+            Integer id = mStringIds.get(string);
+            if (id == null) {
+                id = mStrings.size();
+                byte[] bytes = string.getBytes(UTF8);
+                mStrings.add(bytes);
+                mStringBytes += bytes.length;
+                mStringIds.put(string, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * A growable array of ints.
+     */
+    private static class IntArray {
+
+        private int[] mValues = new int[64];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                int[] values = new int[mSize * 2];
+                System.arraycopy(mValues, 0, values, 0, mSize);
+                mValues = values;
+            }
+            mValues[mSize++] = value;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < mSize; i++)
+                out.writeInt(mValues[i]);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Reading
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Opens a binary tunebook by memory-mapping its file.
+     *
+     * @param file The binary tunebook.
+     * @return A new tunebook, whose tune parts are read from the file when first needed.
+     * @throws IOException If the file cannot be read or is not a binary tunebook of a known
+     *                     version.
+     */
+    public static TuneBook read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid once the file is closed
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens a binary tunebook held in a buffer, e.g. a memory-mapped file.
+     *
+     * @param buffer The binary tunebook, from position 0. It must not be modified afterwards.
+     * @return A new tunebook, whose tune parts are read from the buffer when first needed.
+     * @throws IOException If the buffer does not hold a binary tunebook of a known version.
+     */
+    public static TuneBook read(ByteBuffer buffer) throws IOException {
+        return new MappedReader(buffer).read();
+    }
+
+    /**
+     * Reads the records of a binary tunebook in place, using absolute gets only so that tune
+     * parts can be built from any thread.
+     */
+    private static class MappedReader {
+
+        private final ByteBuffer mBuffer;
+        private final int[] mCounts = new int[COUNTS];
+        private int mStringOffsets;
+        private int mStringData;
+        private int mRhythms;
+        private int mTunes;
+        private int mParts;
+        private int mLines;
+        private int mMeasures;
+        private int mChords;
+        private int mSets;
+        private int mSetTunes;
+        /**
+         * The strings decoded so far, shared by all the tunes.
+         */
+        private String[] mStrings;
+
+        MappedReader(ByteBuffer buffer) {
+            mBuffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
+
+        TuneBook read() throws IOException {
+            readHeader();
+
+            int countRhythms = mCounts[COUNT_RHYTHMS];
+            ArrayList<Rhythm> rhythms = new ArrayList<Rhythm>(countRhythms);
+            for (int i = 0; i < countRhythms; i++) {
+                int record = mRhythms + 4 * RHYTHM_RECORD * i;
+                rhythms.add(new Rhythm(getString(mBuffer.getInt(record)),
+                        getString(mBuffer.getInt(record + 4)), mBuffer.getInt(record + 8)));
+            }
+            Rhythm.addKnownRhythms(rhythms);
+            for (int i = 0; i < countRhythms; i++) {
+                Rhythm known = Rhythm.findKnownRhythm(rhythms.get(i).getName());
+                if (known != null)
+                    rhythms.set(i, known);
+            }
+
+            TuneBook tuneBook = new TuneBook();
+            tuneBook.declareRhythms(rhythms);
+            int countTunes = mCounts[COUNT_TUNES];
+            Tune[] tunes = new Tune[countTunes];
+            for (int i = 0; i < countTunes; i++) {
+                int record = mTunes + 4 * TUNE_RECORD * i;
+                int id = mBuffer.getInt(record);
+                int rhythm = mBuffer.getInt(record + 12);
+                int firstPart = mBuffer.getInt(record + 20);
+                int countParts = mBuffer.getInt(record + 24);
+                checkRange(firstPart, countParts, mCounts[COUNT_PARTS], "parts");
+                // Every tune has an id, unlike its title or key
+                checkRange(id, 1, mStrings.length, "tune id");
+                if (rhythm != NO_RHYTHM)
+                    checkRange(rhythm, 1, countRhythms, "rhythm");
+                tunes[i] = new Tune(getString(id), mBuffer.getInt(record + 4),
+                        getString(mBuffer.getInt(record + 8)),
+                        rhythm == NO_RHYTHM ? null : rhythms.get(rhythm),
+                        getString(mBuffer.getInt(record + 16)), new MappedPartsLoader(this, firstPart, countParts));
+                tuneBook.addParsedTune(tunes[i]);
+            }
+
+            for (int i = 0; i < mCounts[COUNT_SETS]; i++) {
+                int record = mSets + 4 * SET_RECORD * i;
+                int firstTune = mBuffer.getInt(record + 4);
+                int countSetTunes = mBuffer.getInt(record + 8);
+                checkRange(firstTune, countSetTunes, mCounts[COUNT_SET_TUNES], "set tunes");
+                ArrayList<Tune> setTunes = new ArrayList<Tune>(countSetTunes);
+                for (int j = firstTune; j < firstTune + countSetTunes; j++) {
+                    int tune = mBuffer.getInt(mSetTunes + 4 * SET_TUNE_RECORD * j);
+                    checkRange(tune, 1, countTunes, "tune");
+                    setTunes.add(tunes[tune]);
+                }
+                tuneBook.addParsedTuneSet(new TuneSet(tuneBook, getString(mBuffer.getInt(record)), setTunes));
+            }
+            tuneBook.publishSnapshot();
+
+            Log.d(TAG, String.format("Opened %d tunes and %d sets", countTunes, mCounts[COUNT_SETS]));
+            return tuneBook;
+        }
+
+        private void readHeader() throws IOException {
+            if (mBuffer.limit() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC)
+                throw new IOException("Not a binary tunebook");
+            int version = mBuffer.getInt(4);
+            if (version != VERSION)
+                throw new IOException("Unsupported binary tunebook version " + version);
+            for (int i = 0; i < COUNTS; i++) {
+                mCounts[i] = mBuffer.getInt(8 + 4 * i);
+                if (mCounts[i] < 0)
+                    throw new IOException("Corrupt binary tunebook header");
+            }
+
+            long offset = HEADER_SIZE;
+            mStringOffsets = checkSection(offset);
+            offset += 4L * (mCounts[COUNT_STRINGS] + 1);
+            mStringData = checkSection(offset);
+            offset += (mCounts[COUNT_STRING_BYTES] + 3) & ~3L;
+            mRhythms = checkSection(offset);
+            offset += 4L * RHYTHM_RECORD * mCounts[COUNT_RHYTHMS];
+            mTunes = checkSection(offset);
+            offset += 4L * TUNE_RECORD * mCounts[COUNT_TUNES];
+            mParts = checkSection(offset);
+            offset += 4L * PART_RECORD * mCounts[COUNT_PARTS];
+            mLines = checkSection(offset);
+            offset += 4L * LINE_RECORD * mCounts[COUNT_LINES];
+            mMeasures = checkSection(offset);
+            offset += 4L * MEASURE_RECORD * mCounts[COUNT_MEASURES];
+            mChords = checkSection(offset);
+            offset += 4L * CHORD_RECORD * mCounts[COUNT_CHORDS];
+            mSets = checkSection(offset);
+            offset += 4L * SET_RECORD * mCounts[COUNT_SETS];
+            mSetTunes = checkSection(offset);
+            offset += 4L * SET_TUNE_RECORD * mCounts[COUNT_SET_TUNES];
+            checkSection(offset);
+
+            mStrings = new String[mCounts[COUNT_STRINGS]];
+        }
+
+        private int checkSection(long offset) throws IOException {
+            if (offset > mBuffer.limit())
+                throw new IOException("Truncated binary tunebook");
+            return (int) offset;
+        }
+
+        private static void checkRange(int first, int count, int limit, String what) throws IOException {
+            if (first < 0 || count < 0 || first > limit - count)
+                throw new IOException("Corrupt binary tunebook: bad reference to " + what);
+        }
+
+        /**
+         * Gets a string of the table, decoding it the first time.
+         */
+        String getString(int id) throws IOException {
+            if (id == NO_STRING)
+                return null;
+            checkRange(id, 1, mStrings.length, "string");
+            String string = mStrings[id];
+            if (string == null) {
+                int start = mBuffer.getInt(mStringOffsets + 4 * id);
+                int end = mBuffer.getInt(mStringOffsets + 4 * id + 4);
+                checkRange(start, end - start, mCounts[COUNT_STRING_BYTES], "string data");
+                byte[] bytes = new byte[end - start];
+                ByteBuffer data = mBuffer.duplicate();
+                data.position(mStringData + start);
+                data.get(bytes);
+                // Strings are immutable, so racing decodes of the same string are harmless
+                string = new String(bytes, UTF8);
+                mStrings[id] = string;
+            }
+            return string;
+        }
+
+        /**
+         * Builds the parts of a tune from their records.
+         */
+        void readParts(Tune tune, int firstPart, int countParts, List<TunePart> parts) throws IOException {
+            for (int p = firstPart; p < firstPart + countParts; p++) {
+                int partRecord = mParts + 4 * PART_RECORD * p;
+                int firstLine = mBuffer.getInt(partRecord + 4);
+                int countLines = mBuffer.getInt(partRecord + 8);
+                checkRange(firstLine, countLines, mCounts[COUNT_LINES], "lines");
+                TunePart part = new TunePart(tune, getString(mBuffer.getInt(partRecord)));
+                for (int l = firstLine; l < firstLine + countLines; l++) {
+                    int lineRecord = mLines + 4 * LINE_RECORD * l;
+                    int firstMeasure = mBuffer.getInt(lineRecord + 4);
+                    int countMeasures = mBuffer.getInt(lineRecord + 8);
+                    checkRange(firstMeasure, countMeasures, mCounts[COUNT_MEASURES], "measures");
+                    Line line = new Line((mBuffer.getInt(lineRecord) & LINE_REPETITION) != 0);
+                    for (int m = firstMeasure; m < firstMeasure + countMeasures; m++) {
+                        int measureRecord = mMeasures + 4 * MEASURE_RECORD * m;
+                        int firstChord = mBuffer.getInt(measureRecord);
+                        int countChords = mBuffer.getInt(measureRecord + 4);
+                        checkRange(firstChord, countChords, mCounts[COUNT_CHORDS], "chords");
+                        Measure measure = new Measure();
+                        for (int c = firstChord; c < firstChord + countChords; c++) {
+                            String chord = getString(mBuffer.getInt(mChords + 4 * CHORD_RECORD * c));
+                            measure.getChords().add(Chord.valueOf(chord == null ? "" : chord));
+                        }
+                        line.getMeasures().add(measure);
+                    }
+                    part.getLines().add(line);
+                }
+                parts.add(part);
+            }
+        }
+    }
+
+    /**
+     * Builds the parts of one tune from the mapped records.
+     */
+    private static class MappedPartsLoader implements Tune.PartsLoader {
+
+        private final MappedReader mReader;
+        private final int mFirstPart;
+        private final int mCountParts;
+
+        MappedPartsLoader(MappedReader reader, int firstPart, int countParts) {
+            mReader = reader;
+            mFirstPart = firstPart;
+            mCountParts = countParts;
+        }
+
+        @Override
+        public void loadParts(Tune tune, List<TunePart> parts) {
+            try {
+                mReader.readParts(tune, mFirstPart, mCountParts, parts);
+            } catch (IOException e) {
+                // As for an ill-formed text body, keep the parts read so far
+                Log.e(TAG, String.format("Cannot read the parts of tune '%s'", tune.getId()), e);
+            }
+        }
+    }
+}
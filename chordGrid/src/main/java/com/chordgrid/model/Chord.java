@@ -2,7 +2,6 @@ package com.chordgrid.model;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -12,6 +11,9 @@ import java.io.IOException;
 
 /**
  * This class represents a chord from a chord grid.
+ * <p/>
+ * Chords are immutable, and those read or edited are shared through the {@link InternPool}: use
+ * {@link #valueOf(String)} rather than a constructor.
  *
  * @author Sylvain Surcin (sylvain.surcin@gmail.com)
  */
@@ -25,13 +27,19 @@ public class Chord implements Parcelable {
     /**
      * The chord's value.
      */
-    private String value;
+    private final String value;
+
+    /**
+     * The meaning of the value, as a {@link ChordSymbol} code.
+     */
+    private final int symbolCode;
 
     /**
      * Empty constructor for Parcelable construction.
      */
     public Chord() {
         value = "";
+        symbolCode = ChordSymbol.UNKNOWN;
     }
 
     /**
@@ -39,6 +47,14 @@ public class Chord implements Parcelable {
      */
     public Chord(String chord) {
         value = chord.trim();
+        symbolCode = ChordSymbol.parse(value);
+    }
+
+    /**
+     * Gets the shared chord of a symbol.
+     */
+    public static Chord valueOf(String chord) {
+        return InternPool.chord(chord.trim());
     }
 
     @Override
@@ -53,6 +69,15 @@ public class Chord implements Parcelable {
         return value;
     }
 
+    /**
+     * Gets the meaning of the chord, as a {@link ChordSymbol} code.
+     *
+     * @return The code, or {@link ChordSymbol#UNKNOWN} if the value is empty or not understood.
+     */
+    public int getSymbolCode() {
+        return symbolCode;
+    }
+
     /**************************************************************************
      * XML parsing
      *************************************************************************/
@@ -66,11 +91,21 @@ public class Chord implements Parcelable {
      * Reads a new instance of Chord from an XML parser.
      */
     public Chord(XmlPullParser parser) throws XmlPullParserException, IOException {
-        Log.v(TAG, "Parsing an XML tag " + parser.getName());
+        value = readXmlValue(parser);
+        symbolCode = ChordSymbol.parse(value);
+    }
+
+    /**
+     * Reads a shared chord from an XML parser.
+     */
+    public static Chord xmlParse(XmlPullParser parser) throws XmlPullParserException, IOException {
+        return valueOf(readXmlValue(parser));
+    }
+
+    private static String readXmlValue(XmlPullParser parser) throws XmlPullParserException, IOException {
         parser.require(XmlPullParser.START_TAG, "", XML_TAG);
 
-        value = parser.nextText().trim();
-        Log.v(TAG, String.format("Read chord \"%s\"", value));
+        String value = parser.nextText().trim();
 
         // Work around nextText() bug that may not advance as expected
         if (parser.getEventType() != XmlPullParser.END_TAG)
@@ -78,6 +113,7 @@ public class Chord implements Parcelable {
 
         // Advance past closing tag
         parser.require(XmlPullParser.END_TAG, "", XML_TAG);
+        return value;
     }
 
     /**
@@ -102,7 +138,8 @@ public class Chord implements Parcelable {
      * @param source A parcel of data.
      */
     protected Chord(Parcel source) {
-        readFromParcel(source);
+        value = readValue(source);
+        symbolCode = ChordSymbol.parse(value);
     }
 
     @Override
@@ -126,8 +163,9 @@ public class Chord implements Parcelable {
      *
      * @param source The source parcel of data.
      */
-    public void readFromParcel(Parcel source) {
-        value = source.readString();
+    private static String readValue(Parcel source) {
+        String value = source.readString();
+        return value != null ? value : "";
     }
 
     /**
@@ -151,7 +189,7 @@ public class Chord implements Parcelable {
          */
         @Override
         public Chord createFromParcel(Parcel source) {
-            return new Chord(source);
+            return valueOf(readValue(source));
         }
     };
 }
@@ -0,0 +1,285 @@
+package com.chordgrid.model;
+
+/**
+ * Encodes the musical meaning of a chord symbol in an int, so that analysis passes work on
+ * primitive values instead of parsing text again.
+ * <p/>
+ * A code packs the root (letter and accidental), the quality, the extensions and the slash bass:
+ * <pre>
+ * bits  0-2   root letter, C = 0 to B = 6
+ * bits  3-4   root accidental, {@link #NATURAL}, {@link #SHARP} or {@link #FLAT}
+ * bits  5-7   quality, {@link #MAJOR} to {@link #HALF_DIMINISHED}
+ * bits  8-15  extensions, {@link #SIXTH} | {@link #SEVENTH} | ...
+ * bit   16    slash bass present
+ * bits 17-19  bass letter
+ * bits 20-21  bass accidental
+ * bit   30    valid symbol
+ * </pre>
+ * {@link #UNKNOWN}, i.e. 0, stands for an empty or unrecognized symbol. The suffixes are read
+ * with a table of tokens, e.g. "m", "-" and "min" all being {@link #MINOR}.
+ * <p/>
+ * Each {@link Chord} computes its code once, and chords are shared by symbol through the
+ * {@link InternPool}, so that a symbol is parsed once.
+ */
+public final class ChordSymbol {
+
+    /**
+     * The code of an empty or unrecognized symbol.
+     */
+    public static final int UNKNOWN = 0;
+
+    public static final int NATURAL = 0;
+    public static final int SHARP = 1;
+    public static final int FLAT = 2;
+
+    public static final int MAJOR = 0;
+    public static final int MINOR = 1;
+    public static final int DIMINISHED = 2;
+    public static final int AUGMENTED = 3;
+    public static final int SUSPENDED_2 = 4;
+    public static final int SUSPENDED_4 = 5;
+    public static final int POWER = 6;
+    public static final int HALF_DIMINISHED = 7;
+
+    public static final int SIXTH = 1;
+    public static final int SEVENTH = 1 << 1;
+    public static final int MAJOR_SEVENTH = 1 << 2;
+    public static final int NINTH = 1 << 3;
+    public static final int ELEVENTH = 1 << 4;
+    public static final int THIRTEENTH = 1 << 5;
+    public static final int ADDED_NINTH = 1 << 6;
+
+    private static final int ACCIDENTAL_SHIFT = 3;
+    private static final int QUALITY_SHIFT = 5;
+    private static final int EXTENSIONS_SHIFT = 8;
+    private static final int BASS_FLAG = 1 << 16;
+    private static final int BASS_SHIFT = 17;
+    private static final int VALID_FLAG = 1 << 30;
+
+    private static final String LETTERS = "CDEFGAB";
+    private static final int[] LETTER_PITCHES = {0, 2, 4, 5, 7, 9, 11};
+
+    /**
+     * The spelling of each pitch class, as letter | accidental << 3, with sharps and with flats.
+     */
+    private static final int[] SHARP_SPELLINGS = {0, 0 | SHARP << 3, 1, 1 | SHARP << 3, 2, 3, 3 | SHARP << 3,
+            4, 4 | SHARP << 3, 5, 5 | SHARP << 3, 6};
+    private static final int[] FLAT_SPELLINGS = {0, 1 | FLAT << 3, 1, 2 | FLAT << 3, 2, 3, 4 | FLAT << 3,
+            4, 5 | FLAT << 3, 5, 6 | FLAT << 3, 6};
+
+    private static final int QUALITY = 1 << 8;
+
+    /**
+     * The suffix tokens, the longest first when one starts another, with their meaning: an
+     * extension mask, plus a quality (offset by one) times {@link #QUALITY}.
+     */
+    private static final String[] TOKENS = {
+            "maj7", "ma7", "M7", "\u03947", "\u0394", "m7b5", "m7\u266d5", "\u00f87", "\u00f8",
+            "min", "m", "-", "dim7", "dim", "\u00b07", "\u00b0", "aug", "+",
+            "sus2", "sus4", "sus", "add9", "13", "11", "9", "7", "6", "5"};
+    private static final int[] TOKEN_CODES = {
+            MAJOR_SEVENTH, MAJOR_SEVENTH, MAJOR_SEVENTH, MAJOR_SEVENTH, MAJOR_SEVENTH,
+            (HALF_DIMINISHED + 1) * QUALITY, (HALF_DIMINISHED + 1) * QUALITY,
+            (HALF_DIMINISHED + 1) * QUALITY, (HALF_DIMINISHED + 1) * QUALITY,
+            (MINOR + 1) * QUALITY, (MINOR + 1) * QUALITY, (MINOR + 1) * QUALITY,
+            (DIMINISHED + 1) * QUALITY | SEVENTH, (DIMINISHED + 1) * QUALITY,
+            (DIMINISHED + 1) * QUALITY | SEVENTH, (DIMINISHED + 1) * QUALITY,
+            (AUGMENTED + 1) * QUALITY, (AUGMENTED + 1) * QUALITY,
+            (SUSPENDED_2 + 1) * QUALITY, (SUSPENDED_4 + 1) * QUALITY, (SUSPENDED_4 + 1) * QUALITY,
+            ADDED_NINTH, THIRTEENTH, ELEVENTH, NINTH, SEVENTH, SIXTH, (POWER + 1) * QUALITY};
+
+    private static final String[] QUALITY_SUFFIXES = {"", "m", "dim", "aug", "sus2", "sus4", "5", "m7b5"};
+
+    /**
+     * Whether the suffix of each quality comes after the extensions, as in "C7sus4".
+     */
+    private static final boolean[] QUALITY_AFTER_EXTENSIONS = {false, false, false, false, true, true, false, false};
+    private static final String[] EXTENSION_SUFFIXES = {"6", "7", "maj7", "9", "11", "13", "add9"};
+
+    private ChordSymbol() {
+    }
+
+    /**
+     * Encodes a chord symbol, e.g. "F#m7/C#".
+     *
+     * @return The code, or {@link #UNKNOWN} if the symbol is empty or not understood.
+     */
+    public static int parse(String symbol) {
+        int length = symbol.length();
+        int note = parseNote(symbol, 0);
+        if (note < 0)
+            return UNKNOWN;
+        int i = note >>> 8;
+        int code = VALID_FLAG | (note & 0xff);
+
+        int quality = -1;
+        int extensions = 0;
+        while (i < length && symbol.charAt(i) != '/') {
+            int token = findToken(symbol, i);
+            if (token < 0)
+                return UNKNOWN;
+            int tokenQuality = TOKEN_CODES[token] / QUALITY - 1;
+            if (tokenQuality >= 0) {
+                if (quality >= 0)
+                    return UNKNOWN;
+                quality = tokenQuality;
+            }
+            extensions |= TOKEN_CODES[token] % QUALITY;
+            i += TOKENS[token].length();
+        }
+        code |= Math.max(quality, MAJOR) << QUALITY_SHIFT | extensions << EXTENSIONS_SHIFT;
+
+        if (i < length) {
+            int bass = parseNote(symbol, i + 1);
+            if (bass < 0 || bass >>> 8 != length)
+                return UNKNOWN;
+            code |= BASS_FLAG | (bass & 0xff) << BASS_SHIFT;
+        }
+        return code;
+    }
+
+    /**
+     * Reads a note at a given index.
+     *
+     * @return The letter | accidental << 3, plus the index past the note times 256, or -1.
+     */
+    private static int parseNote(String symbol, int start) {
+        if (start >= symbol.length())
+            return -1;
+        int letter = LETTERS.indexOf(Character.toUpperCase(symbol.charAt(start)));
+        if (letter < 0)
+            return -1;
+        int i = start + 1;
+        int accidental = NATURAL;
+        if (i < symbol.length()) {
+            char c = symbol.charAt(i);
+            if (c == '#' || c == '\u266f') {
+                accidental = SHARP;
+                i++;
+            } else if (c == 'b' || c == '\u266d') {
+                accidental = FLAT;
+                i++;
+            }
+        }
+        return letter | accidental << ACCIDENTAL_SHIFT | i << 8;
+    }
+
+    private static int findToken(String symbol, int start) {
+        for (int t = 0; t < TOKENS.length; t++) {
+            if (symbol.startsWith(TOKENS[t], start))
+                return t;
+        }
+        return -1;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Decoding
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static boolean isValid(int code) {
+        return (code & VALID_FLAG) != 0;
+    }
+
+    public static int getRootLetter(int code) {
+        return code & 0x7;
+    }
+
+    public static int getRootAccidental(int code) {
+        return code >>> ACCIDENTAL_SHIFT & 0x3;
+    }
+
+    /**
+     * Gets the pitch class of the root, C = 0 to B = 11.
+     */
+    public static int getRootPitch(int code) {
+        return getPitch(code & 0x1f);
+    }
+
+    public static int getQuality(int code) {
+        return code >>> QUALITY_SHIFT & 0x7;
+    }
+
+    /**
+     * Gets the extensions, e.g. {@link #SEVENTH} | {@link #NINTH}.
+     */
+    public static int getExtensions(int code) {
+        return code >>> EXTENSIONS_SHIFT & 0xff;
+    }
+
+    public static boolean hasBass(int code) {
+        return (code & BASS_FLAG) != 0;
+    }
+
+    /**
+     * Gets the pitch class of the slash bass, or of the root if there is none.
+     */
+    public static int getBassPitch(int code) {
+        return hasBass(code) ? getPitch(code >>> BASS_SHIFT & 0x1f) : getRootPitch(code);
+    }
+
+    private static int getPitch(int note) {
+        int accidental = note >>> ACCIDENTAL_SHIFT;
+        int pitch = LETTER_PITCHES[note & 0x7] + (accidental == SHARP ? 1 : accidental == FLAT ? -1 : 0);
+        return (pitch + 12) % 12;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Operations
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Transposes a chord, spelling its notes with sharps or flats.
+     *
+     * @param semitones The interval, up if positive.
+     * @return The transposed code, or the code itself if it is not valid.
+     */
+    public static int transpose(int code, int semitones, boolean flats) {
+        if (!isValid(code))
+            return code;
+        int[] spellings = flats ? FLAT_SPELLINGS : SHARP_SPELLINGS;
+        int root = spellings[((getRootPitch(code) + semitones) % 12 + 12) % 12];
+        code = code & ~0x1f | root;
+        if (hasBass(code)) {
+            int bass = spellings[((getBassPitch(code) + semitones) % 12 + 12) % 12];
+            code = code & ~(0x1f << BASS_SHIFT) | bass << BASS_SHIFT;
+        }
+        return code;
+    }
+
+    /**
+     * Writes a chord in its canonical form, e.g. "Em" for "E-", or "C7sus4" for "Csus47".
+     *
+     * @param unicode Whether to write the accidentals as sharp and flat signs rather than # and b.
+     * @return The symbol, or the empty string if the code is not valid.
+     */
+    public static String format(int code, boolean unicode) {
+        if (!isValid(code))
+            return "";
+        StringBuilder symbol = new StringBuilder(8);
+        appendNote(symbol, code & 0x1f, unicode);
+        int quality = getQuality(code);
+        if (!QUALITY_AFTER_EXTENSIONS[quality])
+            symbol.append(QUALITY_SUFFIXES[quality]);
+        int extensions = getExtensions(code);
+        for (int e = 0; e < EXTENSION_SUFFIXES.length; e++) {
+            if ((extensions & 1 << e) != 0)
+                symbol.append(EXTENSION_SUFFIXES[e]);
+        }
+        if (QUALITY_AFTER_EXTENSIONS[quality])
+            symbol.append(QUALITY_SUFFIXES[quality]);
+        if (hasBass(code)) {
+            symbol.append('/');
+            appendNote(symbol, code >>> BASS_SHIFT & 0x1f, unicode);
+        }
+        return symbol.toString();
+    }
+
+    private static void appendNote(StringBuilder symbol, int note, boolean unicode) {
+        symbol.append(LETTERS.charAt(note & 0x7));
+        int accidental = note >>> ACCIDENTAL_SHIFT;
+        if (accidental == SHARP)
+            symbol.append(unicode ? '\u266f' : '#');
+        else if (accidental == FLAT)
+            symbol.append(unicode ? '\u266d' : 'b');
+    }
+}
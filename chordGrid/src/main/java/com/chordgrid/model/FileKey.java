@@ -0,0 +1,73 @@
+package com.chordgrid.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Identifies the contents of a file by its size, modification time and CRC-32, so that data
+ * derived from the file can tell whether the file changed since.
+ */
+class FileKey {
+
+    /**
+     * The number of bytes written by {@link #write(DataOutput)}.
+     */
+    static final int SIZE = 3 * 8;
+
+    private final long mSize;
+    private final long mLastModified;
+    private final long mChecksum;
+
+    private FileKey(long size, long lastModified, long checksum) {
+        mSize = size;
+        mLastModified = lastModified;
+        mChecksum = checksum;
+    }
+
+    /**
+     * Computes the key of a file, reading it whole.
+     */
+    static FileKey of(File file) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        return new FileKey(size, lastModified, computeChecksum(file));
+    }
+
+    static FileKey read(DataInput in) throws IOException {
+        return new FileKey(in.readLong(), in.readLong(), in.readLong());
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeLong(mSize);
+        out.writeLong(mLastModified);
+        out.writeLong(mChecksum);
+    }
+
+    /**
+     * Returns true if a file still has this key, only reading it when its size and modification
+     * time match.
+     */
+    boolean matches(File file) throws IOException {
+        return file.exists() && mSize == file.length() && mLastModified == file.lastModified()
+                && mChecksum == computeChecksum(file);
+    }
+
+    private static long computeChecksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int count;
+            while ((count = in.read(buffer)) > 0)
+                crc.update(buffer, 0, count);
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,49 @@
+package com.chordgrid.model;
+
+/**
+ * Computes a 64-bit FNV-1a hash of tunebook content.
+ * <p/>
+ * Strings are hashed ignoring case, the same way {@link String#equalsIgnoreCase(String)}
+ * compares them, and prefixed with their length so that consecutive values cannot be confused.
+ */
+class Fingerprint {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long mHash = FNV_OFFSET_BASIS;
+
+    Fingerprint add(int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            mHash ^= (value >>> shift) & 0xff;
+            mHash *= FNV_PRIME;
+        }
+        return this;
+    }
+
+    Fingerprint add(boolean value) {
+        return add(value ? 1 : 0);
+    }
+
+    /**
+     * Adds a string, ignoring case (null is distinct from the empty string).
+     */
+    Fingerprint addIgnoreCase(String value) {
+        if (value == null)
+            return add(-1);
+        int length = value.length();
+        add(length);
+        for (int i = 0; i < length; i++) {
+            char c = Character.toLowerCase(Character.toUpperCase(value.charAt(i)));
+            mHash ^= c & 0xff;
+            mHash *= FNV_PRIME;
+            mHash ^= c >>> 8;
+            mHash *= FNV_PRIME;
+        }
+        return this;
+    }
+
+    long get() {
+        return mHash;
+    }
+}
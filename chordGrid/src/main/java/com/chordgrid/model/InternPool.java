@@ -0,0 +1,109 @@
+package com.chordgrid.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one instance of each chord and of each tune key or part label across the whole model.
+ * <p/>
+ * A tunebook repeats the same few dozen chord symbols tens of thousands of times, and the same
+ * keys and part labels in every tune: the parsers, the parcels and the edits go through this pool
+ * so that equal values are held once. Tune names and ids are unique to each tune, so they are
+ * not pooled.
+ * <p/>
+ * Each pool holds at most {@link #MAX_ENTRIES} values, beyond which new values are returned as
+ * they are, so that odd input cannot grow it without bounds. It may be used from any thread.
+ */
+public final class InternPool {
+
+    /**
+     * The greatest number of values in each pool.
+     */
+    public static final int MAX_ENTRIES = 4096;
+
+    /**
+     * Estimated size of a String and of its char array, without the characters, in bytes.
+     */
+    private static final int STRING_OVERHEAD = 40;
+
+    /**
+     * Estimated size of a Chord, without its value, in bytes.
+     */
+    private static final int CHORD_OVERHEAD = 16;
+
+    private static final ConcurrentHashMap<String, Chord> CHORDS = new ConcurrentHashMap<String, Chord>();
+    private static final ConcurrentHashMap<String, String> STRINGS = new ConcurrentHashMap<String, String>();
+
+    private static final AtomicInteger CHORD_HITS = new AtomicInteger();
+    private static final AtomicInteger STRING_HITS = new AtomicInteger();
+    private static final AtomicLong SAVED_BYTES = new AtomicLong();
+
+    private InternPool() {
+    }
+
+    /**
+     * Gets the shared chord of a symbol.
+     *
+     * @param value The symbol, already trimmed.
+     */
+    static Chord chord(String value) {
+        Chord chord = CHORDS.get(value);
+        if (chord != null) {
+            CHORD_HITS.incrementAndGet();
+            SAVED_BYTES.addAndGet(CHORD_OVERHEAD + STRING_OVERHEAD + 2 * value.length());
+            return chord;
+        }
+        chord = new Chord(value);
+        if (CHORDS.size() >= MAX_ENTRIES)
+            return chord;
+        Chord previous = CHORDS.putIfAbsent(value, chord);
+        return previous != null ? previous : chord;
+    }
+
+    /**
+     * Gets the shared instance of a string, e.g. a tune key or a part label.
+     *
+     * @param value The string, or null.
+     */
+    public static String intern(String value) {
+        if (value == null)
+            return null;
+        String shared = STRINGS.get(value);
+        if (shared != null) {
+            if (shared != value) {
+                STRING_HITS.incrementAndGet();
+                SAVED_BYTES.addAndGet(STRING_OVERHEAD + 2 * value.length());
+            }
+            return shared;
+        }
+        if (STRINGS.size() >= MAX_ENTRIES)
+            return value;
+        shared = STRINGS.putIfAbsent(value, value);
+        return shared != null ? shared : value;
+    }
+
+    public static int countChords() {
+        return CHORDS.size();
+    }
+
+    public static int countStrings() {
+        return STRINGS.size();
+    }
+
+    /**
+     * Gets an estimate of the heap spared by sharing the values, in bytes, since the start of
+     * the process. Values shared then dropped by the model are still counted.
+     */
+    public static long getSavedBytes() {
+        return SAVED_BYTES.get();
+    }
+
+    /**
+     * Gets a one-line report of the pools, e.g. for the logs.
+     */
+    public static String getReport() {
+        return String.format("%d chords (%d reuses), %d strings (%d reuses), about %d KB saved",
+                CHORDS.size(), CHORD_HITS.get(), STRINGS.size(), STRING_HITS.get(), SAVED_BYTES.get() / 1024);
+    }
+}
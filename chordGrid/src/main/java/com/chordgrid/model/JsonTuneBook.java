@@ -0,0 +1,472 @@
+package com.chordgrid.model;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads and writes tunebooks as JSON, one token at a time with the Gson streaming API, so that
+ * large tunebooks are exchanged without ever holding a document tree in memory.
+ * <p/>
+ * A document looks like:
+ * <pre>
+ * {
+ *   "version": 1,
+ *   "rhythms": [{"name": "Reel", "signature": "4/4", "beatsPerBar": 4}],
+ *   "tunes": [{"id": "the_silver_spear", "index": 1, "name": "The Silver Spear",
+ *              "rhythm": "Reel", "key": "D",
+ *              "parts": [{"label": "A", "lines": [{"repeat": true,
+ *                         "measures": [["D"], ["D", "G"], ["A"]]}]}]}],
+ *   "sets": [{"name": "Reels", "tunes": ["the_silver_spear"]}]
+ * }
+ * </pre>
+ * Unknown members are skipped. The rhythms must come before the tunes; the sets may come
+ * anywhere, their tune ids being resolved once the whole document is read.
+ */
+public final class JsonTuneBook {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "JsonTuneBook";
+
+    /**
+     * The version written. Documents of a later version are rejected.
+     */
+    public static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String VERSION_KEY = "version";
+    private static final String RHYTHMS_KEY = "rhythms";
+    private static final String TUNES_KEY = "tunes";
+    private static final String SETS_KEY = "sets";
+    private static final String NAME_KEY = "name";
+    private static final String SIGNATURE_KEY = "signature";
+    private static final String BEATS_PER_BAR_KEY = "beatsPerBar";
+    private static final String ID_KEY = "id";
+    private static final String INDEX_KEY = "index";
+    private static final String RHYTHM_KEY = "rhythm";
+    private static final String KEY_KEY = "key";
+    private static final String PARTS_KEY = "parts";
+    private static final String LABEL_KEY = "label";
+    private static final String LINES_KEY = "lines";
+    private static final String REPEAT_KEY = "repeat";
+    private static final String MEASURES_KEY = "measures";
+
+    private JsonTuneBook() {
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Conversion
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Converts a tunebook text representation to JSON.
+     *
+     * @param reader      The source of the serialized tune book text (closed when done).
+     * @param out         Receives the JSON document in UTF-8 (not closed).
+     * @param diagnostics Receives the warnings and errors found in the text.
+     * @throws IOException
+     */
+    public static void convertTextToJson(Reader reader, OutputStream out, ParseDiagnostics diagnostics)
+            throws IOException {
+        write(new TuneBook(reader, false, diagnostics), out);
+    }
+
+    /**
+     * Converts a JSON tunebook to its text representation.
+     *
+     * @param in  The JSON document in UTF-8 (closed when done).
+     * @param out Receives the serialized tune book text (not closed).
+     * @throws IOException
+     */
+    public static void convertJsonToText(InputStream in, OutputStream out) throws IOException {
+        read(in).serialize(out);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Writing
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes a tunebook as JSON.
+     *
+     * @param tuneBook The tunebook to write.
+     * @param out      Receives the JSON document in UTF-8 (not closed).
+     * @throws IOException
+     */
+    public static void write(TuneBook tuneBook, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+        write(tuneBook, new JsonWriter(writer));
+        writer.flush();
+    }
+
+    /**
+     * Writes a tunebook as a JSON object, the rhythms first, then the tunes in index order, then
+     * the sets.
+     */
+    public static void write(TuneBook tuneBook, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(VERSION_KEY).value(VERSION);
+
+        // The declared rhythms are known rhythms too once read back, even if no tune plays them
+        writer.name(RHYTHMS_KEY).beginArray();
+        for (Rhythm rhythm : tuneBook.getRhythms())
+            writeRhythm(rhythm, writer);
+        writer.endArray();
+
+        ArrayList<Tune> tunes = new ArrayList<Tune>(tuneBook.getTunes());
+        Collections.sort(tunes, new Comparator<Tune>() {
+            @Override
+            public int compare(Tune lhs, Tune rhs) {
+                return lhs.getIndex() < rhs.getIndex() ? -1 : (lhs.getIndex() == rhs.getIndex() ? 0 : 1);
+            }
+        });
+        writer.name(TUNES_KEY).beginArray();
+        for (Tune tune : tunes)
+            writeTune(tune, writer);
+        writer.endArray();
+
+        writer.name(SETS_KEY).beginArray();
+        for (TuneSet set : tuneBook.getTuneSets())
+            writeTuneSet(set, writer);
+        writer.endArray();
+
+        writer.endObject();
+    }
+
+    public static void writeRhythm(Rhythm rhythm, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(NAME_KEY).value(rhythm.getName());
+        writer.name(SIGNATURE_KEY).value(rhythm.getSignature());
+        writer.name(BEATS_PER_BAR_KEY).value(rhythm.getBeatsPerBar());
+        writer.endObject();
+    }
+
+    /**
+     * Writes a tune with its parts; a rhythm is written by name only.
+     */
+    public static void writeTune(Tune tune, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(ID_KEY).value(tune.getId());
+        writer.name(INDEX_KEY).value(tune.getIndex());
+        if (tune.getName() != null)
+            writer.name(NAME_KEY).value(tune.getName());
+        if (tune.getRhythm() != null)
+            writer.name(RHYTHM_KEY).value(tune.getRhythm().getName());
+        if (tune.getKey() != null)
+            writer.name(KEY_KEY).value(tune.getKey());
+        writer.name(PARTS_KEY).beginArray();
+        for (TunePart part : tune.getParts()) {
+            writer.beginObject();
+            writer.name(LABEL_KEY).value(part.getLabel());
+            writer.name(LINES_KEY).beginArray();
+            for (Line line : part.getLines()) {
+                writer.beginObject();
+                writer.name(REPEAT_KEY).value(line.hasRepetition());
+                writer.name(MEASURES_KEY).beginArray();
+                for (Measure measure : line.getMeasures()) {
+                    writer.beginArray();
+                    for (Chord chord : measure.getChords())
+                        writer.value(chord.getValue());
+                    writer.endArray();
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    /**
+     * Writes a tune set, its tunes being referenced by id.
+     */
+    public static void writeTuneSet(TuneSet set, JsonWriter writer) throws IOException {
+        writer.beginObject();
+        if (set.getName() != null)
+            writer.name(NAME_KEY).value(set.getName());
+        writer.name(TUNES_KEY).beginArray();
+        for (Tune tune : set.getTunes())
+            writer.value(tune.getId());
+        writer.endArray();
+        writer.endObject();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Reading
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads a JSON tunebook.
+     *
+     * @param in The JSON document in UTF-8 (closed when done).
+     * @return A new tunebook.
+     * @throws IOException If the document cannot be read or is not a tunebook.
+     */
+    public static TuneBook read(InputStream in) throws IOException {
+        return read(new InputStreamReader(in, UTF8));
+    }
+
+    /**
+     * Reads a JSON tunebook.
+     *
+     * @param reader The source of the JSON document (closed when done).
+     * @return A new tunebook.
+     * @throws IOException If the document cannot be read or is not a tunebook.
+     */
+    public static TuneBook read(Reader reader) throws IOException {
+        JsonReader jsonReader = new JsonReader(reader);
+        try {
+            return read(jsonReader);
+        } finally {
+            jsonReader.close();
+        }
+    }
+
+    /**
+     * Reads a tunebook from a JSON object.
+     * <p/>
+     * The rhythms are added to the known rhythms, and the tune ids of the sets are resolved
+     * against the tunes of the document.
+     */
+    public static TuneBook read(JsonReader reader) throws IOException {
+        TuneBook tuneBook = new TuneBook();
+        ArrayList<PendingSet> sets = new ArrayList<PendingSet>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (VERSION_KEY.equals(name)) {
+                int version = reader.nextInt();
+                if (version > VERSION)
+                    throw new IOException("Unsupported JSON tunebook version " + version);
+            } else if (RHYTHMS_KEY.equals(name)) {
+                ArrayList<Rhythm> rhythms = new ArrayList<Rhythm>();
+                reader.beginArray();
+                while (reader.hasNext())
+                    rhythms.add(readRhythm(reader));
+                reader.endArray();
+                Rhythm.addKnownRhythms(rhythms);
+                tuneBook.declareRhythms(rhythms);
+            } else if (TUNES_KEY.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext())
+                    tuneBook.addParsedTune(readTune(reader));
+                reader.endArray();
+            } else if (SETS_KEY.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext())
+                    sets.add(readPendingSet(reader));
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        for (PendingSet set : sets)
+            tuneBook.addParsedTuneSet(set.resolve(tuneBook));
+        tuneBook.publishSnapshot();
+        Log.d(TAG, String.format("Read %d tunes and %d sets", tuneBook.countTunes(), sets.size()));
+        return tuneBook;
+    }
+
+    public static Rhythm readRhythm(JsonReader reader) throws IOException {
+        String path = reader.getPath();
+        String name = null;
+        String signature = null;
+        int beatsPerBar = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (NAME_KEY.equals(key))
+                name = reader.nextString();
+            else if (SIGNATURE_KEY.equals(key))
+                signature = reader.nextString();
+            else if (BEATS_PER_BAR_KEY.equals(key))
+                beatsPerBar = reader.nextInt();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        if (TextUtils.isEmpty(name) || TextUtils.isEmpty(signature) || beatsPerBar <= 0)
+            throw new IOException("Ill-formed rhythm at " + path);
+        return new Rhythm(name, signature, beatsPerBar);
+    }
+
+    /**
+     * Reads a tune with its parts. Its rhythm must be given and known; a missing index is left to
+     * 0, and a missing id is generated from the name.
+     */
+    public static Tune readTune(JsonReader reader) throws IOException {
+        String path = reader.getPath();
+        String id = null;
+        int index = 0;
+        String name = null;
+        Rhythm rhythm = null;
+        String key = null;
+        ArrayList<TunePart> parts = new ArrayList<TunePart>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String member = reader.nextName();
+            if (ID_KEY.equals(member)) {
+                id = reader.nextString();
+            } else if (INDEX_KEY.equals(member)) {
+                index = reader.nextInt();
+            } else if (NAME_KEY.equals(member)) {
+                name = reader.nextString();
+            } else if (RHYTHM_KEY.equals(member)) {
+                String rhythmName = reader.nextString();
+                rhythm = Rhythm.findKnownRhythm(rhythmName);
+                if (rhythm == null)
+                    throw new IOException(String.format("Unknown rhythm '%s' at %s", rhythmName, reader.getPath()));
+            } else if (KEY_KEY.equals(member)) {
+                key = reader.nextString();
+            } else if (PARTS_KEY.equals(member)) {
+                reader.beginArray();
+                while (reader.hasNext())
+                    parts.add(readPart(reader));
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (rhythm == null)
+            throw new IOException("Tune has no rhythm at " + path);
+        if (TextUtils.isEmpty(id)) {
+            if (TextUtils.isEmpty(name))
+                throw new IOException("Tune has neither an id nor a name at " + path);
+            id = Tune.generateId(name);
+        }
+        Tune tune = new Tune(id, index, name, rhythm, key, null);
+        tune.setParts(parts);
+        return tune;
+    }
+
+    private static TunePart readPart(JsonReader reader) throws IOException {
+        String label = null;
+        ArrayList<Line> lines = new ArrayList<Line>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String member = reader.nextName();
+            if (LABEL_KEY.equals(member)) {
+                label = reader.nextString();
+            } else if (LINES_KEY.equals(member)) {
+                reader.beginArray();
+                while (reader.hasNext())
+                    lines.add(readLine(reader));
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        TunePart part = new TunePart(null, label);
+        part.getLines().addAll(lines);
+        return part;
+    }
+
+    private static Line readLine(JsonReader reader) throws IOException {
+        boolean repetition = false;
+        ArrayList<Measure> measures = new ArrayList<Measure>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String member = reader.nextName();
+            if (REPEAT_KEY.equals(member)) {
+                repetition = reader.nextBoolean();
+            } else if (MEASURES_KEY.equals(member)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Measure measure = new Measure();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (reader.peek() == JsonToken.NULL) {
+                            reader.nextNull();
+                            measure.getChords().add(Chord.valueOf(""));
+                        } else {
+                            measure.getChords().add(Chord.valueOf(reader.nextString()));
+                        }
+                    }
+                    reader.endArray();
+                    measures.add(measure);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        Line line = new Line(repetition);
+        line.getMeasures().addAll(measures);
+        return line;
+    }
+
+    private static PendingSet readPendingSet(JsonReader reader) throws IOException {
+        PendingSet set = new PendingSet(reader.getPath());
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String member = reader.nextName();
+            if (NAME_KEY.equals(member)) {
+                set.mName = reader.nextString();
+            } else if (TUNES_KEY.equals(member)) {
+                reader.beginArray();
+                while (reader.hasNext())
+                    set.mTuneIds.add(reader.nextString());
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return set;
+    }
+
+    /**
+     * A set read from the document, whose tune ids are resolved once all the tunes are read.
+     */
+    private static class PendingSet {
+
+        private final String mPath;
+        private String mName;
+        private final List<String> mTuneIds = new ArrayList<String>();
+
+        PendingSet(String path) {
+            mPath = path;
+        }
+
+        TuneSet resolve(TuneBook tuneBook) {
+            ArrayList<Tune> tunes = new ArrayList<Tune>(mTuneIds.size());
+            for (String id : mTuneIds) {
+                Tune tune = tuneBook.getTuneFromId(id);
+                if (tune != null)
+                    tunes.add(tune);
+                else
+                    Log.w(TAG, String.format("Unknown tune id '%s' in set at %s, skip.", id, mPath));
+            }
+            return new TuneSet(tuneBook, mName, tunes);
+        }
+    }
+}
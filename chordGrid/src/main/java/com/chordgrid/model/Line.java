@@ -3,9 +3,6 @@ package com.chordgrid.model;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
-import android.util.Log;
-
-import com.chordgrid.MainActivity;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -17,6 +14,9 @@ import java.util.List;
 
 /**
  * Represents a line of a chord grid (i.e. there is a line feed at the end).
+ * <p/>
+ * The lines of a tune are views over its {@link TuneBody}, made on demand. Other lines, e.g.
+ * those built by a parser, hold their own measures until their part is added to a tune.
  *
  * @author Sylvain Surcin (sylvain.surcin@gmail.com)
  */
@@ -70,7 +70,6 @@ public class Line implements Parcelable {
      */
     public Line(XmlPullParser parser) throws XmlPullParserException,
             IOException {
-        Log.v(TAG, "Parsing an XML tag " + parser.getName());
         parser.require(XmlPullParser.START_TAG, "", XML_TAG);
 
         int attrCount = parser.getAttributeCount();
@@ -98,24 +97,60 @@ public class Line implements Parcelable {
      */
 
     public Line(String text) {
-        int endLabel = TextUtils.indexOf(text, ')');
-        if (endLabel >= 0)
-            text = TextUtils.substring(text, endLabel + 1, text.length()).trim();
+        int start = 0;
+        int end = text.length();
+
+        int endLabel = text.indexOf(')');
+        if (endLabel >= 0) {
+            start = endLabel + 1;
+            while (start < end && text.charAt(start) <= ' ')
+                start++;
+            while (end > start && text.charAt(end - 1) <= ' ')
+                end--;
+        }
 
-        if (text.startsWith("|:")) {
+        if (text.startsWith("|:", start)) {
             mRepetition = true;
-            text = text.substring(2);
-            int endRepeat = text.lastIndexOf(":|");
-            if (endRepeat > -1)
-                text = text.substring(0, endRepeat);
-        } else if (text.startsWith("|")) {
-            text = text.substring(1);
+            start += 2;
+            int endRepeat = text.lastIndexOf(":|", end - 2);
+            if (endRepeat >= start)
+                end = endRepeat;
+        } else if (text.startsWith("|", start)) {
+            start++;
         }
 
-        String[] items = text.split(":?\\|");
-        for (String item : items) {
-            mMeasures.add(new Measure(item));
+        // Bars are separated by '|' or ':|'. Empty trailing bars are dropped,
+        // unless the line has no separator at all.
+        int barStart = start;
+        int pendingEmptyBars = 0;
+        boolean hasSeparator = false;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) != '|')
+                continue;
+            int barEnd = (i > barStart && text.charAt(i - 1) == ':') ? i - 1 : i;
+            pendingEmptyBars = addBar(text, barStart, barEnd, pendingEmptyBars);
+            barStart = i + 1;
+            hasSeparator = true;
         }
+        if (hasSeparator)
+            addBar(text, barStart, end, pendingEmptyBars);
+        else
+            mMeasures.add(new Measure(text, start, end));
+    }
+
+    /**
+     * Adds the bar found between two separators, unless it is empty, in which case it is only
+     * counted until a non-empty bar follows.
+     *
+     * @return The updated number of pending empty bars.
+     */
+    private int addBar(String text, int start, int end, int pendingEmptyBars) {
+        if (start == end)
+            return pendingEmptyBars + 1;
+        for (; pendingEmptyBars > 0; pendingEmptyBars--)
+            mMeasures.add(new Measure(text, start, start));
+        mMeasures.add(new Measure(text, start, end));
+        return 0;
     }
 
     /**
@@ -124,6 +159,13 @@ public class Line implements Parcelable {
     public Line() {
     }
 
+    /**
+     * Builds an empty line, its measures being added afterwards.
+     */
+    Line(boolean repetition) {
+        mRepetition = repetition;
+    }
+
     public Line(int barsPerLine) {
         for (int i = 0; i < barsPerLine; i++) {
             mMeasures.add(new Measure());
@@ -173,8 +215,6 @@ public class Line implements Parcelable {
      * @param attrValue The attribute value.
      */
     private void parseXmlAttribute(String attrName, String attrValue) {
-        Log.d(MainActivity.TAG, String.format("parse Tune attribute %s=\"%s\"",
-                attrName, attrValue));
         if (XML_ATTR_REPEAT.equalsIgnoreCase(attrName)) {
             mRepetition = (!TextUtils.isEmpty(attrValue) && !"no"
                     .equalsIgnoreCase(attrValue));
@@ -190,7 +230,7 @@ public class Line implements Parcelable {
     public void xmlSerialize(XmlSerializer xmlSerializer) throws IllegalArgumentException, IllegalStateException, IOException {
         xmlSerializer.startTag("", XML_TAG);
         xmlSerializer.attribute("", XML_ATTR_REPEAT, hasRepetition() ? "yes" : "no");
-        for (Measure measure : mMeasures) {
+        for (Measure measure : getMeasures()) {
             measure.xmlSerialize(xmlSerializer);
         }
         xmlSerializer.endTag("", XML_TAG);
@@ -200,9 +240,10 @@ public class Line implements Parcelable {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append(hasRepetition() ? "|: " : "| ");
-        int count = mMeasures.size();
+        List<Measure> measures = getMeasures();
+        int count = measures.size();
         for (int i = 0; i < count; i++) {
-            sb.append(mMeasures.get(i).toString()).append(" ");
+            sb.append(measures.get(i).toString()).append(" ");
             if (i == count - 1 && hasRepetition())
                 sb.append(":|");
             else
@@ -224,8 +265,8 @@ public class Line implements Parcelable {
      */
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeByte((byte) (mRepetition ? 1 : 0));
-        dest.writeTypedList(mMeasures);
+        dest.writeByte((byte) (hasRepetition() ? 1 : 0));
+        dest.writeTypedList(getMeasures());
     }
 
     /**
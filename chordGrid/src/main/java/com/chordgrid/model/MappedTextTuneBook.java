@@ -0,0 +1,317 @@
+package com.chordgrid.model;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opens a tunebook text file without keeping every tune body on the heap.
+ * <p/>
+ * The file is memory-mapped and scanned once. The rhythms, the sets and the tune headers (id,
+ * index, title, rhythm and key) are parsed as usual, and the byte range of each tune body is
+ * recorded. A tune body is only parsed when its parts are first needed, e.g. by the grid view.
+ * <p/>
+ * The parts of at most a given number of recently used tunes are kept. Beyond that, the parts of
+ * the least recently used tune are dropped, unless the tune was modified since they were built,
+ * and parsed again from the mapped file when needed.
+ * <p/>
+ * The file must not be modified in place while the tunebook is in use: new versions must be
+ * written to another file and renamed over it, as {@link TuneBookFileSaver} does.
+ */
+public class MappedTextTuneBook {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "MappedTextTuneBook";
+
+    /**
+     * The default number of tunes whose parts are kept.
+     */
+    public static final int DEFAULT_MAX_RESIDENT_TUNES = 64;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BLOCK_NONE = 0;
+    private static final int BLOCK_TUNE = 1;
+    private static final int BLOCK_SET = 2;
+    private static final int BLOCK_RHYTHMS = 3;
+
+    private static final byte[] TUNE_PREFIX = {'X', ':'};
+    private static final byte[] SET_PREFIX = {'S', 'E', 'T', ':'};
+    private static final byte[] RHYTHMS_PREFIX = {'R', 'H', 'Y', 'T', 'H', 'M', 'S', ':'};
+
+    private final ByteBuffer mBuffer;
+    private final TuneBook mTuneBook = new TuneBook();
+    private final int mMaxResidentTunes;
+
+    /**
+     * The tunes whose parts are built, by id, the least recently used first.
+     */
+    private final LinkedHashMap<String, Tune> mResidentTunes = new LinkedHashMap<String, Tune>(16, 0.75f, true);
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    private MappedTextTuneBook(ByteBuffer buffer, int maxResidentTunes) {
+        mBuffer = buffer;
+        mMaxResidentTunes = maxResidentTunes;
+    }
+
+    /**
+     * Maps and indexes a tunebook text file.
+     *
+     * @param file             The tunebook text file, in UTF-8.
+     * @param maxResidentTunes The number of tunes whose parts are kept, at least 1.
+     * @param diagnostics      Receives the warnings and errors found in the text. Those found in
+     *                         a tune body are not reported.
+     * @return The mapped tunebook.
+     * @throws IOException
+     */
+    public static MappedTextTuneBook open(File file, int maxResidentTunes, ParseDiagnostics diagnostics)
+            throws IOException {
+        if (maxResidentTunes < 1)
+            throw new IllegalArgumentException("At least one tune must be kept");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedTextTuneBook mapped = new MappedTextTuneBook(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), maxResidentTunes);
+            mapped.scan(diagnostics);
+            return mapped;
+        } finally {
+            // The mapping remains valid once the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Gets the tunebook, whose tune parts are built from the mapped file.
+     */
+    public TuneBook getTuneBook() {
+        return mTuneBook;
+    }
+
+    /**
+     * Gets the number of times the parts of a tune were used while still built.
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Gets the number of tune bodies parsed from the mapped file.
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Gets the number of times the parts of a tune were dropped.
+     */
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Gets the number of tunes whose parts are currently built from the mapped file.
+     */
+    public synchronized int getResidentTuneCount() {
+        return mResidentTunes.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d tunes, %d resident, %d hits, %d misses, %d evictions",
+                mTuneBook.countTunes(), mResidentTunes.size(), mHitCount, mMissCount, mEvictionCount);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Scanning
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads the file line by line, as {@link TuneBookReader} does, decoding only the lines of
+     * the rhythms, of the sets and of the tune headers.
+     */
+    private void scan(ParseDiagnostics diagnostics) {
+        ArrayList<String> lines = new ArrayList<String>();
+        byte[] scratch = new byte[256];
+        int blockType = BLOCK_NONE;
+        int blockLineNumber = 0;
+        int blockLines = 0;
+        int blockLinesUntilLastNonEmpty = 0;
+        boolean headersRead = false;
+        int bodyStart = 0;
+        // Trailing empty lines are ignored, as Tune.parse() does
+        int bodyEnd = 0;
+
+        int limit = mBuffer.limit();
+        int lineNumber = 0;
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && mBuffer.get(end) != '\n')
+                end++;
+            int next = end < limit ? end + 1 : end;
+            if (end > start && mBuffer.get(end - 1) == '\r')
+                end--;
+            lineNumber++;
+
+            int lineType = getBlockType(start, end);
+            if (lineType != BLOCK_NONE) {
+                flushBlock(blockType, lines, blockLineNumber, blockLinesUntilLastNonEmpty, bodyStart, bodyEnd,
+                        diagnostics);
+                blockType = lineType;
+                blockLineNumber = lineNumber;
+                blockLines = 0;
+                blockLinesUntilLastNonEmpty = 0;
+                headersRead = false;
+                bodyStart = next;
+                bodyEnd = next;
+                lines.clear();
+            }
+            if (blockType != BLOCK_NONE) {
+                blockLines++;
+                if (end > start) {
+                    blockLinesUntilLastNonEmpty = blockLines;
+                    bodyEnd = end;
+                }
+                if (blockType != BLOCK_TUNE || !headersRead) {
+                    int length = end - start;
+                    if (scratch.length < length)
+                        scratch = new byte[Math.max(length, 2 * scratch.length)];
+                    for (int i = 0; i < length; i++)
+                        scratch[i] = mBuffer.get(start + i);
+                    String line = new String(scratch, 0, length, UTF8);
+                    lines.add(line);
+                    // The body of a tune starts after its K: line
+                    if (blockType == BLOCK_TUNE && line.regionMatches(true, 0, "K:", 0, 2)) {
+                        headersRead = true;
+                        bodyStart = next;
+                    }
+                }
+            }
+            start = next;
+        }
+        flushBlock(blockType, lines, blockLineNumber, blockLinesUntilLastNonEmpty, bodyStart, bodyEnd,
+                diagnostics);
+        mTuneBook.publishSnapshot();
+        Log.d(TAG, String.format("Indexed %d tunes and %d sets", mTuneBook.countTunes(), mTuneBook.countTuneSets()));
+    }
+
+    private void flushBlock(int blockType, List<String> lines, int lineNumber, int countLines,
+                            int bodyStart, int bodyEnd, ParseDiagnostics diagnostics) {
+        switch (blockType) {
+            case BLOCK_TUNE:
+                Tune tune = Tune.parseHeaders(lines, countLines, lineNumber,
+                        new BodyLoader(bodyStart, Math.max(bodyStart, bodyEnd)), diagnostics);
+                if (tune != null)
+                    mTuneBook.addParsedTune(tune);
+                break;
+            case BLOCK_SET:
+                mTuneBook.addParsedTuneSet(lines, lineNumber, diagnostics);
+                break;
+            case BLOCK_RHYTHMS:
+                mTuneBook.addParsedRhythms(lines, lineNumber, diagnostics);
+                break;
+        }
+    }
+
+    private int getBlockType(int start, int end) {
+        if (startsWith(start, end, TUNE_PREFIX))
+            return BLOCK_TUNE;
+        if (startsWith(start, end, SET_PREFIX))
+            return BLOCK_SET;
+        if (startsWith(start, end, RHYTHMS_PREFIX))
+            return BLOCK_RHYTHMS;
+        return BLOCK_NONE;
+    }
+
+    private boolean startsWith(int start, int end, byte[] prefix) {
+        if (end - start < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (mBuffer.get(start + i) != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Resident tunes
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    private synchronized void onTuneLoaded(Tune tune) {
+        mMissCount++;
+        mResidentTunes.put(tune.getId(), tune);
+    }
+
+    private synchronized void onTuneUsed(Tune tune) {
+        if (mResidentTunes.get(tune.getId()) != null)
+            mHitCount++;
+    }
+
+    /**
+     * Drops the parts of the least recently used tunes beyond the limit.
+     */
+    private void evictTunes() {
+        ArrayList<Tune> evicted = new ArrayList<Tune>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Tune>> it = mResidentTunes.entrySet().iterator();
+            while (mResidentTunes.size() - evicted.size() > mMaxResidentTunes && it.hasNext()) {
+                evicted.add(it.next().getValue());
+                it.remove();
+            }
+        }
+        // Outside of the lock, as each tune locks itself
+        for (Tune tune : evicted) {
+            if (tune.releaseParts()) {
+                synchronized (this) {
+                    mEvictionCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the parts of one tune from its body in the mapped file.
+     */
+    private class BodyLoader implements Tune.ReleasablePartsLoader {
+
+        private final int mStart;
+        private final int mEnd;
+
+        BodyLoader(int start, int end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public void loadParts(Tune tune, List<TunePart> parts) {
+            byte[] body = new byte[mEnd - mStart];
+            // A buffer of its own, so that tunes can be loaded from any thread
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(mStart);
+            buffer.get(body);
+            tune.parseBody(new String(body, UTF8), parts);
+            onTuneLoaded(tune);
+            evictTunes();
+        }
+
+        @Override
+        public void onPartsUsed(Tune tune) {
+            onTuneUsed(tune);
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.chordgrid.model;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
-import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -15,6 +14,9 @@ import java.util.List;
 
 /**
  * This class represents a measure (i.e. a cell) in a chord grid line.
+ * <p/>
+ * The measures of a tune are views over its {@link TuneBody}, made on demand: their chords are
+ * edited with {@link #setChords(List)}. Other measures hold their own chords.
  *
  * @author Sylvain Surcin (sylvain.surcin@gmail.com)
  */
@@ -65,12 +67,11 @@ public class Measure implements Parcelable {
      */
     public Measure(XmlPullParser parser) throws XmlPullParserException,
             IOException {
-        Log.v(TAG, "Parsing an XML tag " + parser.getName());
         parser.require(XmlPullParser.START_TAG, "", XML_TAG);
 
         while (parser.nextTag() == XmlPullParser.START_TAG) {
             if (Chord.XML_TAG.equalsIgnoreCase(parser.getName())) {
-                mChords.add(new Chord(parser));
+                mChords.add(Chord.xmlParse(parser));
             }
         }
 
@@ -85,12 +86,31 @@ public class Measure implements Parcelable {
      */
 
     public Measure(String text) {
+        this(text, 0, text.length());
+    }
 
-        text = text.trim();
-        String[] items = text.split("\\s+");
-        for (String item : items) {
-            mChords.add(new Chord(item));
+    /**
+     * Reads a measure from a region of a chord grid line, one chord per whitespace-separated
+     * token. An empty region gives a single empty chord.
+     *
+     * @param text  The chord grid line.
+     * @param start The region's start index (inclusive).
+     * @param end   The region's end index (exclusive).
+     */
+    Measure(String text, int start, int end) {
+        int i = start;
+        while (i < end) {
+            while (i < end && text.charAt(i) <= ' ')
+                i++;
+            if (i == end)
+                break;
+            int chordStart = i;
+            while (i < end && text.charAt(i) > ' ')
+                i++;
+            mChords.add(Chord.valueOf(text.substring(chordStart, i)));
         }
+        if (mChords.isEmpty())
+            mChords.add(Chord.valueOf(""));
     }
 
     /**************************************************************************
@@ -123,7 +143,7 @@ public class Measure implements Parcelable {
     public void setChords(List<String> chords) {
         mChords = new ArrayList<Chord>();
         for (String chord : chords) {
-            mChords.add(new Chord(chord));
+            mChords.add(Chord.valueOf(chord));
         }
     }
 
@@ -139,7 +159,7 @@ public class Measure implements Parcelable {
 
     public void xmlSerialize(XmlSerializer xmlSerializer) throws IllegalArgumentException, IllegalStateException, IOException {
         xmlSerializer.startTag("", XML_TAG);
-        for (Chord chord : mChords) {
+        for (Chord chord : getChords()) {
             chord.xmlSerialize(xmlSerializer);
         }
         xmlSerializer.endTag("", XML_TAG);
@@ -147,7 +167,7 @@ public class Measure implements Parcelable {
 
     @Override
     public String toString() {
-        return TextUtils.join(" ", mChords);
+        return TextUtils.join(" ", getChords());
     }
 
     /**************************************************************************
@@ -161,11 +181,12 @@ public class Measure implements Parcelable {
      */
 
     public String getLargestChordText() {
-        if (mChords.size() == 0)
+        List<Chord> chords = getChords();
+        if (chords.size() == 0)
             return "";
-        String largest = mChords.get(0).getValue();
-        for (int i = 1; i < mChords.size(); i++) {
-            String chord = mChords.get(i).getValue();
+        String largest = chords.get(0).getValue();
+        for (int i = 1; i < chords.size(); i++) {
+            String chord = chords.get(i).getValue();
             if (chord.length() > largest.length())
                 largest = chord;
         }
@@ -194,7 +215,7 @@ public class Measure implements Parcelable {
      */
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeTypedList(mChords);
+        dest.writeTypedList(getChords());
     }
 
     /**
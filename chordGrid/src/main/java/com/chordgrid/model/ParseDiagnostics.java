@@ -0,0 +1,143 @@
+package com.chordgrid.model;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the warnings and errors found while parsing a tunebook text representation.
+ * <p/>
+ * The parsers report problems here instead of throwing, so that an ill-formed tunebook does not
+ * cost a stack trace per bad item. Each diagnostic is also logged.
+ */
+public class ParseDiagnostics {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "ParseDiagnostics";
+
+    public enum Severity {
+        /**
+         * The item was read, but part of it was ignored.
+         */
+        Warning,
+        /**
+         * The item was skipped.
+         */
+        Error
+    }
+
+    public enum Kind {
+        NotEnoughLines,
+        MissingIndex,
+        InvalidIndex,
+        UnexpectedLine,
+        MissingKey,
+        MissingTitle,
+        UnknownRhythm,
+        InvalidRhythm,
+        UnclosedRepetition,
+        InvalidSet,
+        UnknownTuneIndex,
+        UnknownTuneId
+    }
+
+    /**
+     * A single problem found in the text.
+     */
+    public static class Diagnostic {
+
+        private final Severity mSeverity;
+        private final Kind mKind;
+        private final int mLine;
+        private final int mColumn;
+        private final String mMessage;
+
+        public Diagnostic(Severity severity, Kind kind, int line, int column, String message) {
+            mSeverity = severity;
+            mKind = kind;
+            mLine = line;
+            mColumn = column;
+            mMessage = message;
+        }
+
+        public Severity getSeverity() {
+            return mSeverity;
+        }
+
+        public Kind getKind() {
+            return mKind;
+        }
+
+        /**
+         * Gets the one-based line number of the problem.
+         */
+        public int getLine() {
+            return mLine;
+        }
+
+        /**
+         * Gets the one-based column number of the problem.
+         */
+        public int getColumn() {
+            return mColumn;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d:%d: %s %s: %s", mLine, mColumn, mSeverity, mKind, mMessage);
+        }
+    }
+
+    private final List<Diagnostic> mDiagnostics = new ArrayList<Diagnostic>();
+    private int mCountErrors;
+
+    public void warning(Kind kind, int line, int column, String message) {
+        add(new Diagnostic(Severity.Warning, kind, line, column, message));
+    }
+
+    public void error(Kind kind, int line, int column, String message) {
+        add(new Diagnostic(Severity.Error, kind, line, column, message));
+    }
+
+    public void add(Diagnostic diagnostic) {
+        mDiagnostics.add(diagnostic);
+        if (diagnostic.getSeverity() == Severity.Error)
+            mCountErrors++;
+        Log.w(TAG, diagnostic.toString());
+    }
+
+    public List<Diagnostic> getDiagnostics() {
+        return Collections.unmodifiableList(mDiagnostics);
+    }
+
+    public int countErrors() {
+        return mCountErrors;
+    }
+
+    public int countWarnings() {
+        return mDiagnostics.size() - mCountErrors;
+    }
+
+    public boolean hasErrors() {
+        return mCountErrors > 0;
+    }
+
+    /**
+     * Gets the first error reported, or null if there is none.
+     */
+    public Diagnostic getFirstError() {
+        for (Diagnostic diagnostic : mDiagnostics) {
+            if (diagnostic.getSeverity() == Severity.Error)
+                return diagnostic;
+        }
+        return null;
+    }
+}
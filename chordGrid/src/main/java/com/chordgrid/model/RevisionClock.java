@@ -0,0 +1,21 @@
+package com.chordgrid.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out increasing revision numbers to the edits of the model.
+ * <p/>
+ * A single clock is shared by all the tunes, sets and tunebooks, so that the latest revision of
+ * a tunebook and of its items changes whenever any of them is edited.
+ */
+class RevisionClock {
+
+    private static final AtomicLong LAST_REVISION = new AtomicLong();
+
+    private RevisionClock() {
+    }
+
+    static long next() {
+        return LAST_REVISION.incrementAndGet();
+    }
+}
@@ -8,10 +8,12 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.chordgrid.R;
+import com.chordgrid.util.MyTextUtils;
 import com.chordgrid.util.StaticObserver;
 import com.chordgrid.util.StorageUtil;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -54,6 +56,16 @@ public class Rhythm implements Comparable<Rhythm>, Parcelable {
      */
     private static Set<Rhythm> KNOWN_RHYTHMS;
 
+    /**
+     * The revision of the last change to the known rhythms, which may be read on any thread.
+     */
+    private static volatile long KNOWN_RHYTHMS_REVISION = RevisionClock.next();
+
+    /**
+     * The revision of the known rhythms in the shared preferences.
+     */
+    private static volatile long SAVED_RHYTHMS_REVISION;
+
     /**
      * The rhythm's name.
      */
@@ -109,7 +121,8 @@ public class Rhythm implements Comparable<Rhythm>, Parcelable {
 
         SharedPreferences sharedPreferences = context.getSharedPreferences(PREFS_NAME_CUSTOM, Context.MODE_PRIVATE);
         String serializedRhythms = sharedPreferences.getString(PREFS_KEY_RHYTHMS, "");
-        if (TextUtils.isEmpty(serializedRhythms)) {
+        boolean saved = !TextUtils.isEmpty(serializedRhythms);
+        if (!saved) {
             Log.d(TAG, "Defaulting rhythms");
             try {
                 serializedRhythms = StorageUtil.convertStreamToString(context.getResources()
@@ -121,6 +134,9 @@ public class Rhythm implements Comparable<Rhythm>, Parcelable {
         }
 
         KNOWN_RHYTHMS = parseLines(serializedRhythms);
+        KNOWN_RHYTHMS_REVISION = RevisionClock.next();
+        if (saved)
+            SAVED_RHYTHMS_REVISION = KNOWN_RHYTHMS_REVISION;
 
         for (Rhythm rhythm : KNOWN_RHYTHMS)
             Log.d(TAG, "  " + rhythm);
@@ -133,6 +149,16 @@ public class Rhythm implements Comparable<Rhythm>, Parcelable {
      * @return An ordered set of Rhythm instances.
      */
     public static Set<Rhythm> parseLines(String serializedRhythms) {
+        return parseLines(Arrays.asList(serializedRhythms.split("\\s*\\n")));
+    }
+
+    /**
+     * Parses a collection of serialized Rhythms (one per item).
+     *
+     * @param lines The serialized Rhythms.
+     * @return An ordered set of Rhythm instances.
+     */
+    public static Set<Rhythm> parseLines(Iterable<String> lines) {
         Set<Rhythm> rhythms = new TreeSet<Rhythm>(new Comparator<Rhythm>() {
             @Override
             public int compare(Rhythm lhs, Rhythm rhs) {
@@ -140,13 +166,12 @@ public class Rhythm implements Comparable<Rhythm>, Parcelable {
             }
         });
 
-        String[] lines = serializedRhythms.split("\\s*\\n");
         for (String line : lines) {
-            try {
-                rhythms.add(Rhythm.parse(line));
-            } catch (IllegalArgumentException e) {
-                Log.w(TAG, "Cannot parse serialized rhythm: " + e.getMessage());
-            }
+            Rhythm rhythm = tryParse(line);
+            if (rhythm != null)
+                rhythms.add(rhythm);
+            else
+                Log.w(TAG, "Cannot parse serialized rhythm: " + line);
         }
 
         return rhythms;
@@ -160,22 +185,52 @@ public class Rhythm implements Comparable<Rhythm>, Parcelable {
     }
 
     public static Rhythm getKnownRhythm(String name) {
+        Rhythm rhythm = findKnownRhythm(name);
+        if (rhythm == null)
+            throw new IllegalArgumentException("Unknown rhythm " + name);
+        return rhythm;
+    }
+
+    /**
+     * Looks for a known rhythm by name, ignoring case.
+     *
+     * @return The rhythm, or null if it is unknown.
+     */
+    public static Rhythm findKnownRhythm(String name) {
         for (Rhythm rhythm : getKnownRhythms()) {
             if (rhythm.getName().equalsIgnoreCase(name))
                 return rhythm;
         }
-        throw new IllegalArgumentException("Unknown rhythm " + name);
+        return null;
     }
 
     public static void addKnownRhythm(Rhythm rhythm) {
-        KNOWN_RHYTHMS.add(rhythm);
+        if (KNOWN_RHYTHMS.add(rhythm))
+            KNOWN_RHYTHMS_REVISION = RevisionClock.next();
     }
 
     public static void addKnownRhythms(Collection<Rhythm> rhythms) {
-        KNOWN_RHYTHMS.addAll(rhythms);
+        if (KNOWN_RHYTHMS.addAll(rhythms))
+            KNOWN_RHYTHMS_REVISION = RevisionClock.next();
+    }
+
+    /**
+     * Gets the revision of the last change to the known rhythms, which increases with every
+     * change.
+     */
+    public static long getKnownRhythmsRevision() {
+        return KNOWN_RHYTHMS_REVISION;
     }
 
+    /**
+     * Saves the known rhythms to the shared preferences, unless they have not changed since
+     * they were last saved or read.
+     */
     public static void saveKnownRhyhms(Context context) {
+        if (KNOWN_RHYTHMS_REVISION == SAVED_RHYTHMS_REVISION) {
+            Log.d(TAG, "Known rhythms unchanged, skip saving");
+            return;
+        }
         saveKnownRhythms(KNOWN_RHYTHMS, context);
     }
 
@@ -194,6 +249,8 @@ public class Rhythm implements Comparable<Rhythm>, Parcelable {
         sortedRhythms.addAll(rhythms);
 
         KNOWN_RHYTHMS = sortedRhythms;
+        KNOWN_RHYTHMS_REVISION = RevisionClock.next();
+        SAVED_RHYTHMS_REVISION = KNOWN_RHYTHMS_REVISION;
 
         StringBuilder sb = new StringBuilder();
         for (Rhythm rhythm : sortedRhythms) {
@@ -202,7 +259,8 @@ public class Rhythm implements Comparable<Rhythm>, Parcelable {
         editor.putString(Rhythm.PREFS_KEY_RHYTHMS, sb.toString());
         Log.d(TAG, "Rhythms = \n" + sb.toString());
 
-        editor.commit();
+        // Written to disk in the background
+        editor.apply();
     }
 
     private void analyzeSignature() {
@@ -305,23 +363,34 @@ public class Rhythm implements Comparable<Rhythm>, Parcelable {
     public static Rhythm parse(String string) throws IllegalArgumentException {
         if (string == null) throw new IllegalArgumentException("Cannot parse null string!");
         if (string.isEmpty()) throw new IllegalArgumentException("Cannot parse empty string!");
-        if (string.startsWith("[") && string.endsWith("]")) {
-            String s = string.substring(1, string.length() - 1);
-            String[] items = s.split(",\\s*");
-            if (items.length == 3) {
-                String name = items[0];
-                String signature = items[1];
-                int indexBpb = items[2].indexOf(" bpb");
-                if (indexBpb > 0) {
-                    try {
-                        int bpb = Integer.parseInt(items[2].substring(0, indexBpb));
-                        return new Rhythm(name, signature, bpb);
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, e.getMessage());
-                    }
-                }
-            }
-        }
-        throw new IllegalArgumentException("Ill-formed Rhythm string: " + string);
+        Rhythm rhythm = tryParse(string);
+        if (rhythm == null)
+            throw new IllegalArgumentException("Ill-formed Rhythm string: " + string);
+        return rhythm;
+    }
+
+    /**
+     * Parses a serialized rhythm such as "[Jig, 6/8, 2 bpb]", without throwing.
+     *
+     * @param string The serialized rhythm.
+     * @return The rhythm, or null if the string is ill-formed.
+     */
+    public static Rhythm tryParse(String string) {
+        if (string == null || !string.startsWith("[") || !string.endsWith("]") || string.length() < 2)
+            return null;
+        String s = string.substring(1, string.length() - 1);
+        String[] items = s.split(",\\s*");
+        if (items.length != 3)
+            return null;
+        String name = items[0];
+        String signature = items[1];
+        int sep = signature.indexOf('/');
+        if (sep < 0 || !MyTextUtils.isInteger(signature.substring(0, sep))
+                || !MyTextUtils.isInteger(signature.substring(sep + 1)))
+            return null;
+        int indexBpb = items[2].indexOf(" bpb");
+        if (indexBpb <= 0 || !MyTextUtils.isInteger(items[2].substring(0, indexBpb)))
+            return null;
+        return new Rhythm(name, signature, Integer.parseInt(items[2].substring(0, indexBpb)));
     }
 }
@@ -5,10 +5,17 @@ import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.chordgrid.util.MyTextUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -34,6 +41,16 @@ public class Tune extends TunebookItem implements Parcelable {
 
     public static final TuneBookParcelableCreator CREATOR = new TuneBookParcelableCreator();
 
+    /**
+     * The XML tag expected for a tune.
+     */
+    public static final String XML_TAG = "Tune";
+    private static final String XML_ATTR_ID = "id";
+    private static final String XML_ATTR_INDEX = "index";
+    private static final String XML_ATTR_NAME = "name";
+    private static final String XML_ATTR_RHYTHM = "rhythm";
+    private static final String XML_ATTR_KEY = "key";
+
     /**
      * Tag for LogCat console debugging.
      */
@@ -46,7 +63,38 @@ public class Tune extends TunebookItem implements Parcelable {
     private Rhythm mRhythm;
     private String chordGrid;
     private String key;
-    private List<TunePart> parts = new ArrayList<TunePart>();
+    /**
+     * The parts, once built, in columns.
+     */
+    private volatile TuneBody mBody = TuneBody.EMPTY;
+    /**
+     * The parts, as views over the body.
+     */
+    private final List<TunePart> mParts = new PartList();
+    /**
+     * The body lines of a lazily built tune, until its parts are built.
+     */
+    private volatile String mUnparsedBody;
+    /**
+     * The source of the parts of a tune read from a binary tunebook, until its parts are built.
+     */
+    private volatile PartsLoader mPartsLoader;
+    /**
+     * The loader that built the current parts, while they may be released.
+     */
+    private volatile ReleasablePartsLoader mReleasableLoader;
+    /**
+     * The revision of this tune when its parts were built by the releasable loader.
+     */
+    private long mLoadedRevision;
+    /**
+     * The cached content fingerprint, or 0 if it must be computed.
+     */
+    private volatile long mFingerprint;
+    /**
+     * The revision of the last edit of this tune.
+     */
+    private volatile long mRevision = RevisionClock.next();
     private Character mNextPartLabel = 'A';
 
     ////////////////////////////////////////////////////////////////////////////////////////////
@@ -64,16 +112,127 @@ public class Tune extends TunebookItem implements Parcelable {
     public Tune(String name, Rhythm rhythm, String key) {
         this.name = name;
         mRhythm = rhythm;
-        this.key = key;
+        this.key = InternPool.intern(key);
     }
 
     public Tune(String name, Rhythm rhythm, String key, String chordGrid) {
         this.name = name;
         mRhythm = rhythm;
-        this.key = key;
+        this.key = InternPool.intern(key);
         this.chordGrid = chordGrid;
     }
 
+    /**
+     * Builds the parts of a tune on demand, the first time they are needed.
+     */
+    interface PartsLoader {
+
+        /**
+         * Adds the parts of the tune.
+         */
+        void loadParts(Tune tune, List<TunePart> parts);
+    }
+
+    /**
+     * A parts loader that can build the parts again, so that they may be released to save
+     * memory while the tune is unchanged.
+     */
+    interface ReleasablePartsLoader extends PartsLoader {
+
+        /**
+         * Called each time the parts built by this loader are used again.
+         */
+        void onPartsUsed(Tune tune);
+    }
+
+    /**
+     * Passed to the observers of a tune when one of its headers is set, with its former value; a
+     * change of rhythm passes the new {@link Rhythm} instead.
+     */
+    public static final class HeaderChange {
+
+        public enum Header {
+            Id, Index, Name, Key
+        }
+
+        private final Header mHeader;
+        private final Object mPreviousValue;
+
+        HeaderChange(Header header, Object previousValue) {
+            mHeader = header;
+            mPreviousValue = previousValue;
+        }
+
+        public Header getHeader() {
+            return mHeader;
+        }
+
+        /**
+         * Gets the value before the change: a String, or an Integer for the index.
+         */
+        public Object getPreviousValue() {
+            return mPreviousValue;
+        }
+    }
+
+    /**
+     * Builds a tune from its headers, its parts being built by a loader when first needed.
+     */
+    Tune(String id, int index, String name, Rhythm rhythm, String key, PartsLoader partsLoader) {
+        this.id = id;
+        this.index = index;
+        this.name = name;
+        mRhythm = rhythm;
+        this.key = InternPool.intern(key);
+        mPartsLoader = partsLoader;
+    }
+
+    /**
+     * Reads a new instance of Tune from an XML parser.
+     * <p/>
+     * A missing index is left to 0, and a missing id is generated from the name.
+     */
+    public Tune(XmlPullParser parser) throws XmlPullParserException, IOException {
+        parser.require(XmlPullParser.START_TAG, "", XML_TAG);
+
+        int attrCount = parser.getAttributeCount();
+        for (int i = 0; i < attrCount; i++) {
+            String attrName = parser.getAttributeName(i);
+            String attrValue = parser.getAttributeValue(i);
+            if (XML_ATTR_ID.equalsIgnoreCase(attrName)) {
+                id = attrValue;
+            } else if (XML_ATTR_INDEX.equalsIgnoreCase(attrName)) {
+                if (MyTextUtils.isInteger(attrValue))
+                    index = Integer.parseInt(attrValue);
+            } else if (XML_ATTR_NAME.equalsIgnoreCase(attrName)) {
+                name = attrValue;
+            } else if (XML_ATTR_RHYTHM.equalsIgnoreCase(attrName)) {
+                mRhythm = Rhythm.findKnownRhythm(attrValue);
+                if (mRhythm == null)
+                    throw new XmlPullParserException("Unknown rhythm " + attrValue, parser, null);
+            } else if (XML_ATTR_KEY.equalsIgnoreCase(attrName)) {
+                key = InternPool.intern(attrValue);
+            }
+        }
+        if (mRhythm == null)
+            throw new XmlPullParserException("Tune has no rhythm", parser, null);
+        if (TextUtils.isEmpty(id)) {
+            if (TextUtils.isEmpty(name))
+                throw new XmlPullParserException("Tune has neither an id nor a title", parser, null);
+            id = generateId(name);
+        }
+
+        ArrayList<TunePart> parts = new ArrayList<TunePart>();
+        while (parser.nextTag() == XmlPullParser.START_TAG) {
+            if (TunePart.XML_TAG.equalsIgnoreCase(parser.getName()))
+                parts.add(new TunePart(this, parser));
+            else
+                TuneBook.skipXmlTag(parser);
+        }
+        parser.require(XmlPullParser.END_TAG, "", XML_TAG);
+        mBody = TuneBody.encode(parts);
+    }
+
     /**
      * Builds a new instance of Tune from a text representation.
      *
@@ -81,90 +240,383 @@ public class Tune extends TunebookItem implements Parcelable {
      * @throws Exception
      */
     public Tune(String text) throws Exception {
-        String[] lines = text.split("\n");
-        if (lines.length < 5) {
-            Log.e(TAG, "Not enough lines in Tune text definition!");
-            throw new Exception("Not enough lines in Tune text definition!");
+        this(Arrays.asList(text.split("\n")));
+    }
+
+    /**
+     * Builds a new instance of Tune from the lines of its text representation.
+     *
+     * @param lines The serialized tune text, one item per line.
+     * @throws Exception
+     */
+    public Tune(List<String> lines) throws Exception {
+        this(lines, false);
+    }
+
+    /**
+     * Builds a new instance of Tune from the lines of its text representation.
+     * <p/>
+     * With a lazy body, only the headers are parsed here: the body lines are kept aside as a
+     * single string, and the parts are only built the first time they are needed.
+     *
+     * @param lines    The serialized tune text, one item per line.
+     * @param lazyBody If true, defer the parsing of the tune parts.
+     * @throws Exception
+     */
+    public Tune(List<String> lines, boolean lazyBody) throws Exception {
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        if (!parseText(lines, 1, lazyBody, diagnostics))
+            throw new Exception(diagnostics.getFirstError().getMessage());
+    }
+
+    /**
+     * Parses a tune from the lines of its text representation, without throwing.
+     *
+     * @param lines           The serialized tune text, one item per line.
+     * @param firstLineNumber The line number of the X: line in the whole text.
+     * @param lazyBody        If true, defer the parsing of the tune parts.
+     * @param diagnostics     Receives the problems found in the text.
+     * @return The new tune, or null if the text has errors.
+     */
+    public static Tune parse(List<String> lines, int firstLineNumber, boolean lazyBody,
+                             ParseDiagnostics diagnostics) {
+        Tune tune = new Tune();
+        return tune.parseText(lines, firstLineNumber, lazyBody, diagnostics) ? tune : null;
+    }
+
+    /**
+     * Parses the headers of a tune, its parts being built by a loader when first needed.
+     *
+     * @param headerLines     The tune lines up to the K: line at least, starting with the X: line.
+     * @param countLines      The number of lines of the tune text, ignoring trailing empty lines.
+     * @param firstLineNumber The line number of the X: line in the whole text.
+     * @param partsLoader     Builds the parts from the body lines, after the K: line.
+     * @param diagnostics     Receives the problems found in the headers.
+     * @return The new tune, or null if the headers have errors.
+     */
+    static Tune parseHeaders(List<String> headerLines, int countLines, int firstLineNumber,
+                             PartsLoader partsLoader, ParseDiagnostics diagnostics) {
+        Tune tune = new Tune();
+        if (!checkLineCount(countLines, firstLineNumber, diagnostics)
+                || tune.readHeaders(headerLines, countLines, firstLineNumber, diagnostics) < 0)
+            return null;
+        tune.mPartsLoader = partsLoader;
+        return tune;
+    }
+
+    private boolean parseText(List<String> lines, int firstLineNumber, boolean lazyBody,
+                              ParseDiagnostics diagnostics) {
+        // Ignore trailing empty lines, as String.split() does
+        int countLines = lines.size();
+        while (countLines > 0 && lines.get(countLines - 1).isEmpty())
+            countLines--;
+        if (!checkLineCount(countLines, firstLineNumber, diagnostics))
+            return false;
+        int currentLine = readHeaders(lines, countLines, firstLineNumber, diagnostics);
+        if (currentLine < 0)
+            return false;
+
+        if (lazyBody) {
+            StringBuilder body = new StringBuilder();
+            for (; currentLine < countLines; currentLine++)
+                body.append(lines.get(currentLine).trim()).append('\n');
+            mUnparsedBody = body.toString();
+            return true;
         }
+        ArrayList<TunePart> parts = new ArrayList<TunePart>();
+        if (!parseBody(lines, currentLine, countLines, firstLineNumber, diagnostics, parts))
+            return false;
+        mBody = TuneBody.encode(parts);
+        return true;
+    }
 
-        if (!lines[0].startsWith("X:")) {
-            String error = String
-                    .format("First line should start with X: instead of '%s'",
-                            lines[0]);
-            Log.e(TAG, error);
-            throw new Exception(error);
+    private static boolean checkLineCount(int countLines, int firstLineNumber, ParseDiagnostics diagnostics) {
+        if (countLines < 5) {
+            diagnostics.error(ParseDiagnostics.Kind.NotEnoughLines, firstLineNumber, 1,
+                    "Not enough lines in Tune text definition!");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the X:, T:, I:, R: and K: lines.
+     *
+     * @return The index of the first body line, or -1 if the headers have errors.
+     */
+    private int readHeaders(List<String> lines, int countLines, int firstLineNumber,
+                            ParseDiagnostics diagnostics) {
+        String firstLine = lines.get(0);
+        if (!firstLine.startsWith("X:")) {
+            diagnostics.error(ParseDiagnostics.Kind.MissingIndex, firstLineNumber, 1,
+                    String.format("First line should start with X: instead of '%s'", firstLine));
+            return -1;
         }
 
-        index = Integer.parseInt(TextUtils.substring(lines[0], 2,
-                lines[0].length()));
+        String indexText = firstLine.substring(2);
+        if (!MyTextUtils.isInteger(indexText)) {
+            diagnostics.error(ParseDiagnostics.Kind.InvalidIndex, firstLineNumber, 3,
+                    String.format("Invalid tune index '%s'", indexText));
+            return -1;
+        }
+        index = Integer.parseInt(indexText);
 
         int currentLine = 1;
         while (key == null) {
-            String prefix = lines[currentLine].substring(0, 2);
-            if ("T:".equalsIgnoreCase(prefix)) {
-                name = lines[currentLine].substring(2);
+            int lineNumber = firstLineNumber + currentLine;
+            if (currentLine >= countLines) {
+                diagnostics.error(ParseDiagnostics.Kind.MissingKey, lineNumber, 1,
+                        "Missing K: line in Tune text definition!");
+                return -1;
+            }
+            String headerLine = lines.get(currentLine);
+            if (headerLine.regionMatches(true, 0, "T:", 0, 2)) {
+                name = headerLine.substring(2);
                 Log.v(TAG, String.format("Title = %s", name));
-            } else if ("I:".equalsIgnoreCase(prefix)) {
-                id = lines[currentLine].substring(2).trim();
-            } else if ("R:".equalsIgnoreCase(prefix)) {
-                setRhythm(Rhythm.getKnownRhythm(lines[currentLine].substring(2)));
+            } else if (headerLine.regionMatches(true, 0, "I:", 0, 2)) {
+                id = headerLine.substring(2).trim();
+            } else if (headerLine.regionMatches(true, 0, "R:", 0, 2)) {
+                String rhythmName = headerLine.substring(2);
+                Rhythm rhythm = Rhythm.findKnownRhythm(rhythmName);
+                if (rhythm == null) {
+                    diagnostics.error(ParseDiagnostics.Kind.UnknownRhythm, lineNumber, 3,
+                            "Unknown rhythm " + rhythmName);
+                    return -1;
+                }
+                setRhythm(rhythm);
                 Log.v(TAG, String.format("Rhythm = %s", getRhythm()));
-            } else if ("K:".equalsIgnoreCase(prefix)) {
-                key = lines[currentLine].substring(2);
+            } else if (headerLine.regionMatches(true, 0, "K:", 0, 2)) {
+                key = InternPool.intern(headerLine.substring(2));
                 Log.v(TAG, String.format("Key = %s", key));
-            } else
-                throw new Exception(String.format("Unexpected line '%s'",
-                        lines[currentLine]));
+            } else {
+                diagnostics.error(ParseDiagnostics.Kind.UnexpectedLine, lineNumber, 1,
+                        String.format("Unexpected line '%s'", headerLine));
+                return -1;
+            }
             currentLine++;
         }
 
         if (TextUtils.isEmpty(id)) {
+            if (TextUtils.isEmpty(name)) {
+                diagnostics.error(ParseDiagnostics.Kind.MissingTitle, firstLineNumber, 1,
+                        "Tune has neither an id nor a title!");
+                return -1;
+            }
             id = generateId(name);
             Log.v(TAG, String.format("Generated id = %s", id));
         }
+        return currentLine;
+    }
 
+    /**
+     * Builds the tune parts from the body lines.
+     *
+     * @param lines           The serialized tune text, one item per line.
+     * @param currentLine     The index of the first body line.
+     * @param countLines      The number of lines to consider.
+     * @param firstLineNumber The line number of the first item of lines.
+     * @param diagnostics     Receives the problems found in the text.
+     * @param parts           Receives the parts.
+     * @return False if the body has errors.
+     */
+    private boolean parseBody(List<String> lines, int currentLine, int countLines,
+                              int firstLineNumber, ParseDiagnostics diagnostics, List<TunePart> parts) {
         ArrayList<String> partLines = new ArrayList<String>();
         boolean inRepetition = false, previousLineInRepetition = false;
-        while (currentLine < lines.length) {
-            String line = lines[currentLine].trim();
+        while (currentLine < countLines) {
+            String line = lines.get(currentLine).trim();
             if (line.isEmpty())
                 break;
             if (line.startsWith("|:")) {
-                addPartFromLines(partLines);
+                addPartFromLines(parts, partLines);
                 inRepetition = previousLineInRepetition = true;
+                int repetitionLine = currentLine;
                 do {
                     partLines.add(line);
                     if (line.endsWith(":|"))
                         inRepetition = false;
-                    else {
+                    else if (currentLine + 1 < countLines) {
                         currentLine++;
-                        line = lines[currentLine].trim();
+                        line = lines.get(currentLine).trim();
+                    } else {
+                        diagnostics.error(ParseDiagnostics.Kind.UnclosedRepetition,
+                                firstLineNumber + repetitionLine, 1,
+                                String.format("Repetition is never closed in tune '%s'", id));
+                        return false;
                     }
-                } while (inRepetition && currentLine < lines.length);
+                } while (inRepetition);
             } else if ((line.startsWith("|") && previousLineInRepetition && !inRepetition)
                     || TunePart.parseLabel(line) != null) {
-                addPartFromLines(partLines);
+                addPartFromLines(parts, partLines);
                 previousLineInRepetition = false;
                 boolean endPart = false;
                 while (!endPart) {
                     partLines.add(line);
-                    if (line.endsWith("||") || line.endsWith(":|") || currentLine == lines.length - 1)
+                    if (line.endsWith("||") || line.endsWith(":|") || currentLine == countLines - 1)
                         endPart = true;
                     else {
                         currentLine++;
-                        line = lines[currentLine].trim();
+                        line = lines.get(currentLine).trim();
                     }
                 }
             } else {
                 partLines.add(line);
                 previousLineInRepetition = false;
-                if (line.endsWith("||") || line.endsWith(":|") || currentLine == lines.length - 1)
-                    addPartFromLines(partLines);
+                if (line.endsWith("||") || line.endsWith(":|") || currentLine == countLines - 1)
+                    addPartFromLines(parts, partLines);
             }
             currentLine++;
         }
-        addPartFromLines(partLines);
+        addPartFromLines(parts, partLines);
         Log.d(TAG, String.format("Added %d parts to this tune", parts.size()));
+        return true;
+    }
+
+    /**
+     * Builds the tune parts from the body kept aside by a lazy construction, if any.
+     */
+    private synchronized void materializeParts() {
+        ArrayList<TunePart> parts = new ArrayList<TunePart>();
+        PartsLoader loader = mPartsLoader;
+        if (loader != null) {
+            loader.loadParts(this, parts);
+            mBody = TuneBody.encode(parts);
+            mPartsLoader = null;
+            if (loader instanceof ReleasablePartsLoader) {
+                mLoadedRevision = mRevision;
+                mReleasableLoader = (ReleasablePartsLoader) loader;
+            }
+            return;
+        }
+        String body = mUnparsedBody;
+        if (body == null)
+            return;
+        parseBody(body, parts);
+        mBody = TuneBody.encode(parts);
+        mUnparsedBody = null;
+    }
+
+    /**
+     * Builds the tune parts from body lines separated by newlines, keeping no part if the body
+     * has errors.
+     *
+     * @param parts Receives the parts.
+     */
+    void parseBody(String body, List<TunePart> parts) {
+        ArrayList<String> lines = new ArrayList<String>();
+        int start = 0;
+        int newline;
+        while ((newline = body.indexOf('\n', start)) >= 0) {
+            lines.add(body.substring(start, newline));
+            start = newline + 1;
+        }
+        if (start < body.length())
+            lines.add(body.substring(start));
+        if (!parseBody(lines, 0, lines.size(), 1, new ParseDiagnostics(), parts))
+            parts.clear();
+    }
+
+    /**
+     * Drops the parts built by a releasable loader, to be built again when next needed.
+     *
+     * @return False if the parts were not built by such a loader, or if the tune changed since.
+     */
+    synchronized boolean releaseParts() {
+        ReleasablePartsLoader loader = mReleasableLoader;
+        if (loader == null || mPartsLoader != null)
+            return false;
+        mReleasableLoader = null;
+        if (mRevision != mLoadedRevision)
+            return false;
+        // Readers of the previous body keep a consistent view of it
+        mBody = TuneBody.EMPTY;
+        mPartsLoader = loader;
+        return true;
+    }
+
+    /**
+     * Makes an independent copy of this tune. The copy shares the parts of this tune, as bodies
+     * are immutable, or builds them from the same source the first time they are needed.
+     */
+    Tune copy() {
+        Tune copy = new Tune();
+        copy.abcTune = abcTune;
+        copy.id = id;
+        copy.index = index;
+        copy.name = name;
+        copy.mRhythm = mRhythm;
+        copy.chordGrid = chordGrid;
+        copy.key = key;
+        copy.mNextPartLabel = mNextPartLabel;
+        copy.mFingerprint = mFingerprint;
+        PartsLoader loader = mPartsLoader;
+        if (loader != null) {
+            copy.mPartsLoader = loader;
+            return copy;
+        }
+        String body = mUnparsedBody;
+        if (body != null) {
+            copy.mUnparsedBody = body;
+            return copy;
+        }
+        copy.mBody = mBody;
+        return copy;
+    }
+
+    /**
+     * Takes a snapshot of the contents of this tune, to restore them later.
+     */
+    public synchronized Snapshot getSnapshot() {
+        return new Snapshot(getBody(), name, mRhythm, key, mNextPartLabel);
+    }
+
+    /**
+     * Brings this tune back to a snapshot, which counts as an edit.
+     */
+    public synchronized void restore(Snapshot snapshot) {
+        String previousName = name;
+        String previousKey = key;
+        mBody = snapshot.mBody;
+        name = snapshot.mName;
+        key = snapshot.mKey;
+        mNextPartLabel = snapshot.mNextPartLabel;
+        if (mRhythm != snapshot.mRhythm)
+            setRhythm(snapshot.mRhythm);
+        invalidateFingerprint();
+        if (!TextUtils.equals(previousName, name))
+            notifyHeaderChange(HeaderChange.Header.Name, previousName);
+        if (!TextUtils.equals(previousKey, key))
+            notifyHeaderChange(HeaderChange.Header.Key, previousKey);
+    }
+
+    /**
+     * The contents of a tune at some point: its body, name, rhythm and key.
+     * <p/>
+     * A snapshot shares the body of the tune, which is immutable, so that it only takes a few
+     * dozen bytes; see {@link TuneHistory}.
+     */
+    public static final class Snapshot {
+
+        private final TuneBody mBody;
+        private final String mName;
+        private final Rhythm mRhythm;
+        private final String mKey;
+        private final Character mNextPartLabel;
+
+        private Snapshot(TuneBody body, String name, Rhythm rhythm, String key, Character nextPartLabel) {
+            mBody = body;
+            mName = name;
+            mRhythm = rhythm;
+            mKey = key;
+            mNextPartLabel = nextPartLabel;
+        }
+    }
+
+    /**
+     * Returns true if the tune parts have been built, false if the body is still unparsed.
+     */
+    public boolean isBodyParsed() {
+        return mUnparsedBody == null && mPartsLoader == null;
     }
 
     public Tune(final abc.notation.Tune abcTune) {
@@ -178,7 +630,7 @@ public class Tune extends TunebookItem implements Parcelable {
     ////////////////////////////////////////////////////////////////////////////////////////////
 
     public String getNextPartLabel() {
-        String label = String.valueOf(mNextPartLabel);
+        String label = InternPool.intern(String.valueOf(mNextPartLabel));
         mNextPartLabel++;
         return label;
     }
@@ -204,29 +656,32 @@ public class Tune extends TunebookItem implements Parcelable {
 
     public void xmlSerialize(XmlSerializer xmlSerializer)
             throws IllegalArgumentException, IllegalStateException, IOException {
-        xmlSerializer.startTag("", "Tune");
-        xmlSerializer.attribute("", "id", getId());
-        xmlSerializer.attribute("", "name", getName());
-        xmlSerializer.attribute("", "rhythm", getRhythm().getName());
-        xmlSerializer.attribute("", "key", getKey());
-        for (TunePart part : parts) {
+        xmlSerializer.startTag("", XML_TAG);
+        xmlSerializer.attribute("", XML_ATTR_ID, getId());
+        xmlSerializer.attribute("", XML_ATTR_INDEX, Integer.toString(getIndex()));
+        if (getName() != null)
+            xmlSerializer.attribute("", XML_ATTR_NAME, getName());
+        xmlSerializer.attribute("", XML_ATTR_RHYTHM, getRhythm().getName());
+        if (getKey() != null)
+            xmlSerializer.attribute("", XML_ATTR_KEY, getKey());
+        for (TunePart part : getParts()) {
             part.xmlSerialize(xmlSerializer);
         }
-        xmlSerializer.endTag("", "Tune");
+        xmlSerializer.endTag("", XML_TAG);
     }
 
     private void updateChordGridFromParts() {
         StringBuilder sb = new StringBuilder();
         int countParts = countParts();
         for (int i = 0; i < countParts; i++) {
-            sb.append(parts.get(i).getChordGrid());
+            sb.append(getPart(i).getChordGrid());
             if (i < countParts - 1)
                 sb.append('\n');
         }
         chordGrid = sb.toString();
     }
 
-    private void addPartFromLines(List<String> partLines) {
+    private void addPartFromLines(List<TunePart> parts, List<String> partLines) {
         if (partLines.size() > 0) {
             parts.add(new TunePart(this, partLines));
             partLines.clear();
@@ -253,7 +708,11 @@ public class Tune extends TunebookItem implements Parcelable {
     }
 
     public void setId(String newId) {
+        String previous = id;
         id = newId;
+        mRevision = RevisionClock.next();
+        if (!TextUtils.equals(previous, newId))
+            notifyHeaderChange(HeaderChange.Header.Id, previous);
     }
 
     public int getIndex() {
@@ -261,7 +720,11 @@ public class Tune extends TunebookItem implements Parcelable {
     }
 
     public void setIndex(int newIndex) {
+        int previous = index;
         index = newIndex;
+        mRevision = RevisionClock.next();
+        if (previous != newIndex)
+            notifyHeaderChange(HeaderChange.Header.Index, previous);
     }
 
     public String getName() {
@@ -269,7 +732,9 @@ public class Tune extends TunebookItem implements Parcelable {
     }
 
     public void setName(String name) {
+        String previous = this.name;
         this.name = name;
+        mRevision = RevisionClock.next();
         if (abcTune != null) {
             String[] titles = abcTune.getTitles();
             if (titles == null || titles.length == 0)
@@ -282,9 +747,26 @@ public class Tune extends TunebookItem implements Parcelable {
                     abcTune.addTitle(titles[i]);
             }
         }
+        if (!TextUtils.equals(previous, name))
+            notifyHeaderChange(HeaderChange.Header.Name, previous);
+    }
+
+    /**
+     * Tells the observers, e.g. the tunebook keeping its indexes, that a header was set.
+     */
+    private void notifyHeaderChange(HeaderChange.Header header, Object previousValue) {
+        setChanged();
+        notifyObservers(new HeaderChange(header, previousValue));
     }
 
     public String getTitle() {
+        return getTitle(name);
+    }
+
+    /**
+     * Gets the title of a tune from its name, e.g. "The Silver Spear" from "Silver Spear, The".
+     */
+    public static String getTitle(String name) {
         int comma = name.indexOf(',');
         if (comma < 0)
             return name;
@@ -307,22 +789,109 @@ public class Tune extends TunebookItem implements Parcelable {
      */
     public void setRhythm(Rhythm rhythm) {
         mRhythm = rhythm;
+        invalidateFingerprint();
+        setChanged();
         notifyObservers(mRhythm);
     }
 
     public int countParts() {
-        return parts.size();
+        return getParts().size();
     }
 
     /**
      * Getter for the tune parts.
      */
     public List<TunePart> getParts() {
-        return parts;
+        useBody();
+        return mParts;
+    }
+
+    /**
+     * Gets the parts in columns, building them first if needed, e.g. for the views.
+     */
+    public TuneBody getBody() {
+        if (mUnparsedBody != null || mPartsLoader != null)
+            materializeParts();
+        return mBody;
+    }
+
+    /**
+     * Gets the parts in columns as {@link #getBody()}, also telling their loader that they are
+     * used again.
+     */
+    private TuneBody useBody() {
+        if (mUnparsedBody != null || mPartsLoader != null) {
+            materializeParts();
+        } else {
+            ReleasablePartsLoader loader = mReleasableLoader;
+            if (loader != null)
+                loader.onPartsUsed(this);
+        }
+        return mBody;
+    }
+
+    /**
+     * Replaces all the parts, e.g. with those read by a loader.
+     */
+    synchronized void setParts(List<TunePart> parts) {
+        mBody = TuneBody.encode(parts);
+        invalidateFingerprint();
+    }
+
+    synchronized void setMeasureChords(int measure, List<Chord> chords) {
+        mBody = getBody().withChords(measure, chords);
+        invalidateFingerprint();
+    }
+
+    synchronized void setPartLabel(int part, String label) {
+        mBody = getBody().withPartLabel(part, label);
+        invalidateFingerprint();
+    }
+
+    synchronized void setPart(int part, TunePart replacement) {
+        mBody = getBody().withPart(part, TuneBody.encode(Collections.singletonList(replacement)));
+        invalidateFingerprint();
+    }
+
+    synchronized void setLine(int line, Line replacement) {
+        mBody = getBody().withLine(line, replacement);
+        invalidateFingerprint();
+    }
+
+    private synchronized void insertPart(int index, TunePart part) {
+        mBody = getBody().insert(index, TuneBody.encode(Collections.singletonList(part)));
+        invalidateFingerprint();
+    }
+
+    /**
+     * The parts of a tune, as views over its body. Adding a part copies it in.
+     */
+    private class PartList extends AbstractList<TunePart> {
+
+        @Override
+        public TunePart get(int index) {
+            int size = size();
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + size);
+            return new TuneBody.PartView(Tune.this, index);
+        }
+
+        @Override
+        public int size() {
+            return getBody().countParts();
+        }
+
+        @Override
+        public void add(int index, TunePart part) {
+            int size = size();
+            if (index < 0 || index > size)
+                throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + size);
+            insertPart(index, part);
+        }
     }
 
     public TunePart getPart(String label) {
-        for (TunePart p : parts) {
+        for (TunePart p : getParts()) {
             if (p.getLabel().equalsIgnoreCase(label))
                 return p;
         }
@@ -330,19 +899,19 @@ public class Tune extends TunebookItem implements Parcelable {
     }
 
     public TunePart getPart(int index) {
-        return parts.get(index);
+        return getParts().get(index);
     }
 
+    /**
+     * Adds a copy of a part at the end of the tune; the part is then edited through
+     * {@link #getParts()}.
+     */
     public void addPart(TunePart newPart) {
-        parts.add(newPart);
+        getParts().add(newPart);
     }
 
     public int countTotalLines() {
-        int result = 0;
-        for (TunePart part : parts) {
-            result += part.getLines().size();
-        }
-        return result;
+        return useBody().countLines();
     }
 
     public List<String> getPartLabels() {
@@ -431,7 +1000,7 @@ public class Tune extends TunebookItem implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeStringArray(new String[]{id, name, getRhythm().getName(), key});
-        dest.writeTypedList(parts);
+        dest.writeTypedList(getParts());
     }
 
     /**
@@ -445,13 +1014,10 @@ public class Tune extends TunebookItem implements Parcelable {
         id = data[0];
         name = data[1];
         setRhythm(Rhythm.getKnownRhythm(data[2]));
-        key = data[3];
-        if (parts == null)
-            parts = new ArrayList<TunePart>();
+        key = InternPool.intern(data[3]);
+        ArrayList<TunePart> parts = new ArrayList<TunePart>();
         in.readTypedList(parts, TunePart.CREATOR);
-        for (TunePart part : parts) {
-            part.setTune(this);
-        }
+        mBody = TuneBody.encode(parts);
         updateChordGridFromParts();
     }
 
@@ -459,23 +1025,123 @@ public class Tune extends TunebookItem implements Parcelable {
      * Gets the greatest number of measures per line (i.e. the largest line).
      */
     public int getMaxMeasuresPerLine() {
+        TuneBody body = useBody();
         int max = 0;
-        for (TunePart part : parts) {
-            int count = part.getMaxMeasuresPerLine();
-            if (count > max)
-                max = count;
-        }
+        for (int line = 0; line < body.countLines(); line++)
+            max = Math.max(max, body.countMeasures(line));
         return max;
     }
 
+    /**
+     * Gets a 64-bit hash of the tune content compared by {@link #hasSameContent(Tune)}: rhythm,
+     * key, and the part/line/measure/chord structure, ignoring case.
+     * <p/>
+     * It is computed once and cached until {@link #invalidateFingerprint()} is called.
+     */
+    public long getFingerprint() {
+        long fingerprint = mFingerprint;
+        if (fingerprint == 0) {
+            fingerprint = computeFingerprint();
+            // 0 means "not computed"
+            if (fingerprint == 0)
+                fingerprint = 1;
+            mFingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Discards the cached fingerprint. Must be called whenever the tune content is edited.
+     */
+    public void invalidateFingerprint() {
+        mFingerprint = 0;
+        mRevision = RevisionClock.next();
+    }
+
+    /**
+     * Gets the revision of the last edit of this tune, which increases with every edit.
+     */
+    public long getRevision() {
+        return mRevision;
+    }
+
+    private long computeFingerprint() {
+        Fingerprint fingerprint = new Fingerprint();
+        fingerprint.add(mRhythm != null);
+        if (mRhythm != null) {
+            fingerprint.addIgnoreCase(mRhythm.getName())
+                    .addIgnoreCase(mRhythm.getSignature())
+                    .add(mRhythm.getBeatsPerBar());
+        }
+        fingerprint.addIgnoreCase(key);
+        TuneBody body = useBody();
+        fingerprint.add(body.countParts());
+        for (int part = 0; part < body.countParts(); part++) {
+            fingerprint.addIgnoreCase(body.getPartLabel(part));
+            int firstLine = body.getFirstLine(part);
+            fingerprint.add(body.countLines(part));
+            for (int line = firstLine; line < firstLine + body.countLines(part); line++) {
+                int firstMeasure = body.getFirstMeasure(line);
+                fingerprint.add(body.hasRepetition(line)).add(body.countMeasures(line));
+                for (int measure = firstMeasure; measure < firstMeasure + body.countMeasures(line); measure++) {
+                    int firstChord = body.getFirstChord(measure);
+                    fingerprint.add(body.countChords(measure));
+                    for (int chord = firstChord; chord < firstChord + body.countChords(measure); chord++)
+                        fingerprint.addIgnoreCase(body.getChord(chord).getValue());
+                }
+            }
+        }
+        return fingerprint.get();
+    }
+
+    /**
+     * Tunes are the same tune if they have the same id, e.g. a tune and its copy read from a
+     * parcel. A tune with neither id nor name only equals itself.
+     * <p/>
+     * Unlike the other model classes, equality does not compare the content, fingerprint
+     * included: computing it would load the body of every lazy or mapped tune put in a hash
+     * map, and the hash would change with each edit of a tune used as a key. Content is
+     * compared by {@link #hasSameContent(Tune)}; TuneTest pins both behaviours.
+     */
     @Override
     public boolean equals(Object o) {
+        if (o == this)
+            return true;
         if (!(o instanceof Tune))
             return false;
-        if (o == this)
+        String id = getIdIfAny();
+        return id != null && id.equals(((Tune) o).getIdIfAny());
+    }
+
+    @Override
+    public int hashCode() {
+        String id = getIdIfAny();
+        return id == null ? 0 : id.hashCode();
+    }
+
+    /**
+     * Gets the id as {@link #getId()} does, or null if there is no name to generate it from.
+     */
+    private String getIdIfAny() {
+        if (TextUtils.isEmpty(id) && TextUtils.isEmpty(getName()))
+            return null;
+        return getId();
+    }
+
+    /**
+     * Checks whether two tunes play the same chords, whatever their id, index and name: same
+     * rhythm, key, and part/line/measure/chord structure, ignoring case.
+     * <p/>
+     * The fingerprints are compared first, so that tunes told apart by them are not compared
+     * chord by chord.
+     */
+    public boolean hasSameContent(Tune tune) {
+        if (tune == this)
             return true;
+        if (getFingerprint() != tune.getFingerprint())
+            return false;
 
-        Tune tune = (Tune) o;
+        // Same fingerprints: check the content, in case of a collision
 
         // Check rhythm
         if (mRhythm == null && tune.mRhythm != null)
@@ -498,20 +1164,8 @@ public class Tune extends TunebookItem implements Parcelable {
         return true;
     }
 
-    @Override
-    public int hashCode() {
-        int hash = 1;
-        hash = hash * 31 + getId().hashCode();
-        hash = hash * 31 + getIndex();
-        hash = hash * 31 + (getRhythm() == null ? 0 : getRhythm().hashCode());
-        hash = hash * 31 + getKey().hashCode();
-        hash = hash * 31 + getName().hashCode();
-        hash = hash * 31 + getChordsString().hashCode();
-        return hash;
-    }
-
     public Measure getMeasure(String partLabel, int lineIndex, int measureIndex) {
-        for (TunePart part : parts) {
+        for (TunePart part : getParts()) {
             if (part.getLabel().equalsIgnoreCase(partLabel)) {
                 if (lineIndex < part.getLines().size()) {
                     Line line = part.getLine(lineIndex);
@@ -525,6 +1179,7 @@ public class Tune extends TunebookItem implements Parcelable {
     }
 
     public Measure getMeasure(int partIndex, int lineIndex, int measureIndex) {
+        List<TunePart> parts = getParts();
         if (partIndex < parts.size()) {
             TunePart part = parts.get(partIndex);
             if (lineIndex < part.getLines().size()) {
@@ -0,0 +1,602 @@
+package com.chordgrid.model;
+
+import android.os.Parcel;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds the parts of a tune in a few arrays of ints rather than as a graph of objects.
+ * <p/>
+ * The lines of all the parts, the measures of all the lines and the chords of all the measures
+ * are numbered across the tune, and each level records where the items of the next one start:
+ * <pre>
+ * part labels      A     B
+ * part lines       0     2     4                  the first line of each part, then the count
+ * line measures    0|R   4|R   8     12    16     the first measure of each line, shifted left,
+ *                                                 with the repetition in the low bit
+ * measure chords   0  1  2  4  5 ...              the first chord of each measure, then the count
+ * chord ids        0  0  1  2  0 ...              the index of each chord in the symbol table
+ * </pre>
+ * The symbol table holds each distinct chord of the tune once; the chords themselves are the
+ * instances shared by the {@link InternPool}. A tune of a few dozen measures thus takes a few
+ * hundred bytes, a third or less of what its parts, lines, measures and their lists take.
+ * <p/>
+ * A body is immutable: each edit makes a new body, which shares the arrays it does not change.
+ * A tune's parts are read and edited through {@link PartView}, {@link LineView} and
+ * {@link MeasureView}, which only hold the tune and a position, and are made on demand; code
+ * going over a whole tune, like drawing it, rather reads the columns of {@link Tune#getBody()}.
+ */
+public final class TuneBody {
+
+    /**
+     * The body of a tune without parts.
+     */
+    static final TuneBody EMPTY = new TuneBody(new String[0], new int[1], new int[1], new int[1],
+            new int[0], new Chord[0]);
+
+    private static final int REPETITION = 1;
+
+    private final String[] mPartLabels;
+    private final int[] mPartLines;
+    private final int[] mLineMeasures;
+    private final int[] mMeasureChords;
+    private final int[] mChordIds;
+    private final Chord[] mSymbols;
+
+    private TuneBody(String[] partLabels, int[] partLines, int[] lineMeasures, int[] measureChords,
+                     int[] chordIds, Chord[] symbols) {
+        mPartLabels = partLabels;
+        mPartLines = partLines;
+        mLineMeasures = lineMeasures;
+        mMeasureChords = measureChords;
+        mChordIds = chordIds;
+        mSymbols = symbols;
+    }
+
+    /**
+     * Encodes parts, e.g. those built by a parser.
+     */
+    static TuneBody encode(List<TunePart> parts) {
+        int countLines = 0;
+        int countMeasures = 0;
+        int countChords = 0;
+        for (TunePart part : parts) {
+            for (Line line : part.getLines()) {
+                countLines++;
+                for (Measure measure : line.getMeasures()) {
+                    countMeasures++;
+                    countChords += measure.countChords();
+                }
+            }
+        }
+
+        String[] partLabels = new String[parts.size()];
+        int[] partLines = new int[parts.size() + 1];
+        int[] lineMeasures = new int[countLines + 1];
+        int[] measureChords = new int[countMeasures + 1];
+        int[] chordIds = new int[countChords];
+        SymbolTable symbols = new SymbolTable(EMPTY.mSymbols);
+        int l = 0;
+        int m = 0;
+        int c = 0;
+        for (int p = 0; p < parts.size(); p++) {
+            TunePart part = parts.get(p);
+            partLabels[p] = part.getLabel();
+            partLines[p] = l;
+            for (Line line : part.getLines()) {
+                lineMeasures[l++] = m << 1 | (line.hasRepetition() ? REPETITION : 0);
+                for (Measure measure : line.getMeasures()) {
+                    measureChords[m++] = c;
+                    for (Chord chord : measure.getChords())
+                        chordIds[c++] = symbols.getId(chord);
+                }
+            }
+        }
+        partLines[parts.size()] = l;
+        lineMeasures[l] = m << 1;
+        measureChords[m] = c;
+        return new TuneBody(partLabels, partLines, lineMeasures, measureChords, chordIds, symbols.toArray());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Reading
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    public int countParts() {
+        return mPartLabels.length;
+    }
+
+    public String getPartLabel(int part) {
+        return mPartLabels[part];
+    }
+
+    public int getFirstLine(int part) {
+        return mPartLines[part];
+    }
+
+    public int countLines(int part) {
+        return mPartLines[part + 1] - mPartLines[part];
+    }
+
+    /**
+     * Counts the lines of all the parts.
+     */
+    public int countLines() {
+        return mLineMeasures.length - 1;
+    }
+
+    public boolean hasRepetition(int line) {
+        return (mLineMeasures[line] & REPETITION) != 0;
+    }
+
+    public int getFirstMeasure(int line) {
+        return mLineMeasures[line] >>> 1;
+    }
+
+    public int countMeasures(int line) {
+        return (mLineMeasures[line + 1] >>> 1) - (mLineMeasures[line] >>> 1);
+    }
+
+    /**
+     * Counts the measures of all the lines.
+     */
+    public int countMeasures() {
+        return mMeasureChords.length - 1;
+    }
+
+    public int getFirstChord(int measure) {
+        return mMeasureChords[measure];
+    }
+
+    public int countChords(int measure) {
+        return mMeasureChords[measure + 1] - mMeasureChords[measure];
+    }
+
+    /**
+     * Counts the chords of all the measures.
+     */
+    public int countChords() {
+        return mChordIds.length;
+    }
+
+    public Chord getChord(int chord) {
+        return mSymbols[mChordIds[chord]];
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Editing
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Replaces the chords of a measure.
+     */
+    TuneBody withChords(int measure, List<Chord> chords) {
+        int first = mMeasureChords[measure];
+        int count = countChords(measure);
+        int delta = chords.size() - count;
+        int[] chordIds = new int[mChordIds.length + delta];
+        System.arraycopy(mChordIds, 0, chordIds, 0, first);
+        System.arraycopy(mChordIds, first + count, chordIds, first + chords.size(),
+                mChordIds.length - first - count);
+        SymbolTable symbols = new SymbolTable(mSymbols);
+        for (int i = 0; i < chords.size(); i++)
+            chordIds[first + i] = symbols.getId(chords.get(i));
+
+        int[] measureChords = mMeasureChords;
+        if (delta != 0) {
+            measureChords = mMeasureChords.clone();
+            for (int m = measure + 1; m < measureChords.length; m++)
+                measureChords[m] += delta;
+        }
+        return new TuneBody(mPartLabels, mPartLines, mLineMeasures, measureChords, chordIds, symbols.toArray());
+    }
+
+    TuneBody withPartLabel(int part, String label) {
+        String[] partLabels = mPartLabels.clone();
+        partLabels[part] = label;
+        return new TuneBody(partLabels, mPartLines, mLineMeasures, mMeasureChords, mChordIds, mSymbols);
+    }
+
+    /**
+     * Replaces a line, with its repetition and measures.
+     */
+    TuneBody withLine(int line, Line replacement) {
+        List<Measure> measures = replacement.getMeasures();
+        int firstMeasure = getFirstMeasure(line);
+        int countMeasures = countMeasures(line);
+        int firstChord = mMeasureChords[firstMeasure];
+        int countChords = mMeasureChords[firstMeasure + countMeasures] - firstChord;
+        int newChords = 0;
+        for (Measure measure : measures)
+            newChords += measure.countChords();
+        int deltaMeasures = measures.size() - countMeasures;
+        int deltaChords = newChords - countChords;
+
+        int[] lineMeasures = mLineMeasures.clone();
+        lineMeasures[line] = firstMeasure << 1 | (replacement.hasRepetition() ? REPETITION : 0);
+        for (int l = line + 1; l < lineMeasures.length; l++)
+            lineMeasures[l] += deltaMeasures << 1;
+
+        int[] measureChords = new int[mMeasureChords.length + deltaMeasures];
+        System.arraycopy(mMeasureChords, 0, measureChords, 0, firstMeasure);
+        int[] chordIds = new int[mChordIds.length + deltaChords];
+        System.arraycopy(mChordIds, 0, chordIds, 0, firstChord);
+        SymbolTable symbols = new SymbolTable(mSymbols);
+        int m = firstMeasure;
+        int c = firstChord;
+        for (Measure measure : measures) {
+            measureChords[m++] = c;
+            for (Chord chord : measure.getChords())
+                chordIds[c++] = symbols.getId(chord);
+        }
+        for (int i = firstMeasure + countMeasures; i < mMeasureChords.length; i++)
+            measureChords[i + deltaMeasures] = mMeasureChords[i] + deltaChords;
+        System.arraycopy(mChordIds, firstChord + countChords, chordIds, c,
+                mChordIds.length - firstChord - countChords);
+        return new TuneBody(mPartLabels, mPartLines, lineMeasures, measureChords, chordIds, symbols.toArray());
+    }
+
+    /**
+     * Replaces a part by the parts of another body.
+     */
+    TuneBody withPart(int part, TuneBody other) {
+        return slice(0, part).append(other).append(slice(part + 1, countParts()));
+    }
+
+    /**
+     * Inserts the parts of another body before a part, or at the end.
+     */
+    TuneBody insert(int part, TuneBody other) {
+        if (part == countParts())
+            return append(other);
+        return slice(0, part).append(other).append(slice(part, countParts()));
+    }
+
+    /**
+     * Gets a body made of a range of parts, sharing the symbol table.
+     */
+    private TuneBody slice(int fromPart, int toPart) {
+        if (fromPart == 0 && toPart == countParts())
+            return this;
+        int fromLine = mPartLines[fromPart];
+        int toLine = mPartLines[toPart];
+        int fromMeasure = getFirstMeasure(fromLine);
+        int toMeasure = getFirstMeasure(toLine);
+        int fromChord = mMeasureChords[fromMeasure];
+        int toChord = mMeasureChords[toMeasure];
+
+        int[] partLines = new int[toPart - fromPart + 1];
+        for (int p = 0; p < partLines.length; p++)
+            partLines[p] = mPartLines[fromPart + p] - fromLine;
+        int[] lineMeasures = new int[toLine - fromLine + 1];
+        for (int l = 0; l < lineMeasures.length - 1; l++)
+            lineMeasures[l] = mLineMeasures[fromLine + l] - (fromMeasure << 1);
+        lineMeasures[lineMeasures.length - 1] = (toMeasure - fromMeasure) << 1;
+        int[] measureChords = new int[toMeasure - fromMeasure + 1];
+        for (int m = 0; m < measureChords.length; m++)
+            measureChords[m] = mMeasureChords[fromMeasure + m] - fromChord;
+        return new TuneBody(Arrays.copyOfRange(mPartLabels, fromPart, toPart), partLines, lineMeasures,
+                measureChords, Arrays.copyOfRange(mChordIds, fromChord, toChord), mSymbols);
+    }
+
+    /**
+     * Adds the parts of another body after those of this one.
+     */
+    TuneBody append(TuneBody other) {
+        int parts = countParts();
+        int lines = countLines();
+        int measures = countMeasures();
+        int chords = countChords();
+
+        String[] partLabels = Arrays.copyOf(mPartLabels, parts + other.countParts());
+        System.arraycopy(other.mPartLabels, 0, partLabels, parts, other.countParts());
+        int[] partLines = Arrays.copyOf(mPartLines, parts + other.mPartLines.length);
+        for (int p = 0; p < other.mPartLines.length; p++)
+            partLines[parts + p] = lines + other.mPartLines[p];
+        int[] lineMeasures = Arrays.copyOf(mLineMeasures, lines + other.mLineMeasures.length);
+        for (int l = 0; l < other.mLineMeasures.length; l++)
+            lineMeasures[lines + l] = (measures << 1) + other.mLineMeasures[l];
+        int[] measureChords = Arrays.copyOf(mMeasureChords, measures + other.mMeasureChords.length);
+        for (int m = 0; m < other.mMeasureChords.length; m++)
+            measureChords[measures + m] = chords + other.mMeasureChords[m];
+
+        SymbolTable symbols = new SymbolTable(mSymbols);
+        int[] ids = new int[other.mSymbols.length];
+        for (int s = 0; s < ids.length; s++)
+            ids[s] = symbols.getId(other.mSymbols[s]);
+        int[] chordIds = Arrays.copyOf(mChordIds, chords + other.mChordIds.length);
+        for (int c = 0; c < other.mChordIds.length; c++)
+            chordIds[chords + c] = ids[other.mChordIds[c]];
+        return new TuneBody(partLabels, partLines, lineMeasures, measureChords, chordIds, symbols.toArray());
+    }
+
+    /**
+     * The distinct chords of a body, in the order of their first use.
+     * <p/>
+     * A tune uses a dozen chords or so, hence the linear search.
+     */
+    private static class SymbolTable {
+
+        private Chord[] mSymbols;
+        private int mCount;
+
+        SymbolTable(Chord[] symbols) {
+            mSymbols = symbols;
+            mCount = symbols.length;
+        }
+
+        int getId(Chord chord) {
+            for (int i = 0; i < mCount; i++) {
+                if (mSymbols[i] == chord || mSymbols[i].getValue().equals(chord.getValue()))
+                    return i;
+            }
+            if (mCount == mSymbols.length)
+                mSymbols = Arrays.copyOf(mSymbols, Math.max(8, 2 * mCount));
+            mSymbols[mCount] = chord;
+            return mCount++;
+        }
+
+        /**
+         * Gets the symbols, the same array as given if no symbol was added.
+         */
+        Chord[] toArray() {
+            return mCount == mSymbols.length ? mSymbols : Arrays.copyOf(mSymbols, mCount);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Views
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A part of a tune, read from and edited in the tune's current body.
+     * <p/>
+     * Views are made on demand and compare equal when they are at the same position of the same
+     * tune. A view stays on its position: inserting a part before it, or restoring the tune to a
+     * snapshot, moves it to another part.
+     */
+    static class PartView extends TunePart {
+
+        private final Tune mTune;
+        private final int mIndex;
+
+        PartView(Tune tune, int index) {
+            mTune = tune;
+            mIndex = index;
+        }
+
+        @Override
+        public Tune getTune() {
+            return mTune;
+        }
+
+        @Override
+        public String getLabel() {
+            return mTune.getBody().getPartLabel(mIndex);
+        }
+
+        @Override
+        public void setLabel(String label) {
+            mTune.setPartLabel(mIndex, InternPool.intern(label));
+        }
+
+        @Override
+        public List<Line> getLines() {
+            TuneBody body = mTune.getBody();
+            return new LineList(mTune, body.getFirstLine(mIndex), body.countLines(mIndex));
+        }
+
+        @Override
+        public Line getLine(int index) {
+            TuneBody body = mTune.getBody();
+            return new LineView(mTune, body.getFirstLine(mIndex) + checkIndex(index, body.countLines(mIndex)));
+        }
+
+        @Override
+        public int countLines() {
+            return mTune.getBody().countLines(mIndex);
+        }
+
+        @Override
+        public void readFromParcel(Parcel in) {
+            mTune.setPart(mIndex, new TunePart(in));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PartView && ((PartView) o).mTune == mTune && ((PartView) o).mIndex == mIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mTune) + mIndex;
+        }
+    }
+
+    /**
+     * A line of a tune, by its position across all the parts.
+     */
+    static class LineView extends Line {
+
+        private final Tune mTune;
+        private final int mIndex;
+
+        LineView(Tune tune, int index) {
+            mTune = tune;
+            mIndex = index;
+        }
+
+        @Override
+        public boolean hasRepetition() {
+            return mTune.getBody().hasRepetition(mIndex);
+        }
+
+        @Override
+        public int countMeasures() {
+            return mTune.getBody().countMeasures(mIndex);
+        }
+
+        @Override
+        public List<Measure> getMeasures() {
+            TuneBody body = mTune.getBody();
+            return new MeasureList(mTune, body.getFirstMeasure(mIndex), body.countMeasures(mIndex));
+        }
+
+        @Override
+        public Measure getMeasure(int index) {
+            TuneBody body = mTune.getBody();
+            return new MeasureView(mTune, body.getFirstMeasure(mIndex) + checkIndex(index, body.countMeasures(mIndex)));
+        }
+
+        @Override
+        public void readFromParcel(Parcel source) {
+            mTune.setLine(mIndex, new Line(source));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LineView && ((LineView) o).mTune == mTune && ((LineView) o).mIndex == mIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mTune) + mIndex;
+        }
+    }
+
+    /**
+     * A measure of a tune, by its position across all the lines.
+     */
+    static class MeasureView extends Measure {
+
+        private final Tune mTune;
+        private final int mIndex;
+
+        MeasureView(Tune tune, int index) {
+            mTune = tune;
+            mIndex = index;
+        }
+
+        @Override
+        public int countChords() {
+            return mTune.getBody().countChords(mIndex);
+        }
+
+        /**
+         * Gets the chords as they are now: the list does not follow later edits.
+         */
+        @Override
+        public List<Chord> getChords() {
+            TuneBody body = mTune.getBody();
+            return new ChordList(body, body.getFirstChord(mIndex), body.countChords(mIndex));
+        }
+
+        @Override
+        public Chord getChord(int index) {
+            TuneBody body = mTune.getBody();
+            return body.getChord(body.getFirstChord(mIndex) + checkIndex(index, body.countChords(mIndex)));
+        }
+
+        @Override
+        public void setChords(List<String> chords) {
+            Chord[] values = new Chord[chords.size()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = Chord.valueOf(chords.get(i));
+            mTune.setMeasureChords(mIndex, Arrays.asList(values));
+        }
+
+        @Override
+        public void readFromParcel(Parcel source) {
+            mTune.setMeasureChords(mIndex, new Measure(source).getChords());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MeasureView && ((MeasureView) o).mTune == mTune && ((MeasureView) o).mIndex == mIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mTune) + mIndex;
+        }
+    }
+
+    private static int checkIndex(int index, int count) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + count);
+        return index;
+    }
+
+    /**
+     * A read-only list over a range of positions.
+     */
+    private abstract static class Range<E> extends AbstractList<E> {
+
+        private final int mFirst;
+        private final int mCount;
+
+        Range(int first, int count) {
+            mFirst = first;
+            mCount = count;
+        }
+
+        @Override
+        public E get(int index) {
+            return getAt(mFirst + checkIndex(index, mCount));
+        }
+
+        abstract E getAt(int position);
+
+        @Override
+        public int size() {
+            return mCount;
+        }
+    }
+
+    private static class LineList extends Range<Line> {
+
+        private final Tune mTune;
+
+        LineList(Tune tune, int first, int count) {
+            super(first, count);
+            mTune = tune;
+        }
+
+        @Override
+        Line getAt(int position) {
+            return new LineView(mTune, position);
+        }
+    }
+
+    private static class MeasureList extends Range<Measure> {
+
+        private final Tune mTune;
+
+        MeasureList(Tune tune, int first, int count) {
+            super(first, count);
+            mTune = tune;
+        }
+
+        @Override
+        Measure getAt(int position) {
+            return new MeasureView(mTune, position);
+        }
+    }
+
+    private static class ChordList extends Range<Chord> {
+
+        private final TuneBody mBody;
+
+        ChordList(TuneBody body, int first, int count) {
+            super(first, count);
+            mBody = body;
+        }
+
+        @Override
+        Chord getAt(int position) {
+            return mBody.getChord(position);
+        }
+    }
+}
@@ -2,7 +2,7 @@ package com.chordgrid.model;
 
 import android.app.ProgressDialog;
 import android.content.Context;
-import android.os.Handler;
+import android.content.DialogInterface;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
@@ -13,25 +13,41 @@ import com.chordgrid.ParcelableUtils;
 import com.chordgrid.R;
 import com.chordgrid.util.MyTextUtils;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The tunes and sets of the user.
+ * <p/>
+ * A tunebook is changed on one thread at a time, e.g. the main thread. Each committed change
+ * publishes an immutable {@link Snapshot} of the tunes and sets, which other threads read with
+ * {@link #getSnapshot()} without locking.
+ */
 public class TuneBook extends Observable implements Parcelable, Observer {
 
     public static final Parcelable.Creator<TuneBook> CREATOR = new Creator<TuneBook>() {
@@ -46,10 +62,34 @@ public class TuneBook extends Observable implements Parcelable, Observer {
             return new TuneBook(source);
         }
     };
-    private final String TAG = "TuneBook";
+    private static final String TAG = "TuneBook";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * ***********************************************************************
+     * XML parsing
+     * ***********************************************************************
+     */
+
+    public static final String XML_TAG = "TuneBook";
+    private static final String XML_TAG_RHYTHMS = "Rhythms";
+    private static final String XML_TAG_RHYTHM = "Rhythm";
+    private static final String XML_TAG_TUNES = "Tunes";
+    private static final String XML_TAG_TUNESETS = "TuneSets";
+    private static final String XML_ATTR_NAME = "name";
+    private static final String XML_ATTR_SIGNATURE = "signature";
+    private static final String XML_ATTR_BEATS_PER_BAR = "beatsPerBar";
+
     private final Map<String, Tune> tunes = new HashMap<String, Tune>();
     private final List<TuneSet> tuneSets = new ArrayList<TuneSet>();
-    private Handler progressDialogHandler;
+    private final TreeSet<Rhythm> declaredRhythms = new TreeSet<Rhythm>();
+    private final TuneBookIndexes indexes = new TuneBookIndexes(tunes);
+    private final TuneIdAllocator idAllocator = new TuneIdAllocator(tunes);
+    private int modificationCount;
+    private long revision = RevisionClock.next();
+    private final List<MutationListener> mutationListeners = new ArrayList<MutationListener>();
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+    private boolean snapshotStale;
 
     public TuneBook() {
     }
@@ -65,36 +105,227 @@ public class TuneBook extends Observable implements Parcelable, Observer {
      * @throws Exception
      */
     public TuneBook(String text) throws Exception {
-        // Split the text into tunes (the first item will be empty or
-        // irrelevant).
-        String[] tuneSources = MyTextUtils
-                .splitWithDelimiter(text, "(X:|SET:|RHYTHMS:)");
-
-        for (int i = 1; i < tuneSources.length; i++) {
-            String source = tuneSources[i];
-            if (source.startsWith("X:")) {
-                try {
-                    Tune tune = new Tune(tuneSources[i]);
-                    if (tune.getIndex() == 0)
-                        tune.setIndex(getMaxTuneIndex() + 1);
-                    tunes.put(tune.getId(), tune);
-                } catch (Exception e) {
-                    Log.w(TAG, e.getMessage());
-                }
-            } else if (source.startsWith("SET:")) {
-                try {
-                    TuneSet set = new TuneSet(this, source);
-                    add(set);
-                } catch (Exception e) {
-                    Log.w(TAG, e.getMessage());
+        this(new StringReader(text));
+    }
+
+    /**
+     * Builds a new instance of TuneBook by streaming its text representation.
+     *
+     * @param reader The source of the serialized tune book text (closed when done).
+     * @throws IOException
+     */
+    public TuneBook(Reader reader) throws IOException {
+        this(reader, false);
+    }
+
+    /**
+     * Builds a new instance of TuneBook by streaming its text representation.
+     *
+     * @param reader         The source of the serialized tune book text (closed when done).
+     * @param lazyTuneBodies If true, only the tune headers are parsed now, and each tune's parts
+     *                       are built the first time they are needed.
+     * @throws IOException
+     */
+    public TuneBook(Reader reader, boolean lazyTuneBodies) throws IOException {
+        this(reader, lazyTuneBodies, new ParseDiagnostics());
+    }
+
+    /**
+     * Builds a new instance of TuneBook by streaming its text representation.
+     * <p/>
+     * Ill-formed items do not throw: they are skipped or partially read, and reported to the
+     * diagnostics with their position in the text.
+     *
+     * @param reader         The source of the serialized tune book text (closed when done).
+     * @param lazyTuneBodies If true, only the tune headers are parsed now, and each tune's parts
+     *                       are built the first time they are needed.
+     * @param diagnostics    Receives the warnings and errors found in the text.
+     * @throws IOException
+     */
+    public TuneBook(Reader reader, final boolean lazyTuneBodies, final ParseDiagnostics diagnostics)
+            throws IOException {
+        new TuneBookReader(reader).read(new TuneBookReader.Listener() {
+            @Override
+            public void onRhythms(List<String> lines, int lineNumber) {
+                addParsedRhythms(lines, lineNumber, diagnostics);
+            }
+
+            @Override
+            public void onTune(List<String> lines, int lineNumber) {
+                Tune tune = Tune.parse(lines, lineNumber, lazyTuneBodies, diagnostics);
+                if (tune != null)
+                    addParsedTune(tune);
+            }
+
+            @Override
+            public void onTuneSet(List<String> lines, int lineNumber) {
+                addParsedTuneSet(lines, lineNumber, diagnostics);
+            }
+        });
+        publishSnapshot();
+    }
+
+    /**
+     * Reads a new instance of TuneBook from an XML parser positioned on its start tag, in one
+     * pass.
+     * <p/>
+     * The rhythms are added to the known rhythms, and the tune references of each set are
+     * resolved by id against the tunes read before it. Unknown tags are skipped.
+     */
+    public TuneBook(XmlPullParser parser) throws XmlPullParserException, IOException {
+        parser.require(XmlPullParser.START_TAG, "", XML_TAG);
+        while (parser.nextTag() == XmlPullParser.START_TAG) {
+            String name = parser.getName();
+            if (XML_TAG_RHYTHMS.equalsIgnoreCase(name)) {
+                declareRhythms(parseXmlRhythms(parser));
+            } else if (XML_TAG_TUNES.equalsIgnoreCase(name)) {
+                while (parser.nextTag() == XmlPullParser.START_TAG) {
+                    if (Tune.XML_TAG.equalsIgnoreCase(parser.getName()))
+                        addParsedTune(new Tune(parser));
+                    else
+                        skipXmlTag(parser);
                 }
-            } else if (source.startsWith("RHYTHMS:")) {
-                int newline = source.indexOf("\n");
-                if (newline > 0) {
-                    Rhythm.addKnownRhythms(Rhythm.parseLines(source.substring(newline + 1)));
+            } else if (XML_TAG_TUNESETS.equalsIgnoreCase(name)) {
+                while (parser.nextTag() == XmlPullParser.START_TAG) {
+                    if (TuneSet.XML_TAG.equalsIgnoreCase(parser.getName()))
+                        addParsedTuneSet(new TuneSet(this, parser));
+                    else
+                        skipXmlTag(parser);
                 }
+            } else {
+                skipXmlTag(parser);
             }
         }
+        parser.require(XmlPullParser.END_TAG, "", XML_TAG);
+        publishSnapshot();
+    }
+
+    /**
+     * Reads a new instance of TuneBook from an XML document written by
+     * {@link #xmlSerialize(OutputStream)}.
+     *
+     * @param inputStream The source of the XML document in UTF-8 (closed when done).
+     * @return A new tunebook.
+     * @throws IOException If the document cannot be read or is not a tunebook.
+     */
+    public static TuneBook xmlParse(InputStream inputStream) throws IOException {
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+            parser.setInput(inputStream, UTF8.name());
+            parser.nextTag();
+            return new TuneBook(parser);
+        } catch (XmlPullParserException e) {
+            IOException exception = new IOException("Ill-formed tunebook XML: " + e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static List<Rhythm> parseXmlRhythms(XmlPullParser parser) throws XmlPullParserException, IOException {
+        ArrayList<Rhythm> rhythms = new ArrayList<Rhythm>();
+        while (parser.nextTag() == XmlPullParser.START_TAG) {
+            if (XML_TAG_RHYTHM.equalsIgnoreCase(parser.getName())) {
+                String name = parser.getAttributeValue(null, XML_ATTR_NAME);
+                String signature = parser.getAttributeValue(null, XML_ATTR_SIGNATURE);
+                String beatsPerBar = parser.getAttributeValue(null, XML_ATTR_BEATS_PER_BAR);
+                if (TextUtils.isEmpty(name) || TextUtils.isEmpty(signature)
+                        || TextUtils.isEmpty(beatsPerBar) || !MyTextUtils.isInteger(beatsPerBar))
+                    Log.w(TAG, "Ignoring ill-formed rhythm " + name);
+                else
+                    rhythms.add(new Rhythm(name, signature, Integer.parseInt(beatsPerBar)));
+            }
+            skipXmlTag(parser);
+        }
+        Rhythm.addKnownRhythms(rhythms);
+        return rhythms;
+    }
+
+    /**
+     * Skips the current tag and its contents, leaving the parser on its end tag.
+     */
+    static void skipXmlTag(XmlPullParser parser) throws XmlPullParserException, IOException {
+        parser.require(XmlPullParser.START_TAG, null, null);
+        int depth = 1;
+        while (depth > 0) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    depth++;
+                    break;
+                case XmlPullParser.END_TAG:
+                    depth--;
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    throw new XmlPullParserException("Unexpected end of document", parser, null);
+            }
+        }
+    }
+
+    /**
+     * Adds the rhythms declared in a RHYTHMS: block to the known rhythms, and to the rhythms of
+     * this tunebook.
+     */
+    void addParsedRhythms(List<String> lines, int lineNumber, ParseDiagnostics diagnostics) {
+        ArrayList<Rhythm> rhythms = new ArrayList<Rhythm>();
+        for (int i = 1; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty())
+                continue;
+            Rhythm rhythm = Rhythm.tryParse(line);
+            if (rhythm != null)
+                rhythms.add(rhythm);
+            else
+                diagnostics.warning(ParseDiagnostics.Kind.InvalidRhythm, lineNumber + i, 1,
+                        "Cannot parse serialized rhythm: " + line);
+        }
+        Rhythm.addKnownRhythms(rhythms);
+        declareRhythms(rhythms);
+    }
+
+    /**
+     * Records rhythms declared by a serialized tunebook, already added to the known rhythms, so
+     * that they are written again even if no tune plays them.
+     */
+    void declareRhythms(Collection<Rhythm> rhythms) {
+        for (Rhythm rhythm : rhythms) {
+            Rhythm known = Rhythm.findKnownRhythm(rhythm.getName());
+            declaredRhythms.add(known != null ? known : rhythm);
+        }
+    }
+
+    /**
+     * Inserts a tune read from the text representation, assigning it an index if it has none.
+     */
+    void addParsedTune(Tune tune) {
+        if (tune.getIndex() == 0)
+            tune.setIndex(getMaxTuneIndex() + 1);
+        putTune(tune);
+    }
+
+    /**
+     * Resolves a tune set read from the text representation against the tunes read so far.
+     */
+    void addParsedTuneSet(List<String> lines, int lineNumber, ParseDiagnostics diagnostics) {
+        TuneSet set = TuneSet.parse(this, lines, lineNumber, diagnostics);
+        if (set != null)
+            addParsedTuneSet(set);
+    }
+
+    /**
+     * Appends a tune set read from a serialized tunebook, unless a set of the same name was read
+     * before.
+     * <p/>
+     * Unlike {@link #add(TuneSet)}, nobody is notified and no snapshot is published: the loader
+     * calls {@link #publishSnapshot()} once done.
+     */
+    void addParsedTuneSet(TuneSet set) {
+        if (hasTuneSetNamed(set.getName())) {
+            Log.w(TAG, "Set with name " + set.getName() + " already exists! Skip add");
+            return;
+        }
+        appendTuneSet(set);
     }
 
     public TuneBook(Parcel source) {
@@ -103,32 +334,76 @@ public class TuneBook extends Observable implements Parcelable, Observer {
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-
-        sb.append("RHYTHMS:\n");
-        for (Rhythm rhythm : getAllTuneRythms()) {
-            sb.append(rhythm).append("\n");
+        StringWriter writer = new StringWriter();
+        try {
+            snapshotText().writeTo(writer);
+        } catch (IOException e) {
+            // A StringWriter does not throw
+            throw new IllegalStateException(e);
         }
-        sb.append("\n");
+        return writer.toString();
+    }
 
+    /**
+     * Writes the text representation in UTF-8, one tune at a time.
+     *
+     * @param outputStream The destination (flushed, not closed).
+     * @throws IOException
+     */
+    public void serialize(OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, UTF8));
+        snapshotText().writeTo(writer);
+        writer.flush();
+    }
+
+    /**
+     * Captures the tunes and sets to write, so that the text can be written on another thread.
+     */
+    TextSnapshot snapshotText() {
         TreeMap<String, Tune> sortedTunes = new TreeMap<String, Tune>(new TuneIndexComparator(tunes));
         sortedTunes.putAll(tunes);
+        ArrayList<String> setTexts = new ArrayList<String>(tuneSets.size());
+        for (TuneSet set : tuneSets)
+            setTexts.add(set.toText());
+        return new TextSnapshot(getAllTuneRythms(), new ArrayList<Tune>(sortedTunes.values()), setTexts);
+    }
 
-        for (Tune tune : sortedTunes.values()) {
-            sb.append(tune.toString());
-            sb.append("\n");
-        }
+    /**
+     * The contents of a tunebook at a given time, written as text later on.
+     * <p/>
+     * The tunes are only turned into text while writing, one at a time: tunes are replaced rather
+     * than modified when edited, so they do not need to be copied.
+     */
+    static class TextSnapshot {
 
-        for (TuneSet set : tuneSets) {
-            sb.append(set.toText());
-            sb.append("\n");
+        private final List<Rhythm> mRhythms;
+        private final List<Tune> mTunes;
+        private final List<String> mSetTexts;
+
+        private TextSnapshot(List<Rhythm> rhythms, List<Tune> tunes, List<String> setTexts) {
+            mRhythms = rhythms;
+            mTunes = tunes;
+            mSetTexts = setTexts;
         }
 
-        return sb.toString();
-    }
+        void writeTo(Writer writer) throws IOException {
+            writer.write("RHYTHMS:\n");
+            for (Rhythm rhythm : mRhythms) {
+                writer.write(rhythm.toString());
+                writer.write("\n");
+            }
+            writer.write("\n");
 
-    public void serialize(OutputStream outputStream) throws IOException {
-        outputStream.write(toString().getBytes());
+            for (Tune tune : mTunes) {
+                writer.write(tune.toString());
+                writer.write("\n");
+            }
+
+            for (String setText : mSetTexts) {
+                writer.write(setText);
+                writer.write("\n");
+            }
+        }
     }
 
     /**
@@ -137,38 +412,45 @@ public class TuneBook extends Observable implements Parcelable, Observer {
      * ***********************************************************************
      */
 
-    public void xmlSerialize(FileOutputStream outputStream) {
+    /**
+     * Writes the tunebook as XML, streamed to an output stream in UTF-8.
+     * <p/>
+     * The rhythms used by the tunes come first, then the tunes in index order, then the sets
+     * referencing tunes by id.
+     *
+     * @param outputStream The destination of the XML document (not closed).
+     * @throws IOException
+     */
+    public void xmlSerialize(OutputStream outputStream) throws IOException {
         XmlSerializer xmlSerializer = Xml.newSerializer();
-        StringWriter writer = new StringWriter();
-        try {
-            xmlSerializer.setOutput(writer);
+        xmlSerializer.setOutput(outputStream, UTF8.name());
 
-            xmlSerializer.startDocument("UTF-8", true);
-            xmlSerializer.startTag("", "TuneBook");
-            xmlSerializer.startTag("", "Tunes");
-            for (Tune tune : tunes.values()) {
-                tune.xmlSerialize(xmlSerializer);
-            }
-            xmlSerializer.endTag("", "Tunes");
-            xmlSerializer.startTag("", "TuneSets");
-            for (TuneSet set : tuneSets) {
-                set.xmlSerialize(xmlSerializer);
-            }
-            xmlSerializer.endTag("", "TuneSets");
-            xmlSerializer.endTag("", "TuneBook");
-            xmlSerializer.endDocument();
-
-            outputStream.write(writer.toString().getBytes());
-        } catch (IllegalArgumentException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IllegalStateException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        xmlSerializer.startDocument(UTF8.name(), true);
+        xmlSerializer.startTag("", XML_TAG);
+        xmlSerializer.startTag("", XML_TAG_RHYTHMS);
+        for (Rhythm rhythm : getAllTuneRythms()) {
+            xmlSerializer.startTag("", XML_TAG_RHYTHM);
+            xmlSerializer.attribute("", XML_ATTR_NAME, rhythm.getName());
+            xmlSerializer.attribute("", XML_ATTR_SIGNATURE, rhythm.getSignature());
+            xmlSerializer.attribute("", XML_ATTR_BEATS_PER_BAR, Integer.toString(rhythm.getBeatsPerBar()));
+            xmlSerializer.endTag("", XML_TAG_RHYTHM);
+        }
+        xmlSerializer.endTag("", XML_TAG_RHYTHMS);
+        xmlSerializer.startTag("", XML_TAG_TUNES);
+        TreeMap<String, Tune> sortedTunes = new TreeMap<String, Tune>(new TuneIndexComparator(tunes));
+        sortedTunes.putAll(tunes);
+        for (Tune tune : sortedTunes.values()) {
+            tune.xmlSerialize(xmlSerializer);
+        }
+        xmlSerializer.endTag("", XML_TAG_TUNES);
+        xmlSerializer.startTag("", XML_TAG_TUNESETS);
+        for (TuneSet set : tuneSets) {
+            set.xmlSerialize(xmlSerializer);
         }
+        xmlSerializer.endTag("", XML_TAG_TUNESETS);
+        xmlSerializer.endTag("", XML_TAG);
+        xmlSerializer.endDocument();
+        xmlSerializer.flush();
     }
 
     //////////////////////////////////////////////////////////////////////////////////////////////
@@ -183,13 +465,15 @@ public class TuneBook extends Observable implements Parcelable, Observer {
         return tuneSets.size();
     }
 
+    /**
+     * Gets the position of a tune set in the tunebook, or -1 if it is not part of it.
+     */
+    public int getTuneSetPosition(TuneSet set) {
+        return tuneSets.indexOf(set);
+    }
+
     public List<Rhythm> getAllTuneSetRythms() {
-        TreeSet<Rhythm> rhythms = new TreeSet<Rhythm>();
-        for (TuneSet tuneSet : tuneSets) {
-            Rhythm rhythm = tuneSet.getRhythm();
-            if (rhythm != null)
-                rhythms.add(rhythm);
-        }
+        TreeSet<Rhythm> rhythms = new TreeSet<Rhythm>(indexes.getSetRhythms());
         ArrayList<Rhythm> list = new ArrayList<Rhythm>(rhythms);
         Collections.sort(list, new Comparator<Rhythm>() {
 
@@ -203,21 +487,14 @@ public class TuneBook extends Observable implements Parcelable, Observer {
     }
 
     public ArrayList<TuneSet> getAllSetsWithRythm(Rhythm rhythm) {
-        ArrayList<TuneSet> result = new ArrayList<TuneSet>();
-        for (TuneSet set : tuneSets) {
-            if (rhythm.equals(set.getRhythm()))
-                result.add(set);
-        }
-        return result;
+        return indexes.getSetsWithRhythm(rhythm);
     }
 
     /**
      * Gets all rythms expressed in the tune collection.
      */
     public List<Rhythm> getAllTuneRythms() {
-        TreeSet<Rhythm> rhythms = new TreeSet<Rhythm>();
-        for (Tune tune : tunes.values())
-            rhythms.add(tune.getRhythm());
+        TreeSet<Rhythm> rhythms = new TreeSet<Rhythm>(indexes.getTuneRhythms());
         ArrayList<Rhythm> list = new ArrayList<Rhythm>(rhythms);
         Collections.sort(list, new Comparator<Rhythm>() {
 
@@ -230,16 +507,27 @@ public class TuneBook extends Observable implements Parcelable, Observer {
         return list;
     }
 
+    /**
+     * Gets the rhythms declared when the tunebook was read and the rhythms of its tunes, by name.
+     */
+    public List<Rhythm> getRhythms() {
+        TreeSet<Rhythm> rhythms = new TreeSet<Rhythm>(indexes.getTuneRhythms());
+        rhythms.addAll(declaredRhythms);
+        return new ArrayList<Rhythm>(rhythms);
+    }
+
     /**
      * Retrieve all tunes with a given rhythm.
      */
     public ArrayList<Tune> getAllTunesWithRythm(Rhythm rhythm) {
-        ArrayList<Tune> result = new ArrayList<Tune>();
-        for (Tune tune : tunes.values()) {
-            if (rhythm.equals(tune.getRhythm()))
-                result.add(tune);
-        }
-        return result;
+        return indexes.getTunesWithRhythm(rhythm);
+    }
+
+    /**
+     * Retrieve all tunes in a given key, ignoring case, blanks and the major mode suffix.
+     */
+    public ArrayList<Tune> getAllTunesWithKey(String key) {
+        return indexes.getTunesWithKey(key);
     }
 
     public Tune getTuneFromId(String id) {
@@ -247,19 +535,20 @@ public class TuneBook extends Observable implements Parcelable, Observer {
     }
 
     public Tune getTuneFromIndex(int index) {
-        for (Tune tune : tunes.values()) {
-            if (tune.getIndex() == index)
-                return tune;
-        }
-        return null;
+        return indexes.getTuneFromIndex(index);
     }
 
     public int getMaxTuneIndex() {
-        int index = -1;
-        for (Tune tune : tunes.values()) {
-            index = Math.max(index, tune.getIndex());
-        }
-        return index;
+        return indexes.getMaxIndex();
+    }
+
+    /**
+     * Checks that the lookup indexes match the tunes and sets of this tunebook.
+     *
+     * @return The inconsistencies found (empty if the indexes are consistent).
+     */
+    public List<String> checkIndexes() {
+        return indexes.check(tuneSets);
     }
 
     //////////////////////////////////////////////////////////////////////////////////////////////
@@ -272,14 +561,15 @@ public class TuneBook extends Observable implements Parcelable, Observer {
 
         for (TunebookItem item : discardedItems) {
             if (item instanceof Tune) {
-                tunes.remove(((Tune) item).getId());
+                removeTune(((Tune) item).getId());
                 countDiscardedTunes++;
             } else if (item instanceof TuneSet) {
-                tuneSets.remove(item);
+                removeTuneSet(tuneSets.indexOf(item));
                 countDiscardedTunesets++;
             }
             item.deleteObserver(this);
         }
+        publishSnapshot();
         if (countDiscardedTunes + countDiscardedTunesets > 0) {
             // Notify observers that the tune set collection has changed
             setChanged();
@@ -291,7 +581,7 @@ public class TuneBook extends Observable implements Parcelable, Observer {
     }
 
     /**
-     * Adds a new tune into the tunes collection.
+     * Adds a new tune into the tunes collection, with a new id if its id is already in use.
      *
      * @param newTune A new tune.
      */
@@ -301,10 +591,11 @@ public class TuneBook extends Observable implements Parcelable, Observer {
         if (newTune.getIndex() == 0)
             newTune.setIndex(getMaxTuneIndex() + 1);
 
-        tunes.put(newTune.getName(), newTune);
-
-        // Observe this tune
-        newTune.addObserver(this);
+        newTune.setId(idAllocator.allocate(newTune.getId()));
+        putTune(newTune);
+        publishSnapshot();
+        for (MutationListener listener : mutationListeners)
+            listener.onTunePut(newTune);
 
         // Notify observers that the tune collection has changed
         setChanged();
@@ -314,16 +605,12 @@ public class TuneBook extends Observable implements Parcelable, Observer {
     public void replaceTune(Tune oldTune, Tune newTune) {
         Log.d(TAG, "Replacing tune " + oldTune.getName());
 
-        String oldName = oldTune.getName();
-        String newName = newTune.getName();
-
-        if (!TextUtils.equals(oldName, newName)) {
-            tunes.remove(oldName);
-        }
-        tunes.put(newName, newTune);
-
-        // Observe this tune
-        newTune.addObserver(this);
+        removeTune(oldTune.getId());
+        newTune.setId(idAllocator.allocate(newTune.getId()));
+        putTune(newTune);
+        publishSnapshot();
+        for (MutationListener listener : mutationListeners)
+            listener.onTunePut(newTune);
 
         // Notify observers that the tune collection has changed
         setChanged();
@@ -337,16 +624,14 @@ public class TuneBook extends Observable implements Parcelable, Observer {
      */
     public void add(TuneSet tuneset) {
         String setName = tuneset.getName();
-        for (TuneSet set : tuneSets) {
-            if (TextUtils.equals(set.getName(), setName)) {
-                Log.w(TAG, "Set with name " + setName + " already exists! Skip add");
-                return;
-            }
+        if (hasTuneSetNamed(setName)) {
+            Log.w(TAG, "Set with name " + setName + " already exists! Skip add");
+            return;
         }
-        tuneSets.add(tuneset);
-
-        // Observe this tune set
-        tuneset.addObserver(this);
+        appendTuneSet(tuneset);
+        publishSnapshot();
+        for (MutationListener listener : mutationListeners)
+            listener.onTuneSetPut(tuneSets.size() - 1, tuneset);
 
         // Notify observers that the tune set collection has changed
         setChanged();
@@ -357,9 +642,13 @@ public class TuneBook extends Observable implements Parcelable, Observer {
         int index = tuneSets.indexOf(oldTuneSet);
         if (index >= 0) {
             oldTuneSet.deleteObserver(this);
-            tuneSets.remove(index);
-            tuneSets.add(index, newTuneSet);
+            tuneSets.set(index, newTuneSet);
+            markModified();
+            indexes.replaceSet(oldTuneSet, newTuneSet);
             newTuneSet.addObserver(this);
+            publishSnapshot();
+            for (MutationListener listener : mutationListeners)
+                listener.onTuneSetPut(index, newTuneSet);
 
             // Notify observers that the tune set collection has changed
             setChanged();
@@ -381,6 +670,114 @@ public class TuneBook extends Observable implements Parcelable, Observer {
     public void readFromParcel(Parcel in) {
         tunes.putAll(ParcelableUtils.readMap(in, Tune.class));
         in.readTypedList(tuneSets, TuneSet.CREATOR);
+        indexes.clear();
+        for (Tune tune : tunes.values()) {
+            idAllocator.register(tune.getId());
+            indexes.addTune(tune);
+        }
+        for (TuneSet set : tuneSets)
+            indexes.addSet(set);
+        markModified();
+        publishSnapshot();
+    }
+
+    /**
+     * Inserts or replaces a tune by its id, observing it and keeping the indexes up to date.
+     */
+    private void putTune(Tune tune) {
+        String id = tune.getId();
+        idAllocator.register(id);
+        Tune previous = tunes.put(id, tune);
+        markModified();
+        if (previous != null) {
+            previous.deleteObserver(this);
+            indexes.removeTune(previous);
+        }
+        indexes.addTune(tune);
+        tune.addObserver(this);
+    }
+
+    /**
+     * Copies the tunes and sets, to be written on another thread: the tunes are shared, as they
+     * are replaced rather than modified when edited, while the sets are copied. Unlike a
+     * tunebook, the copy does not observe its tunes and sets.
+     */
+    TuneBook copyForWriting() {
+        TuneBook copy = new TuneBook();
+        copy.declaredRhythms.addAll(declaredRhythms);
+        for (Tune tune : tunes.values()) {
+            copy.tunes.put(tune.getId(), tune);
+            copy.indexes.addTune(tune);
+        }
+        for (TuneSet set : tuneSets) {
+            TuneSet setCopy = new TuneSet(copy, set.getName(), set.getTunes());
+            copy.tuneSets.add(setCopy);
+            copy.indexes.addSet(setCopy);
+        }
+        return copy;
+    }
+
+    /**
+     * Removes a tune, keeping the indexes up to date.
+     */
+    private void removeTune(String key) {
+        Tune removed = tunes.remove(key);
+        if (removed != null) {
+            indexes.removeTune(removed);
+            markModified();
+            for (MutationListener listener : mutationListeners)
+                listener.onTuneRemoved(key);
+        }
+    }
+
+    /**
+     * Removes the tune set at a given position, keeping the indexes up to date.
+     */
+    private void removeTuneSet(int position) {
+        if (position < 0)
+            return;
+        TuneSet removed = tuneSets.remove(position);
+        indexes.removeSet(removed);
+        markModified();
+        for (MutationListener listener : mutationListeners)
+            listener.onTuneSetRemoved(position);
+    }
+
+    private void markModified() {
+        modificationCount++;
+        revision = RevisionClock.next();
+        snapshotStale = true;
+    }
+
+    /**
+     * Publishes the snapshot of the current tunes and sets, if they changed since the last one.
+     * <p/>
+     * Called at the end of each committed change, and by the loaders once they have replayed or
+     * read all the tunes and sets.
+     */
+    void publishSnapshot() {
+        if (snapshotStale) {
+            snapshot.set(new Snapshot(tunes.values(), tuneSets, modificationCount, getMaxTuneIndex()));
+            snapshotStale = false;
+        }
+    }
+
+    private boolean hasTuneSetNamed(String name) {
+        for (TuneSet set : tuneSets) {
+            if (TextUtils.equals(set.getName(), name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Appends a tune set, observing it and keeping the indexes up to date.
+     */
+    private void appendTuneSet(TuneSet set) {
+        tuneSets.add(set);
+        markModified();
+        indexes.addSet(set);
+        set.addObserver(this);
     }
 
     /**
@@ -389,139 +786,204 @@ public class TuneBook extends Observable implements Parcelable, Observer {
      * ***********************************************************************
      */
 
+    /**
+     * Merges another tunebook into this one, on the calling thread.
+     *
+     * @param other The tunebook to merge.
+     */
     public void merge(TuneBook other) {
-        Log.v(TAG, "Merging tunebooks");
-        mergeTunes(other, null);
-        mergeSets(other, null);
-        Log.v(TAG, "Merging complete");
+        new TuneBookMerger(this, Collections.singletonList(other)).mergeNow();
+    }
+
+    public TuneBookMerger mergeAsync(Context context, TuneBook other, boolean findLikelyDuplicates) {
+        return mergeAsync(context, Collections.singletonList(other), findLikelyDuplicates);
     }
 
-    public void mergeAsync(Context context, final TuneBook other) {
+    /**
+     * Merges other tunebooks into this one in the background, showing a cancellable progress
+     * dialog. Observers are notified with {@link ChangedStatus#MergeComplete} once done.
+     *
+     * @param context              The context showing the progress dialog.
+     * @param others               The tunebooks to merge.
+     * @param findLikelyDuplicates Whether to find the likely duplicates of the merged tunes, to be
+     *                             read from the merger once complete.
+     * @return The running merge.
+     */
+    public TuneBookMerger mergeAsync(final Context context, List<TuneBook> others, boolean findLikelyDuplicates) {
+        final TuneBookMerger merger = new TuneBookMerger(this, others, findLikelyDuplicates);
+
         final ProgressDialog progressDialog = new ProgressDialog(context);
         progressDialog.setTitle(R.string.merging_tunebook);
+        progressDialog.setMessage(context.getString(R.string.merging_tunebook_tunes));
         progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                merger.cancel();
+            }
+        });
+        progressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, context.getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        merger.cancel();
+                    }
+                });
         progressDialog.show();
 
-        progressDialogHandler = new Handler();
-        new Thread(new Runnable() {
+        merger.start(new TuneBookMerger.Listener() {
             @Override
-            public void run() {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                Log.v(TAG, "Merging tunebooks (async)");
-                mergeTunes(other, progressDialog);
-                mergeSets(other, progressDialog);
-                Log.v(TAG, "Merging complete (async)");
+            public void onMergeProgress(int mergedTunes, int totalTunes, int mergedSets, int totalSets) {
+                progressDialog.setMax(totalTunes + totalSets);
+                progressDialog.setProgress(mergedTunes + mergedSets);
+                if (mergedTunes < totalTunes)
+                    progressDialog.setMessage(context.getString(R.string.merging_tunebook_tune_fmt,
+                            mergedTunes, totalTunes, 100 * mergedTunes / totalTunes));
+                else if (totalSets > 0)
+                    progressDialog.setMessage(context.getString(R.string.merging_tunebook_set_fmt,
+                            mergedSets, totalSets, 100 * mergedSets / totalSets));
+            }
+
+            @Override
+            public void onMergeComplete(TuneBook tuneBook) {
                 progressDialog.dismiss();
+                setChanged();
                 notifyObservers(ChangedStatus.MergeComplete);
             }
-        }).start();
+
+            @Override
+            public void onMergeCancelled(TuneBook tuneBook) {
+                progressDialog.dismiss();
+            }
+
+            @Override
+            public void onMergeFailed(TuneBook tuneBook, Exception e) {
+                progressDialog.dismiss();
+            }
+        });
+        return merger;
     }
 
-    private void mergeTunes(TuneBook other, final ProgressDialog progressDialog) {
-        Log.v(TAG, "Merging tunes from another tunebook");
+    /**
+     * Gets the tunes and sets as of the last committed change, e.g. to read them on a background
+     * thread while they are being edited.
+     * <p/>
+     * May be called on any thread. Changes replayed by a loader are only visible once it has
+     * published them.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
 
-        HashSet<Tune> originalTunes = new HashSet<Tune>(tunes.values());
+    /**
+     * Gets all the tunes, in no particular order.
+     * <p/>
+     * Must be called on the thread changing the tunebook; other threads use {@link #getSnapshot()}.
+     */
+    Collection<Tune> getTunes() {
+        return Collections.unmodifiableCollection(tunes.values());
+    }
 
-        Set<Map.Entry<String, Tune>> entries = other.tunes.entrySet();
-        final int nbEntries = entries.size();
-        if (progressDialog != null) {
-            progressDialogHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    progressDialog.setMessage(progressDialog.getContext().getResources().getString(R.string.merging_tunebook_tunes));
-                    progressDialog.setProgress(0);
-                    progressDialog.setMax(nbEntries);
-                }
-            });
-        }
+    List<TuneSet> getTuneSets() {
+        return Collections.unmodifiableList(tuneSets);
+    }
 
-        for (Map.Entry<String, Tune> entry : entries) {
-            Tune tune = entry.getValue();
-            String id = entry.getKey();
+    /**
+     * Gets a counter incremented by every change to the tunes and sets collections.
+     */
+    int getModificationCount() {
+        return modificationCount;
+    }
 
-            if (progressDialog != null) {
-                progressDialogHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        progressDialog.incrementProgressBy(1);
-                    }
-                });
-            }
+    /**
+     * Gets the revision of the last edit of this tunebook, of its tunes or of its sets.
+     * <p/>
+     * It increases with every edit, so that an unchanged revision means the tunebook does not
+     * need to be saved again.
+     */
+    public long getRevision() {
+        long latest = revision;
+        for (Tune tune : tunes.values())
+            latest = Math.max(latest, tune.getRevision());
+        for (TuneSet set : tuneSets)
+            latest = Math.max(latest, set.getRevision());
+        return latest;
+    }
 
-            if (originalTunes.contains(tune)) {
-                Log.d(TAG, String.format("Tune '%s' is already here, skip.", tune.getTitle()));
-            } else {
-                Log.d(TAG, String.format("Inserting tune '%s'.", tune.getTitle()));
-                if (tunes.keySet().contains(id)) {
-                    Log.d(TAG, String.format("Tune id '%s' already in use", id));
-                    String newId = generateIdFrom(id);
-                    Log.d(TAG, String.format("Reassigning id '%s'", newId));
-                    tune.setId(newId);
-                }
-                tune.setIndex(tunes.size() + 1);
-                tunes.put(tune.getId(), tune);
-            }
-        }
+    /**
+     * Replaces all the tunes and sets at once, then notifies observers.
+     *
+     * @param newTunes The new tunes, by id.
+     * @param newSets  The new sets.
+     */
+    void replaceContents(Map<String, Tune> newTunes, List<TuneSet> newSets) {
+        for (Tune tune : tunes.values())
+            tune.deleteObserver(this);
+        for (TuneSet set : tuneSets)
+            set.deleteObserver(this);
+        tunes.clear();
+        tuneSets.clear();
+        indexes.clear();
+        for (Tune tune : newTunes.values())
+            putTune(tune);
+        for (TuneSet set : newSets)
+            appendTuneSet(set);
+        markModified();
+        publishSnapshot();
+        for (MutationListener listener : mutationListeners)
+            listener.onContentsReplaced(this);
 
-        Log.v(TAG, "Merging tunes complete");
-    }
-
-    private String generateIdFrom(String id) {
-        String longestId = "";
-        int highest = 0;
-        for (String k : tunes.keySet()) {
-            if (k.startsWith(id)) {
-                if (k.length() > longestId.length())
-                    longestId = k;
-                int underscore = k.lastIndexOf('_');
-                if (underscore > -1) {
-                    try {
-                        int n = Integer.parseInt(k.substring(underscore + 1));
-                        if (n > highest)
-                            highest = n;
-                    } catch (Exception e) {
-                        //
-                    }
-                }
-            }
-        }
-        int underscore = longestId.lastIndexOf('_');
-        return String.format("%s_%d", underscore == -1 ? longestId : longestId.substring(0, underscore - 1), highest + 1);
+        setChanged();
+        notifyObservers(ChangedProperty.Tunes);
+        setChanged();
+        notifyObservers(ChangedProperty.TuneSets);
     }
 
-    private void mergeSets(final TuneBook other, final ProgressDialog progressDialog) {
-        Log.v(TAG, "Merging sets from another tunebook");
+    /**
+     * Adds a listener of every change to the tunes and sets.
+     */
+    void addMutationListener(MutationListener listener) {
+        if (!mutationListeners.contains(listener))
+            mutationListeners.add(listener);
+    }
 
-        final int nbSets = other.tuneSets.size();
-        if (progressDialog != null) {
-            progressDialogHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    progressDialog.setMax(nbSets);
-                    progressDialog.setProgress(0);
-                    progressDialog.setMessage(progressDialog.getContext().getString(R.string.merging_tunebook_sets));
-                }
-            });
-        }
+    void removeMutationListener(MutationListener listener) {
+        mutationListeners.remove(listener);
+    }
 
-        for (TuneSet set : other.tuneSets) {
-            if (progressDialog != null) {
-                progressDialogHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        progressDialog.incrementProgressBy(1);
-                    }
-                });
-            }
-            Log.d(TAG, String.format("Inserting set '%s'.", set.getTitle()));
-            tuneSets.add(set);
+    /**
+     * Inserts or replaces a tune read from a journal, keeping its id and index.
+     */
+    void replayPutTune(Tune tune) {
+        putTune(tune);
+    }
+
+    void replayRemoveTune(String id) {
+        Tune removed = tunes.get(id);
+        if (removed != null)
+            removed.deleteObserver(this);
+        removeTune(id);
+    }
+
+    /**
+     * Replaces the tune set at a given position, or appends it at the end, as read from a journal.
+     */
+    void replayPutTuneSet(int position, TuneSet set) {
+        if (position == tuneSets.size()) {
+            appendTuneSet(set);
+        } else {
+            TuneSet previous = tuneSets.get(position);
+            previous.deleteObserver(this);
+            tuneSets.set(position, set);
+            markModified();
+            indexes.replaceSet(previous, set);
+            set.addObserver(this);
         }
+    }
 
-        Log.v(TAG, "Merging sets complete");
+    void replayRemoveTuneSet(int position) {
+        tuneSets.get(position).deleteObserver(this);
+        removeTuneSet(position);
     }
 
     /**
@@ -533,11 +995,71 @@ public class TuneBook extends Observable implements Parcelable, Observer {
     @Override
     public void update(Observable observable, Object data) {
         if (observable instanceof TuneSet) {
+            indexes.updateSet((TuneSet) observable);
+            int position = tuneSets.indexOf(observable);
+            if (position >= 0) {
+                // Sets are edited in place: the published snapshot keeps their former tunes
+                markModified();
+                publishSnapshot();
+                for (MutationListener listener : mutationListeners)
+                    listener.onTuneSetPut(position, (TuneSet) observable);
+            }
             setChanged();
             notifyObservers(observable);
+        } else if (observable instanceof Tune && data instanceof Rhythm) {
+            Tune tune = (Tune) observable;
+            indexes.updateTuneRhythm(tune);
+            // The main rhythm of the sets playing this tune may have changed
+            for (TuneSet set : tuneSets) {
+                if (set.getTuneIndex(tune) >= 0)
+                    indexes.updateSet(set);
+            }
+            for (MutationListener listener : mutationListeners)
+                listener.onTunePut(tune);
+            setChanged();
+            notifyObservers(ChangedProperty.Tunes);
+        } else if (observable instanceof Tune && data instanceof Tune.HeaderChange) {
+            updateTuneHeader((Tune) observable, (Tune.HeaderChange) data);
         }
     }
 
+    /**
+     * Keeps the tunes by id and the indexes up to date once a header of a tune was set, then
+     * tells the listeners, as for a replaced tune.
+     */
+    private void updateTuneHeader(Tune tune, Tune.HeaderChange change) {
+        String previousId = null;
+        if (change.getHeader() == Tune.HeaderChange.Header.Id) {
+            previousId = (String) change.getPreviousValue();
+            // Ignores the id set below, the tune being already known under it
+            if (tunes.get(previousId) != tune)
+                return;
+            tunes.remove(previousId);
+            String id = idAllocator.allocate(tune.getId());
+            idAllocator.register(id);
+            tunes.put(id, tune);
+            if (!id.equals(tune.getId())) {
+                Log.w(TAG, String.format("Tune id '%s' is already in use, using '%s'", tune.getId(), id));
+                tune.setId(id);
+            }
+        } else if (tunes.get(tune.getId()) != tune) {
+            return;
+        } else if (change.getHeader() == Tune.HeaderChange.Header.Index) {
+            indexes.updateTuneIndex(tune, (Integer) change.getPreviousValue());
+        } else if (change.getHeader() == Tune.HeaderChange.Header.Key) {
+            indexes.updateTuneKey(tune, (String) change.getPreviousValue());
+        }
+        markModified();
+        publishSnapshot();
+        for (MutationListener listener : mutationListeners) {
+            if (previousId != null)
+                listener.onTuneRemoved(previousId);
+            listener.onTunePut(tune);
+        }
+        setChanged();
+        notifyObservers(ChangedProperty.Tunes);
+    }
+
     /**
      * ***********************************************************************
      * Operations
@@ -552,6 +1074,132 @@ public class TuneBook extends Observable implements Parcelable, Observer {
         MergeComplete
     }
 
+    /**
+     * Receives every change to the tunes and sets of a tunebook, once applied.
+     */
+    interface MutationListener {
+
+        /**
+         * A tune was added, replaced (by id) or modified.
+         */
+        void onTunePut(Tune tune);
+
+        void onTuneRemoved(String id);
+
+        /**
+         * A set was appended (at the last position), replaced or modified.
+         */
+        void onTuneSetPut(int position, TuneSet set);
+
+        void onTuneSetRemoved(int position);
+
+        /**
+         * All the tunes and sets were replaced at once.
+         */
+        void onContentsReplaced(TuneBook tuneBook);
+    }
+
+    /**
+     * The tunes and sets of a tunebook at a given time.
+     * <p/>
+     * The collections never change, so that any number of threads can iterate them without
+     * locking. Tunes publish each edit of their contents atomically, but sets are edited in
+     * place: the snapshot keeps its own copy of the name and tunes of each set, which readers on
+     * other threads use instead of the live {@link TuneSet}.
+     */
+    public static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(Collections.<Tune>emptyList(),
+                Collections.<TuneSet>emptyList(), 0, 0);
+
+        private final List<Tune> mTunes;
+        private final List<TuneSet> mTuneSets;
+        private final String[] mTuneSetNames;
+        private final List<List<Tune>> mTuneSetTunes;
+        private final int mModificationCount;
+        private final int mMaxTuneIndex;
+
+        /**
+         * The tunes by id, built on the first lookup rather than on every change.
+         */
+        private volatile Map<String, Tune> mTunesById;
+
+        private Snapshot(Collection<Tune> tunes, List<TuneSet> tuneSets, int modificationCount, int maxTuneIndex) {
+            mTunes = Collections.unmodifiableList(Arrays.asList(tunes.toArray(new Tune[tunes.size()])));
+            mTuneSets = Collections.unmodifiableList(new ArrayList<TuneSet>(tuneSets));
+            mTuneSetNames = new String[mTuneSets.size()];
+            ArrayList<List<Tune>> tuneSetTunes = new ArrayList<List<Tune>>(mTuneSets.size());
+            for (int i = 0; i < mTuneSetNames.length; i++) {
+                TuneSet set = mTuneSets.get(i);
+                mTuneSetNames[i] = set.getName();
+                tuneSetTunes.add(Collections.unmodifiableList(new ArrayList<Tune>(set.getTunes())));
+            }
+            mTuneSetTunes = Collections.unmodifiableList(tuneSetTunes);
+            mModificationCount = modificationCount;
+            mMaxTuneIndex = maxTuneIndex;
+        }
+
+        public int countTunes() {
+            return mTunes.size();
+        }
+
+        public int countTuneSets() {
+            return mTuneSets.size();
+        }
+
+        /**
+         * Gets all the tunes, in no particular order.
+         */
+        public Collection<Tune> getTunes() {
+            return mTunes;
+        }
+
+        /**
+         * Gets the live sets, to be used on the thread changing the tunebook only; other threads
+         * read {@link #getTuneSetName(int)} and {@link #getTuneSetTunes(int)}.
+         */
+        public List<TuneSet> getTuneSets() {
+            return mTuneSets;
+        }
+
+        /**
+         * Gets the name the set at the given position had when the snapshot was taken.
+         */
+        public String getTuneSetName(int position) {
+            return mTuneSetNames[position];
+        }
+
+        /**
+         * Gets the tunes the set at the given position had when the snapshot was taken.
+         */
+        public List<Tune> getTuneSetTunes(int position) {
+            return mTuneSetTunes.get(position);
+        }
+
+        public Tune getTuneFromId(String id) {
+            Map<String, Tune> tunesById = mTunesById;
+            if (tunesById == null) {
+                // Threads racing here build equal maps, any of which may be kept
+                tunesById = new HashMap<String, Tune>(mTunes.size() * 4 / 3 + 1);
+                for (Tune tune : mTunes)
+                    tunesById.put(tune.getId(), tune);
+                mTunesById = tunesById;
+            }
+            return tunesById.get(id);
+        }
+
+        public int getMaxTuneIndex() {
+            return mMaxTuneIndex;
+        }
+
+        /**
+         * Gets the {@link TuneBook#getModificationCount()} of the tunebook when it was taken.
+         */
+        int getModificationCount() {
+            return mModificationCount;
+        }
+    }
+
     private class TuneIndexComparator implements Comparator<String> {
 
         private Map<String, Tune> base;
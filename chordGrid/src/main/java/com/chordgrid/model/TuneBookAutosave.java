@@ -0,0 +1,134 @@
+package com.chordgrid.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * Saves a tunebook in the background a short while after it changes.
+ * <p/>
+ * A burst of changes is saved once, when no change has happened for {@link #DELAY_MS}. A save is
+ * skipped when the revision of the tunebook is the one already saved, or being saved.
+ * <p/>
+ * Must be used on the main thread.
+ */
+public class TuneBookAutosave implements Observer {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "TuneBookAutosave";
+
+    /**
+     * The delay between the last change and the save, in milliseconds.
+     */
+    public static final long DELAY_MS = 2000;
+
+    private final TuneBook mTuneBook;
+    private final File mFile;
+    private final TuneBookSnapshotCache mCache;
+    private final TuneBookFileSaver.Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The revision in the file.
+     */
+    private long mSavedRevision;
+
+    /**
+     * The revision being saved, if any.
+     */
+    private long mPendingRevision = -1;
+
+    /**
+     * @param tuneBook The tunebook to save, as it is in the file.
+     * @param file     The text file to save it to.
+     * @param listener Receives the outcome of each save, or null.
+     */
+    public TuneBookAutosave(TuneBook tuneBook, File file, TuneBookFileSaver.Listener listener) {
+        this(tuneBook, file, null, listener);
+    }
+
+    /**
+     * @param tuneBook The tunebook to save, as it is in the file.
+     * @param file     The text file to save it to.
+     * @param cache    The snapshot cache of the file, updated with each save, or null.
+     * @param listener Receives the outcome of each save, or null.
+     */
+    public TuneBookAutosave(TuneBook tuneBook, File file, TuneBookSnapshotCache cache,
+                            TuneBookFileSaver.Listener listener) {
+        mTuneBook = tuneBook;
+        mFile = file;
+        mCache = cache;
+        mListener = listener;
+        mSavedRevision = tuneBook.getRevision();
+    }
+
+    /**
+     * Starts saving the tunebook when it changes.
+     */
+    public void start() {
+        mTuneBook.addObserver(this);
+    }
+
+    /**
+     * Stops saving the tunebook, dropping a scheduled save.
+     */
+    public void stop() {
+        mTuneBook.deleteObserver(this);
+        mHandler.removeCallbacks(mSave);
+    }
+
+    /**
+     * Saves the tunebook now if it changed, e.g. when the activity is paused.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mSave);
+        save();
+    }
+
+    @Override
+    public void update(Observable observable, Object data) {
+        mHandler.removeCallbacks(mSave);
+        mHandler.postDelayed(mSave, DELAY_MS);
+    }
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    private void save() {
+        final long revision = mTuneBook.getRevision();
+        if (revision == mSavedRevision || revision == mPendingRevision) {
+            Log.d(TAG, String.format("Revision %d already saved, skip", revision));
+            return;
+        }
+        mPendingRevision = revision;
+        TuneBookFileSaver.saveAsync(mTuneBook, mFile, mCache, new TuneBookFileSaver.Listener() {
+            @Override
+            public void onSaved(File file) {
+                mSavedRevision = Math.max(mSavedRevision, revision);
+                if (mPendingRevision == revision)
+                    mPendingRevision = -1;
+                if (mListener != null)
+                    mListener.onSaved(file);
+            }
+
+            @Override
+            public void onSaveFailed(File file, IOException e) {
+                if (mPendingRevision == revision)
+                    mPendingRevision = -1;
+                if (mListener != null)
+                    mListener.onSaveFailed(file, e);
+            }
+        });
+    }
+}
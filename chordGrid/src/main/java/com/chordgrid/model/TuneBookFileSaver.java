@@ -0,0 +1,212 @@
+package com.chordgrid.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Saves tunebooks to text files without risking the previous version.
+ * <p/>
+ * The text is streamed one tune at a time to a temporary file in UTF-8, synced to disk, then
+ * renamed over the target file: a crash leaves either the previous or the new version. Saves
+ * run one after the other on a background thread, in the order they were requested. Exports to
+ * the XML and JSON formats are written the same way.
+ */
+public class TuneBookFileSaver {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "TuneBookFileSaver";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes the text files and their snapshots, one at a time.
+     */
+    static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * Receives the outcome of a background save, on the main thread.
+     */
+    public interface Listener {
+
+        void onSaved(File file);
+
+        /**
+         * Called when the save failed; the previous version of the file is unchanged.
+         */
+        void onSaveFailed(File file, IOException e);
+    }
+
+    /**
+     * The formats a tunebook is exported to, besides text.
+     */
+    public enum Format {
+        XML, JSON
+    }
+
+    /**
+     * Contents captured on the calling thread, written to a file later on.
+     */
+    private interface Contents {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private TuneBookFileSaver() {
+    }
+
+    /**
+     * Saves a tunebook on the calling thread.
+     *
+     * @param tuneBook The tunebook to save.
+     * @param file     The text file to replace.
+     * @throws IOException If the tunebook cannot be saved; the file is then unchanged.
+     */
+    public static void save(TuneBook tuneBook, File file) throws IOException {
+        write(toContents(tuneBook.snapshotText()), file);
+    }
+
+    /**
+     * Saves a tunebook in the background.
+     * <p/>
+     * The tunes and sets to save are captured on the calling thread, so later changes to the
+     * tunebook do not affect this save.
+     *
+     * @param tuneBook The tunebook to save.
+     * @param file     The text file to replace.
+     * @param listener Receives the outcome of the save on the main thread, or null.
+     * @return The pending save.
+     */
+    public static Future<?> saveAsync(TuneBook tuneBook, File file, Listener listener) {
+        return saveAsync(tuneBook, file, null, listener);
+    }
+
+    /**
+     * Same as {@link #saveAsync(TuneBook, File, Listener)}, also taking the snapshot of the
+     * tunebook once the file is saved, from the same contents.
+     *
+     * @param cache The snapshot cache of the file, or null.
+     */
+    public static Future<?> saveAsync(TuneBook tuneBook, File file, TuneBookSnapshotCache cache,
+                                      Listener listener) {
+        Contents contents = toContents(tuneBook.snapshotText());
+        BinaryTuneBook.RecordWriter records = cache == null ? null : new BinaryTuneBook.RecordWriter(tuneBook);
+        return submit(contents, file, cache, records, listener);
+    }
+
+    /**
+     * Exports a tunebook in the background, as {@link #saveAsync(TuneBook, File, Listener)}
+     * saves its text.
+     *
+     * @param tuneBook The tunebook to export.
+     * @param file     The file to replace.
+     * @param format   The format of the file.
+     * @param listener Receives the outcome of the export on the main thread, or null.
+     * @return The pending export.
+     */
+    public static Future<?> exportAsync(TuneBook tuneBook, File file, final Format format, Listener listener) {
+        final TuneBook copy = tuneBook.copyForWriting();
+        Contents contents = new Contents() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                if (format == Format.XML)
+                    copy.xmlSerialize(out);
+                else
+                    JsonTuneBook.write(copy, out);
+            }
+        };
+        return submit(contents, file, null, null, listener);
+    }
+
+    private static Future<?> submit(final Contents contents, final File file, final TuneBookSnapshotCache cache,
+                                    final BinaryTuneBook.RecordWriter records, final Listener listener) {
+        final Handler handler = listener == null ? null : new Handler(Looper.getMainLooper());
+        return EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    write(contents, file);
+                    Log.d(TAG, String.format("Saved %s in %d ms", file, System.currentTimeMillis() - start));
+                    if (cache != null)
+                        cache.save(records);
+                    if (handler != null) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onSaved(file);
+                            }
+                        });
+                    }
+                } catch (final IOException e) {
+                    Log.e(TAG, "Cannot save " + file, e);
+                    if (handler != null) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onSaveFailed(file, e);
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    }
+
+    private static Contents toContents(final TuneBook.TextSnapshot snapshot) {
+        return new Contents() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+                snapshot.writeTo(writer);
+                writer.flush();
+            }
+        };
+    }
+
+    /**
+     * Writes contents to a temporary file, then renames it over a file.
+     */
+    private static void write(Contents contents, File file) throws IOException {
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            writeSynced(contents, tempFile);
+            if (!tempFile.renameTo(file))
+                throw new IOException("Cannot rename " + tempFile + " to " + file);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a tunebook text to a file, synced to disk when this returns.
+     */
+    static void writeSynced(TuneBook.TextSnapshot snapshot, File file) throws IOException {
+        writeSynced(toContents(snapshot), file);
+    }
+
+    private static void writeSynced(Contents contents, File file) throws IOException {
+        FileOutputStream fileOutput = new FileOutputStream(file);
+        try {
+            contents.writeTo(fileOutput);
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+    }
+}
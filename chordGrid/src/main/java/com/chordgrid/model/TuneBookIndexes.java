@@ -0,0 +1,382 @@
+package com.chordgrid.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The secondary indexes of a tunebook: tunes by X: index, by rhythm and by key, and sets by
+ * rhythm.
+ * <p/>
+ * The tunebook keeps them up to date on every add, remove and replace, and when a header of a
+ * tune is set, so that lookups do not scan the whole collection. Tunes are bucketed by instance ID rather than by equality, since
+ * the content of a tune may change while it is indexed.
+ */
+class TuneBookIndexes {
+
+    /**
+     * The tunes of the tunebook, by id (owned by the tunebook).
+     */
+    private final Map<String, Tune> mTunes;
+
+    private final HashMap<Integer, Tune> mTunesByIndex = new HashMap<Integer, Tune>();
+    private final HashMap<Rhythm, LinkedHashMap<Integer, Tune>> mTunesByRhythm = new HashMap<Rhythm, LinkedHashMap<Integer, Tune>>();
+    private final HashMap<String, LinkedHashMap<Integer, Tune>> mTunesByKey = new HashMap<String, LinkedHashMap<Integer, Tune>>();
+    private final HashMap<Rhythm, ArrayList<TuneSet>> mSetsByRhythm = new HashMap<Rhythm, ArrayList<TuneSet>>();
+
+    /**
+     * The rhythm under which each set is indexed, by set instance ID.
+     */
+    private final HashMap<Integer, Rhythm> mSetRhythms = new HashMap<Integer, Rhythm>();
+
+    /**
+     * The highest X: index in use, or -1 if there is no tune.
+     */
+    private int mMaxIndex = -1;
+
+    /**
+     * True when the tune holding the highest index was removed, so that mMaxIndex must be
+     * computed again.
+     */
+    private boolean mMaxIndexStale;
+
+    TuneBookIndexes(Map<String, Tune> tunes) {
+        mTunes = tunes;
+    }
+
+    /**
+     * Normalizes a key for lookups: case, blanks and the major mode suffix are ignored, and the
+     * minor mode is written "m" (e.g. "E minor", "Emin" and "em" are the same key).
+     *
+     * @param key A key, as written in the K: header.
+     * @return The normalized key (empty if the key is null).
+     */
+    static String normalizeKey(String key) {
+        if (key == null)
+            return "";
+        StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c > ' ')
+                sb.append(Character.toLowerCase(c));
+        }
+        String normalized = sb.toString();
+        if (normalized.endsWith("major"))
+            return normalized.substring(0, normalized.length() - 5);
+        if (normalized.endsWith("maj"))
+            return normalized.substring(0, normalized.length() - 3);
+        if (normalized.endsWith("minor"))
+            return normalized.substring(0, normalized.length() - 4);
+        if (normalized.endsWith("min"))
+            return normalized.substring(0, normalized.length() - 2);
+        return normalized;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    // Tunes
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Indexes a tune just inserted in the tunebook.
+     */
+    void addTune(Tune tune) {
+        addIndex(tune);
+        addToBucket(mTunesByRhythm, tune.getRhythm(), tune);
+        addToBucket(mTunesByKey, normalizeKey(tune.getKey()), tune);
+    }
+
+    /**
+     * Removes a tune just removed from the tunebook from the indexes.
+     */
+    void removeTune(Tune tune) {
+        removeIndex(tune, tune.getIndex());
+        removeFromBuckets(mTunesByRhythm, tune);
+        removeFromBucket(mTunesByKey, normalizeKey(tune.getKey()), tune);
+    }
+
+    /**
+     * Moves a tune whose X: index was set to its new index.
+     */
+    void updateTuneIndex(Tune tune, int previousIndex) {
+        removeIndex(tune, previousIndex);
+        addIndex(tune);
+    }
+
+    /**
+     * Moves a tune whose key was set to the bucket of its new key.
+     */
+    void updateTuneKey(Tune tune, String previousKey) {
+        removeFromBucket(mTunesByKey, normalizeKey(previousKey), tune);
+        addToBucket(mTunesByKey, normalizeKey(tune.getKey()), tune);
+    }
+
+    private void addIndex(Tune tune) {
+        int index = tune.getIndex();
+        if (!mTunesByIndex.containsKey(index))
+            mTunesByIndex.put(index, tune);
+        if (!mMaxIndexStale && index > mMaxIndex)
+            mMaxIndex = index;
+    }
+
+    private void removeIndex(Tune tune, int index) {
+        if (mTunesByIndex.get(index) == tune) {
+            mTunesByIndex.remove(index);
+            // Another tune may share the same index
+            for (Tune other : mTunes.values()) {
+                if (other.getIndex() == index && other != tune) {
+                    mTunesByIndex.put(index, other);
+                    break;
+                }
+            }
+        }
+        if (index >= mMaxIndex)
+            mMaxIndexStale = true;
+    }
+
+    /**
+     * Moves a tune whose rhythm has changed to its new rhythm bucket.
+     */
+    void updateTuneRhythm(Tune tune) {
+        removeFromBuckets(mTunesByRhythm, tune);
+        addToBucket(mTunesByRhythm, tune.getRhythm(), tune);
+    }
+
+    Tune getTuneFromIndex(int index) {
+        return mTunesByIndex.get(index);
+    }
+
+    int getMaxIndex() {
+        if (mMaxIndexStale) {
+            mMaxIndex = -1;
+            for (Tune tune : mTunes.values())
+                mMaxIndex = Math.max(mMaxIndex, tune.getIndex());
+            mMaxIndexStale = false;
+        }
+        return mMaxIndex;
+    }
+
+    Collection<Rhythm> getTuneRhythms() {
+        return mTunesByRhythm.keySet();
+    }
+
+    ArrayList<Tune> getTunesWithRhythm(Rhythm rhythm) {
+        LinkedHashMap<Integer, Tune> bucket = mTunesByRhythm.get(rhythm);
+        return bucket == null ? new ArrayList<Tune>() : new ArrayList<Tune>(bucket.values());
+    }
+
+    ArrayList<Tune> getTunesWithKey(String key) {
+        LinkedHashMap<Integer, Tune> bucket = mTunesByKey.get(normalizeKey(key));
+        return bucket == null ? new ArrayList<Tune>() : new ArrayList<Tune>(bucket.values());
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    // Sets
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Indexes a set just appended to the tunebook.
+     */
+    void addSet(TuneSet set) {
+        Rhythm rhythm = set.getRhythm();
+        mSetRhythms.put(set.getInstanceId(), rhythm);
+        if (rhythm != null)
+            getSetBucket(rhythm).add(set);
+    }
+
+    /**
+     * Removes a set just removed from the tunebook from the indexes.
+     */
+    void removeSet(TuneSet set) {
+        Rhythm rhythm = mSetRhythms.remove(set.getInstanceId());
+        removeFromSetBucket(rhythm, set);
+    }
+
+    /**
+     * Indexes a set in place of another one, keeping its position among the sets of its rhythm
+     * if both have the same rhythm.
+     */
+    void replaceSet(TuneSet oldSet, TuneSet newSet) {
+        Rhythm oldRhythm = mSetRhythms.remove(oldSet.getInstanceId());
+        Rhythm newRhythm = newSet.getRhythm();
+        ArrayList<TuneSet> bucket = oldRhythm == null ? null : mSetsByRhythm.get(oldRhythm);
+        int position = bucket == null ? -1 : indexOfInstance(bucket, oldSet);
+        if (position >= 0 && oldRhythm.equals(newRhythm)) {
+            bucket.set(position, newSet);
+            mSetRhythms.put(newSet.getInstanceId(), newRhythm);
+        } else {
+            removeFromSetBucket(oldRhythm, oldSet);
+            addSet(newSet);
+        }
+    }
+
+    /**
+     * Moves a set to the bucket of its current rhythm, after its tunes have changed.
+     */
+    void updateSet(TuneSet set) {
+        Integer instanceId = set.getInstanceId();
+        if (!mSetRhythms.containsKey(instanceId))
+            return;
+        Rhythm oldRhythm = mSetRhythms.get(instanceId);
+        Rhythm newRhythm = set.getRhythm();
+        if (oldRhythm == null ? newRhythm == null : oldRhythm.equals(newRhythm))
+            return;
+        removeSet(set);
+        addSet(set);
+    }
+
+    Collection<Rhythm> getSetRhythms() {
+        return mSetsByRhythm.keySet();
+    }
+
+    ArrayList<TuneSet> getSetsWithRhythm(Rhythm rhythm) {
+        ArrayList<TuneSet> bucket = mSetsByRhythm.get(rhythm);
+        return bucket == null ? new ArrayList<TuneSet>() : new ArrayList<TuneSet>(bucket);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    // Maintenance
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    void clear() {
+        mTunesByIndex.clear();
+        mTunesByRhythm.clear();
+        mTunesByKey.clear();
+        mSetsByRhythm.clear();
+        mSetRhythms.clear();
+        mMaxIndex = -1;
+        mMaxIndexStale = false;
+    }
+
+    /**
+     * Checks the indexes against the tunebook contents.
+     *
+     * @param sets The sets of the tunebook.
+     * @return The inconsistencies found (empty if the indexes are consistent).
+     */
+    List<String> check(List<TuneSet> sets) {
+        ArrayList<String> problems = new ArrayList<String>();
+
+        TuneBookIndexes expected = new TuneBookIndexes(mTunes);
+        for (Tune tune : mTunes.values())
+            expected.addTune(tune);
+        for (TuneSet set : sets)
+            expected.addSet(set);
+
+        if (getMaxIndex() != expected.getMaxIndex())
+            problems.add(String.format("Max index is %d, expected %d", getMaxIndex(), expected.getMaxIndex()));
+        if (!mTunesByIndex.keySet().equals(expected.mTunesByIndex.keySet()))
+            problems.add("Indexed X: numbers differ from the tunes");
+        HashSet<Integer> tuneInstances = new HashSet<Integer>();
+        for (Tune tune : mTunes.values())
+            tuneInstances.add(tune.getInstanceId());
+        for (Map.Entry<Integer, Tune> entry : mTunesByIndex.entrySet()) {
+            Tune tune = entry.getValue();
+            if (tune.getIndex() != entry.getKey() || !tuneInstances.contains(tune.getInstanceId()))
+                problems.add(String.format("X:%d is mapped to a wrong tune '%s'", entry.getKey(), tune.getId()));
+        }
+        checkBuckets("rhythm", mTunesByRhythm, expected.mTunesByRhythm, problems);
+        checkBuckets("key", mTunesByKey, expected.mTunesByKey, problems);
+
+        if (!mSetRhythms.equals(expected.mSetRhythms))
+            problems.add("Indexed sets differ from the tunebook sets");
+        if (!mSetsByRhythm.keySet().equals(expected.mSetsByRhythm.keySet()))
+            problems.add("Set rhythms differ from the tunebook sets");
+        for (Map.Entry<Rhythm, ArrayList<TuneSet>> entry : mSetsByRhythm.entrySet()) {
+            ArrayList<TuneSet> expectedBucket = expected.mSetsByRhythm.get(entry.getKey());
+            if (expectedBucket == null || !sameInstances(entry.getValue(), expectedBucket))
+                problems.add(String.format("Sets with rhythm %s differ", entry.getKey().getName()));
+        }
+        return problems;
+    }
+
+    private static <K> void checkBuckets(String name, Map<K, LinkedHashMap<Integer, Tune>> actual,
+                                         Map<K, LinkedHashMap<Integer, Tune>> expected,
+                                         List<String> problems) {
+        if (!actual.keySet().equals(expected.keySet()))
+            problems.add(String.format("Tune %s buckets differ", name));
+        for (Map.Entry<K, LinkedHashMap<Integer, Tune>> entry : actual.entrySet()) {
+            LinkedHashMap<Integer, Tune> expectedBucket = expected.get(entry.getKey());
+            if (expectedBucket == null || !entry.getValue().keySet().equals(expectedBucket.keySet()))
+                problems.add(String.format("Tunes with %s %s differ", name, entry.getKey()));
+        }
+    }
+
+    private static boolean sameInstances(List<TuneSet> lhs, List<TuneSet> rhs) {
+        if (lhs.size() != rhs.size())
+            return false;
+        for (TuneSet set : lhs) {
+            if (indexOfInstance(rhs, set) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    // Buckets
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static <K> void addToBucket(Map<K, LinkedHashMap<Integer, Tune>> buckets, K key, Tune tune) {
+        LinkedHashMap<Integer, Tune> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new LinkedHashMap<Integer, Tune>();
+            buckets.put(key, bucket);
+        }
+        bucket.put(tune.getInstanceId(), tune);
+    }
+
+    private static <K> void removeFromBucket(Map<K, LinkedHashMap<Integer, Tune>> buckets, K key, Tune tune) {
+        LinkedHashMap<Integer, Tune> bucket = buckets.get(key);
+        if (bucket != null && bucket.remove(tune.getInstanceId()) != null && bucket.isEmpty())
+            buckets.remove(key);
+    }
+
+    /**
+     * Removes a tune from whichever bucket holds it (for keys that may have changed).
+     */
+    private static <K> void removeFromBuckets(Map<K, LinkedHashMap<Integer, Tune>> buckets, Tune tune) {
+        Iterator<LinkedHashMap<Integer, Tune>> iterator = buckets.values().iterator();
+        while (iterator.hasNext()) {
+            LinkedHashMap<Integer, Tune> bucket = iterator.next();
+            if (bucket.remove(tune.getInstanceId()) != null) {
+                if (bucket.isEmpty())
+                    iterator.remove();
+                return;
+            }
+        }
+    }
+
+    private ArrayList<TuneSet> getSetBucket(Rhythm rhythm) {
+        ArrayList<TuneSet> bucket = mSetsByRhythm.get(rhythm);
+        if (bucket == null) {
+            bucket = new ArrayList<TuneSet>();
+            mSetsByRhythm.put(rhythm, bucket);
+        }
+        return bucket;
+    }
+
+    private void removeFromSetBucket(Rhythm rhythm, TuneSet set) {
+        if (rhythm == null)
+            return;
+        ArrayList<TuneSet> bucket = mSetsByRhythm.get(rhythm);
+        if (bucket == null)
+            return;
+        int position = indexOfInstance(bucket, set);
+        if (position >= 0)
+            bucket.remove(position);
+        if (bucket.isEmpty())
+            mSetsByRhythm.remove(rhythm);
+    }
+
+    private static int indexOfInstance(List<TuneSet> sets, TuneSet set) {
+        for (int i = 0; i < sets.size(); i++) {
+            if (sets.get(i) == set)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,503 @@
+package com.chordgrid.model;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Records the changes made to a tunebook in an append-only journal, next to its text file.
+ * <p/>
+ * The text file is the checkpoint: the journal starts with the key of the checkpoint it applies
+ * to, followed by one entry per change (a tune added, replaced or removed, a set edited, ...),
+ * each synced to disk as it is appended. Loading a tunebook reads the checkpoint, then replays
+ * the journal over it. A journal whose checkpoint has been rewritten since is ignored, and an
+ * entry torn by a crash or otherwise corrupt ends the journal.
+ * <p/>
+ * The text of an entry is taken on the thread making the change, then appended in the
+ * background, in order. Once the journal passes {@link #COMPACTION_THRESHOLD} bytes, the tunebook
+ * is written to a new checkpoint on the same thread, after the entries queued before, and the
+ * journal restarts empty.
+ */
+public class TuneBookJournal implements TuneBook.MutationListener {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "TuneBookJournal";
+
+    /**
+     * The first bytes of a journal, "CGJN".
+     */
+    private static final int MAGIC = 0x43474a4e;
+    private static final int VERSION = 1;
+
+    /**
+     * Magic, version and the key of the checkpoint.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + FileKey.SIZE;
+
+    /**
+     * The journal size from which it is folded into a new checkpoint, in bytes.
+     */
+    public static final int COMPACTION_THRESHOLD = 256 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Entry kinds, followed by their text
+    private static final byte OP_PUT_TUNE = 1;      // rhythm, then tune
+    private static final byte OP_REMOVE_TUNE = 2;   // tune id
+    private static final byte OP_PUT_SET = 3;       // position, then set
+    private static final byte OP_REMOVE_SET = 4;    // position
+    private static final byte OP_CONTENTS = 5;      // whole tunebook
+
+    private final File mCheckpointFile;
+    private final File mJournalFile;
+    private final File mNextJournalFile;
+    private final File mTempCheckpointFile;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private TuneBook mTuneBook;
+    private volatile boolean mFailed;
+
+    // The length of the journal once the queued entries are appended, on the main thread
+    private long mQueuedLength;
+
+    // Written on the executor only, as the compaction swaps the journal file
+    private FileOutputStream mOutput;
+
+    /**
+     * @param checkpointFile The tunebook text file the journal applies to.
+     */
+    public TuneBookJournal(File checkpointFile) {
+        mCheckpointFile = checkpointFile;
+        mJournalFile = new File(checkpointFile.getPath() + ".journal");
+        mNextJournalFile = new File(checkpointFile.getPath() + ".journal.next");
+        mTempCheckpointFile = new File(checkpointFile.getPath() + ".checkpoint");
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Loading
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Applies the journal to a tunebook just read from the checkpoint.
+     *
+     * @return The number of changes applied.
+     */
+    public int replay(TuneBook tuneBook) {
+        try {
+            File journal = findJournal();
+            if (journal == null)
+                return 0;
+            int[] countEntries = new int[1];
+            scan(journal, tuneBook, countEntries);
+            Log.d(TAG, String.format("Replayed %d changes from %s", countEntries[0], journal));
+            return countEntries[0];
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot replay journal " + mJournalFile, e);
+            return 0;
+        } finally {
+            // The entries read before a failure are applied all the same
+            tuneBook.publishSnapshot();
+        }
+    }
+
+    /**
+     * Starts recording the changes made to a tunebook, read from the checkpoint and the journal.
+     * <p/>
+     * The checkpoint is written first if there is none yet.
+     *
+     * @throws IOException If the journal cannot be written.
+     */
+    public void attach(TuneBook tuneBook) throws IOException {
+        if (!mCheckpointFile.exists()) {
+            TuneBookFileSaver.writeSynced(tuneBook.snapshotText(), mTempCheckpointFile);
+            if (!mTempCheckpointFile.renameTo(mCheckpointFile))
+                throw new IOException("Cannot rename " + mTempCheckpointFile);
+        }
+
+        File journal = findJournal();
+        if (journal == null) {
+            writeJournal(mJournalFile, FileKey.of(mCheckpointFile));
+        } else {
+            long validLength = scan(journal, null, new int[1]);
+            if (journal != mJournalFile && !journal.renameTo(mJournalFile))
+                throw new IOException("Cannot rename " + journal);
+            RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw");
+            try {
+                if (raf.length() > validLength) {
+                    Log.w(TAG, String.format("Dropping %d bytes at the end of the journal",
+                            raf.length() - validLength));
+                    raf.setLength(validLength);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        mOutput = new FileOutputStream(mJournalFile, true);
+        mQueuedLength = mJournalFile.length();
+        mTuneBook = tuneBook;
+        tuneBook.addMutationListener(this);
+    }
+
+    /**
+     * Stops recording changes. The queued entries and compaction are still written.
+     */
+    public void close() {
+        if (mTuneBook != null)
+            mTuneBook.removeMutationListener(this);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Returns true if a change could not be recorded, so that the whole tunebook must be saved.
+     */
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Gets a key of the checkpoint and journal files once the queued entries are written, from
+     * their sizes and modification times, so that data mirroring the tunebook can tell whether a
+     * change was recorded since.
+     * <p/>
+     * The key is computed on the thread writing the journal; the caller never waits for it.
+     *
+     * @return The key to come, which is null if there is no checkpoint or a change could not be
+     * recorded, or null if the journal is closed.
+     */
+    public Future<String> getFilesKey() {
+        try {
+            return mExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    if (mFailed || !mCheckpointFile.exists())
+                        return null;
+                    return describeFile(mCheckpointFile) + "," + describeFile(mJournalFile) + ","
+                            + describeFile(mNextJournalFile);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private static String describeFile(File file) {
+        return file.getName() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * Gets the journal applying to the current checkpoint, if any.
+     * <p/>
+     * A compaction interrupted between renaming the new checkpoint and the new journal leaves
+     * the journal to use under the next journal name.
+     */
+    private File findJournal() throws IOException {
+        for (File journal : new File[]{mJournalFile, mNextJournalFile}) {
+            if (!journal.exists() || journal.length() < HEADER_SIZE)
+                continue;
+            DataInputStream in = new DataInputStream(new FileInputStream(journal));
+            try {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION
+                        && FileKey.read(in).matches(mCheckpointFile))
+                    return journal;
+            } finally {
+                in.close();
+            }
+            Log.d(TAG, "Ignoring journal of another checkpoint " + journal);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the entries of a journal, up to the end or to the first torn or corrupt entry.
+     *
+     * @param tuneBook     The tunebook to apply the entries to, or null to only check them.
+     * @param countEntries Receives the number of entries read.
+     * @return The length of the valid part of the journal.
+     */
+    private long scan(File journal, TuneBook tuneBook, int[] countEntries) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        try {
+            in.skipBytes(HEADER_SIZE);
+            long validLength = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] entry;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > journal.length()) {
+                        Log.w(TAG, "Invalid entry length in journal " + journal);
+                        break;
+                    }
+                    entry = new byte[length];
+                    in.readFully(entry);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(entry, 0, entry.length);
+                if ((int) crc.getValue() != checksum) {
+                    Log.w(TAG, "Invalid entry checksum in journal " + journal);
+                    break;
+                }
+                String text = new String(entry, 1, entry.length - 1, UTF8);
+                try {
+                    if (tuneBook != null)
+                        apply(tuneBook, entry[0], text);
+                    else
+                        getSetPosition(entry[0], text);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Invalid set position in journal " + journal + ": " + e.getMessage());
+                    break;
+                }
+                validLength += 8 + entry.length;
+                countEntries[0]++;
+            }
+            return validLength;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the position a set entry starts with.
+     *
+     * @return The position, or -1 for the other kinds of entries.
+     * @throws NumberFormatException If the position is not a number, i.e. the entry is corrupt.
+     */
+    private static int getSetPosition(byte op, String text) {
+        switch (op) {
+            case OP_PUT_SET: {
+                int newline = text.indexOf('\n');
+                return Integer.parseInt(newline < 0 ? text : text.substring(0, newline));
+            }
+            case OP_REMOVE_SET:
+                return Integer.parseInt(text);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Applies one journal entry to a tunebook.
+     */
+    private static void apply(TuneBook tuneBook, byte op, String text) throws IOException {
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        switch (op) {
+            case OP_PUT_TUNE: {
+                List<String> lines = Arrays.asList(text.split("\n"));
+                Rhythm rhythm = Rhythm.tryParse(lines.get(0));
+                if (rhythm != null && Rhythm.findKnownRhythm(rhythm.getName()) == null)
+                    Rhythm.addKnownRhythm(rhythm);
+                Tune tune = Tune.parse(lines.subList(1, lines.size()), 1, false, diagnostics);
+                if (tune != null)
+                    tuneBook.replayPutTune(tune);
+                break;
+            }
+            case OP_REMOVE_TUNE:
+                tuneBook.replayRemoveTune(text);
+                break;
+            case OP_PUT_SET: {
+                List<String> lines = Arrays.asList(text.split("\n"));
+                int position = getSetPosition(op, text);
+                TuneSet set = TuneSet.parse(tuneBook, lines.subList(1, lines.size()), 1, diagnostics);
+                if (set != null && position >= 0 && position <= tuneBook.countTuneSets())
+                    tuneBook.replayPutTuneSet(position, set);
+                break;
+            }
+            case OP_REMOVE_SET: {
+                int position = getSetPosition(op, text);
+                if (position >= 0 && position < tuneBook.countTuneSets())
+                    tuneBook.replayRemoveTuneSet(position);
+                break;
+            }
+            case OP_CONTENTS: {
+                TuneBook contents = new TuneBook(new StringReader(text), false, diagnostics);
+                HashMap<String, Tune> tunes = new HashMap<String, Tune>();
+                for (Tune tune : contents.getTunes())
+                    tunes.put(tune.getId(), tune);
+                ArrayList<TuneSet> sets = new ArrayList<TuneSet>();
+                for (TuneSet set : contents.getTuneSets())
+                    sets.add(new TuneSet(tuneBook, set.getName(), set.getTunes()));
+                tuneBook.replaceContents(tunes, sets);
+                break;
+            }
+            default:
+                Log.w(TAG, "Skipping journal entry of unknown kind " + op);
+                break;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Recording
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onTunePut(Tune tune) {
+        append(OP_PUT_TUNE, tune.getRhythm() + "\n" + tune.toString());
+    }
+
+    @Override
+    public void onTuneRemoved(String id) {
+        append(OP_REMOVE_TUNE, id);
+    }
+
+    @Override
+    public void onTuneSetPut(int position, TuneSet set) {
+        append(OP_PUT_SET, position + "\n" + set.toText());
+    }
+
+    @Override
+    public void onTuneSetRemoved(int position) {
+        append(OP_REMOVE_SET, String.valueOf(position));
+    }
+
+    @Override
+    public void onContentsReplaced(TuneBook tuneBook) {
+        append(OP_CONTENTS, tuneBook.toString());
+    }
+
+    /**
+     * Queues an entry, to be appended and synced to disk in the background, then queues a
+     * compaction if the journal is getting too big.
+     */
+    private void append(final byte op, final String text) {
+        if (mFailed)
+            return;
+        final byte[] data = text.getBytes(UTF8);
+        mQueuedLength += 9 + data.length;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(op, data);
+            }
+        });
+        if (mQueuedLength > COMPACTION_THRESHOLD)
+            compact();
+    }
+
+    private void write(byte op, byte[] data) {
+        if (mFailed || mOutput == null)
+            return;
+        CRC32 crc = new CRC32();
+        crc.update(op);
+        crc.update(data, 0, data.length);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9 + data.length);
+        DataOutputStream entry = new DataOutputStream(bytes);
+        try {
+            entry.writeInt(1 + data.length);
+            entry.writeInt((int) crc.getValue());
+            entry.writeByte(op);
+            entry.write(data);
+            mOutput.write(bytes.toByteArray());
+            mOutput.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot append to journal " + mJournalFile, e);
+            mFailed = true;
+        }
+    }
+
+    /**
+     * Queues writing the current tunebook to a new checkpoint, once the queued entries are
+     * appended.
+     */
+    private void compact() {
+        final TuneBook.TextSnapshot snapshot = mTuneBook.snapshotText();
+        Log.d(TAG, String.format("Folding %d bytes of journal into a new checkpoint", mQueuedLength));
+        mQueuedLength = HEADER_SIZE;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFailed)
+                    return;
+                try {
+                    fold(snapshot);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot fold the journal into a new checkpoint", e);
+                    mFailed = true;
+                    mTempCheckpointFile.delete();
+                    mNextJournalFile.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the checkpoint, then restarts the journal.
+     *
+     * @param snapshot The tunebook contents, matching the whole journal.
+     */
+    private void fold(TuneBook.TextSnapshot snapshot) throws IOException {
+        TuneBookFileSaver.writeSynced(snapshot, mTempCheckpointFile);
+        FileKey key = FileKey.of(mTempCheckpointFile);
+
+        closeOutput();
+        writeJournal(mNextJournalFile, key);
+        if (!mTempCheckpointFile.renameTo(mCheckpointFile))
+            throw new IOException("Cannot rename " + mTempCheckpointFile);
+        if (!mNextJournalFile.renameTo(mJournalFile))
+            throw new IOException("Cannot rename " + mNextJournalFile);
+        mOutput = new FileOutputStream(mJournalFile, true);
+        Log.d(TAG, "Saved checkpoint " + mCheckpointFile);
+    }
+
+    private void closeOutput() {
+        if (mOutput == null)
+            return;
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close journal " + mJournalFile, e);
+        }
+        mOutput = null;
+    }
+
+    /**
+     * Writes an empty journal synced to disk.
+     */
+    private static void writeJournal(File file, FileKey key) throws IOException {
+        FileOutputStream fileOutput = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutput));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            key.write(out);
+            out.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.chordgrid.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the tunes and sets of one or more tunebooks into a target tunebook.
+ * <p/>
+ * The merge works on a private copy of the target contents and of the merged tunes, so neither
+ * the target nor the sources are modified while it runs. The tunes are read from the
+ * {@link TuneBook.Snapshot} of each tunebook, so that only the sets are copied on the calling
+ * thread. The result is swapped into the target
+ * in one step, on the main thread for {@link #start(Listener)}.
+ * <p/>
+ * Tunes with the same content as a tune of the target, or of a source merged before, are
+ * skipped, and sets referring to them are redirected to the tune kept. Merged tunes get a new id
+ * if theirs is in use, and the next free X: index.
+ */
+public class TuneBookMerger {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "TuneBookMerger";
+
+    /**
+     * The delay between two progress reports, in milliseconds.
+     */
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
+    /**
+     * The maximum number of likely duplicates reported for a merged tune.
+     */
+    private static final int MAX_DUPLICATE_CANDIDATES = 5;
+
+    /**
+     * Receives the state of a background merge, on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called at a fixed rate while the merge runs.
+         */
+        void onMergeProgress(int mergedTunes, int totalTunes, int mergedSets, int totalSets);
+
+        /**
+         * Called once the result has been swapped into the target tunebook.
+         */
+        void onMergeComplete(TuneBook tuneBook);
+
+        /**
+         * Called when the merge was cancelled; the target tunebook is unchanged.
+         */
+        void onMergeCancelled(TuneBook tuneBook);
+
+        /**
+         * Called when the merge failed; the target tunebook is unchanged.
+         */
+        void onMergeFailed(TuneBook tuneBook, Exception e);
+    }
+
+    private final TuneBook mTarget;
+    private final List<TuneBook> mSources;
+
+    private Handler mHandler;
+    private Listener mListener;
+    private volatile boolean mCancelled;
+    private volatile Exception mFailure;
+    private final boolean mFindLikelyDuplicates;
+    private LinkedHashMap<String, List<TuneSimilarityIndex.Candidate>> mLikelyDuplicates = new LinkedHashMap<String, List<TuneSimilarityIndex.Candidate>>();
+
+    // Snapshot, taken on the calling thread
+    private TuneBook.Snapshot mTargetSnapshot;
+    private ArrayList<TuneBook.Snapshot> mSourceSnapshots;
+    private int mTotalTunes;
+    private int mTotalSets;
+
+    // Working copy, written by the worker only
+    private HashMap<String, Tune> mTunes;
+    private ArrayList<TuneSet> mSets;
+    private int mMaxIndex;
+    private ArrayList<List<Tune>> mSourceTunes;
+
+    // Progress, written by the worker only
+    private volatile int mMergedTunes;
+    private volatile int mMergedSets;
+
+    public TuneBookMerger(TuneBook target, List<TuneBook> sources) {
+        this(target, sources, false);
+    }
+
+    /**
+     * @param findLikelyDuplicates Whether the merge looks for likely duplicates of the tunes it
+     *                             inserts: tunes with similar titles or chords, which are not
+     *                             equal and are inserted anyway.
+     * @see #getLikelyDuplicates()
+     */
+    public TuneBookMerger(TuneBook target, List<TuneBook> sources, boolean findLikelyDuplicates) {
+        mTarget = target;
+        mSources = new ArrayList<TuneBook>(sources);
+        mFindLikelyDuplicates = findLikelyDuplicates;
+    }
+
+    /**
+     * Merges the sources into the target on the calling thread.
+     */
+    public void mergeNow() {
+        takeSnapshot();
+        merge();
+        mTarget.replaceContents(mTunes, mSets);
+        release();
+    }
+
+    /**
+     * Starts merging the sources into the target on a background thread.
+     * <p/>
+     * Must be called on the main thread, where the listener is notified and the result swapped
+     * in. If the target is modified meanwhile, the merge starts over from its new contents.
+     *
+     * @param listener Receives the progress and the outcome of the merge.
+     */
+    public void start(Listener listener) {
+        mListener = listener;
+        mHandler = new Handler(Looper.getMainLooper());
+        takeSnapshot();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    merge();
+                } catch (Exception e) {
+                    Log.e(TAG, "Merge failed", e);
+                    mFailure = e;
+                }
+                mHandler.post(mCompletion);
+            }
+        }, TAG).start();
+        mHandler.postDelayed(mProgressReporter, PROGRESS_INTERVAL_MS);
+    }
+
+    /**
+     * Cancels a background merge. The target tunebook is left unchanged.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Gets the likely duplicates found by a completed merge, if it was asked to find them.
+     *
+     * @return For the id of each inserted tune having likely duplicates, in merge order, the
+     * tunes of the target (or of the sources merged before) it may duplicate, best first.
+     */
+    public Map<String, List<TuneSimilarityIndex.Candidate>> getLikelyDuplicates() {
+        return Collections.unmodifiableMap(mLikelyDuplicates);
+    }
+
+    private final Runnable mProgressReporter = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onMergeProgress(mMergedTunes, mTotalTunes, mMergedSets, mTotalSets);
+            mHandler.postDelayed(this, PROGRESS_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable mCompletion = new Runnable() {
+        @Override
+        public void run() {
+            if (mCancelled) {
+                Log.v(TAG, "Merge cancelled");
+                finish();
+                mListener.onMergeCancelled(mTarget);
+            } else if (mFailure != null) {
+                finish();
+                mListener.onMergeFailed(mTarget, mFailure);
+            } else if (mTarget.getModificationCount() != mTargetSnapshot.getModificationCount()) {
+                Log.w(TAG, "Tunebook modified during the merge, starting over");
+                mHandler.removeCallbacks(mProgressReporter);
+                start(mListener);
+            } else {
+                mTarget.replaceContents(mTunes, mSets);
+                mListener.onMergeProgress(mMergedTunes, mTotalTunes, mMergedSets, mTotalSets);
+                finish();
+                mListener.onMergeComplete(mTarget);
+            }
+        }
+    };
+
+    private void finish() {
+        mHandler.removeCallbacks(mProgressReporter);
+        release();
+    }
+
+    /**
+     * Captures everything the merge reads, so that it does not depend on later changes.
+     * <p/>
+     * The tunebook snapshots already hold their own copy of the tunes of each set, which are
+     * edited in place.
+     */
+    private void takeSnapshot() {
+        // Publishes the changes a loader may have replayed without committing them
+        mTarget.publishSnapshot();
+        mTargetSnapshot = mTarget.getSnapshot();
+
+        mSourceSnapshots = new ArrayList<TuneBook.Snapshot>();
+        mTotalTunes = mTotalSets = 0;
+        for (TuneBook source : mSources) {
+            source.publishSnapshot();
+            TuneBook.Snapshot snapshot = source.getSnapshot();
+            mSourceSnapshots.add(snapshot);
+            mTotalTunes += snapshot.countTunes();
+            mTotalSets += snapshot.countTuneSets();
+        }
+        mMergedTunes = mMergedSets = 0;
+        mFailure = null;
+        mLikelyDuplicates = new LinkedHashMap<String, List<TuneSimilarityIndex.Candidate>>();
+    }
+
+    /**
+     * Copies the snapshots into the working collections of the merge, on the merging thread.
+     */
+    private void copySnapshot() {
+        mTunes = new HashMap<String, Tune>();
+        for (Tune tune : mTargetSnapshot.getTunes())
+            mTunes.put(tune.getId(), tune);
+        mSets = new ArrayList<TuneSet>(mTargetSnapshot.getTuneSets());
+        mMaxIndex = mTargetSnapshot.getMaxTuneIndex();
+
+        mSourceTunes = new ArrayList<List<Tune>>();
+        for (TuneBook.Snapshot snapshot : mSourceSnapshots) {
+            ArrayList<Tune> tunes = new ArrayList<Tune>(snapshot.getTunes());
+            Collections.sort(tunes, new Comparator<Tune>() {
+                @Override
+                public int compare(Tune lhs, Tune rhs) {
+                    return lhs.getIndex() < rhs.getIndex() ? -1 : (lhs.getIndex() == rhs.getIndex() ? 0 : 1);
+                }
+            });
+            mSourceTunes.add(tunes);
+        }
+    }
+
+    private void release() {
+        mTargetSnapshot = null;
+        mSourceSnapshots = null;
+        mTunes = null;
+        mSets = null;
+        mSourceTunes = null;
+    }
+
+    /**
+     * Merges the snapshot of the sources into the snapshot of the target.
+     */
+    private void merge() {
+        Log.v(TAG, String.format("Merging %d tunebooks", mSources.size()));
+        copySnapshot();
+
+        TuneIdAllocator ids = new TuneIdAllocator(mTunes);
+        HashMap<ContentKey, Tune> mergedTunes = new HashMap<ContentKey, Tune>();
+        for (Tune tune : mTunes.values()) {
+            ids.register(tune.getId());
+            mergedTunes.put(new ContentKey(tune), tune);
+        }
+        TuneSimilarityIndex similarityIndex = null;
+        if (mFindLikelyDuplicates) {
+            similarityIndex = new TuneSimilarityIndex();
+            for (Tune tune : mTunes.values()) {
+                if (mCancelled)
+                    return;
+                similarityIndex.add(tune);
+            }
+        }
+
+        // Merged tune for each source tune
+        IdentityHashMap<Tune, Tune> replacements = new IdentityHashMap<Tune, Tune>();
+        int countMergedTunes = 0;
+        for (List<Tune> tunes : mSourceTunes) {
+            // As with successive merges, a source is only checked against the tunes before it
+            ArrayList<Tune> insertedTunes = new ArrayList<Tune>();
+            for (Tune tune : tunes) {
+                if (mCancelled)
+                    return;
+                Tune existing = mergedTunes.get(new ContentKey(tune));
+                if (existing != null) {
+                    Log.d(TAG, String.format("Tune '%s' is already here, skip.", tune.getTitle()));
+                    replacements.put(tune, existing);
+                } else {
+                    Log.d(TAG, String.format("Inserting tune '%s'.", tune.getTitle()));
+                    Tune copy = tune.copy();
+                    String id = copy.getId();
+                    if (mTunes.containsKey(id)) {
+                        Log.d(TAG, String.format("Tune id '%s' already in use", id));
+                        copy.setId(ids.allocate(id));
+                        Log.d(TAG, String.format("Reassigning id '%s'", copy.getId()));
+                    }
+                    copy.setIndex(++mMaxIndex);
+                    ids.register(copy.getId());
+                    mTunes.put(copy.getId(), copy);
+                    insertedTunes.add(copy);
+                    replacements.put(tune, copy);
+                    if (similarityIndex != null) {
+                        List<TuneSimilarityIndex.Candidate> candidates = similarityIndex.findDuplicates(
+                                copy, TuneSimilarityIndex.DEFAULT_MIN_SCORE, MAX_DUPLICATE_CANDIDATES);
+                        if (!candidates.isEmpty())
+                            mLikelyDuplicates.put(copy.getId(), candidates);
+                    }
+                }
+                mMergedTunes = ++countMergedTunes;
+            }
+            for (Tune tune : insertedTunes) {
+                ContentKey key = new ContentKey(tune);
+                if (!mergedTunes.containsKey(key))
+                    mergedTunes.put(key, tune);
+                if (similarityIndex != null)
+                    similarityIndex.add(tune);
+            }
+        }
+
+        HashSet<String> setKeys = new HashSet<String>();
+        for (int i = 0; i < mTargetSnapshot.countTuneSets(); i++)
+            setKeys.add(getSetKey(mTargetSnapshot.getTuneSetName(i), mTargetSnapshot.getTuneSetTunes(i)));
+        int countMergedSets = 0;
+        for (TuneBook.Snapshot snapshot : mSourceSnapshots) {
+            for (int i = 0; i < snapshot.countTuneSets(); i++) {
+                if (mCancelled)
+                    return;
+                String name = snapshot.getTuneSetName(i);
+                List<Tune> tunes = snapshot.getTuneSetTunes(i);
+                ArrayList<Tune> setTunes = new ArrayList<Tune>(tunes.size());
+                for (Tune tune : tunes) {
+                    Tune replacement = replacements.get(tune);
+                    if (replacement != null)
+                        setTunes.add(replacement);
+                }
+                if (setKeys.add(getSetKey(name, setTunes))) {
+                    Log.d(TAG, String.format("Inserting set '%s'.", name));
+                    mSets.add(new TuneSet(mTarget, name, setTunes));
+                } else {
+                    Log.d(TAG, String.format("Set '%s' is already here, skip.", name));
+                }
+                mMergedSets = ++countMergedSets;
+            }
+        }
+
+        Log.v(TAG, "Merging complete");
+    }
+
+    /**
+     * Gets a key telling apart sets with different names or tunes.
+     */
+    private static String getSetKey(String name, List<Tune> tunes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name);
+        for (Tune tune : tunes)
+            sb.append('\n').append(tune.getId());
+        return sb.toString();
+    }
+
+    /**
+     * Tells apart tunes by their content, whatever their id: hashes on the cached fingerprint of
+     * the tune, then compares the chords.
+     */
+    private static class ContentKey {
+
+        private final Tune mTune;
+        private final int mHash;
+
+        ContentKey(Tune tune) {
+            mTune = tune;
+            long fingerprint = tune.getFingerprint();
+            mHash = (int) (fingerprint ^ (fingerprint >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ContentKey && mTune.hasSameContent(((ContentKey) o).mTune);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.chordgrid.model;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+/**
+ * Exposes the tunes, the sets and the tunes of each set of the {@link TuneBookStore} as cursors,
+ * e.g. for {@link android.support.v4.content.CursorLoader}s.
+ * <p/>
+ * <ul>
+ * <li>{@link #TUNES_URI}: the tunes by index, over {@link TuneBookStore#TUNE_COLUMNS}, filtered
+ * and paged by the {@link #PARAM_RHYTHM}, {@link #PARAM_KEY}, {@link #PARAM_TITLE},
+ * {@link #PARAM_OFFSET} and {@link #PARAM_LIMIT} query parameters;</li>
+ * <li>{@link #TUNESETS_URI}: the sets by position, over {@link TuneBookStore#SET_COLUMNS}, paged
+ * by {@link #PARAM_OFFSET} and {@link #PARAM_LIMIT};</li>
+ * <li>{@link #getTuneSetTunesUri(int)}: the tunes of a set, in order.</li>
+ * </ul>
+ * The projection, selection and sort order of a query are ignored. The provider is read-only:
+ * the tunebook is changed through the model, whose changes the store writes, after which the
+ * cursors are notified of the change.
+ */
+public class TuneBookProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "com.chordgrid.tunebook";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+    public static final Uri TUNES_URI = Uri.withAppendedPath(CONTENT_URI, "tunes");
+    public static final Uri TUNESETS_URI = Uri.withAppendedPath(CONTENT_URI, "tunesets");
+
+    public static final String PARAM_RHYTHM = "rhythm";
+    public static final String PARAM_KEY = "key";
+    public static final String PARAM_TITLE = "title";
+    public static final String PARAM_OFFSET = "offset";
+    public static final String PARAM_LIMIT = "limit";
+
+    private static final String TUNES_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.com.chordgrid.tune";
+    private static final String TUNESETS_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.com.chordgrid.tuneset";
+
+    private static final int MATCH_TUNES = 1;
+    private static final int MATCH_TUNESETS = 2;
+    private static final int MATCH_TUNESET_TUNES = 3;
+
+    private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        URI_MATCHER.addURI(AUTHORITY, "tunes", MATCH_TUNES);
+        URI_MATCHER.addURI(AUTHORITY, "tunesets", MATCH_TUNESETS);
+        URI_MATCHER.addURI(AUTHORITY, "tunesets/#/tunes", MATCH_TUNESET_TUNES);
+    }
+
+    private TuneBookStore mStore;
+
+    /**
+     * Gets the URI of the tunes of a set.
+     *
+     * @param position The position of the set in the tunebook.
+     */
+    public static Uri getTuneSetTunesUri(int position) {
+        return Uri.withAppendedPath(TUNESETS_URI, position + "/tunes");
+    }
+
+    @Override
+    public boolean onCreate() {
+        mStore = TuneBookStore.getInstance(getContext());
+        mStore.setOnChangeListener(new TuneBookStore.OnChangeListener() {
+            @Override
+            public void onStoreChanged(TuneBookStore store) {
+                getContext().getContentResolver().notifyChange(CONTENT_URI, null);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        Cursor cursor;
+        switch (URI_MATCHER.match(uri)) {
+            case MATCH_TUNES:
+                cursor = mStore.queryTunes(uri.getQueryParameter(PARAM_RHYTHM), uri.getQueryParameter(PARAM_KEY),
+                        uri.getQueryParameter(PARAM_TITLE), getIntParameter(uri, PARAM_OFFSET),
+                        getIntParameter(uri, PARAM_LIMIT));
+                break;
+            case MATCH_TUNESETS:
+                cursor = mStore.queryTuneSets(getIntParameter(uri, PARAM_OFFSET), getIntParameter(uri, PARAM_LIMIT));
+                break;
+            case MATCH_TUNESET_TUNES:
+                cursor = mStore.queryTuneSetTunes(Integer.parseInt(uri.getPathSegments().get(1)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        // Any write to the store may change any query
+        cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        return cursor;
+    }
+
+    private static int getIntParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (TextUtils.isEmpty(value))
+            return 0;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid %s in URI %s", name, uri));
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (URI_MATCHER.match(uri)) {
+            case MATCH_TUNES:
+            case MATCH_TUNESET_TUNES:
+                return TUNES_TYPE;
+            case MATCH_TUNESETS:
+                return TUNESETS_TYPE;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("The tunebook is read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("The tunebook is read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("The tunebook is read-only");
+    }
+}
@@ -0,0 +1,126 @@
+package com.chordgrid.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single-pass reader for the text representation of a tunebook.
+ * <p/>
+ * The source is consumed line by line: every line starting with X:, SET: or RHYTHMS: opens a
+ * new block, and the previous block is handed to the {@link Listener} as soon as it is complete.
+ * Only the lines of the current block are kept in memory, never the whole text.
+ */
+public class TuneBookReader {
+
+    /**
+     * Receives the tunebook items as they are read.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each RHYTHMS: block. The lines are only valid during the call.
+         *
+         * @param lines      The block lines, starting with the RHYTHMS: line.
+         * @param lineNumber The one-based line number of the RHYTHMS: line.
+         */
+        void onRhythms(List<String> lines, int lineNumber);
+
+        /**
+         * Called for each X: block. The lines are only valid during the call.
+         *
+         * @param lines      The tune lines, starting with the X: line.
+         * @param lineNumber The one-based line number of the X: line.
+         */
+        void onTune(List<String> lines, int lineNumber);
+
+        /**
+         * Called for each SET: block. The lines are only valid during the call.
+         *
+         * @param lines      The set lines, starting with the SET: line.
+         * @param lineNumber The one-based line number of the SET: line.
+         */
+        void onTuneSet(List<String> lines, int lineNumber);
+    }
+
+    private static final int BLOCK_NONE = 0;
+    private static final int BLOCK_TUNE = 1;
+    private static final int BLOCK_SET = 2;
+    private static final int BLOCK_RHYTHMS = 3;
+
+    private final BufferedReader mReader;
+
+    /**
+     * The lines of the block being read (reused from one block to the next).
+     */
+    private final ArrayList<String> mBlockLines = new ArrayList<String>();
+
+    private int mBlockType = BLOCK_NONE;
+
+    /**
+     * The line number of the first line of the current block.
+     */
+    private int mBlockLineNumber;
+
+    public TuneBookReader(Reader reader) {
+        mReader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    /**
+     * Reads the whole source, notifying the listener of each item, then closes the source.
+     *
+     * @param listener The listener receiving the items.
+     * @throws IOException
+     */
+    public void read(Listener listener) throws IOException {
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = mReader.readLine()) != null) {
+                lineNumber++;
+                int blockType = getBlockType(line);
+                if (blockType != BLOCK_NONE) {
+                    flushBlock(listener);
+                    mBlockType = blockType;
+                    mBlockLineNumber = lineNumber;
+                }
+                if (mBlockType != BLOCK_NONE)
+                    mBlockLines.add(line);
+            }
+            flushBlock(listener);
+        } finally {
+            mReader.close();
+        }
+    }
+
+    private static int getBlockType(String line) {
+        if (line.startsWith("X:"))
+            return BLOCK_TUNE;
+        if (line.startsWith("SET:"))
+            return BLOCK_SET;
+        if (line.startsWith("RHYTHMS:"))
+            return BLOCK_RHYTHMS;
+        return BLOCK_NONE;
+    }
+
+    /**
+     * Hands the current block over to the listener and resets the block buffer.
+     */
+    private void flushBlock(Listener listener) {
+        switch (mBlockType) {
+            case BLOCK_TUNE:
+                listener.onTune(mBlockLines, mBlockLineNumber);
+                break;
+            case BLOCK_SET:
+                listener.onTuneSet(mBlockLines, mBlockLineNumber);
+                break;
+            case BLOCK_RHYTHMS:
+                listener.onRhythms(mBlockLines, mBlockLineNumber);
+                break;
+        }
+        mBlockLines.clear();
+        mBlockType = BLOCK_NONE;
+    }
+}
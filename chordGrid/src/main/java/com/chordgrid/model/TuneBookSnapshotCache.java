@@ -0,0 +1,160 @@
+package com.chordgrid.model;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Caches the parsed model of a tunebook text file, so that it is not parsed again on the next
+ * start when the file has not changed.
+ * <p/>
+ * The snapshot is stored next to the text file, in the {@link BinaryTuneBook} format, after a
+ * header holding the size, modification time and CRC-32 of the text file it was taken from. It
+ * is only loaded while all three still match the text file: otherwise the text must be parsed,
+ * and a new snapshot taken.
+ */
+public class TuneBookSnapshotCache {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "TuneBookSnapshotCache";
+
+    /**
+     * The first bytes of a snapshot, "CGSC".
+     */
+    private static final int MAGIC = 0x43475343;
+
+    /**
+     * The snapshot header version.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Magic, version and the key of the text file.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + FileKey.SIZE;
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mTextFile;
+    private final File mSnapshotFile;
+
+    /**
+     * @param textFile The tunebook text file whose model is cached.
+     */
+    public TuneBookSnapshotCache(File textFile) {
+        mTextFile = textFile;
+        mSnapshotFile = new File(textFile.getPath() + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Loads the snapshot of the text file, if it is up to date.
+     *
+     * @return The cached tunebook, or null if there is no snapshot or the text file changed
+     * since it was taken.
+     */
+    public TuneBook load() {
+        if (!mSnapshotFile.exists())
+            return null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mSnapshotFile, "r");
+            try {
+                if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                    Log.w(TAG, "Ignoring snapshot of an unknown format " + mSnapshotFile);
+                    return null;
+                }
+                if (!FileKey.read(raf).matches(mTextFile)) {
+                    Log.d(TAG, "Snapshot is out of date " + mSnapshotFile);
+                    return null;
+                }
+                FileChannel channel = raf.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                        channel.size() - HEADER_SIZE);
+                return BinaryTuneBook.read(buffer);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot load snapshot " + mSnapshotFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Takes a snapshot of a tunebook, once it has been parsed from or saved to the text file.
+     * <p/>
+     * The snapshot is written to a temporary file, then renamed over the previous one, so that a
+     * tunebook loaded from the previous snapshot can still read it.
+     *
+     * @param tuneBook The tunebook, matching the current text file.
+     */
+    public void save(TuneBook tuneBook) {
+        save(new BinaryTuneBook.RecordWriter(tuneBook));
+    }
+
+    /**
+     * Takes a snapshot of a tunebook just parsed from the text file, in the background.
+     * <p/>
+     * The tunebook is captured on the calling thread, and written on the thread saving the text
+     * files, so that the text file cannot be replaced while its key is taken.
+     *
+     * @param tuneBook The tunebook, matching the current text file.
+     * @see TuneBookFileSaver#saveAsync(TuneBook, File, TuneBookSnapshotCache, TuneBookFileSaver.Listener)
+     */
+    public void saveAsync(TuneBook tuneBook) {
+        final BinaryTuneBook.RecordWriter records = new BinaryTuneBook.RecordWriter(tuneBook);
+        TuneBookFileSaver.EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                save(records);
+            }
+        });
+    }
+
+    /**
+     * Writes a snapshot, captured from a tunebook matching the current text file.
+     */
+    void save(BinaryTuneBook.RecordWriter records) {
+        File tempFile = new File(mSnapshotFile.getPath() + TEMP_SUFFIX);
+        try {
+            FileKey key = FileKey.of(mTextFile);
+
+            FileOutputStream fileOutput = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutput));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                key.write(out);
+                records.write(out);
+                out.flush();
+                fileOutput.getFD().sync();
+            } finally {
+                fileOutput.close();
+            }
+            if (!tempFile.renameTo(mSnapshotFile))
+                throw new IOException("Cannot rename " + tempFile);
+            Log.d(TAG, "Saved snapshot " + mSnapshotFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot save snapshot " + mSnapshotFile, e);
+            tempFile.delete();
+            invalidate();
+        }
+    }
+
+    /**
+     * Deletes the snapshot.
+     */
+    public void invalidate() {
+        if (mSnapshotFile.exists() && !mSnapshotFile.delete())
+            Log.w(TAG, "Cannot delete snapshot " + mSnapshotFile);
+    }
+}
@@ -0,0 +1,1027 @@
+package com.chordgrid.model;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stores a tunebook in a SQLite database, as an alternative to its text file and journal.
+ * <p/>
+ * Each tune is a row of {@link Tunes}, its body being split into {@link Parts}, {@link Lines},
+ * {@link Measures} and {@link Chords}; each set is a row of {@link Sets}, its tunes being the
+ * rows of {@link SetTunes}. The tunes are indexed by rhythm, key, title and index, so that list
+ * screens can query and page them instead of loading the whole tunebook.
+ * <p/>
+ * Once attached to a tunebook, every change to its tunes and sets is written in a transaction of
+ * its own, in order, on a background thread; the {@link OnChangeListener} is then told that the
+ * queries may have changed. A tunebook loaded from the store reads the body of a tune only when
+ * its parts are first needed.
+ * <p/>
+ * The store remembers the source it was last known to match, e.g. the key of the files of the
+ * tunebook, until its next change: attaching a tunebook loaded from the same source again does
+ * not rewrite it.
+ * <p/>
+ * Only the {@link Context} of the database is needed, so that the store also runs on the JVM,
+ * e.g. with Robolectric; a null database name keeps the database in memory.
+ */
+public class TuneBookStore implements TuneBook.MutationListener {
+
+    /**
+     * Tag for LogCat console debugging.
+     */
+    private static final String TAG = "TuneBookStore";
+
+    public static final String DATABASE_NAME = "tunebook.db";
+    public static final int DATABASE_VERSION = 1;
+
+    /**
+     * The name of the row id column, as expected by the cursor adapters.
+     */
+    public static final String _ID = "_id";
+
+    public static final class Rhythms {
+        public static final String TABLE = "rhythms";
+        public static final String NAME = "name";
+        public static final String SIGNATURE = "signature";
+        public static final String BEATS_PER_BAR = "beats_per_bar";
+    }
+
+    public static final class Tunes {
+        public static final String TABLE = "tunes";
+        public static final String TUNE_ID = "tune_id";
+        public static final String INDEX = "idx";
+        public static final String NAME = "name";
+        public static final String RHYTHM = "rhythm";
+        public static final String KEY = "tune_key";
+    }
+
+    public static final class Parts {
+        public static final String TABLE = "parts";
+        public static final String TUNE = "tune";
+        public static final String POSITION = "position";
+        public static final String LABEL = "label";
+    }
+
+    public static final class Lines {
+        public static final String TABLE = "lines";
+        public static final String PART = "part";
+        public static final String POSITION = "position";
+        public static final String REPETITION = "repetition";
+    }
+
+    public static final class Measures {
+        public static final String TABLE = "measures";
+        public static final String LINE = "line";
+        public static final String POSITION = "position";
+    }
+
+    public static final class Chords {
+        public static final String TABLE = "chords";
+        public static final String MEASURE = "measure";
+        public static final String POSITION = "position";
+        public static final String VALUE = "value";
+    }
+
+    public static final class Sets {
+        public static final String TABLE = "sets";
+        public static final String POSITION = "position";
+        public static final String NAME = "name";
+    }
+
+    public static final class SetTunes {
+        public static final String TABLE = "set_tunes";
+        public static final String SET = "tune_set";
+        public static final String POSITION = "position";
+        public static final String TUNE_ID = "tune_id";
+    }
+
+    /**
+     * The source the contents match, in a single row, none when they may have changed since.
+     */
+    public static final class SyncState {
+        public static final String TABLE = "sync_state";
+        public static final String SOURCE = "source";
+    }
+
+    /**
+     * The columns of the tune lists.
+     */
+    public static final String[] TUNE_COLUMNS = {
+            _ID, Tunes.TUNE_ID, Tunes.INDEX, Tunes.NAME, Tunes.RHYTHM, Tunes.KEY};
+
+    /**
+     * The columns of the set lists.
+     */
+    public static final String[] SET_COLUMNS = {_ID, Sets.POSITION, Sets.NAME};
+
+    private static final String SQL_INSERT_TUNE = "INSERT INTO " + Tunes.TABLE + " ("
+            + Tunes.TUNE_ID + ", " + Tunes.INDEX + ", " + Tunes.NAME + ", " + Tunes.RHYTHM + ", "
+            + Tunes.KEY + ") VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_INSERT_PART = "INSERT INTO " + Parts.TABLE + " ("
+            + Parts.TUNE + ", " + Parts.POSITION + ", " + Parts.LABEL + ") VALUES (?, ?, ?)";
+    private static final String SQL_INSERT_LINE = "INSERT INTO " + Lines.TABLE + " ("
+            + Lines.PART + ", " + Lines.POSITION + ", " + Lines.REPETITION + ") VALUES (?, ?, ?)";
+    private static final String SQL_INSERT_MEASURE = "INSERT INTO " + Measures.TABLE + " ("
+            + Measures.LINE + ", " + Measures.POSITION + ") VALUES (?, ?)";
+    private static final String SQL_INSERT_CHORD = "INSERT INTO " + Chords.TABLE + " ("
+            + Chords.MEASURE + ", " + Chords.POSITION + ", " + Chords.VALUE + ") VALUES (?, ?, ?)";
+    private static final String SQL_INSERT_RHYTHM = "INSERT OR REPLACE INTO " + Rhythms.TABLE + " ("
+            + Rhythms.NAME + ", " + Rhythms.SIGNATURE + ", " + Rhythms.BEATS_PER_BAR + ") VALUES (?, ?, ?)";
+
+    /**
+     * The rows of a tune body, in order, a part without lines or a line without measures
+     * appearing once with null columns.
+     */
+    private static final String SQL_SELECT_BODY = "SELECT p." + _ID + ", p." + Parts.LABEL
+            + ", l." + _ID + ", l." + Lines.REPETITION + ", m." + _ID + ", c." + Chords.VALUE
+            + " FROM " + Parts.TABLE + " p"
+            + " JOIN " + Tunes.TABLE + " t ON p." + Parts.TUNE + " = t." + _ID
+            + " LEFT JOIN " + Lines.TABLE + " l ON l." + Lines.PART + " = p." + _ID
+            + " LEFT JOIN " + Measures.TABLE + " m ON m." + Measures.LINE + " = l." + _ID
+            + " LEFT JOIN " + Chords.TABLE + " c ON c." + Chords.MEASURE + " = m." + _ID
+            + " WHERE t." + Tunes.TUNE_ID + " = ?"
+            + " ORDER BY p." + Parts.POSITION + ", l." + Lines.POSITION + ", m." + Measures.POSITION
+            + ", c." + Chords.POSITION;
+
+    private static TuneBookStore sInstance;
+
+    private final OpenHelper mHelper;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private TuneBook mTuneBook;
+    private volatile boolean mFailed;
+    private volatile OnChangeListener mOnChangeListener;
+
+    /**
+     * Receives the end of every write, on the writing thread.
+     */
+    public interface OnChangeListener {
+        void onStoreChanged(TuneBookStore store);
+    }
+
+    /**
+     * @param context The context of the database.
+     * @param name    The name of the database file, or null to keep it in memory.
+     */
+    public TuneBookStore(Context context, String name) {
+        mHelper = new OpenHelper(context, name);
+    }
+
+    /**
+     * Gets the store of the application's tunebook, shared by the activities and the
+     * {@link TuneBookProvider}.
+     */
+    public static synchronized TuneBookStore getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new TuneBookStore(context.getApplicationContext(), DATABASE_NAME);
+        return sInstance;
+    }
+
+    /**
+     * Stops recording changes, waits for the pending writes and closes the database.
+     */
+    public void close() {
+        detach();
+        flush();
+        mExecutor.shutdown();
+        mHelper.close();
+    }
+
+    /**
+     * Waits for the pending writes.
+     */
+    public void flush() {
+        try {
+            mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Cannot wait for the pending writes", e);
+        }
+    }
+
+    public void setOnChangeListener(OnChangeListener listener) {
+        mOnChangeListener = listener;
+    }
+
+    /**
+     * Tells whether a change could not be written, the store being out of date since.
+     */
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Loading
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    public boolean isEmpty() {
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, Tunes.TABLE, null, null) == 0
+                && DatabaseUtils.queryNumEntries(db, Sets.TABLE, null, null) == 0;
+    }
+
+    /**
+     * Reads the rhythms, the tune headers and the sets; the body of each tune is read when its
+     * parts are first needed.
+     */
+    public TuneBook load() {
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        TuneBook tuneBook = new TuneBook();
+
+        ArrayList<Rhythm> rhythms = new ArrayList<Rhythm>();
+        Cursor cursor = db.query(Rhythms.TABLE,
+                new String[]{Rhythms.NAME, Rhythms.SIGNATURE, Rhythms.BEATS_PER_BAR},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext())
+                rhythms.add(new Rhythm(cursor.getString(0), cursor.getString(1), cursor.getInt(2)));
+        } finally {
+            cursor.close();
+        }
+        Rhythm.addKnownRhythms(rhythms);
+
+        BodyLoader loader = new BodyLoader();
+        cursor = db.query(Tunes.TABLE, TUNE_COLUMNS, null, null, null, null, Tunes.INDEX);
+        try {
+            while (cursor.moveToNext()) {
+                Tune tune = readTuneHeader(cursor, loader);
+                if (tune != null)
+                    tuneBook.replayPutTune(tune);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = db.query(Sets.TABLE, SET_COLUMNS, null, null, null, null, Sets.POSITION);
+        try {
+            while (cursor.moveToNext()) {
+                List<Tune> tunes = readSetTunes(db, tuneBook, cursor.getLong(0));
+                TuneSet set = new TuneSet(tuneBook, cursor.getString(2), tunes);
+                tuneBook.replayPutTuneSet(tuneBook.countTuneSets(), set);
+            }
+        } finally {
+            cursor.close();
+        }
+        tuneBook.publishSnapshot();
+        Log.d(TAG, String.format("Loaded %d tunes and %d sets", tuneBook.countTunes(), tuneBook.countTuneSets()));
+        return tuneBook;
+    }
+
+    /**
+     * Reads one tune, with its parts.
+     *
+     * @return The tune, or null if there is no tune with this id, or if its rhythm is unknown.
+     */
+    public Tune loadTune(String id) {
+        Cursor cursor = mHelper.getReadableDatabase().query(Tunes.TABLE, TUNE_COLUMNS,
+                Tunes.TUNE_ID + " = ?", new String[]{id}, null, null, null);
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+            Tune tune = readTuneHeader(cursor, null);
+            if (tune == null)
+                return null;
+            ArrayList<TunePart> parts = new ArrayList<TunePart>();
+            readBody(tune, parts);
+            tune.setParts(parts);
+            return tune;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads a tune from a cursor over {@link #TUNE_COLUMNS}.
+     *
+     * @return The tune, or null if its rhythm is unknown, as when parsing text.
+     */
+    private Tune readTuneHeader(Cursor cursor, Tune.PartsLoader loader) {
+        String rhythmName = cursor.getString(4);
+        Rhythm rhythm = Rhythm.findKnownRhythm(rhythmName);
+        if (rhythm == null) {
+            Log.w(TAG, String.format("Unknown rhythm %s, skipping tune %s", rhythmName, cursor.getString(1)));
+            return null;
+        }
+        return new Tune(cursor.getString(1), cursor.getInt(2), cursor.getString(3), rhythm,
+                cursor.getString(5), loader);
+    }
+
+    private List<Tune> readSetTunes(SQLiteDatabase db, TuneBook tuneBook, long setId) {
+        ArrayList<Tune> tunes = new ArrayList<Tune>();
+        Cursor cursor = db.query(SetTunes.TABLE, new String[]{SetTunes.TUNE_ID},
+                SetTunes.SET + " = ?", new String[]{Long.toString(setId)}, null, null, SetTunes.POSITION);
+        try {
+            while (cursor.moveToNext()) {
+                Tune tune = tuneBook.getTuneFromId(cursor.getString(0));
+                if (tune != null)
+                    tunes.add(tune);
+                else
+                    Log.w(TAG, "Set " + setId + " refers to unknown tune " + cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tunes;
+    }
+
+    private void readBody(Tune tune, List<TunePart> parts) {
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery(SQL_SELECT_BODY, new String[]{tune.getId()});
+        try {
+            long partId = -1;
+            long lineId = -1;
+            long measureId = -1;
+            TunePart part = null;
+            Line line = null;
+            Measure measure = null;
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) != partId) {
+                    partId = cursor.getLong(0);
+                    lineId = -1;
+                    part = new TunePart(tune, cursor.getString(1));
+                    parts.add(part);
+                }
+                if (cursor.isNull(2))
+                    continue;
+                if (cursor.getLong(2) != lineId) {
+                    lineId = cursor.getLong(2);
+                    measureId = -1;
+                    line = new Line(cursor.getInt(3) != 0);
+                    part.getLines().add(line);
+                }
+                if (cursor.isNull(4))
+                    continue;
+                if (cursor.getLong(4) != measureId) {
+                    measureId = cursor.getLong(4);
+                    measure = new Measure();
+                    line.getMeasures().add(measure);
+                }
+                if (!cursor.isNull(5))
+                    measure.getChords().add(Chord.valueOf(cursor.getString(5)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads the body of a tune loaded from the store.
+     */
+    private class BodyLoader implements Tune.PartsLoader {
+        @Override
+        public void loadParts(Tune tune, List<TunePart> parts) {
+            readBody(tune, parts);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Queries
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Queries a page of tunes, by index, over {@link #TUNE_COLUMNS}.
+     *
+     * @param rhythm      The name of the rhythm of the tunes, or null for any.
+     * @param key         The key of the tunes, or null for any.
+     * @param titlePrefix The start of the title of the tunes, ignoring case, or null for any.
+     * @param offset      The number of tunes to skip.
+     * @param limit       The number of tunes to return at most, or 0 for all of them.
+     * @return The cursor, to be closed by the caller.
+     */
+    public Cursor queryTunes(String rhythm, String key, String titlePrefix, int offset, int limit) {
+        ArrayList<String> args = new ArrayList<String>();
+        String selection = buildTuneSelection(rhythm, key, titlePrefix, args);
+        return mHelper.getReadableDatabase().query(Tunes.TABLE, TUNE_COLUMNS, selection,
+                args.toArray(new String[args.size()]), null, null, Tunes.INDEX, buildLimit(offset, limit));
+    }
+
+    /**
+     * Counts the tunes matching {@link #queryTunes}.
+     */
+    public int countTunes(String rhythm, String key, String titlePrefix) {
+        ArrayList<String> args = new ArrayList<String>();
+        String selection = buildTuneSelection(rhythm, key, titlePrefix, args);
+        return (int) DatabaseUtils.queryNumEntries(mHelper.getReadableDatabase(), Tunes.TABLE, selection,
+                args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Queries a page of sets, by position, over {@link #SET_COLUMNS}.
+     *
+     * @return The cursor, to be closed by the caller.
+     */
+    public Cursor queryTuneSets(int offset, int limit) {
+        return mHelper.getReadableDatabase().query(Sets.TABLE, SET_COLUMNS, null, null, null, null,
+                Sets.POSITION, buildLimit(offset, limit));
+    }
+
+    /**
+     * Queries the tunes of a set, in order, over {@link #TUNE_COLUMNS}.
+     *
+     * @param position The position of the set in the tunebook.
+     * @return The cursor, to be closed by the caller.
+     */
+    public Cursor queryTuneSetTunes(int position) {
+        return mHelper.getReadableDatabase().rawQuery("SELECT t." + _ID + ", t." + Tunes.TUNE_ID
+                + ", t." + Tunes.INDEX + ", t." + Tunes.NAME + ", t." + Tunes.RHYTHM + ", t." + Tunes.KEY
+                + " FROM " + Sets.TABLE + " st"
+                + " JOIN " + SetTunes.TABLE + " s ON s." + SetTunes.SET + " = st." + _ID
+                + " JOIN " + Tunes.TABLE + " t ON t." + Tunes.TUNE_ID + " = s." + SetTunes.TUNE_ID
+                + " WHERE st." + Sets.POSITION + " = ? ORDER BY s." + SetTunes.POSITION,
+                new String[]{Integer.toString(position)});
+    }
+
+    private static String buildTuneSelection(String rhythm, String key, String titlePrefix, List<String> args) {
+        StringBuilder selection = new StringBuilder();
+        if (rhythm != null) {
+            selection.append(Tunes.RHYTHM).append(" = ?");
+            args.add(rhythm);
+        }
+        if (key != null) {
+            if (selection.length() > 0)
+                selection.append(" AND ");
+            selection.append(Tunes.KEY).append(" = ?");
+            args.add(key);
+        }
+        if (!TextUtils.isEmpty(titlePrefix)) {
+            if (selection.length() > 0)
+                selection.append(" AND ");
+            // A prefix match on the NOCASE column can use its index
+            selection.append(Tunes.NAME).append(" LIKE ? ESCAPE '\\'");
+            args.add(titlePrefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+        }
+        return selection.length() > 0 ? selection.toString() : null;
+    }
+
+    private static String buildLimit(int offset, int limit) {
+        if (limit <= 0)
+            return offset > 0 ? "-1 OFFSET " + offset : null;
+        return offset > 0 ? limit + " OFFSET " + offset : Integer.toString(limit);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Writing
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Replaces the contents of the store with a tunebook in the background, then writes the
+     * changes made to it.
+     *
+     * @see #attach(TuneBook, String)
+     */
+    public void attach(TuneBook tuneBook) {
+        attach(tuneBook, (String) null);
+    }
+
+    /**
+     * Writes the changes made to a tunebook, after replacing the contents of the store with it in
+     * the background unless the store still matches the source of the tunebook.
+     * <p/>
+     * Must be called on the thread making the changes, as the sets are copied first; the tunes
+     * are read from the snapshot of the tunebook.
+     *
+     * @param source The source the tunebook was just loaded from, as given to
+     *               {@link #markSynced(String)}, or null to always replace the contents.
+     */
+    public void attach(TuneBook tuneBook, final String source) {
+        attachFrom(tuneBook, source == null ? null : new Callable<String>() {
+            @Override
+            public String call() {
+                return source;
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #attach(TuneBook, String)}, the source being computed on another thread,
+     * e.g. {@link TuneBookJournal#getFilesKey()}; only the background writes wait for it.
+     */
+    public void attach(TuneBook tuneBook, final Future<String> source) {
+        attachFrom(tuneBook, source == null ? null : new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return source.get();
+            }
+        });
+    }
+
+    private void attachFrom(TuneBook tuneBook, final Callable<String> pendingSource) {
+        detach();
+        final Collection<Tune> tunes = tuneBook.getSnapshot().getTunes();
+        final List<SetRow> sets = new ArrayList<SetRow>();
+        for (TuneSet set : tuneBook.getTuneSets())
+            sets.add(new SetRow(set));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String source = getSource(pendingSource);
+                if (source != null && isSyncedWith(source, tunes.size(), sets.size())) {
+                    Log.d(TAG, "Already in sync with " + source);
+                    return;
+                }
+                replaceAll(tunes, sets);
+                if (source != null)
+                    writeSyncSource(source);
+            }
+        });
+        mTuneBook = tuneBook;
+        tuneBook.addMutationListener(this);
+    }
+
+    /**
+     * Records that the store matches a source once the pending writes are done, until its next
+     * change, e.g. once the changes to the tunebook are saved to its files.
+     */
+    public void markSynced(final String source) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mFailed)
+                    writeSyncSource(source);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #markSynced(String)}, the source being computed on another thread; nothing
+     * is recorded if it turns out to be null.
+     */
+    public void markSynced(final Future<String> source) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String key = getSource(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return source.get();
+                    }
+                });
+                if (!mFailed && key != null)
+                    writeSyncSource(key);
+            }
+        });
+    }
+
+    /**
+     * Gets a source on the background thread, or null if it cannot be computed.
+     */
+    private static String getSource(Callable<String> source) {
+        if (source == null)
+            return null;
+        try {
+            return source.call();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            // Only costs a full copy on the next attach
+            Log.w(TAG, "Cannot get the source of the tunebook", e);
+            return null;
+        }
+    }
+
+    private boolean isSyncedWith(String source, int countTunes, int countSets) {
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        Cursor cursor = db.query(SyncState.TABLE, new String[]{SyncState.SOURCE}, null, null, null, null, null);
+        try {
+            if (!cursor.moveToFirst() || !source.equals(cursor.getString(0)))
+                return false;
+        } finally {
+            cursor.close();
+        }
+        return DatabaseUtils.queryNumEntries(db, Tunes.TABLE, null, null) == countTunes
+                && DatabaseUtils.queryNumEntries(db, Sets.TABLE, null, null) == countSets;
+    }
+
+    private void writeSyncSource(String source) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(SyncState.TABLE, null, null);
+            db.execSQL("INSERT INTO " + SyncState.TABLE + " (" + SyncState.SOURCE + ") VALUES (?)",
+                    new Object[]{source});
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            // Only costs a full copy on the next attach
+            Log.w(TAG, "Cannot record the source of the store", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void detach() {
+        if (mTuneBook != null) {
+            mTuneBook.removeMutationListener(this);
+            mTuneBook = null;
+        }
+    }
+
+    /**
+     * Replaces the whole contents of the store with a tunebook, on the calling thread.
+     */
+    public void replaceAll(TuneBook tuneBook) {
+        ArrayList<SetRow> sets = new ArrayList<SetRow>();
+        for (TuneSet set : tuneBook.getTuneSets())
+            sets.add(new SetRow(set));
+        replaceAll(tuneBook.getTunes(), sets);
+    }
+
+    private void replaceAll(Collection<Tune> tunes, List<SetRow> sets) {
+        // Built before the rows are deleted, as they may be where the parts come from
+        for (Tune tune : tunes)
+            tune.getParts();
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String table : new String[]{SyncState.TABLE, Chords.TABLE, Measures.TABLE, Lines.TABLE,
+                    Parts.TABLE, Tunes.TABLE, SetTunes.TABLE, Sets.TABLE, Rhythms.TABLE})
+                db.delete(table, null, null);
+            Statements statements = new Statements(db);
+            try {
+                Set<Rhythm> rhythms = new HashSet<Rhythm>();
+                for (Tune tune : tunes) {
+                    if (tune.getRhythm() != null && rhythms.add(tune.getRhythm()))
+                        statements.insertRhythm(tune.getRhythm());
+                    statements.insertTune(tune);
+                }
+            } finally {
+                statements.close();
+            }
+            for (int i = 0; i < sets.size(); i++)
+                insertTuneSet(db, i, sets.get(i));
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            onWriteFailed("replace the tunebook", e);
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(TAG, String.format("Stored %d tunes and %d sets", tunes.size(), sets.size()));
+        onWritten();
+    }
+
+    @Override
+    public void onTunePut(final Tune tune) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Built before its previous rows are deleted, as they may be where the parts come from
+                tune.getParts();
+                SQLiteDatabase db = mHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    db.delete(SyncState.TABLE, null, null);
+                    deleteTune(db, tune.getId());
+                    Statements statements = new Statements(db);
+                    try {
+                        if (tune.getRhythm() != null)
+                            statements.insertRhythm(tune.getRhythm());
+                        statements.insertTune(tune);
+                    } finally {
+                        statements.close();
+                    }
+                    db.setTransactionSuccessful();
+                } catch (SQLException e) {
+                    onWriteFailed("put tune " + tune.getId(), e);
+                } finally {
+                    db.endTransaction();
+                }
+                onWritten();
+            }
+        });
+    }
+
+    @Override
+    public void onTuneRemoved(final String id) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = mHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    db.delete(SyncState.TABLE, null, null);
+                    deleteTune(db, id);
+                    db.setTransactionSuccessful();
+                } catch (SQLException e) {
+                    onWriteFailed("remove tune " + id, e);
+                } finally {
+                    db.endTransaction();
+                }
+                onWritten();
+            }
+        });
+    }
+
+    @Override
+    public void onTuneSetPut(final int position, TuneSet set) {
+        final SetRow row = new SetRow(set);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = mHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    db.delete(SyncState.TABLE, null, null);
+                    deleteTuneSet(db, position);
+                    insertTuneSet(db, position, row);
+                    db.setTransactionSuccessful();
+                } catch (SQLException e) {
+                    onWriteFailed("put set " + position, e);
+                } finally {
+                    db.endTransaction();
+                }
+                onWritten();
+            }
+        });
+    }
+
+    @Override
+    public void onTuneSetRemoved(final int position) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = mHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    db.delete(SyncState.TABLE, null, null);
+                    deleteTuneSet(db, position);
+                    db.execSQL("UPDATE " + Sets.TABLE + " SET " + Sets.POSITION + " = " + Sets.POSITION
+                            + " - 1 WHERE " + Sets.POSITION + " > ?", new Object[]{position});
+                    db.setTransactionSuccessful();
+                } catch (SQLException e) {
+                    onWriteFailed("remove set " + position, e);
+                } finally {
+                    db.endTransaction();
+                }
+                onWritten();
+            }
+        });
+    }
+
+    @Override
+    public void onContentsReplaced(TuneBook tuneBook) {
+        final Collection<Tune> tunes = tuneBook.getSnapshot().getTunes();
+        final List<SetRow> sets = new ArrayList<SetRow>();
+        for (TuneSet set : tuneBook.getTuneSets())
+            sets.add(new SetRow(set));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                replaceAll(tunes, sets);
+            }
+        });
+    }
+
+    private void onWriteFailed(String operation, SQLException e) {
+        mFailed = true;
+        Log.e(TAG, "Cannot " + operation, e);
+    }
+
+    private void onWritten() {
+        OnChangeListener listener = mOnChangeListener;
+        if (listener != null)
+            listener.onStoreChanged(this);
+    }
+
+    /**
+     * Deletes a tune and its body; the body rows are deleted explicitly, as foreign keys are not
+     * enforced on every supported platform.
+     */
+    private static void deleteTune(SQLiteDatabase db, String id) {
+        String[] args = {id};
+        String tuneRows = "SELECT " + _ID + " FROM " + Tunes.TABLE + " WHERE " + Tunes.TUNE_ID + " = ?";
+        String partRows = "SELECT " + _ID + " FROM " + Parts.TABLE + " WHERE " + Parts.TUNE + " IN (" + tuneRows + ")";
+        String lineRows = "SELECT " + _ID + " FROM " + Lines.TABLE + " WHERE " + Lines.PART + " IN (" + partRows + ")";
+        String measureRows = "SELECT " + _ID + " FROM " + Measures.TABLE + " WHERE " + Measures.LINE + " IN (" + lineRows + ")";
+        db.delete(Chords.TABLE, Chords.MEASURE + " IN (" + measureRows + ")", args);
+        db.delete(Measures.TABLE, Measures.LINE + " IN (" + lineRows + ")", args);
+        db.delete(Lines.TABLE, Lines.PART + " IN (" + partRows + ")", args);
+        db.delete(Parts.TABLE, Parts.TUNE + " IN (" + tuneRows + ")", args);
+        db.delete(Tunes.TABLE, Tunes.TUNE_ID + " = ?", args);
+    }
+
+    private static void deleteTuneSet(SQLiteDatabase db, int position) {
+        String[] args = {Integer.toString(position)};
+        db.delete(SetTunes.TABLE, SetTunes.SET + " IN (SELECT " + _ID + " FROM " + Sets.TABLE
+                + " WHERE " + Sets.POSITION + " = ?)", args);
+        db.delete(Sets.TABLE, Sets.POSITION + " = ?", args);
+    }
+
+    private static void insertTuneSet(SQLiteDatabase db, int position, SetRow set) {
+        SQLiteStatement insertSet = db.compileStatement("INSERT INTO " + Sets.TABLE + " ("
+                + Sets.POSITION + ", " + Sets.NAME + ") VALUES (?, ?)");
+        SQLiteStatement insertSetTune = db.compileStatement("INSERT INTO " + SetTunes.TABLE + " ("
+                + SetTunes.SET + ", " + SetTunes.POSITION + ", " + SetTunes.TUNE_ID + ") VALUES (?, ?, ?)");
+        try {
+            insertSet.bindLong(1, position);
+            bindString(insertSet, 2, set.mName);
+            long setId = insertSet.executeInsert();
+            for (int i = 0; i < set.mTuneIds.size(); i++) {
+                insertSetTune.bindLong(1, setId);
+                insertSetTune.bindLong(2, i);
+                insertSetTune.bindString(3, set.mTuneIds.get(i));
+                insertSetTune.executeInsert();
+            }
+        } finally {
+            insertSet.close();
+            insertSetTune.close();
+        }
+    }
+
+    /**
+     * A set as it was when it changed, as sets are edited in place.
+     */
+    private static class SetRow {
+
+        private final String mName;
+        private final List<String> mTuneIds = new ArrayList<String>();
+
+        SetRow(TuneSet set) {
+            mName = set.getName();
+            for (int i = 0; i < set.size(); i++)
+                mTuneIds.add(set.get(i).getId());
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
+    }
+
+    /**
+     * The statements inserting tunes, compiled once per transaction.
+     */
+    private static class Statements {
+
+        private final SQLiteStatement mInsertTune;
+        private final SQLiteStatement mInsertPart;
+        private final SQLiteStatement mInsertLine;
+        private final SQLiteStatement mInsertMeasure;
+        private final SQLiteStatement mInsertChord;
+        private final SQLiteStatement mInsertRhythm;
+
+        Statements(SQLiteDatabase db) {
+            mInsertTune = db.compileStatement(SQL_INSERT_TUNE);
+            mInsertPart = db.compileStatement(SQL_INSERT_PART);
+            mInsertLine = db.compileStatement(SQL_INSERT_LINE);
+            mInsertMeasure = db.compileStatement(SQL_INSERT_MEASURE);
+            mInsertChord = db.compileStatement(SQL_INSERT_CHORD);
+            mInsertRhythm = db.compileStatement(SQL_INSERT_RHYTHM);
+        }
+
+        void insertRhythm(Rhythm rhythm) {
+            mInsertRhythm.bindString(1, rhythm.getName());
+            bindString(mInsertRhythm, 2, rhythm.getSignature());
+            mInsertRhythm.bindLong(3, rhythm.getBeatsPerBar());
+            mInsertRhythm.executeInsert();
+        }
+
+        void insertTune(Tune tune) {
+            mInsertTune.bindString(1, tune.getId());
+            mInsertTune.bindLong(2, tune.getIndex());
+            bindString(mInsertTune, 3, tune.getName());
+            bindString(mInsertTune, 4, tune.getRhythm() != null ? tune.getRhythm().getName() : null);
+            bindString(mInsertTune, 5, tune.getKey());
+            long tuneId = mInsertTune.executeInsert();
+
+            List<TunePart> parts = tune.getParts();
+            for (int p = 0; p < parts.size(); p++) {
+                TunePart part = parts.get(p);
+                mInsertPart.bindLong(1, tuneId);
+                mInsertPart.bindLong(2, p);
+                bindString(mInsertPart, 3, part.getLabel());
+                long partId = mInsertPart.executeInsert();
+
+                List<Line> lines = part.getLines();
+                for (int l = 0; l < lines.size(); l++) {
+                    Line line = lines.get(l);
+                    mInsertLine.bindLong(1, partId);
+                    mInsertLine.bindLong(2, l);
+                    mInsertLine.bindLong(3, line.hasRepetition() ? 1 : 0);
+                    long lineId = mInsertLine.executeInsert();
+
+                    List<Measure> measures = line.getMeasures();
+                    for (int m = 0; m < measures.size(); m++) {
+                        mInsertMeasure.bindLong(1, lineId);
+                        mInsertMeasure.bindLong(2, m);
+                        long measureId = mInsertMeasure.executeInsert();
+
+                        List<Chord> chords = measures.get(m).getChords();
+                        for (int c = 0; c < chords.size(); c++) {
+                            mInsertChord.bindLong(1, measureId);
+                            mInsertChord.bindLong(2, c);
+                            mInsertChord.bindString(3, chords.get(c).getValue());
+                            mInsertChord.executeInsert();
+                        }
+                    }
+                }
+            }
+        }
+
+        void close() {
+            mInsertTune.close();
+            mInsertPart.close();
+            mInsertLine.close();
+            mInsertMeasure.close();
+            mInsertChord.close();
+            mInsertRhythm.close();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////
+    // Schema
+    ////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static class OpenHelper extends SQLiteOpenHelper {
+
+        OpenHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + Rhythms.TABLE + " ("
+                    + Rhythms.NAME + " TEXT PRIMARY KEY, "
+                    + Rhythms.SIGNATURE + " TEXT, "
+                    + Rhythms.BEATS_PER_BAR + " INTEGER)");
+            db.execSQL("CREATE TABLE " + Tunes.TABLE + " ("
+                    + _ID + " INTEGER PRIMARY KEY, "
+                    + Tunes.TUNE_ID + " TEXT NOT NULL UNIQUE, "
+                    + Tunes.INDEX + " INTEGER NOT NULL, "
+                    + Tunes.NAME + " TEXT COLLATE NOCASE, "
+                    + Tunes.RHYTHM + " TEXT, "
+                    + Tunes.KEY + " TEXT)");
+            db.execSQL("CREATE TABLE " + Parts.TABLE + " ("
+                    + _ID + " INTEGER PRIMARY KEY, "
+                    + Parts.TUNE + " INTEGER NOT NULL, "
+                    + Parts.POSITION + " INTEGER NOT NULL, "
+                    + Parts.LABEL + " TEXT)");
+            db.execSQL("CREATE TABLE " + Lines.TABLE + " ("
+                    + _ID + " INTEGER PRIMARY KEY, "
+                    + Lines.PART + " INTEGER NOT NULL, "
+                    + Lines.POSITION + " INTEGER NOT NULL, "
+                    + Lines.REPETITION + " INTEGER NOT NULL)");
+            db.execSQL("CREATE TABLE " + Measures.TABLE + " ("
+                    + _ID + " INTEGER PRIMARY KEY, "
+                    + Measures.LINE + " INTEGER NOT NULL, "
+                    + Measures.POSITION + " INTEGER NOT NULL)");
+            db.execSQL("CREATE TABLE " + Chords.TABLE + " ("
+                    + Chords.MEASURE + " INTEGER NOT NULL, "
+                    + Chords.POSITION + " INTEGER NOT NULL, "
+                    + Chords.VALUE + " TEXT NOT NULL)");
+            db.execSQL("CREATE TABLE " + Sets.TABLE + " ("
+                    + _ID + " INTEGER PRIMARY KEY, "
+                    + Sets.POSITION + " INTEGER NOT NULL, "
+                    + Sets.NAME + " TEXT)");
+            db.execSQL("CREATE TABLE " + SetTunes.TABLE + " ("
+                    + _ID + " INTEGER PRIMARY KEY, "
+                    + SetTunes.SET + " INTEGER NOT NULL, "
+                    + SetTunes.POSITION + " INTEGER NOT NULL, "
+                    + SetTunes.TUNE_ID + " TEXT NOT NULL)");
+
+            createIndex(db, Tunes.TABLE, Tunes.RHYTHM);
+            createIndex(db, Tunes.TABLE, Tunes.KEY);
+            createIndex(db, Tunes.TABLE, Tunes.NAME);
+            createIndex(db, Tunes.TABLE, Tunes.INDEX);
+            createIndex(db, Parts.TABLE, Parts.TUNE, Parts.POSITION);
+            createIndex(db, Lines.TABLE, Lines.PART, Lines.POSITION);
+            createIndex(db, Measures.TABLE, Measures.LINE, Measures.POSITION);
+            createIndex(db, Chords.TABLE, Chords.MEASURE, Chords.POSITION);
+            createIndex(db, Sets.TABLE, Sets.POSITION);
+            createIndex(db, SetTunes.TABLE, SetTunes.SET, SetTunes.POSITION);
+            createIndex(db, SetTunes.TABLE, SetTunes.TUNE_ID);
+            db.execSQL("CREATE TABLE " + SyncState.TABLE + " (" + SyncState.SOURCE + " TEXT NOT NULL)");
+        }
+
+        private static void createIndex(SQLiteDatabase db, String table, String... columns) {
+            db.execSQL("CREATE INDEX " + table + "_" + TextUtils.join("_", columns) + " ON " + table
+                    + " (" + TextUtils.join(", ", columns) + ")");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // No older schema yet
+        }
+    }
+}
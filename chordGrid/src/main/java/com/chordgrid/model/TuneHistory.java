@@ -0,0 +1,119 @@
+package com.chordgrid.model;
+
+import java.util.ArrayDeque;
+
+/**
+ * The undo and redo history of the edits of a tune.
+ * <p/>
+ * The history holds a {@link Tune.Snapshot} of the tune after each step. An edit only copies
+ * the columns of the {@link TuneBody} that it changes, e.g. the chords but not the lines when a
+ * measure is edited, and shares all the others with the previous snapshots: a step thus takes
+ * a fraction of a copy of the tune.
+ * <p/>
+ * {@link #commit()} must be called after each edit, which is then undone as a whole. A history
+ * is not thread-safe: it must be used from the thread that edits the tune.
+ */
+public class TuneHistory {
+
+    /**
+     * The default number of steps that can be undone.
+     */
+    public static final int DEFAULT_MAX_STEPS = 500;
+
+    private final Tune mTune;
+    private final int mMaxSteps;
+    private final ArrayDeque<Tune.Snapshot> mUndoStack = new ArrayDeque<Tune.Snapshot>();
+    private final ArrayDeque<Tune.Snapshot> mRedoStack = new ArrayDeque<Tune.Snapshot>();
+    private Tune.Snapshot mCurrent;
+    private long mCurrentRevision;
+
+    public TuneHistory(Tune tune) {
+        this(tune, DEFAULT_MAX_STEPS);
+    }
+
+    /**
+     * @param maxSteps The number of steps that can be undone, beyond which the oldest are
+     *                 dropped.
+     */
+    public TuneHistory(Tune tune, int maxSteps) {
+        if (maxSteps < 1)
+            throw new IllegalArgumentException("Invalid number of steps " + maxSteps);
+        mTune = tune;
+        mMaxSteps = maxSteps;
+        setCurrent(tune.getSnapshot());
+    }
+
+    public Tune getTune() {
+        return mTune;
+    }
+
+    /**
+     * Records the edits made since the last step as a new step, which cancels the steps undone.
+     *
+     * @return False if the tune was not edited since the last step.
+     */
+    public boolean commit() {
+        if (mTune.getRevision() == mCurrentRevision)
+            return false;
+        mUndoStack.push(mCurrent);
+        if (mUndoStack.size() > mMaxSteps)
+            mUndoStack.removeLast();
+        mRedoStack.clear();
+        setCurrent(mTune.getSnapshot());
+        return true;
+    }
+
+    public boolean canUndo() {
+        return !mUndoStack.isEmpty() || mTune.getRevision() != mCurrentRevision;
+    }
+
+    public boolean canRedo() {
+        return !mRedoStack.isEmpty() && mTune.getRevision() == mCurrentRevision;
+    }
+
+    /**
+     * Brings the tune back to the previous step. Edits not committed yet are committed first,
+     * so that they can be redone.
+     *
+     * @return False if there is no step to undo.
+     */
+    public boolean undo() {
+        commit();
+        if (mUndoStack.isEmpty())
+            return false;
+        mRedoStack.push(mCurrent);
+        Tune.Snapshot snapshot = mUndoStack.pop();
+        mTune.restore(snapshot);
+        setCurrent(snapshot);
+        return true;
+    }
+
+    /**
+     * Makes again the last step undone.
+     *
+     * @return False if there is no step to redo, e.g. as the tune was edited since the undo.
+     */
+    public boolean redo() {
+        commit();
+        if (mRedoStack.isEmpty())
+            return false;
+        mUndoStack.push(mCurrent);
+        Tune.Snapshot snapshot = mRedoStack.pop();
+        mTune.restore(snapshot);
+        setCurrent(snapshot);
+        return true;
+    }
+
+    public int countUndoSteps() {
+        return mUndoStack.size();
+    }
+
+    public int countRedoSteps() {
+        return mRedoStack.size();
+    }
+
+    private void setCurrent(Tune.Snapshot snapshot) {
+        mCurrent = snapshot;
+        mCurrentRevision = mTune.getRevision();
+    }
+}
@@ -0,0 +1,89 @@
+package com.chordgrid.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Allocates unique tune ids in a tunebook.
+ * <p/>
+ * A colliding id gets the next "_N" suffix of its prefix (e.g. "the_kesh" becomes "the_kesh_1",
+ * then "the_kesh_2"). The last suffix used is kept for each prefix, so that a new id is found
+ * without scanning the tunebook. Suffixes are never reused, even once their tune is removed,
+ * and ids that do not collide are kept as they are.
+ */
+class TuneIdAllocator {
+
+    /**
+     * The longest suffix parsed, so that it fits in an int.
+     */
+    private static final int MAX_SUFFIX_DIGITS = 9;
+
+    /**
+     * The tunes of the tunebook, by id (owned by the tunebook).
+     */
+    private final Map<String, Tune> mTunes;
+
+    /**
+     * The highest suffix in use for each prefix.
+     */
+    private final HashMap<String, Integer> mLastSuffixes = new HashMap<String, Integer>();
+
+    TuneIdAllocator(Map<String, Tune> tunes) {
+        mTunes = tunes;
+    }
+
+    /**
+     * Records an id used in the tunebook, so that its suffix is not allocated again.
+     */
+    void register(String id) {
+        int underscore = getSuffixSeparator(id);
+        if (underscore < 0)
+            return;
+        String prefix = id.substring(0, underscore);
+        int suffix = Integer.parseInt(id.substring(underscore + 1));
+        Integer lastSuffix = mLastSuffixes.get(prefix);
+        if (lastSuffix == null || suffix > lastSuffix)
+            mLastSuffixes.put(prefix, suffix);
+    }
+
+    /**
+     * Gets an id not used in the tunebook yet.
+     *
+     * @param id The preferred id.
+     * @return The preferred id if it is free, otherwise the same prefix with a new suffix.
+     */
+    String allocate(String id) {
+        if (!mTunes.containsKey(id))
+            return id;
+
+        int underscore = getSuffixSeparator(id);
+        String prefix = underscore < 0 ? id : id.substring(0, underscore);
+        Integer lastSuffix = mLastSuffixes.get(prefix);
+        int suffix = lastSuffix == null ? 0 : lastSuffix;
+        String newId;
+        do {
+            suffix++;
+            newId = prefix + "_" + suffix;
+        } while (mTunes.containsKey(newId));
+        mLastSuffixes.put(prefix, suffix);
+        return newId;
+    }
+
+    /**
+     * Gets the position of the underscore before a numeric suffix.
+     *
+     * @return The position of the underscore, or -1 if the id has no "_N" suffix.
+     */
+    private static int getSuffixSeparator(String id) {
+        int underscore = id.lastIndexOf('_');
+        int countDigits = id.length() - underscore - 1;
+        if (underscore <= 0 || countDigits == 0 || countDigits > MAX_SUFFIX_DIGITS)
+            return -1;
+        for (int i = underscore + 1; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+        }
+        return underscore;
+    }
+}
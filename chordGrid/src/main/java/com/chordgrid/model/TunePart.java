@@ -4,8 +4,6 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
-import com.chordgrid.MainActivity;
-
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
@@ -13,9 +11,13 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * A part of a tune, e.g. the A part.
+ * <p/>
+ * The parts of a tune are views over its {@link TuneBody}, made on demand. Other parts, e.g.
+ * those built by a parser, hold their own lines until they are added to a tune.
+ */
 public class TunePart implements Parcelable {
 
     /**
@@ -46,8 +48,6 @@ public class TunePart implements Parcelable {
      * Tag for LogCat console debugging.
      */
     private static final String TAG = "TunePart";
-    private static final Pattern labelPattern = Pattern
-            .compile("([A-Za-z0-9]+)\\)");
     /**
      * ***********************************************************************
      * Text parsing
@@ -74,7 +74,6 @@ public class TunePart implements Parcelable {
     public TunePart(Tune tune, XmlPullParser parser)
             throws XmlPullParserException, IOException {
         this.mTune = tune;
-        Log.d(MainActivity.TAG, "parse TunePart tag " + parser.getName());
         parser.require(XmlPullParser.START_TAG, "", XML_TAG);
 
         int attrCount = parser.getAttributeCount();
@@ -104,7 +103,7 @@ public class TunePart implements Parcelable {
     public TunePart(Tune tune, List<String> textLines) {
         this.mTune = tune;
 
-        mLabel = parseLabel(textLines.get(0));
+        mLabel = InternPool.intern(parseLabel(textLines.get(0)));
         if (mLabel == null)
             mLabel = tune.getNextPartLabel();
 
@@ -116,6 +115,14 @@ public class TunePart implements Parcelable {
         Log.d(TAG, String.format("Added %d lines to this part", mLines.size()));
     }
 
+    /**
+     * Builds an empty part, its lines being added afterwards.
+     */
+    TunePart(Tune tune, String label) {
+        mTune = tune;
+        mLabel = InternPool.intern(label);
+    }
+
     public TunePart(Tune tune, int barsPerLine) {
         mTune = tune;
         mLabel = tune.getNextPartLabel();
@@ -133,13 +140,29 @@ public class TunePart implements Parcelable {
         readFromParcel(in);
     }
 
+    /**
+     * Extracts a part label, i.e. the first alphanumeric word followed by ')'.
+     *
+     * @param firstLine The first line of a part.
+     * @return The label or null if there is none.
+     */
     public static String parseLabel(String firstLine) {
-        Matcher m = labelPattern.matcher(firstLine);
-        if (m.find())
-            return m.group(1);
+        int end = firstLine.indexOf(')');
+        while (end >= 0) {
+            int start = end;
+            while (start > 0 && isLabelChar(firstLine.charAt(start - 1)))
+                start--;
+            if (start < end)
+                return firstLine.substring(start, end);
+            end = firstLine.indexOf(')', end + 1);
+        }
         return null;
     }
 
+    private static boolean isLabelChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////////////
     // Properties
     //////////////////////////////////////////////////////////////////////////////////////////////
@@ -148,22 +171,20 @@ public class TunePart implements Parcelable {
         return mTune;
     }
 
-    public void setTune(Tune tune) {
-        mTune = tune;
-    }
-
     public String getLabel() {
         return mLabel;
     }
 
     public void setLabel(String label) {
-        mLabel = label;
+        mLabel = InternPool.intern(label);
+        if (mTune != null)
+            mTune.invalidateFingerprint();
     }
 
     public String getChordGrid() {
         //return mChordGrid;
         StringBuilder sb = new StringBuilder();
-        for (Line line : mLines) {
+        for (Line line : getLines()) {
             sb.append(line.toString()).append("\n");
         }
         return sb.toString();
@@ -191,11 +212,8 @@ public class TunePart implements Parcelable {
      * @param attrValue The attribute value.
      */
     private void parseXmlAttribute(String attrName, String attrValue) {
-        Log.d(TAG, String.format("parse Tune attribute %s=\"%s\"", attrName,
-                attrValue));
         if (XML_ATTR_LABEL.equalsIgnoreCase(attrName)) {
-            Log.d(TAG, "parse TunePart label " + attrValue);
-            mLabel = attrValue;
+            mLabel = InternPool.intern(attrValue);
         }
     }
 
@@ -209,7 +227,6 @@ public class TunePart implements Parcelable {
      */
     private String parseTextTag(XmlPullParser parser)
             throws XmlPullParserException, IOException {
-        Log.v(TAG, "Parsing Text tag");
         StringBuilder sb = new StringBuilder();
         String[] textLines = parser.nextText().trim().split("\n");
         for (int i = 0; i < textLines.length; i++) {
@@ -231,7 +248,7 @@ public class TunePart implements Parcelable {
             throws IllegalArgumentException, IllegalStateException, IOException {
         xmlSerializer.startTag("", XML_TAG);
         xmlSerializer.attribute("", XML_ATTR_LABEL, getLabel());
-        for (Line line : mLines) {
+        for (Line line : getLines()) {
             line.xmlSerialize(xmlSerializer);
         }
         xmlSerializer.endTag("", XML_TAG);
@@ -241,7 +258,7 @@ public class TunePart implements Parcelable {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append(getLabel()).append(") ");
-        for (Line line : mLines) {
+        for (Line line : getLines()) {
             sb.append(line.toString()).append("\n");
         }
         return sb.toString();
@@ -255,8 +272,8 @@ public class TunePart implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         try {
-            dest.writeStringArray(new String[]{mTune.getId(), mLabel/*, mChordGrid*/});
-            dest.writeTypedList(mLines);
+            dest.writeStringArray(new String[]{getTune().getId(), getLabel()/*, mChordGrid*/});
+            dest.writeTypedList(getLines());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -265,7 +282,7 @@ public class TunePart implements Parcelable {
     public void readFromParcel(Parcel in) {
         String[] data = new String[2];
         in.readStringArray(data);
-        mLabel = data[1];
+        mLabel = InternPool.intern(data[1]);
         /*mChordGrid = data[2];*/
         in.readTypedList(mLines, Line.CREATOR);
     }
@@ -275,7 +292,7 @@ public class TunePart implements Parcelable {
      */
     public int getMaxMeasuresPerLine() {
         int max = 0;
-        for (Line line : mLines) {
+        for (Line line : getLines()) {
             if (line.countMeasures() > max)
                 max = line.countMeasures();
         }
@@ -6,6 +6,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.chordgrid.MainActivity;
+import com.chordgrid.util.MyTextUtils;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -14,8 +15,10 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * A set of tunes (i.e. references to existing tunes).
@@ -46,9 +49,14 @@ public class TuneSet extends TunebookItem implements Parcelable {
     private static final String TAG = "TuneSet";
     private static final String XML_TAG_TUNEREF = "TuneRef";
     private static final String XML_TAG_ATTR_ID = "id";
+    private static final String XML_TAG_ATTR_NAME = "name";
     private final ArrayList<Tune> tunes = new ArrayList<Tune>();
     private TuneBook tuneBook;
     private String name;
+    /**
+     * The revision of the last edit of this set.
+     */
+    private volatile long revision = RevisionClock.next();
 
     public TuneSet() {
         tuneBook = null;
@@ -58,6 +66,17 @@ public class TuneSet extends TunebookItem implements Parcelable {
         this.tuneBook = tuneBook;
     }
 
+    /**
+     * Builds a set of tunes, generating its name from them if it has none.
+     */
+    TuneSet(TuneBook tuneBook, String name, List<Tune> tunes) {
+        this.tuneBook = tuneBook;
+        this.name = name;
+        this.tunes.addAll(tunes);
+        if (TextUtils.isEmpty(name))
+            this.name = generateSetName();
+    }
+
     /**
      * ***********************************************************************
      * Text parsing
@@ -66,38 +85,70 @@ public class TuneSet extends TunebookItem implements Parcelable {
      */
 
     public TuneSet(TuneBook tunebook, String tuneSource) throws Exception {
+        this(tunebook, Arrays.asList(TextUtils.split(tuneSource, "\n")));
+    }
+
+    /**
+     * Builds a new instance of TuneSet from the lines of its text representation.
+     *
+     * @param tunebook The tunebook against which tune references are resolved.
+     * @param lines    The serialized set text, one item per line.
+     * @throws Exception
+     */
+    public TuneSet(TuneBook tunebook, List<String> lines) throws Exception {
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        if (!parseText(tunebook, lines, 1, diagnostics))
+            throw new Exception(diagnostics.getFirstError().getMessage());
+    }
+
+    /**
+     * Parses a tune set from the lines of its text representation, without throwing.
+     *
+     * @param tunebook        The tunebook against which tune references are resolved.
+     * @param lines           The serialized set text, one item per line.
+     * @param firstLineNumber The line number of the SET: line in the whole text.
+     * @param diagnostics     Receives the problems found in the text.
+     * @return The new tune set, or null if the text has errors.
+     */
+    public static TuneSet parse(TuneBook tunebook, List<String> lines, int firstLineNumber,
+                                ParseDiagnostics diagnostics) {
+        TuneSet set = new TuneSet();
+        return set.parseText(tunebook, lines, firstLineNumber, diagnostics) ? set : null;
+    }
+
+    private boolean parseText(TuneBook tunebook, List<String> lines, int firstLineNumber,
+                              ParseDiagnostics diagnostics) {
         tuneBook = tunebook;
-        String[] lines = TextUtils.split(tuneSource, "\n");
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i].trim();
+        int countLines = lines.size();
+        for (int i = 0; i < countLines; i++) {
+            String line = lines.get(i);
+            int lineNumber = firstLineNumber + i;
             if (i == 0) {
-                if (!line.startsWith("SET:"))
-                    throw new Exception("Tuneset must start with 'SET:'!");
+                line = line.trim();
+                if (!line.startsWith("SET:")) {
+                    diagnostics.error(ParseDiagnostics.Kind.InvalidSet, lineNumber, 1,
+                            "Tuneset must start with 'SET:'!");
+                    return false;
+                }
                 name = TextUtils.substring(line, 4, line.length()).trim();
                 Log.d(TAG, String.format("Parsing tune set '%s'", name));
             } else {
-                if (line.startsWith("SET:"))
-                    throw new Exception(
+                int length = line.length();
+                int j = 0;
+                while (j < length && line.charAt(j) <= ' ')
+                    j++;
+                if (line.startsWith("SET:", j)) {
+                    diagnostics.error(ParseDiagnostics.Kind.InvalidSet, lineNumber, j + 1,
                             "Tuneset reference line must not start with 'SET:'!");
-                String[] refs = TextUtils.split(line, "\\s");
-                for (int j = 0; j < refs.length; j++) {
-                    String ref = refs[j];
-                    try {
-                        int index = Integer.parseInt(ref);
-                        Tune tune = tuneBook.getTuneFromIndex(index);
-                        if (tune != null)
-                            tunes.add(tune);
-                        else
-                            Log.w(TAG, String.format("Unknown tune index %d",
-                                    index));
-                    } catch (NumberFormatException e) {
-                        Tune tune = tuneBook.getTuneFromId(ref);
-                        if (tune != null)
-                            tunes.add(tune);
-                        else
-                            Log.w(TAG,
-                                    String.format("Unknown tune id '%s'", ref));
-                    }
+                    return false;
+                }
+                while (j < length) {
+                    int refStart = j;
+                    while (j < length && line.charAt(j) > ' ')
+                        j++;
+                    addReference(line.substring(refStart, j), lineNumber, refStart + 1, diagnostics);
+                    while (j < length && line.charAt(j) <= ' ')
+                        j++;
                 }
             }
         }
@@ -105,32 +156,63 @@ public class TuneSet extends TunebookItem implements Parcelable {
             name = generateSetName();
             Log.d(TAG, "Generating set name " + name);
         }
+        return true;
+    }
+
+    /**
+     * Resolves a tune reference, either a numeric tune index or a tune id.
+     */
+    private void addReference(String ref, int lineNumber, int column, ParseDiagnostics diagnostics) {
+        if (MyTextUtils.isInteger(ref)) {
+            int index = Integer.parseInt(ref);
+            Tune tune = tuneBook.getTuneFromIndex(index);
+            if (tune != null)
+                tunes.add(tune);
+            else
+                diagnostics.warning(ParseDiagnostics.Kind.UnknownTuneIndex, lineNumber, column,
+                        String.format("Unknown tune index %d", index));
+        } else {
+            Tune tune = tuneBook.getTuneFromId(ref);
+            if (tune != null)
+                tunes.add(tune);
+            else
+                diagnostics.warning(ParseDiagnostics.Kind.UnknownTuneId, lineNumber, column,
+                        String.format("Unknown tune id '%s'", ref));
+        }
     }
 
+    /**
+     * Reads a new instance of TuneSet from an XML parser, resolving its tune references by id
+     * against the tunes already in the tunebook. Unknown tags are skipped.
+     */
     public TuneSet(TuneBook tuneBook, XmlPullParser parser)
             throws XmlPullParserException, IOException {
         parser.require(XmlPullParser.START_TAG, "", XML_TAG);
 
         this.tuneBook = tuneBook;
-        while (parser.nextTag() == XmlPullParser.START_TAG
-                && parser.getName().equalsIgnoreCase(XML_TAG_TUNEREF)) {
-            int countAttr = parser.getAttributeCount();
-            for (int i = 0; i < countAttr; i++) {
-                String attrName = parser.getAttributeName(i);
-                String attrValue = parser.getAttributeValue(i);
-                if (XML_TAG_ATTR_ID.equalsIgnoreCase(attrName)) {
-                    Tune tune = tuneBook.getTuneFromId(attrValue);
-                    if (tune == null)
-                        Log.w(MainActivity.TAG, "Unknown tune with id "
-                                + attrValue);
-                    else
-                        tunes.add(tune);
+        name = parser.getAttributeValue(null, XML_TAG_ATTR_NAME);
+        while (parser.nextTag() == XmlPullParser.START_TAG) {
+            if (parser.getName().equalsIgnoreCase(XML_TAG_TUNEREF)) {
+                int countAttr = parser.getAttributeCount();
+                for (int i = 0; i < countAttr; i++) {
+                    String attrName = parser.getAttributeName(i);
+                    String attrValue = parser.getAttributeValue(i);
+                    if (XML_TAG_ATTR_ID.equalsIgnoreCase(attrName)) {
+                        Tune tune = tuneBook.getTuneFromId(attrValue);
+                        if (tune == null)
+                            Log.w(MainActivity.TAG, "Unknown tune with id "
+                                    + attrValue);
+                        else
+                            tunes.add(tune);
+                    }
                 }
             }
-            // closing tag
-            parser.nextTag();
-            parser.require(XmlPullParser.END_TAG, "", XML_TAG_TUNEREF);
+            // Up to the closing tag, skipping the contents and the unknown tags
+            TuneBook.skipXmlTag(parser);
         }
+        parser.require(XmlPullParser.END_TAG, "", XML_TAG);
+        if (TextUtils.isEmpty(name))
+            name = generateSetName();
     }
 
     /**
@@ -258,6 +340,8 @@ public class TuneSet extends TunebookItem implements Parcelable {
     public void xmlSerialize(XmlSerializer xmlSerializer)
             throws IllegalArgumentException, IllegalStateException, IOException {
         xmlSerializer.startTag("", XML_TAG);
+        if (name != null)
+            xmlSerializer.attribute("", XML_TAG_ATTR_NAME, name);
         for (Tune tune : tunes) {
             xmlSerializer.startTag("", XML_TAG_TUNEREF);
             xmlSerializer.attribute("", XML_TAG_ATTR_ID, tune.getId());
@@ -273,6 +357,7 @@ public class TuneSet extends TunebookItem implements Parcelable {
      */
     public void add(Tune tune) {
         tunes.add(tune);
+        revision = RevisionClock.next();
 
         // Notify observers of a change
         setChanged();
@@ -284,6 +369,7 @@ public class TuneSet extends TunebookItem implements Parcelable {
      */
     public void clear() {
         tunes.clear();
+        revision = RevisionClock.next();
 
         // Notify observers of a change
         setChanged();
@@ -304,10 +390,18 @@ public class TuneSet extends TunebookItem implements Parcelable {
         return tunes;
     }
 
+    /**
+     * Gets the revision of the last edit of this set, which increases with every edit.
+     */
+    public long getRevision() {
+        return revision;
+    }
+
     public void setTunes(Collection<? extends Tune> newTunes) {
         tunes.clear();
         for (Tune tune : newTunes)
             tunes.add(tune);
+        revision = RevisionClock.next();
 
         // Notify observers of a change
         setChanged();
@@ -0,0 +1,396 @@
+package com.chordgrid.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of tunes finding likely duplicates: tunes with similar titles (e.g. "Kesh, The" and
+ * "The Kesh Jig") or similar chords, which {@link Tune#hasSameContent(Tune)} tells apart.
+ * <p/>
+ * Candidates are only looked up among tunes sharing title trigrams, or sharing a MinHash band of
+ * their chord 3-grams, so that a lookup does not compare the tune with every indexed tune.
+ * Candidates are then ranked on the Jaccard similarity of their title trigrams and the MinHash
+ * estimate of the Jaccard similarity of their chord 3-grams.
+ */
+public class TuneSimilarityIndex {
+
+    /**
+     * The default score above which a candidate is reported.
+     */
+    public static final float DEFAULT_MIN_SCORE = 0.6f;
+
+    private static final float TITLE_WEIGHT = 0.6f;
+    private static final float CHORDS_WEIGHT = 1 - TITLE_WEIGHT;
+
+    /**
+     * The score factor applied to tunes of different rhythms.
+     */
+    private static final float RHYTHM_MISMATCH_FACTOR = 0.5f;
+
+    /**
+     * The number of chords in a chord n-gram.
+     */
+    private static final int CHORD_GRAM_LENGTH = 3;
+
+    private static final int MINHASH_BANDS = 8;
+    private static final int MINHASH_ROWS = 4;
+    private static final int MINHASH_SIZE = MINHASH_BANDS * MINHASH_ROWS;
+
+    /**
+     * Title trigrams shared by more tunes than this are not used to find candidates.
+     */
+    private static final int MAX_TRIGRAM_POSTINGS = 1000;
+
+    /**
+     * Words ignored in titles, besides the rhythm names.
+     */
+    private static final String[] STOP_WORDS = {"the", "a", "an"};
+
+    /**
+     * A likely duplicate of a tune.
+     */
+    public static class Candidate {
+
+        private final Tune mTune;
+        private final float mTitleSimilarity;
+        private final float mChordSimilarity;
+        private final float mScore;
+
+        Candidate(Tune tune, float titleSimilarity, float chordSimilarity, float score) {
+            mTune = tune;
+            mTitleSimilarity = titleSimilarity;
+            mChordSimilarity = chordSimilarity;
+            mScore = score;
+        }
+
+        public Tune getTune() {
+            return mTune;
+        }
+
+        /**
+         * Gets the Jaccard similarity of the normalized title trigrams, between 0 and 1.
+         */
+        public float getTitleSimilarity() {
+            return mTitleSimilarity;
+        }
+
+        /**
+         * Gets the estimated Jaccard similarity of the chord 3-grams, between 0 and 1.
+         */
+        public float getChordSimilarity() {
+            return mChordSimilarity;
+        }
+
+        /**
+         * Gets the overall similarity, between 0 and 1.
+         */
+        public float getScore() {
+            return mScore;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s (%.2f: title %.2f, chords %.2f)",
+                    mTune.getTitle(), mScore, mTitleSimilarity, mChordSimilarity);
+        }
+    }
+
+    /**
+     * The features of an indexed tune.
+     */
+    private static class Entry {
+
+        private final Tune mTune;
+
+        /**
+         * The sorted, distinct trigrams of the normalized title.
+         */
+        private final long[] mTrigrams;
+
+        /**
+         * The MinHash signature of the chord 3-grams, or null if the tune has no chords.
+         */
+        private final int[] mSignature;
+
+        Entry(Tune tune, Set<String> ignoredWords) {
+            mTune = tune;
+            mTrigrams = getTrigrams(normalizeTitle(tune.getName() == null ? "" : tune.getTitle(), ignoredWords));
+            mSignature = getMinHashSignature(tune);
+        }
+    }
+
+    private final Set<String> mIgnoredWords = new HashSet<String>();
+    private final HashMap<Integer, Entry> mEntries = new HashMap<Integer, Entry>();
+    private final HashMap<Long, ArrayList<Entry>> mTrigramPostings = new HashMap<Long, ArrayList<Entry>>();
+    private final HashMap<Long, ArrayList<Entry>> mBandBuckets = new HashMap<Long, ArrayList<Entry>>();
+
+    public TuneSimilarityIndex() {
+        mIgnoredWords.addAll(Arrays.asList(STOP_WORDS));
+        Set<Rhythm> knownRhythms = Rhythm.getKnownRhythms();
+        if (knownRhythms != null) {
+            for (Rhythm rhythm : knownRhythms) {
+                String name = rhythm.getName().toLowerCase(Locale.US);
+                mIgnoredWords.add(name);
+                mIgnoredWords.add(name + "s");
+            }
+        }
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Indexes a tune (does nothing if it is already indexed).
+     */
+    public void add(Tune tune) {
+        if (mEntries.containsKey(tune.getInstanceId()))
+            return;
+        Entry entry = new Entry(tune, mIgnoredWords);
+        mEntries.put(tune.getInstanceId(), entry);
+        for (long trigram : entry.mTrigrams)
+            getBucket(mTrigramPostings, trigram).add(entry);
+        if (entry.mSignature != null) {
+            for (int band = 0; band < MINHASH_BANDS; band++)
+                getBucket(mBandBuckets, getBandKey(entry.mSignature, band)).add(entry);
+        }
+    }
+
+    /**
+     * Finds the indexed tunes likely to be duplicates of a tune.
+     *
+     * @param tune       A tune, indexed or not (it is never reported as its own duplicate).
+     * @param minScore   The score above which candidates are reported.
+     * @param maxResults The maximum number of candidates reported.
+     * @return The candidates, best first.
+     */
+    public List<Candidate> findDuplicates(Tune tune, float minScore, int maxResults) {
+        Entry query = mEntries.get(tune.getInstanceId());
+        if (query == null)
+            query = new Entry(tune, mIgnoredWords);
+
+        // Blocking: tunes sharing at least one title trigram or one signature band
+        HashMap<Integer, Entry> blocked = new HashMap<Integer, Entry>();
+        for (long trigram : query.mTrigrams) {
+            ArrayList<Entry> postings = mTrigramPostings.get(trigram);
+            if (postings != null && postings.size() <= MAX_TRIGRAM_POSTINGS)
+                addAll(blocked, postings);
+        }
+        if (query.mSignature != null) {
+            for (int band = 0; band < MINHASH_BANDS; band++) {
+                ArrayList<Entry> bucket = mBandBuckets.get(getBandKey(query.mSignature, band));
+                if (bucket != null)
+                    addAll(blocked, bucket);
+            }
+        }
+        blocked.remove(tune.getInstanceId());
+
+        ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+        for (Entry entry : blocked.values()) {
+            float titleSimilarity = jaccard(query.mTrigrams, entry.mTrigrams);
+            float chordSimilarity = estimateJaccard(query.mSignature, entry.mSignature);
+            float score = TITLE_WEIGHT * titleSimilarity + CHORDS_WEIGHT * chordSimilarity;
+            Rhythm rhythm = tune.getRhythm();
+            if (rhythm != null && !rhythm.equals(entry.mTune.getRhythm()))
+                score *= RHYTHM_MISMATCH_FACTOR;
+            if (score >= minScore)
+                candidates.add(new Candidate(entry.mTune, titleSimilarity, chordSimilarity, score));
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate lhs, Candidate rhs) {
+                return Float.compare(rhs.mScore, lhs.mScore);
+            }
+        });
+        if (candidates.size() > maxResults)
+            return new ArrayList<Candidate>(candidates.subList(0, maxResults));
+        return candidates;
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    // Titles
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Normalizes a title: lower case letters and digits only, without the ignored words, single
+     * spaced.
+     */
+    static String normalizeTitle(String title, Set<String> ignoredWords) {
+        StringBuilder sb = new StringBuilder();
+        String lower = title.toLowerCase(Locale.US);
+        int length = lower.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(lower.charAt(i)))
+                i++;
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(lower.charAt(i)))
+                i++;
+            if (i > start) {
+                String word = lower.substring(start, i);
+                if (!ignoredWords.contains(word)) {
+                    if (sb.length() > 0)
+                        sb.append(' ');
+                    sb.append(word);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the sorted, distinct trigrams of a string padded with spaces, each packed in a long.
+     */
+    private static long[] getTrigrams(String text) {
+        if (text.length() == 0)
+            return new long[0];
+        String padded = " " + text + " ";
+        long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) padded.charAt(i) << 32)
+                    | ((long) padded.charAt(i + 1) << 16)
+                    | padded.charAt(i + 2);
+        }
+        Arrays.sort(trigrams);
+        int count = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (i == 0 || trigrams[i] != trigrams[count - 1])
+                trigrams[count++] = trigrams[i];
+        }
+        return Arrays.copyOf(trigrams, count);
+    }
+
+    /**
+     * Computes the Jaccard similarity of two sorted sets.
+     */
+    private static float jaccard(long[] lhs, long[] rhs) {
+        if (lhs.length == 0 && rhs.length == 0)
+            return 0;
+        int i = 0;
+        int j = 0;
+        int intersection = 0;
+        while (i < lhs.length && j < rhs.length) {
+            if (lhs[i] == rhs[j]) {
+                intersection++;
+                i++;
+                j++;
+            } else if (lhs[i] < rhs[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (float) intersection / (lhs.length + rhs.length - intersection);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    // Chords
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Computes the MinHash signature of the chord 3-grams of a tune.
+     * <p/>
+     * The chords are read from the columns of the body, in order, without building the views of
+     * its parts, lines and measures nor telling a releasable loader that the parts are used.
+     *
+     * @return The signature, or null if the tune has no chords.
+     */
+    private static int[] getMinHashSignature(Tune tune) {
+        TuneBody body = tune.getBody();
+        int[] chords = new int[body.countChords()];
+        int countChords = 0;
+        for (int i = 0; i < body.countChords(); i++) {
+            Chord chord = body.getChord(i);
+            String value = chord.getValue();
+            if (value == null || value.length() == 0)
+                continue;
+            chords[countChords++] = getChordKey(chord);
+        }
+        if (countChords == 0)
+            return null;
+
+        int[] signature = new int[MINHASH_SIZE];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        int countGrams = Math.max(1, countChords - CHORD_GRAM_LENGTH + 1);
+        for (int i = 0; i < countGrams; i++) {
+            Fingerprint gram = new Fingerprint();
+            for (int j = i; j < Math.min(i + CHORD_GRAM_LENGTH, countChords); j++)
+                gram.add(chords[j]);
+            long hash = gram.get();
+            for (int k = 0; k < MINHASH_SIZE; k++) {
+                int value = (int) (mix(hash + k * 0x9e3779b97f4a7c15L) >>> 33);
+                if (value < signature[k])
+                    signature[k] = value;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Gets the value standing for a chord in the n-grams: its symbol code, so that spellings
+     * such as "Em" and "E-" are the same chord, or else a hash of its text, ignoring case.
+     */
+    private static int getChordKey(Chord chord) {
+        int code = chord.getSymbolCode();
+        if (code != ChordSymbol.UNKNOWN)
+            return code;
+        // Symbol codes are positive
+        return (int) new Fingerprint().addIgnoreCase(chord.getValue()).get() | Integer.MIN_VALUE;
+    }
+
+    /**
+     * Estimates the Jaccard similarity of two sets from their MinHash signatures.
+     */
+    private static float estimateJaccard(int[] lhs, int[] rhs) {
+        if (lhs == null || rhs == null)
+            return 0;
+        int equal = 0;
+        for (int k = 0; k < MINHASH_SIZE; k++) {
+            if (lhs[k] == rhs[k])
+                equal++;
+        }
+        return (float) equal / MINHASH_SIZE;
+    }
+
+    private static long getBandKey(int[] signature, int band) {
+        long key = band;
+        for (int row = 0; row < MINHASH_ROWS; row++)
+            key = mix(key * 31 + signature[band * MINHASH_ROWS + row]);
+        return key;
+    }
+
+    /**
+     * Scrambles the bits of a 64-bit value (the SplitMix64 finalizer).
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    // Buckets
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static ArrayList<Entry> getBucket(Map<Long, ArrayList<Entry>> buckets, long key) {
+        ArrayList<Entry> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Entry>();
+            buckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private static void addAll(Map<Integer, Entry> entries, List<Entry> bucket) {
+        for (Entry entry : bucket)
+            entries.put(entry.mTune.getInstanceId(), entry);
+    }
+}
@@ -11,6 +11,7 @@ import android.widget.Toast;
 
 import com.chordgrid.R;
 import com.chordgrid.model.Tune;
+import com.chordgrid.model.TuneHistory;
 import com.chordgrid.model.TunePart;
 import com.chordgrid.model.TuneSet;
 
@@ -50,7 +51,9 @@ public class DisplayTuneGridActivity extends ActionBarActivity implements TunePr
 
         @Override
         public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
-            return false;
+            menu.findItem(R.id.action_undo).setEnabled(canUndo());
+            menu.findItem(R.id.action_redo).setEnabled(canRedo());
+            return true;
         }
 
         @Override
@@ -59,6 +62,12 @@ public class DisplayTuneGridActivity extends ActionBarActivity implements TunePr
                 case R.id.action_add_part:
                     addPart();
                     return true;
+                case R.id.action_undo:
+                    undo();
+                    return true;
+                case R.id.action_redo:
+                    redo();
+                    return true;
                 case R.id.action_line_add:
                     Log.d(TAG, "Menu item action_line_add");
                     return true;
@@ -69,6 +78,7 @@ public class DisplayTuneGridActivity extends ActionBarActivity implements TunePr
         @Override
         public void onDestroyActionMode(ActionMode mode) {
             Log.d(TAG, "Destroying ActionMode for tune edition");
+            mEditActionMode = null;
 
             // Get edited tune from TuneGridFragment
             TuneGridFragment tuneGridFragment = (TuneGridFragment) getSupportFragmentManager().findFragmentById(R.id.tunegrid_fragment);
@@ -103,6 +113,14 @@ public class DisplayTuneGridActivity extends ActionBarActivity implements TunePr
      * The default number of bars per line for a new tune.
      */
     private int mDefaultBarsPerLine;
+    /**
+     * The undo and redo history of the edits of the tune.
+     */
+    private TuneHistory mHistory;
+    /**
+     * The action mode of the tune edition, if started.
+     */
+    private ActionMode mEditActionMode;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -119,12 +137,13 @@ public class DisplayTuneGridActivity extends ActionBarActivity implements TunePr
             if (mDefaultBarsPerLine == 0)
                 mDefaultBarsPerLine = 8;
             setTitle(mTune.getTitle());
+            mHistory = new TuneHistory(mTune);
         }
 
         if (savedInstanceState == null) {
             updateTuneFragment();
             if (mEditMode)
-                startActionMode(mEditTuneActionModeCallback);
+                mEditActionMode = startActionMode(mEditTuneActionModeCallback);
         }
     }
 
@@ -136,6 +155,7 @@ public class DisplayTuneGridActivity extends ActionBarActivity implements TunePr
 
     private void addPart() {
         mTune.addPart(new TunePart(mTune, mDefaultBarsPerLine));
+        onTuneEdited();
         updateTuneFragment();
     }
 
@@ -173,6 +193,7 @@ public class DisplayTuneGridActivity extends ActionBarActivity implements TunePr
                 TunePart part = mTune.getPart(partLabel);
                 if (part != null) {
                     part.setLabel(dialogFragment.getLabel());
+                    onTuneEdited();
                     Log.d(TAG, "Tune is now " + mTune.toString());
                     updateTuneFragment();
                 }
@@ -186,6 +207,54 @@ public class DisplayTuneGridActivity extends ActionBarActivity implements TunePr
         dialog.show(getFragmentManager(), "Edit Label");
     }
 
+    //////////////////////////////////////////////////////////////////////////////////////////////
+    // Undo and redo
+    //////////////////////////////////////////////////////////////////////////////////////////////
+
+    public boolean canUndo() {
+        return mHistory != null && mHistory.canUndo();
+    }
+
+    public boolean canRedo() {
+        return mHistory != null && mHistory.canRedo();
+    }
+
+    /**
+     * Cancels the last edit of the tune.
+     *
+     * @return False if there is no edit to cancel.
+     */
+    public boolean undo() {
+        if (mHistory == null || !mHistory.undo())
+            return false;
+        Log.d(TAG, String.format("Undone, %d steps left", mHistory.countUndoSteps()));
+        invalidateEditActionMode();
+        updateTuneFragment();
+        return true;
+    }
+
+    /**
+     * Makes again the last edit cancelled.
+     *
+     * @return False if there is no edit to make again.
+     */
+    public boolean redo() {
+        if (mHistory == null || !mHistory.redo())
+            return false;
+        Log.d(TAG, String.format("Redone, %d steps left", mHistory.countRedoSteps()));
+        invalidateEditActionMode();
+        updateTuneFragment();
+        return true;
+    }
+
+    /**
+     * Updates the undo and redo items of the edition menu.
+     */
+    private void invalidateEditActionMode() {
+        if (mEditActionMode != null)
+            mEditActionMode.invalidate();
+    }
+
     //////////////////////////////////////////////////////////////////////////////////////////////
     // TuneProvider interface
     //////////////////////////////////////////////////////////////////////////////////////////////
@@ -193,4 +262,10 @@ public class DisplayTuneGridActivity extends ActionBarActivity implements TunePr
     public Tune getTune() {
         return mTune;
     }
+
+    @Override
+    public void onTuneEdited() {
+        if (mHistory != null && mHistory.commit())
+            invalidateEditActionMode();
+    }
 }
@@ -21,6 +21,7 @@ import android.view.WindowManager;
 import com.chordgrid.model.Line;
 import com.chordgrid.model.Measure;
 import com.chordgrid.model.Tune;
+import com.chordgrid.model.TuneBody;
 import com.chordgrid.model.TunePart;
 import com.chordgrid.util.LogUtils;
 
@@ -68,7 +69,7 @@ public class TuneGrid extends View {
     }
 
     private final int MIN_TEXT_SIZE = 12;
-    private final HashMap<Rect, TunePart> mPartLabelAreas = new HashMap<Rect, TunePart>();
+    private final HashMap<Rect, String> mPartLabelAreas = new HashMap<Rect, String>();
     private final HashMap<Rect, ContextLine> mLineAreas = new HashMap<Rect, ContextLine>();
     private final HashMap<Rect, ContextMeasure> mMeasureAreas = new HashMap<Rect, ContextMeasure>();
     private final Point mMeasureOrigin = new Point();
@@ -97,11 +98,11 @@ public class TuneGrid extends View {
     private final GestureDetector mGestureDetector = new GestureDetector(getContext(), new SimpleOnGestureListener() {
         @Override
         public void onLongPress(MotionEvent e) {
-            TunePart part = isOnPartLabel(e);
-            if (part != null) {
-                Log.d(TAG, String.format("Long press on part label %s", part.getLabel()));
+            String partLabel = isOnPartLabel(e);
+            if (partLabel != null) {
+                Log.d(TAG, String.format("Long press on part label %s", partLabel));
                 if (mSelectPartHandler != null)
-                    mSelectPartHandler.selectPart(part.getLabel());
+                    mSelectPartHandler.selectPart(partLabel);
                 return;
             }
 
@@ -124,7 +125,7 @@ public class TuneGrid extends View {
 
             ContextLine contextLine = isOnLineDelimiter(e);
             if (contextLine != null) {
-                Log.d(TAG, String.format("Long press on line delimiter %s", contextLine.line));
+                Log.d(TAG, String.format("Long press on line delimiter %d of part %d", contextLine.lineIndex, contextLine.partIndex));
                 return;
             }
 
@@ -240,38 +241,37 @@ public class TuneGrid extends View {
             measureWidth = (usableWidth - labelAreaWidth) / maxMeasuresPerLine;
             chordUsableMeasureWidth = measureWidth - 2 * (REPEAT_PADDING + REPEAT_DOT_RADIUS + 2);
 
+            // Read the columns of the tune rather than making a view for each part, line and measure
+            TuneBody body = tune.getBody();
             if (mPartialRedraw) {
                 for (ContextMeasure contextMeasure : getAllMeasuresInRect(mClipRedraw)) {
                     Rect boundingRect = contextMeasure.getSurroundingMeasureBox();
                     mMeasureOrigin.set(boundingRect.left, boundingRect.top);
-                    drawMeasure(canvas, contextMeasure);
+                    drawMeasure(canvas, body, contextMeasure);
                 }
             } else {
                 mMeasureOrigin.set(getPaddingLeft() + labelAreaWidth, getPaddingTop());
 
                 clearAreaMaps();
 
-                int countParts = tune.countParts();
+                int countParts = body.countParts();
                 for (int partIndex = 0; partIndex < countParts; partIndex++) {
-                    TunePart part = tune.getPart(partIndex);
-                    drawPartLabel(canvas, part);
+                    drawPartLabel(canvas, body.getPartLabel(partIndex));
 
-                    int countLines = part.countLines();
+                    int firstLine = body.getFirstLine(partIndex);
+                    int countLines = body.countLines(partIndex);
                     for (int lineIndex = 0; lineIndex < countLines; lineIndex++) {
-                        Line line = part.getLine(lineIndex);
-
                         float lineX = mMeasureOrigin.x, lineY = mMeasureOrigin.y;
 
-                        List<Measure> measures = line.getMeasures();
-                        int countMeasures = measures.size();
+                        int countMeasures = body.countMeasures(firstLine + lineIndex);
                         for (int i = 0; i < countMeasures; i++) {
-                            drawMeasure(canvas, tune, partIndex, lineIndex, i, true);
+                            drawMeasure(canvas, body, partIndex, lineIndex, i, true);
                         }
                         mMeasureOrigin.x = getPaddingLeft() + labelAreaWidth;
                         mMeasureOrigin.y += measureWidth;
 
                         // Remember this line's area in relative coordinates
-                        mLineAreas.put(new Rect((int) lineX, (int) lineY, (int) (lineX + measureWidth), (int) (lineY + measureWidth)), new ContextLine(part, line));
+                        mLineAreas.put(new Rect((int) lineX, (int) lineY, (int) (lineX + measureWidth), (int) (lineY + measureWidth)), new ContextLine(partIndex, lineIndex));
                     }
                 }
             }
@@ -296,7 +296,7 @@ public class TuneGrid extends View {
         return null;
     }
 
-    private void drawPartLabel(Canvas canvas, TunePart tunePart) {
+    private void drawPartLabel(Canvas canvas, String partLabel) {
         paintLabelFill.setColor(Color.rgb(0xd3, 0xfa, 0x66));
         float radius = labelAreaWidth / 2 - 2;
         float xCenter = getPaddingLeft() + radius + 2;
@@ -305,13 +305,13 @@ public class TuneGrid extends View {
         canvas.drawCircle(xCenter, yCenter, radius, paintLabel);
         float x1 = xCenter - radius, y1 = yCenter - radius;
         float x2 = xCenter + radius, y2 = yCenter + radius;
-        drawCenteredText(canvas, tunePart.getLabel(), x1, y1, x2, y2, paintLabel);
+        drawCenteredText(canvas, partLabel, x1, y1, x2, y2, paintLabel);
 
         // Remember which area is devoted to this part's label (in relative coordinates)
-        mPartLabelAreas.put(new Rect((int) x1, (int) y1, (int) x2, (int) y2), tunePart);
+        mPartLabelAreas.put(new Rect((int) x1, (int) y1, (int) x2, (int) y2), partLabel);
     }
 
-    private TunePart isOnPartLabel(MotionEvent e) {
+    private String isOnPartLabel(MotionEvent e) {
         Point p = getRelativePosition(this, e);
         for (Rect rect : mPartLabelAreas.keySet()) {
             if (rect.contains(p.x, p.y))
@@ -320,32 +320,42 @@ public class TuneGrid extends View {
         return null;
     }
 
-    private void drawMeasure(Canvas canvas, Tune tune, int partIndex, int lineIndex, int measureIndex, boolean recordContextMeasure) {
-
-        drawMeasureBox(canvas, tune, partIndex, lineIndex, measureIndex, recordContextMeasure);
+    private void drawMeasure(Canvas canvas, TuneBody body, int partIndex, int lineIndex, int measureIndex, boolean recordContextMeasure) {
+        int line = body.getFirstLine(partIndex) + lineIndex;
+        MeasureStyle measureStyle = getMeasureStyle(body, line, measureIndex);
+        drawMeasureBox(canvas, measureStyle, partIndex, lineIndex, measureIndex, recordContextMeasure);
 
-        Measure measure = tune.getPart(partIndex).getLine(lineIndex).getMeasure(measureIndex);
-        switch (measure.countChords()) {
+        int measure = body.getFirstMeasure(line) + measureIndex;
+        switch (body.countChords(measure)) {
             case 1:
-                drawChord1(measure, canvas);
+                drawChord1(body, measure, canvas);
                 break;
             case 2:
-                drawChord2(measure, canvas);
+                drawChord2(body, measure, canvas);
                 break;
             case 3:
             case 4:
-                drawChord4(measure, canvas);
+                drawChord4(body, measure, canvas);
                 break;
         }
 
         mMeasureOrigin.x += measureWidth;
     }
 
-    private void drawMeasure(Canvas canvas, ContextMeasure contextMeasure) {
-        drawMeasure(canvas, contextMeasure.getTune(), contextMeasure.getPartIndex(), contextMeasure.getLineIndex(), contextMeasure.getMeasureIndex(), false);
+    private void drawMeasure(Canvas canvas, TuneBody body, ContextMeasure contextMeasure) {
+        drawMeasure(canvas, body, contextMeasure.getPartIndex(), contextMeasure.getLineIndex(), contextMeasure.getMeasureIndex(), false);
+    }
+
+    private static MeasureStyle getMeasureStyle(TuneBody body, int line, int measureIndex) {
+        boolean hasRepetition = body.hasRepetition(line);
+        if (measureIndex == 0 && hasRepetition)
+            return MeasureStyle.REPEAT_LEFT;
+        else if (measureIndex == body.countMeasures(line) - 1 && hasRepetition)
+            return MeasureStyle.REPEAT_RIGHT;
+        return MeasureStyle.NORMAL;
     }
 
-    private void drawMeasureBox(Canvas canvas, Tune tune, int partIndex, int lineIndex, int measureIndex, boolean recordContextMeasure) {
+    private void drawMeasureBox(Canvas canvas, MeasureStyle measureStyle, int partIndex, int lineIndex, int measureIndex, boolean recordContextMeasure) {
         float x1 = mMeasureOrigin.x;
         float y1 = mMeasureOrigin.y;
         float x2 = x1 + measureWidth;
@@ -362,12 +372,12 @@ public class TuneGrid extends View {
         float xr, yr;
 
         // Remember the measure box's relative coordinates
-        Rect measureBox = new Rect((int) x1 + 2, (int) y1 + 2, (int) x2 - 2, (int) y2 - 2);
-        ContextMeasure contextMeasure = new ContextMeasure(tune, partIndex, lineIndex, measureIndex, measureBox);
-        if (recordContextMeasure)
-            mMeasureAreas.put(measureBox, contextMeasure);
+        if (recordContextMeasure) {
+            Rect measureBox = new Rect((int) x1 + 2, (int) y1 + 2, (int) x2 - 2, (int) y2 - 2);
+            mMeasureAreas.put(measureBox, new ContextMeasure(tune, partIndex, lineIndex, measureIndex, measureBox));
+        }
 
-        switch (contextMeasure.getMeasureStyle()) {
+        switch (measureStyle) {
             case REPEAT_LEFT:
                 paintBorder.setStrokeWidth(REPEAT_BORDER_GAP);
                 canvas.drawLine(x1, y1, x1, y2, paintBorder);
@@ -456,14 +466,29 @@ public class TuneGrid extends View {
         return new RectF(mMeasureOrigin.x + offset, mMeasureOrigin.y + offset, mMeasureOrigin.x + measureWidth - offset, mMeasureOrigin.y + measureWidth - offset);
     }
 
-    private void drawChord1(Measure measure, Canvas canvas) {
+    private static String getChordText(TuneBody body, int measure, int index) {
+        return body.getChord(body.getFirstChord(measure) + index).getValue();
+    }
+
+    private static String getLargestChordText(TuneBody body, int measure) {
+        String largest = "";
+        int countChords = body.countChords(measure);
+        for (int i = 0; i < countChords; i++) {
+            String chord = getChordText(body, measure, i);
+            if (chord.length() > largest.length())
+                largest = chord;
+        }
+        return largest;
+    }
+
+    private void drawChord1(TuneBody body, int measure, Canvas canvas) {
         paintChord.setTextSize(chordUsableMeasureWidth / 2);
-        String chord = measure.getChords().get(0).getValue();
+        String chord = getChordText(body, measure, 0);
         drawCenteredText(canvas, chord, getUsableChordRect(), paintChord);
     }
 
-    private float getSuitableTextSizeChord2(Measure measure) {
-        String largestChord = measure.getLargestChordText();
+    private float getSuitableTextSizeChord2(TuneBody body, int measure) {
+        String largestChord = getLargestChordText(body, measure);
         int n = largestChord.length();
 
         float savedTextSize = paintChord.getTextSize();
@@ -486,8 +511,8 @@ public class TuneGrid extends View {
         return textSize;
     }
 
-    private void drawChord2(Measure measure, Canvas canvas) {
-        paintChord.setTextSize(getSuitableTextSizeChord2(measure));
+    private void drawChord2(TuneBody body, int measure, Canvas canvas) {
+        paintChord.setTextSize(getSuitableTextSizeChord2(body, measure));
 
         // Draw the line splitting the measure in 2
         float x = mMeasureOrigin.x;
@@ -497,19 +522,19 @@ public class TuneGrid extends View {
         canvas.drawLine(x2, y, x, y2, paintBorder);
 
         // Draw the first chord on the upper left side
-        String chord1 = measure.getChords().get(0).getValue();
+        String chord1 = getChordText(body, measure, 0);
         float tx1 = x + 3.0f * measureWidth / 8.0f;
         float ty1 = y + measureWidth / 4.0f;
         drawVerticallyCenteredText(canvas, chord1, tx1, ty1, paintChord);
 
-        String chord2 = measure.getChords().get(1).getValue();
+        String chord2 = getChordText(body, measure, 1);
         float tx2 = x2 - 3.0f * measureWidth / 8.0f;
         float ty2 = y2 - measureWidth / 4.0f;
         drawVerticallyCenteredText(canvas, chord2, tx2, ty2, paintChord);
     }
 
-    private float getSuitableTextSizeChord4(Measure measure) {
-        String largestChord = measure.getLargestChordText();
+    private float getSuitableTextSizeChord4(TuneBody body, int measure) {
+        String largestChord = getLargestChordText(body, measure);
         int n = largestChord.length();
 
         float savedTextSize = paintChord.getTextSize();
@@ -532,8 +557,8 @@ public class TuneGrid extends View {
         return textSize;
     }
 
-    private void drawChord4(Measure measure, Canvas canvas) {
-        paintChord.setTextSize(getSuitableTextSizeChord4(measure));
+    private void drawChord4(TuneBody body, int measure, Canvas canvas) {
+        paintChord.setTextSize(getSuitableTextSizeChord4(body, measure));
 
         // Draw the lines splitting the measure in 4
         float x = mMeasureOrigin.x;
@@ -543,23 +568,23 @@ public class TuneGrid extends View {
         canvas.drawLine(x2, y, x, y2, paintBorder);
         canvas.drawLine(x, y, x2, y2, paintBorder);
 
-        String chord1 = measure.getChords().get(0).getValue();
+        String chord1 = getChordText(body, measure, 0);
         float tx1 = x + measureWidth / 4.0f;
         float ty1 = y + measureWidth / 2.0f;
         drawVerticallyCenteredText(canvas, chord1, tx1, ty1, paintChord);
 
-        String chord2 = measure.getChords().get(1).getValue();
+        String chord2 = getChordText(body, measure, 1);
         float tx2 = x + measureWidth / 2.0f;
         float ty2 = y + measureWidth / 6.0f;
         drawVerticallyCenteredText(canvas, chord2, tx2, ty2, paintChord);
 
-        String chord3 = measure.getChords().get(2).getValue();
+        String chord3 = getChordText(body, measure, 2);
         float tx3 = x2 - measureWidth / 4.0f;
         float ty3 = y + measureWidth / 2.0f;
         drawVerticallyCenteredText(canvas, chord3, tx3, ty3, paintChord);
 
-        if (measure.countChords() > 3) {
-            String chord4 = measure.getChords().get(3).getValue();
+        if (body.countChords(measure) > 3) {
+            String chord4 = getChordText(body, measure, 3);
             float tx4 = x + measureWidth / 2.0f;
             float ty4 = y2 - measureWidth / 6.0f;
             drawVerticallyCenteredText(canvas, chord4, tx4, ty4, paintChord);
@@ -579,12 +604,12 @@ public class TuneGrid extends View {
     }
 
     private class ContextLine {
-        public TunePart part;
-        public Line line;
+        public int partIndex;
+        public int lineIndex;
 
-        public ContextLine(TunePart part, Line line) {
-            this.part = part;
-            this.line = line;
+        public ContextLine(int partIndex, int lineIndex) {
+            this.partIndex = partIndex;
+            this.lineIndex = lineIndex;
         }
     }
 
@@ -640,15 +665,5 @@ public class TuneGrid extends View {
                 return null;
             return new Rect(mMeasureBox.left - 2, mMeasureBox.top - 2, mMeasureBox.right + 2, mMeasureBox.bottom + 2);
         }
-
-        public MeasureStyle getMeasureStyle() {
-            Line line = getLine();
-            boolean hasRepetition = line.hasRepetition();
-            if (mMeasureIndex == 0 && hasRepetition)
-                return MeasureStyle.REPEAT_LEFT;
-            else if (mMeasureIndex == line.countMeasures() - 1 && hasRepetition)
-                return MeasureStyle.REPEAT_RIGHT;
-            return MeasureStyle.NORMAL;
-        }
     }
 }
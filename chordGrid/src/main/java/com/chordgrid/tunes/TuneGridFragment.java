@@ -176,6 +176,8 @@ public class TuneGridFragment extends Fragment {
                     Log.d(TAG, "Complete measure edition dialog");
                     List<String> chords = dialogFragment.getChords();
                     measure.setChords(chords);
+                    tune.invalidateFingerprint();
+                    mTuneProvider.onTuneEdited();
                     Log.d(TAG, "Tune is now " + tune.toString());
                 }
 
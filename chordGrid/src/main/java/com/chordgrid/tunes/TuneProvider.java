@@ -9,4 +9,9 @@ public interface TuneProvider {
 
     public Tune getTune();
 
+    /**
+     * Called after each edit of the tune, e.g. to record it in the undo history.
+     */
+    public void onTuneEdited();
+
 }
@@ -2,59 +2,62 @@ package com.chordgrid.tunesets;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.os.Bundle;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
 import android.support.v7.app.ActionBarActivity;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
-import android.widget.ArrayAdapter;
+import android.view.View;
+import android.widget.TextView;
 
 import com.chordgrid.R;
 import com.chordgrid.model.Tune;
+import com.chordgrid.model.TuneBookProvider;
+import com.chordgrid.model.TuneBookStore;
 import com.chordgrid.model.TuneSet;
 import com.mobeta.android.dslv.DragSortController;
 import com.mobeta.android.dslv.DragSortListView;
+import com.mobeta.android.dslv.SimpleDragSortCursorAdapter;
 
 import java.util.ArrayList;
+import java.util.List;
 
-public class ReorderTuneSetActivity extends ActionBarActivity {
+/**
+ * Reorders the tunes of a set, read from the {@link TuneBookProvider}.
+ * <p/>
+ * Until the store holds the set as it was passed, e.g. while the tunebook is being copied to the
+ * store, the tunes of the passed set are shown instead. The order chosen by the user is kept when
+ * the tunes are reloaded.
+ */
+public class ReorderTuneSetActivity extends ActionBarActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
     private final static String TAG = "ReorderTuneSetActivity";
 
     /**
-     * The displayed tune set.
+     * The position of the set in the tunebook, an int extra.
      */
-    private TuneSet mTuneset;
+    public static final String EXTRA_TUNESET_POSITION = "tunesetPosition";
+
+    private static final int LOADER_TUNESET_TUNES = 0;
 
     /**
-     * The array of tune wrappers for the dynamic list view.
+     * The displayed tune set.
      */
-    private ArrayList<TuneReference> mTuneReferences;
-
-    private ArrayAdapter<TuneReference> mAdapter;
-
-    private ActionMode mActionMode;
+    private TuneSet mTuneset;
 
-    private DragSortListView.DropListener onDrop = new DragSortListView.DropListener() {
-        @Override
-        public void drop(int from, int to) {
-            if (from != to) {
-                TuneReference tuneRef = mAdapter.getItem(from);
-                mAdapter.remove(tuneRef);
-                mAdapter.insert(tuneRef, to);
-            }
-        }
-    };
+    private int mTunesetPosition = -1;
 
-    private DragSortListView.RemoveListener onRemove = new DragSortListView.RemoveListener() {
-        @Override
-        public void remove(int which) {
+    private SimpleDragSortCursorAdapter mAdapter;
 
-            mAdapter.remove(mAdapter.getItem(which));
-        }
-    };
+    private ActionMode mActionMode;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -64,6 +67,7 @@ public class ReorderTuneSetActivity extends ActionBarActivity {
         Bundle extras = getIntent().getExtras();
         if (extras != null) {
             setTuneset((TuneSet) extras.getParcelable(TuneSet.class.getSimpleName()));
+            mTunesetPosition = extras.getInt(EXTRA_TUNESET_POSITION, -1);
         }
 
         if (mActionMode == null) {
@@ -71,10 +75,17 @@ public class ReorderTuneSetActivity extends ActionBarActivity {
         }
 
         DragSortListView listView = (DragSortListView) findViewById(R.id.listview);
-        mAdapter = new ArrayAdapter<TuneReference>(this, R.layout.tuneset_reorder_child_row, R.id.text, mTuneReferences);
+        mAdapter = new SimpleDragSortCursorAdapter(this, R.layout.tuneset_reorder_child_row, null,
+                new String[]{TuneBookStore.Tunes.NAME}, new int[]{R.id.text}, 0);
+        mAdapter.setViewBinder(new SimpleDragSortCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                ((TextView) view).setText(Tune.getTitle(cursor.getString(columnIndex)));
+                return true;
+            }
+        });
+        // Also the drop and remove listener of the list
         listView.setAdapter(mAdapter);
-        listView.setDropListener(onDrop);
-        listView.setRemoveListener(onRemove);
 
         DragSortController dragSortController = new DragSortController(listView);
         dragSortController.setDragHandleId(R.id.drag_handle);
@@ -86,6 +97,98 @@ public class ReorderTuneSetActivity extends ActionBarActivity {
         listView.setFloatViewManager(dragSortController);
         listView.setOnTouchListener(dragSortController);
         listView.setDragEnabled(true);
+
+        if (mTunesetPosition >= 0)
+            getSupportLoaderManager().initLoader(LOADER_TUNESET_TUNES, null, this);
+        else
+            swapCursor(createTunesCursor(mTuneset));
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(this, TuneBookProvider.getTuneSetTunesUri(mTunesetPosition), null, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        List<String> tuneIds = getTuneIds();
+        swapCursor(isTunesetCursor(cursor) ? cursor : createTunesCursor(mTuneset));
+        if (tuneIds != null)
+            restoreOrder(tuneIds);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        swapCursor(null);
+    }
+
+    /**
+     * Shows a cursor, closing the previous one unless it belongs to the loader.
+     */
+    private void swapCursor(Cursor cursor) {
+        Cursor previous = mAdapter.swapCursor(cursor);
+        if (previous instanceof MatrixCursor)
+            previous.close();
+    }
+
+    /**
+     * Tells whether a cursor holds the tunes of the displayed set, in order.
+     */
+    private boolean isTunesetCursor(Cursor cursor) {
+        if (cursor == null || cursor.getCount() != mTuneset.size())
+            return false;
+        int idColumn = cursor.getColumnIndexOrThrow(TuneBookStore.Tunes.TUNE_ID);
+        for (int i = 0; i < mTuneset.size(); i++) {
+            cursor.moveToPosition(i);
+            if (!TextUtils.equals(cursor.getString(idColumn), mTuneset.get(i).getId()))
+                return false;
+        }
+        return true;
+    }
+
+    private static Cursor createTunesCursor(TuneSet tuneset) {
+        MatrixCursor cursor = new MatrixCursor(TuneBookStore.TUNE_COLUMNS, tuneset.size());
+        for (int i = 0; i < tuneset.size(); i++) {
+            Tune tune = tuneset.get(i);
+            cursor.addRow(new Object[]{i, tune.getId(), tune.getIndex(), tune.getName(),
+                    tune.getRhythm() != null ? tune.getRhythm().getName() : null, tune.getKey()});
+        }
+        return cursor;
+    }
+
+    /**
+     * Gets the ids of the listed tunes, in the order chosen by the user, or null if the tunes
+     * are not loaded yet.
+     */
+    private List<String> getTuneIds() {
+        if (mAdapter.getCursor() == null)
+            return null;
+        ArrayList<String> tuneIds = new ArrayList<String>(mAdapter.getCount());
+        for (int i = 0; i < mAdapter.getCount(); i++)
+            tuneIds.add(getTuneId(i));
+        return tuneIds;
+    }
+
+    private String getTuneId(int listPosition) {
+        Cursor cursor = mAdapter.getCursor();
+        cursor.moveToPosition(mAdapter.getCursorPosition(listPosition));
+        return cursor.getString(cursor.getColumnIndexOrThrow(TuneBookStore.Tunes.TUNE_ID));
+    }
+
+    /**
+     * Replays the moves and removals made by the user over newly loaded tunes.
+     */
+    private void restoreOrder(List<String> tuneIds) {
+        for (int target = 0; target < tuneIds.size(); target++) {
+            for (int i = target; i < mAdapter.getCount(); i++) {
+                if (tuneIds.get(target).equals(getTuneId(i))) {
+                    mAdapter.drop(i, target);
+                    break;
+                }
+            }
+        }
+        while (mAdapter.getCount() > tuneIds.size())
+            mAdapter.remove(mAdapter.getCount() - 1);
     }
 
     private ActionMode.Callback mActionModeCallback = new ActionMode.Callback() {
@@ -124,11 +227,19 @@ public class ReorderTuneSetActivity extends ActionBarActivity {
         @Override
         public void onDestroyActionMode(ActionMode mode) {
             Log.d(TAG, "End of tuneset reordering action mode");
-            ArrayList<Tune> reorderedTunes = new ArrayList<Tune>(mAdapter.getCount());
-            for (int i = 0; i < mAdapter.getCount(); i++) {
-                reorderedTunes.add(mAdapter.getItem(i).getTune());
+            List<String> tuneIds = getTuneIds();
+            if (tuneIds != null) {
+                ArrayList<Tune> reorderedTunes = new ArrayList<Tune>(tuneIds.size());
+                for (String tuneId : tuneIds) {
+                    for (Tune tune : mTuneset.getTunes()) {
+                        if (tune.getId().equals(tuneId)) {
+                            reorderedTunes.add(tune);
+                            break;
+                        }
+                    }
+                }
+                mTuneset.setTunes(reorderedTunes);
             }
-            mTuneset.setTunes(reorderedTunes);
 
             // Puts the data into a parcel to get it back to the calling activity
             Intent data = new Intent();
@@ -143,10 +254,6 @@ public class ReorderTuneSetActivity extends ActionBarActivity {
     private void setTuneset(TuneSet tuneset) {
         mTuneset = tuneset;
         setTitle(mTuneset.toString());
-        mTuneReferences = new ArrayList<TuneReference>(mTuneset.size());
-        for (Tune tune : mTuneset.getTunes()) {
-            mTuneReferences.add(new TuneReference(tune));
-        }
     }
 
     @Override
@@ -167,24 +274,4 @@ public class ReorderTuneSetActivity extends ActionBarActivity {
         }
         return super.onOptionsItemSelected(item);
     }
-
-    /**
-     * A wrapper class to display the tune's title in the dynamic list view through toString() method.
-     */
-    private class TuneReference {
-        private Tune mTune;
-
-        public TuneReference(Tune tune) {
-            mTune = tune;
-        }
-
-        public Tune getTune() {
-            return mTune;
-        }
-
-        @Override
-        public String toString() {
-            return mTune.getTitle();
-        }
-    }
 }
@@ -186,6 +186,8 @@ public class TuneSetAdapter extends EditableExpandableListAdapter implements
         public void onClick(View v) {
             Intent intent = new Intent(getActivity(), DisplayTuneSetActivity.class);
             intent.putExtra(TuneSet.class.getSimpleName(), mSelectedSet);
+            intent.putExtra(ReorderTuneSetActivity.EXTRA_TUNESET_POSITION,
+                    getTuneBook().getTuneSetPosition(mSelectedSet));
             getActivity().startActivity(intent);
         }
     }
@@ -202,6 +204,8 @@ public class TuneSetAdapter extends EditableExpandableListAdapter implements
         public void onClick(View v) {
             Intent intent = new Intent(getActivity(), ReorderTuneSetActivity.class);
             intent.putExtra(TuneSet.class.getSimpleName(), mSelectedSet);
+            intent.putExtra(ReorderTuneSetActivity.EXTRA_TUNESET_POSITION,
+                    getTuneBook().getTuneSetPosition(mSelectedSet));
             getActivity().startActivityForResult(intent, ACTIVITY_REQUEST_CODE_REORDER);
         }
     }
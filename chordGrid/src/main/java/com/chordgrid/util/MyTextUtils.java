@@ -10,4 +10,26 @@ public class MyTextUtils {
     public static String[] splitWithDelimiter(String text, String expression) {
         return TextUtils.split(text, String.format("(?=%1$s)", expression));
     }
+
+    /**
+     * Checks, without throwing, whether a text is a decimal integer that
+     * Integer.parseInt() would accept.
+     */
+    public static boolean isInteger(String text) {
+        int length = text.length();
+        boolean negative = length > 0 && text.charAt(0) == '-';
+        int i = (negative || (length > 0 && text.charAt(0) == '+')) ? 1 : 0;
+        if (i == length)
+            return false;
+        long value = 0;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+            value = value * 10 + (c - '0');
+            if (value > (long) Integer.MAX_VALUE + 1)
+                return false;
+        }
+        return negative || value <= Integer.MAX_VALUE;
+    }
 }
@@ -0,0 +1,128 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class BinaryTuneBookTest {
+
+    private static final String TUNEBOOK = "RHYTHMS:\n"
+            + "[Jig, 6/8, 2 bpb]\n"
+            + "[Reel, 4/4, 4 bpb]\n"
+            + "[Slide, 12/8, 4 bpb]\n"
+            + "\n"
+            + "X:1\n"
+            + "I:leckan_mor\n"
+            + "T:Leckan Mor\n"
+            + "R:Jig\n"
+            + "K:Bm\n"
+            + "A) |: Bm | Bm | A | A :|\n"
+            + "B) | Bm | Em | F#m G | D A |\n"
+            + "\n"
+            + "X:2\n"
+            + "I:tarbolton\n"
+            + "T:Tarbolton\n"
+            + "R:Reel\n"
+            + "K:Edor\n"
+            + "A) |: Em | Em | D | G D :|\n"
+            + "\n"
+            + "SET:Jig and reel\n"
+            + "leckan_mor tarbolton\n";
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    private static TuneBook writeAndRead(TuneBook tuneBook) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryTuneBook.write(tuneBook, out);
+        return BinaryTuneBook.read(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(TUNEBOOK));
+
+        TuneBook read = writeAndRead(tuneBook);
+
+        assertEquals(tuneBook.toString(), read.toString());
+        assertEquals(tuneBook.getTuneFromId("tarbolton").getParts().size(),
+                read.getTuneFromId("tarbolton").getParts().size());
+    }
+
+    @Test
+    public void readsBackALargeTuneBook() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(
+                TuneBookGenerator.generate(TuneBookGenerator.LARGE_COPIES, 500)));
+
+        assertEquals(tuneBook.toString(), writeAndRead(tuneBook).toString());
+    }
+
+    @Test
+    public void keepsTheDeclaredRhythmsNoTunePlays() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(TUNEBOOK));
+
+        List<Rhythm> rhythms = writeAndRead(tuneBook).getRhythms();
+
+        assertEquals(3, rhythms.size());
+        assertEquals("Slide", rhythms.get(2).getName());
+        assertEquals(4, rhythms.get(2).getBeatsPerBar());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsATruncatedFile() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryTuneBook.write(new TuneBook(new StringReader(TUNEBOOK)), out);
+        byte[] bytes = out.toByteArray();
+
+        BinaryTuneBook.read(ByteBuffer.wrap(bytes, 0, bytes.length - 8).slice());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnUnknownVersion() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryTuneBook.write(new TuneBook(new StringReader(TUNEBOOK)), out);
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        buffer.putInt(4, BinaryTuneBook.VERSION + 1);
+
+        BinaryTuneBook.read(buffer);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsATextFile() throws Exception {
+        BinaryTuneBook.read(ByteBuffer.wrap(TUNEBOOK.getBytes(Charset.forName("UTF-8"))));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsATuneWithoutId() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryTuneBook.write(new TuneBook(new StringReader(TUNEBOOK)), out);
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+
+        // The first tune record follows the string table and the rhythms
+        int strings = buffer.getInt(8);
+        int stringBytes = buffer.getInt(12);
+        int rhythms = buffer.getInt(16);
+        int firstTune = 48 + 4 * (strings + 1) + ((stringBytes + 3) & ~3) + 4 * 3 * rhythms;
+        buffer.putInt(firstTune, -1);
+
+        BinaryTuneBook.read(buffer);
+    }
+}
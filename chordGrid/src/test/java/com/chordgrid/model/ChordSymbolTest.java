@@ -0,0 +1,78 @@
+package com.chordgrid.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChordSymbolTest {
+
+    private static String canonical(String symbol) {
+        return ChordSymbol.format(ChordSymbol.parse(symbol), false);
+    }
+
+    @Test
+    public void parsesRootQualityExtensionsAndBass() {
+        int code = ChordSymbol.parse("F#m7/C#");
+        assertTrue(ChordSymbol.isValid(code));
+        assertEquals(6, ChordSymbol.getRootPitch(code));
+        assertEquals(ChordSymbol.MINOR, ChordSymbol.getQuality(code));
+        assertEquals(ChordSymbol.SEVENTH, ChordSymbol.getExtensions(code));
+        assertTrue(ChordSymbol.hasBass(code));
+        assertEquals(1, ChordSymbol.getBassPitch(code));
+    }
+
+    @Test
+    public void rejectsUnknownSymbols() {
+        assertEquals(ChordSymbol.UNKNOWN, ChordSymbol.parse(""));
+        assertEquals(ChordSymbol.UNKNOWN, ChordSymbol.parse("H"));
+        assertEquals(ChordSymbol.UNKNOWN, ChordSymbol.parse("Cxyz"));
+        assertEquals(ChordSymbol.UNKNOWN, ChordSymbol.parse("Cmdim"));
+        assertEquals(ChordSymbol.UNKNOWN, ChordSymbol.parse("C/"));
+        assertFalse(ChordSymbol.isValid(ChordSymbol.UNKNOWN));
+    }
+
+    @Test
+    public void readsSynonymsAsTheSameChord() {
+        assertEquals("Em", canonical("E-"));
+        assertEquals("Em", canonical("Emin"));
+        assertEquals("Cmaj7", canonical("CM7"));
+        assertEquals("Cmaj7", canonical("C\u0394"));
+        assertEquals("Bm7b5", canonical("B\u00f8"));
+        assertEquals("Cdim7", canonical("C\u00b07"));
+    }
+
+    @Test
+    public void readsTheDeltaSevenAsOneMajorSeventh() {
+        int code = ChordSymbol.parse("C\u03947");
+        assertEquals(ChordSymbol.MAJOR_SEVENTH, ChordSymbol.getExtensions(code));
+        assertEquals("Cmaj7", ChordSymbol.format(code, false));
+    }
+
+    @Test
+    public void writesSuspensionsAfterTheExtensions() {
+        assertEquals("C7sus4", canonical("C7sus4"));
+        assertEquals("C7sus4", canonical("Csus47"));
+        assertEquals("D9sus2", canonical("D9sus2"));
+    }
+
+    @Test
+    public void canonicalSymbolsRoundTrip() {
+        String[] symbols = {"C", "Am", "G7", "Dm7", "Fmaj7", "Bbm6", "E5", "Caug", "Cdim7", "Bm7b5",
+                "C7sus4", "Gsus2", "Dadd9", "A13", "F#m/C#", "Eb7/G", "Cmaj7/E"};
+        for (String symbol : symbols) {
+            String formatted = canonical(symbol);
+            assertEquals(symbol, formatted);
+            assertEquals(symbol, canonical(formatted));
+        }
+    }
+
+    @Test
+    public void transposesWithSharpsOrFlats() {
+        int code = ChordSymbol.parse("G7/B");
+        assertEquals("A7/C#", ChordSymbol.format(ChordSymbol.transpose(code, 2, false), false));
+        assertEquals("Ab7/C", ChordSymbol.format(ChordSymbol.transpose(code, 1, true), false));
+        assertEquals("A\u266d7/C", ChordSymbol.format(ChordSymbol.transpose(code, 1, true), true));
+    }
+}
@@ -0,0 +1,30 @@
+package com.chordgrid.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ChordTest {
+
+    @Test
+    public void trimsAndParsesTheValue() {
+        Chord chord = new Chord(" F#m7/C# ");
+        assertEquals("F#m7/C#", chord.getValue());
+        assertEquals(ChordSymbol.parse("F#m7/C#"), chord.getSymbolCode());
+    }
+
+    @Test
+    public void keepsTheValueOfUnknownSymbols() {
+        Chord chord = new Chord("N.C.");
+        assertEquals("N.C.", chord.getValue());
+        assertEquals(ChordSymbol.UNKNOWN, chord.getSymbolCode());
+        assertEquals(ChordSymbol.UNKNOWN, new Chord().getSymbolCode());
+    }
+
+    @Test
+    public void valueOfSharesTheChordsOfASymbol() {
+        assertSame(Chord.valueOf("Bm"), Chord.valueOf(" Bm"));
+        assertEquals("Bm", Chord.valueOf("Bm ").toString());
+    }
+}
@@ -0,0 +1,112 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class JsonTuneBookTest {
+
+    private static final String TUNEBOOK = "RHYTHMS:\n"
+            + "[Jig, 6/8, 2 bpb]\n"
+            + "[Reel, 4/4, 4 bpb]\n"
+            + "\n"
+            + "X:1\n"
+            + "I:leckan_mor\n"
+            + "T:Leckan Mor\n"
+            + "R:Jig\n"
+            + "K:Bm\n"
+            + "A) |: Bm | Bm | A | A :|\n"
+            + "B) | Bm | Em | F#m G | D A |\n"
+            + "\n"
+            + "X:2\n"
+            + "I:tarbolton\n"
+            + "T:Tarbolton\n"
+            + "R:Reel\n"
+            + "K:Edor\n"
+            + "A) |: Em | Em | D | G D :|\n"
+            + "\n"
+            + "SET:Jig and reel\n"
+            + "leckan_mor tarbolton\n";
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(TUNEBOOK));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonTuneBook.write(tuneBook, out);
+
+        TuneBook read = JsonTuneBook.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(tuneBook.toString(), read.toString());
+    }
+
+    @Test
+    public void readsBackADeclaredRhythmNoTunePlays() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(
+                TUNEBOOK.replace("[Reel, 4/4, 4 bpb]\n", "[Reel, 4/4, 4 bpb]\n[Mazurka, 3/4, 3 bpb]\n")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonTuneBook.write(tuneBook, out);
+
+        TuneBook read = JsonTuneBook.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(3, read.getRhythms().size());
+        assertEquals(tuneBook.getRhythms().toString(), read.getRhythms().toString());
+    }
+
+    @Test
+    public void readsBackALargeTuneBook() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(
+                TuneBookGenerator.generate(TuneBookGenerator.LARGE_COPIES, 500)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonTuneBook.write(tuneBook, out);
+
+        TuneBook read = JsonTuneBook.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(tuneBook.toString(), read.toString());
+    }
+
+    @Test
+    public void skipsUnknownMembers() throws Exception {
+        String json = "{\"version\": 1, \"comment\": {\"by\": [1, 2]}, "
+                + "\"rhythms\": [{\"name\": \"Reel\", \"signature\": \"4/4\", \"beatsPerBar\": 4}], "
+                + "\"tunes\": [{\"id\": \"tarbolton\", \"name\": \"Tarbolton\", \"rhythm\": \"Reel\", "
+                + "\"key\": \"Edor\", \"composer\": null, \"parts\": []}]}";
+
+        TuneBook tuneBook = JsonTuneBook.read(new StringReader(json));
+
+        assertEquals(1, tuneBook.countTunes());
+        assertEquals("Edor", tuneBook.getTuneFromId("tarbolton").getKey());
+    }
+
+    @Test
+    public void rejectsATuneWithoutRhythm() throws Exception {
+        String json = "{\"version\": 1, \"tunes\": [{\"id\": \"tarbolton\", \"name\": \"Tarbolton\", "
+                + "\"key\": \"Edor\", \"parts\": []}]}";
+        try {
+            JsonTuneBook.read(new StringReader(json));
+            fail("A tune without rhythm was read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Tune has no rhythm at "));
+        }
+    }
+}
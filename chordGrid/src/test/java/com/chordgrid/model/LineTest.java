@@ -0,0 +1,109 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class LineTest {
+
+    private static final String[] TOKENS = {"|", "|", ":|", "|:", " ", " ", "  ", "\t", "Am", "D7", "F#m", "G/B",
+            "A)", "B2) ", ")", ":"};
+
+    private static final Pattern LABEL_PATTERN = Pattern.compile("([A-Za-z0-9]+)\\)");
+
+    /**
+     * Describes a line as its repetition flag, then the chords of each measure.
+     */
+    private static String describe(Line line) {
+        StringBuilder description = new StringBuilder(line.hasRepetition() ? "R" : "-");
+        for (Measure measure : line.getMeasures()) {
+            description.append(" [");
+            for (Chord chord : measure.getChords())
+                description.append('<').append(chord.getValue()).append('>');
+            description.append(']');
+        }
+        return description.toString();
+    }
+
+    /**
+     * Describes a line as the regular expressions of the previous parser read it.
+     */
+    private static String describeWithRegex(String text) {
+        int endLabel = text.indexOf(')');
+        if (endLabel >= 0)
+            text = text.substring(endLabel + 1).trim();
+
+        StringBuilder description = new StringBuilder();
+        if (text.startsWith("|:")) {
+            description.append('R');
+            text = text.substring(2);
+            int endRepeat = text.lastIndexOf(":|");
+            if (endRepeat > -1)
+                text = text.substring(0, endRepeat);
+        } else {
+            description.append('-');
+            if (text.startsWith("|"))
+                text = text.substring(1);
+        }
+
+        for (String bar : text.split(":?\\|")) {
+            description.append(" [");
+            for (String chord : bar.trim().split("\\s+"))
+                description.append('<').append(chord.trim()).append('>');
+            description.append(']');
+        }
+        return description.toString();
+    }
+
+    private static String parseLabelWithRegex(String text) {
+        Matcher m = LABEL_PATTERN.matcher(text);
+        return m.find() ? m.group(1) : null;
+    }
+
+    @Test
+    public void readsBarsRepetitionsAndChords() {
+        Line line = new Line("A) |: Em | Em F#m G |  | D :|");
+        assertTrue(line.hasRepetition());
+        assertEquals("R [<Em>] [<Em><F#m><G>] [<>] [<D>]", describe(line));
+
+        assertFalse(new Line("| G | D |").hasRepetition());
+        assertEquals("- [<G>] [<D>] [<>] [<>]", describe(new Line("| G | D | | |")));
+        assertEquals("- [<Am>]", describe(new Line("Am")));
+    }
+
+    @Test
+    public void readsPartLabels() {
+        assertEquals("A", TunePart.parseLabel("A) |: Em :|"));
+        assertEquals("B2", TunePart.parseLabel("  B2) | G |"));
+        assertNull(TunePart.parseLabel("| G | D |"));
+    }
+
+    @Test
+    public void readsRandomLinesAsTheRegexParser() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            StringBuilder text = new StringBuilder();
+            int countTokens = random.nextInt(12);
+            for (int j = 0; j < countTokens; j++)
+                text.append(TOKENS[random.nextInt(TOKENS.length)]);
+            String line = text.toString();
+
+            assertEquals(line, describeWithRegex(line), describe(new Line(line)));
+            assertEquals(line, parseLabelWithRegex(line), TunePart.parseLabel(line));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class MappedTextTuneBookTest {
+
+    private static final int COPIES = 100;
+    private static final int MAX_RESIDENT_TUNES = 8;
+
+    private String mText;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+        mText = TuneBookGenerator.generate(COPIES, 50);
+        mFile = File.createTempFile("tunebook", ".txt");
+        OutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(mText.getBytes(Charset.forName("UTF-8")));
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void readsTheSameTextAsAFullParse() throws Exception {
+        MappedTextTuneBook mapped = MappedTextTuneBook.open(mFile, MAX_RESIDENT_TUNES, new ParseDiagnostics());
+
+        assertEquals(new TuneBook(new StringReader(mText)).toString(), mapped.getTuneBook().toString());
+        assertTrue(mapped.getEvictionCount() > 0);
+        assertTrue(mapped.getResidentTuneCount() <= MAX_RESIDENT_TUNES);
+    }
+
+    @Test
+    public void reloadsEvictedTunesUnchanged() throws Exception {
+        MappedTextTuneBook mapped = MappedTextTuneBook.open(mFile, MAX_RESIDENT_TUNES, new ParseDiagnostics());
+        TuneBook tuneBook = mapped.getTuneBook();
+        String first = tuneBook.getTuneFromId("kalyana_0").toString();
+
+        for (int copy = 1; copy < COPIES; copy++)
+            tuneBook.getTuneFromId("kalyana_" + copy).countParts();
+        int misses = mapped.getMissCount();
+
+        assertEquals(first, tuneBook.getTuneFromId("kalyana_0").toString());
+        assertEquals(misses + 1, mapped.getMissCount());
+    }
+}
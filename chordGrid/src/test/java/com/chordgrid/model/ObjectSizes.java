@@ -0,0 +1,136 @@
+package com.chordgrid.model;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Estimates the heap taken by object graphs, for the memory tests.
+ * <p/>
+ * Sizes follow the layout of a 64-bit VM with compressed references: 12-byte object headers,
+ * 16-byte array headers, 4-byte references and 8-byte alignment. Objects are counted once, so
+ * that measuring several roots one after the other gives the bytes each one adds to those
+ * before. The objects of the shared classes, e.g. interned chords, are not counted, nor is
+ * anything they refer to.
+ * <p/>
+ * The fields of JDK classes are not read: strings, boxes, collections and maps are estimated
+ * from their size, other JDK objects count as an empty object, and the fields a class inherits
+ * from a JDK class only count for their own size.
+ */
+class ObjectSizes {
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    private final Class<?>[] mSharedClasses;
+    private final IdentityHashMap<Object, Boolean> mCounted = new IdentityHashMap<Object, Boolean>();
+
+    ObjectSizes(Class<?>... sharedClasses) {
+        mSharedClasses = sharedClasses;
+    }
+
+    /**
+     * Counts the objects reachable from a root that were not counted yet.
+     *
+     * @return Their size in bytes.
+     */
+    long add(Object root) {
+        long size = 0;
+        ArrayList<Object> pending = new ArrayList<Object>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Object object = pending.remove(pending.size() - 1);
+            if (object == null || isShared(object) || mCounted.put(object, Boolean.TRUE) != null)
+                continue;
+            size += sizeOf(object, pending);
+        }
+        return size;
+    }
+
+    private boolean isShared(Object object) {
+        if (object instanceof Class || object instanceof Enum)
+            return true;
+        for (Class<?> sharedClass : mSharedClasses) {
+            if (sharedClass.isInstance(object))
+                return true;
+        }
+        return false;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Gets the size of an object, adding the objects it refers to to the pending ones.
+     */
+    private static long sizeOf(Object object, ArrayList<Object> pending) {
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            int length = Array.getLength(object);
+            Class<?> componentType = type.getComponentType();
+            if (!componentType.isPrimitive()) {
+                for (int i = 0; i < length; i++)
+                    pending.add(Array.get(object, i));
+            }
+            return align(ARRAY_HEADER + (long) length * sizeOfField(componentType));
+        }
+        if (object instanceof String)
+            return align(OBJECT_HEADER + REFERENCE + 4) + align(ARRAY_HEADER + 2L * ((String) object).length());
+        if (object instanceof Collection) {
+            pending.addAll((Collection<?>) object);
+            return align(OBJECT_HEADER + REFERENCE + 8)
+                    + align(ARRAY_HEADER + (long) REFERENCE * ((Collection<?>) object).size());
+        }
+        if (object instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                pending.add(entry.getKey());
+                pending.add(entry.getValue());
+            }
+            int entries = ((Map<?, ?>) object).size();
+            return align(OBJECT_HEADER + 4 * REFERENCE + 8) + align(ARRAY_HEADER + (long) REFERENCE * entries)
+                    + entries * align(OBJECT_HEADER + 3 * REFERENCE + 4);
+        }
+        if (type.getName().startsWith("java.")) {
+            if (object instanceof Long || object instanceof Double)
+                return align(OBJECT_HEADER + 8);
+            return align(OBJECT_HEADER + 4);
+        }
+
+        long size = OBJECT_HEADER;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            boolean jdkClass = c.getName().startsWith("java.");
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()))
+                    continue;
+                size += sizeOfField(field.getType());
+                if (!field.getType().isPrimitive() && !jdkClass) {
+                    field.setAccessible(true);
+                    try {
+                        pending.add(field.get(object));
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        }
+        return align(size);
+    }
+
+    private static int sizeOfField(Class<?> type) {
+        if (type == long.class || type == double.class)
+            return 8;
+        if (type == int.class || type == float.class)
+            return 4;
+        if (type == short.class || type == char.class)
+            return 2;
+        if (type == byte.class || type == boolean.class)
+            return 1;
+        return REFERENCE;
+    }
+}
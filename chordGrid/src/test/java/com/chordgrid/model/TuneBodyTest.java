@@ -0,0 +1,110 @@
+package com.chordgrid.model;
+
+import android.util.Log;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneBodyTest {
+
+    private static final String TAG = "TuneBodyTest";
+
+    private static final String HEADERS = "X:1\nI:leckan_mor\nT:Leckan Mor\nR:Jig\nK:Bm\n";
+    private static final String PART_A = "A) |: Bm | Bm | A | A :|\n";
+    private static final String PART_B = "B) | Bm | Em | F#m G | D A |\n| Bm | Bm | G A | D A :|\n";
+    private static final String PART_C = "C) |: D | G :|\n";
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    private static Tune parse(String body) throws Exception {
+        return new Tune(HEADERS + body);
+    }
+
+    private static TunePart parsePart(Tune tune, String text) {
+        return new TunePart(tune, Arrays.asList(text.split("\n")));
+    }
+
+    @Test
+    public void insertsAPartBeforeTheOthers() throws Exception {
+        Tune tune = parse(PART_A + PART_B);
+
+        tune.getParts().add(0, parsePart(tune, PART_C));
+
+        assertEquals(parse(PART_C + PART_A + PART_B).toString(), tune.toString());
+    }
+
+    @Test
+    public void insertsAPartBetweenTheOthers() throws Exception {
+        Tune tune = parse(PART_A + PART_B);
+
+        tune.getParts().add(1, parsePart(tune, PART_C));
+
+        assertEquals(parse(PART_A + PART_C + PART_B).toString(), tune.toString());
+        assertEquals(2, tune.getPart("B").countLines());
+    }
+
+    @Test
+    public void replacesAPart() throws Exception {
+        Tune tune = parse(PART_A + PART_B + PART_C);
+
+        tune.setPart(1, parsePart(tune, PART_C.replace("C)", "D)")));
+
+        assertEquals(parse(PART_A + PART_C.replace("C)", "D)") + PART_C).toString(), tune.toString());
+    }
+
+    @Test
+    public void replacesALine() throws Exception {
+        Tune tune = parse(PART_A + PART_B + PART_C);
+        long fingerprint = tune.getFingerprint();
+
+        tune.setLine(2, new Line("|: G | G D A | Bm :|"));
+
+        String expected = PART_B.replace("| Bm | Bm | G A | D A :|", "|: G | G D A | Bm :|");
+        assertEquals(parse(PART_A + expected + PART_C).toString(), tune.toString());
+        assertTrue(fingerprint != tune.getFingerprint());
+    }
+
+    /**
+     * Compares the heap taken by the bodies of the generated tunes with that of the parts,
+     * lines and measures they encode. Chords are shared by the intern pool either way.
+     */
+    @Test
+    public void takesLessMemoryThanThePartsItEncodes() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(TuneBookGenerator.generate(1, 0)));
+        long bodyBytes = 0;
+        long partBytes = 0;
+        for (Tune tune : tuneBook.getTunes()) {
+            bodyBytes += new ObjectSizes(Chord.class).add(tune.getBody());
+
+            List<TunePart> parts = new ArrayList<TunePart>();
+            for (TunePart part : tune.getParts())
+                parts.add(parsePart(tune, part.toString()));
+            partBytes += new ObjectSizes(Chord.class, Tune.class).add(parts);
+        }
+        int countTunes = tuneBook.countTunes();
+        Log.i(TAG, String.format(Locale.US, "Per tune: body %d bytes, parts %d bytes",
+                bodyBytes / countTunes, partBytes / countTunes));
+
+        assertTrue(bodyBytes * 2 < partBytes);
+    }
+}
@@ -0,0 +1,81 @@
+package com.chordgrid.model;
+
+import java.util.Locale;
+
+/**
+ * Generates large tunebooks for the tests, as copies of a few tunes and sets of them.
+ */
+class TuneBookGenerator {
+
+    private static final String RHYTHMS = "RHYTHMS:\n"
+            + "[Jig, 6/8, 2 bpb]\n"
+            + "[Polka, 2/4, 2 bpb]\n"
+            + "[Reel, 4/4, 2 bpb]\n"
+            + "[Slip Jig, 9/8, 3 bpb]\n";
+
+    private static final String[] TUNES = {
+            "T:Leckan Mor\nR:Jig\nK:Bm\n"
+                    + "A) |: Bm | Bm | A | A | Em | Em | F#m | F#m :|\n"
+                    + "B) | Bm | Bm | A | A | Em | Em | F#m | F#m |\n"
+                    + "| Bm | Bm | A | A | Em | Em | G A | D A |\n",
+            "T:Up in the Garret\nR:Slip Jig\nK:Ador\n"
+                    + "A) |: Am | Am | Am | Am :|\n"
+                    + "B) |: Em | Em F#m G | Em | G :|\n",
+            "T:Kalyana\nR:Jig\nK:Bm\n"
+                    + "A) |: D9 | D9 | D9 | D9 | D9 | D9 | D9 | D9 :|\n"
+                    + "B) |: D9 | D9 D | D A | A D | A | D | G | G :|\n",
+            "T:Tarbolton\nR:Reel\nK:Edor\n"
+                    + "A) |: E- | E- | D | G D | E- | D E- | G D | E- :|\n"
+                    + "B) |: E- | E- | D | G D | E- D | E- | G D | E- :|\n",
+            "T:Maids of Ardath\nR:Polka\nK:D\n"
+                    + "A) |: D | D | A | D | D | D | A | D :|\n"
+                    + "B) |: A | A | E | E A | A | A | E | E A :|\n",
+            "T:Murroe Polka\nR:Polka\nK:G\n"
+                    + "A) |: G | G | D | D | G | G | D | G :|\n"
+                    + "B) |: G | G | D | D | G | G | D | D :|\n",
+            "T:Little Diamond\nR:Polka\nK:D\n"
+                    + "A) |: D | D | D | A | D | D | A | D :|\n"
+                    + "B) |: D | B- | D | A | D | B- | A | D :|\n",
+    };
+
+    /**
+     * The number of copies giving a tunebook of 4900 tunes.
+     */
+    static final int LARGE_COPIES = 700;
+
+    private TuneBookGenerator() {
+    }
+
+    /**
+     * Counts the tunes of a generated tunebook.
+     */
+    static int countTunes(int copies) {
+        return TUNES.length * copies;
+    }
+
+    /**
+     * Generates the text of a tunebook. The tunes of copy N have the id and title of the
+     * original followed by N, e.g. "tarbolton_3" and "Tarbolton 3".
+     *
+     * @param copies The number of copies of each tune.
+     * @param sets   The number of sets, set N holding copy N of two of the tunes.
+     */
+    static String generate(int copies, int sets) {
+        StringBuilder text = new StringBuilder(RHYTHMS).append('\n');
+        int index = 1;
+        for (int copy = 0; copy < copies; copy++) {
+            for (String tune : TUNES) {
+                String title = tune.substring(2, tune.indexOf('\n'));
+                text.append("X:").append(index++).append('\n');
+                text.append("I:").append(title.toLowerCase(Locale.US).replace(' ', '_'))
+                        .append('_').append(copy).append('\n');
+                text.append(tune.replaceFirst("\n", " " + copy + "\n")).append('\n');
+            }
+        }
+        for (int set = 0; set < sets; set++) {
+            text.append("SET:Set ").append(set).append('\n')
+                    .append("kalyana_").append(set).append(" up_in_the_garret_").append(set).append("\n\n");
+        }
+        return text.toString();
+    }
+}
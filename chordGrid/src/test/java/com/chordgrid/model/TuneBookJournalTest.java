@@ -0,0 +1,84 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneBookJournalTest {
+
+    /**
+     * The kind of the entries removing a set, followed by its position.
+     */
+    private static final byte OP_REMOVE_SET = 4;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+        mFile = File.createTempFile("tunebook", ".txt");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        for (String suffix : new String[]{"", ".journal", ".journal.next", ".checkpoint"})
+            new File(mFile.getPath() + suffix).delete();
+    }
+
+    @Test
+    public void stopsReplayingAtASetPositionThatIsNotANumber() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(TuneBookGenerator.generate(2, 1)));
+        TuneBookJournal journal = new TuneBookJournal(mFile);
+        journal.attach(tuneBook);
+        tuneBook.add(new TuneSet(tuneBook, "Added", tuneBook.getTuneSets().get(0).getTunes()));
+        // Waits for the entry to be written
+        journal.getFilesKey().get();
+        journal.close();
+
+        appendEntry(OP_REMOVE_SET, "first");
+        appendEntry(OP_REMOVE_SET, "0");
+
+        TuneBook reloaded = new TuneBook(new FileReader(mFile));
+        assertEquals(1, new TuneBookJournal(mFile).replay(reloaded));
+        assertEquals(tuneBook.toString(), reloaded.toString());
+    }
+
+    /**
+     * Appends an entry with a valid checksum to the journal.
+     */
+    private void appendEntry(byte op, String text) throws IOException {
+        byte[] data = text.getBytes(Charset.forName("UTF-8"));
+        CRC32 crc = new CRC32();
+        crc.update(op);
+        crc.update(data, 0, data.length);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile.getPath() + ".journal", true));
+        try {
+            out.writeInt(1 + data.length);
+            out.writeInt((int) crc.getValue());
+            out.writeByte(op);
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.chordgrid.model;
+
+import android.util.Log;
+
+import com.chordgrid.BuildConfig;
+import com.chordgrid.util.MyTextUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the {@link TuneBookReader} with the regex split of the whole text it replaced, on a
+ * generated tunebook of 4900 tunes and 500 sets. Both must give the same items; the best time
+ * of each is logged.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneBookReaderBenchmarkTest {
+
+    private static final String TAG = "TuneBookReaderBenchmark";
+    private static final int RUNS = 5;
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    private static String describeSet(String source) {
+        return source.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Reads the items as the tunebook did before the reader: the whole text is split before
+     * each block, and each block is parsed from its own string.
+     */
+    private static List<String> readWithSplit(String text) throws Exception {
+        ArrayList<String> items = new ArrayList<String>();
+        // The text before the first block, if any, is skipped like the other unknown items
+        for (String source : MyTextUtils.splitWithDelimiter(text, "(X:|SET:|RHYTHMS:)")) {
+            if (source.startsWith("X:"))
+                items.add(new Tune(source).toString());
+            else if (source.startsWith("SET:"))
+                items.add(describeSet(source));
+            else if (source.startsWith("RHYTHMS:"))
+                items.add("RHYTHMS: " + Rhythm.parseLines(source.substring(source.indexOf('\n') + 1)).size());
+        }
+        return items;
+    }
+
+    private static List<String> readWithReader(String text) throws Exception {
+        final ArrayList<String> items = new ArrayList<String>();
+        new TuneBookReader(new StringReader(text)).read(new TuneBookReader.Listener() {
+            @Override
+            public void onRhythms(List<String> lines, int lineNumber) {
+                ArrayList<String> rhythmLines = new ArrayList<String>();
+                for (int i = 1; i < lines.size(); i++) {
+                    String line = lines.get(i).trim();
+                    if (!line.isEmpty())
+                        rhythmLines.add(line);
+                }
+                items.add("RHYTHMS: " + Rhythm.parseLines(rhythmLines).size());
+            }
+
+            @Override
+            public void onTune(List<String> lines, int lineNumber) {
+                try {
+                    items.add(new Tune(lines).toString());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void onTuneSet(List<String> lines, int lineNumber) {
+                StringBuilder source = new StringBuilder();
+                for (String line : lines)
+                    source.append(line).append('\n');
+                items.add(describeSet(source.toString()));
+            }
+        });
+        return items;
+    }
+
+    @Test
+    public void readsTheSameItemsAsTheSplitText() throws Exception {
+        String text = TuneBookGenerator.generate(TuneBookGenerator.LARGE_COPIES, 500);
+        List<String> split = null;
+        List<String> read = null;
+        long splitTime = Long.MAX_VALUE;
+        long readTime = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            split = readWithSplit(text);
+            splitTime = Math.min(splitTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            read = readWithReader(text);
+            readTime = Math.min(readTime, System.nanoTime() - start);
+        }
+
+        assertEquals(1 + TuneBookGenerator.countTunes(TuneBookGenerator.LARGE_COPIES) + 500, read.size());
+        assertEquals(split.size(), read.size());
+        for (int i = 0; i < read.size(); i++)
+            assertEquals("Item " + i, split.get(i), read.get(i));
+        Log.i(TAG, String.format(Locale.US, "%d items, best of %d runs: split %d ms, reader %d ms",
+                read.size(), RUNS, splitTime / 1000000, readTime / 1000000));
+    }
+}
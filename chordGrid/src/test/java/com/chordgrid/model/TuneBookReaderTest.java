@@ -0,0 +1,108 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneBookReaderTest {
+
+    /**
+     * Records the items as "type: first item / size @ line number".
+     */
+    private static class RecordingListener implements TuneBookReader.Listener {
+        final ArrayList<String> mItems = new ArrayList<String>();
+
+        @Override
+        public void onRhythms(List<String> lines, int lineNumber) {
+            int countRhythms = 0;
+            for (int i = 1; i < lines.size(); i++) {
+                if (!lines.get(i).trim().isEmpty())
+                    countRhythms++;
+            }
+            mItems.add("rhythms: " + countRhythms + " @ " + lineNumber);
+        }
+
+        @Override
+        public void onTune(List<String> lines, int lineNumber) {
+            try {
+                Tune tune = new Tune(lines);
+                mItems.add("tune: " + tune.getId() + " / " + tune.countParts() + " @ " + lineNumber);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void onTuneSet(List<String> lines, int lineNumber) {
+            mItems.add("set: " + lines.get(0) + " / " + lines.size() + " @ " + lineNumber);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    private static List<String> read(String text) throws IOException {
+        RecordingListener listener = new RecordingListener();
+        new TuneBookReader(new StringReader(text)).read(listener);
+        return listener.mItems;
+    }
+
+    @Test
+    public void handsOverEachBlockInOrder() throws Exception {
+        List<String> items = read("RHYTHMS:\n"
+                + "[Jig, 6/8, 2 bpb]\n"
+                + "[Reel, 4/4, 4 bpb]\n"
+                + "\n"
+                + "X:1\n"
+                + "I:leckan_mor\n"
+                + "T:Leckan Mor\n"
+                + "R:Jig\n"
+                + "K:Bm\n"
+                + "A) |: Bm | Bm | A | A :|\n"
+                + "B) | Bm | Em | F#m G | D A |\n"
+                + "X:2\n"
+                + "I:tarbolton\n"
+                + "T:Tarbolton\n"
+                + "R:Reel\n"
+                + "K:Edor\n"
+                + "A) |: Em | Em | D | G D :|\n"
+                + "\n"
+                + "SET:Jig and reel\n"
+                + "leckan_mor tarbolton");
+
+        assertEquals(4, items.size());
+        assertEquals("rhythms: 2 @ 1", items.get(0));
+        assertEquals("tune: leckan_mor / 2 @ 5", items.get(1));
+        assertEquals("tune: tarbolton / 1 @ 12", items.get(2));
+        assertEquals("set: SET:Jig and reel / 2 @ 19", items.get(3));
+    }
+
+    @Test
+    public void skipsTheLinesBeforeTheFirstBlock() throws Exception {
+        List<String> items = read("A comment\n\nSET:Empty\n");
+
+        assertEquals(1, items.size());
+        assertEquals("set: SET:Empty / 1 @ 3", items.get(0));
+    }
+
+    @Test
+    public void readsNothingFromAnEmptySource() throws Exception {
+        assertEquals(0, read("").size());
+    }
+}
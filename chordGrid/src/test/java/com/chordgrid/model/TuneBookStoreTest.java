@@ -0,0 +1,205 @@
+package com.chordgrid.model;
+
+import android.database.Cursor;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneBookStoreTest {
+
+    private static final String TUNEBOOK = "RHYTHMS:\n"
+            + "[Jig, 6/8, 2 bpb]\n"
+            + "[Reel, 4/4, 4 bpb]\n"
+            + "\n"
+            + "X:1\n"
+            + "I:leckan_mor\n"
+            + "T:Leckan Mor\n"
+            + "R:Jig\n"
+            + "K:Bm\n"
+            + "A) |: Bm | Bm | A | A :|\n"
+            + "B) | Bm | Em | F#m G | D A |\n"
+            + "\n"
+            + "X:2\n"
+            + "I:tarbolton\n"
+            + "T:Tarbolton\n"
+            + "R:Reel\n"
+            + "K:Edor\n"
+            + "A) |: Em | Em | D | G D :|\n"
+            + "\n"
+            + "SET:Jig and reel\n"
+            + "leckan_mor tarbolton\n";
+
+    private TuneBookStore mStore;
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+        mStore = new TuneBookStore(RuntimeEnvironment.application, null);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    private static TuneBook parse(String text) throws Exception {
+        return new TuneBook(new StringReader(text), true);
+    }
+
+    private static Tune parseAdorTarbolton() throws Exception {
+        return parse(TUNEBOOK.replace("K:Edor", "K:Ador")).getTuneFromId("tarbolton");
+    }
+
+    @Test
+    public void loadReadsWhatWasStored() throws Exception {
+        TuneBook tuneBook = parse(TUNEBOOK);
+        mStore.replaceAll(tuneBook);
+
+        TuneBook loaded = mStore.load();
+        assertEquals(tuneBook.toString(), loaded.toString());
+    }
+
+    @Test
+    public void loadTuneReadsItsBody() throws Exception {
+        TuneBook tuneBook = parse(TUNEBOOK);
+        mStore.replaceAll(tuneBook);
+
+        Tune tune = mStore.loadTune("tarbolton");
+        assertEquals(tuneBook.getTuneFromId("tarbolton").toString(), tune.toString());
+        assertNull(mStore.loadTune("unknown"));
+    }
+
+    @Test
+    public void replacingLazyTunesFromTheStoreKeepsTheirBodies() throws Exception {
+        mStore.replaceAll(parse(TUNEBOOK));
+        String expected = mStore.load().toString();
+
+        // No body was read yet: they are only in the rows being replaced
+        TuneBook loaded = mStore.load();
+        mStore.replaceAll(loaded);
+
+        assertEquals(expected, mStore.load().toString());
+    }
+
+    @Test
+    public void changesAreWrittenOnceAttached() throws Exception {
+        TuneBook tuneBook = parse(TUNEBOOK);
+        mStore.attach(tuneBook);
+
+        Tune tune = tuneBook.getTuneFromId("leckan_mor");
+        tuneBook.remove(Collections.singletonList(tune));
+        mStore.flush();
+
+        assertEquals(tuneBook.toString(), mStore.load().toString());
+        assertEquals(1, mStore.countTunes(null, null, null));
+    }
+
+    @Test
+    public void attachingFromTheSameSourceKeepsTheStore() throws Exception {
+        TuneBook tuneBook = parse(TUNEBOOK);
+        mStore.attach(tuneBook, "files 1");
+        String expected = tuneBook.toString();
+
+        // Same counts, other contents: only the source tells them apart
+        TuneBook other = parse(TUNEBOOK.replace("K:Edor", "K:Ador"));
+        mStore.attach(other, "files 1");
+        mStore.flush();
+        assertEquals(expected, mStore.load().toString());
+
+        mStore.attach(other, "files 2");
+        mStore.flush();
+        assertEquals(other.toString(), mStore.load().toString());
+    }
+
+    @Test
+    public void attachingDoesNotWaitForAPendingSource() throws Exception {
+        FutureTask<String> source = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                return "files 1";
+            }
+        });
+        TuneBook tuneBook = parse(TUNEBOOK);
+        mStore.attach(tuneBook, source);
+        mStore.markSynced(source);
+        String expected = tuneBook.toString();
+        source.run();
+
+        mStore.attach(parse(TUNEBOOK.replace("K:Edor", "K:Ador")), "files 1");
+        mStore.flush();
+        assertEquals(expected, mStore.load().toString());
+    }
+
+    @Test
+    public void changesForgetTheSourceUntilMarkedSynced() throws Exception {
+        TuneBook tuneBook = parse(TUNEBOOK);
+        mStore.attach(tuneBook, "files 1");
+        tuneBook.replaceTune(tuneBook.getTuneFromId("tarbolton"), parseAdorTarbolton());
+        mStore.flush();
+
+        TuneBook reloaded = parse(TUNEBOOK);
+        mStore.attach(reloaded, "files 1");
+        mStore.flush();
+        assertEquals(reloaded.toString(), mStore.load().toString());
+
+        tuneBook = parse(TUNEBOOK);
+        mStore.attach(tuneBook);
+        tuneBook.replaceTune(tuneBook.getTuneFromId("tarbolton"), parseAdorTarbolton());
+        mStore.markSynced("files 2");
+        String expected = tuneBook.toString();
+        mStore.attach(parse(TUNEBOOK), "files 2");
+        mStore.flush();
+        assertEquals(expected, mStore.load().toString());
+    }
+
+    @Test
+    public void queriesFilterTunesByRhythmAndTitle() throws Exception {
+        mStore.replaceAll(parse(TUNEBOOK));
+
+        assertEquals(1, mStore.countTunes("Reel", null, null));
+        assertEquals(1, mStore.countTunes(null, "Bm", null));
+        assertEquals(2, mStore.countTunes(null, null, null));
+        Cursor cursor = mStore.queryTunes(null, null, "leck", 0, 0);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("leckan_mor", cursor.getString(1));
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void queryTuneSetTunesKeepsTheOrderOfTheSet() throws Exception {
+        mStore.replaceAll(parse(TUNEBOOK));
+
+        Cursor cursor = mStore.queryTuneSetTunes(0);
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("leckan_mor", cursor.getString(1));
+            cursor.moveToNext();
+            assertEquals("tarbolton", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneBookTest {
+
+    private static final String SPANNING_REPETITION = "X:1\nI:polka\nT:Polka\nR:Polka\nK:D\n"
+            + "A) |: D | D | A | D |\n"
+            + "\n"
+            + "| D | D | A | D :|\n"
+            + "B) |: A | A | E | E A :|\n";
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void parsesTheMeasuresOfEachLine() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(TuneBookGenerator.generate(10, 5)), true);
+
+        assertEquals(TuneBookGenerator.countTunes(10), tuneBook.countTunes());
+        assertEquals(5, tuneBook.countTuneSets());
+        Tune garret = tuneBook.getTuneFromId("up_in_the_garret_3");
+        assertEquals("Up in the Garret 3", garret.getTitle());
+        Line line = garret.getPart("B").getLine(0);
+        assertTrue(line.hasRepetition());
+        assertEquals(4, line.countMeasures());
+        assertEquals(3, line.getMeasure(1).countChords());
+        assertEquals("F#m", line.getMeasure(1).getChords().get(1).getValue());
+        assertEquals(2, tuneBook.getTuneFromId("leckan_mor_0").getPart("B").countLines());
+    }
+
+    @Test
+    public void buildsTheSameBodiesLazily() throws Exception {
+        String text = TuneBookGenerator.generate(TuneBookGenerator.LARGE_COPIES, 100);
+
+        TuneBook eager = new TuneBook(new StringReader(text), false);
+        TuneBook lazy = new TuneBook(new StringReader(text), true);
+
+        assertEquals(eager.toString(), lazy.toString());
+    }
+
+    @Test
+    public void keepsARepetitionSpanningAnEmptyLine() throws Exception {
+        TuneBook eager = new TuneBook(new StringReader(SPANNING_REPETITION), false);
+        TuneBook lazy = new TuneBook(new StringReader(SPANNING_REPETITION), true);
+
+        Tune tune = lazy.getTuneFromId("polka");
+        assertEquals(2, tune.countParts());
+        assertEquals(eager.getTuneFromId("polka").toString(), tune.toString());
+    }
+
+    @Test
+    public void snapshotsKeepTheTunesTheirSetsHad() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(TuneBookGenerator.generate(10, 5)), true);
+        TuneSet set = tuneBook.getTuneSets().get(0);
+        List<Tune> before = new ArrayList<Tune>(set.getTunes());
+        TuneBook.Snapshot first = tuneBook.getSnapshot();
+        Tune added = tuneBook.getTuneFromId("leckan_mor_0");
+
+        set.add(added);
+        TuneBook.Snapshot second = tuneBook.getSnapshot();
+        assertNotSame(first, second);
+        assertEquals(before, first.getTuneSetTunes(0));
+        assertEquals(before.size() + 1, second.getTuneSetTunes(0).size());
+        assertEquals(added, second.getTuneSetTunes(0).get(before.size()));
+
+        ArrayList<Tune> reversed = new ArrayList<Tune>(set.getTunes());
+        Collections.reverse(reversed);
+        set.setTunes(reversed);
+        TuneBook.Snapshot third = tuneBook.getSnapshot();
+        assertEquals(reversed, third.getTuneSetTunes(0));
+        assertEquals(added, second.getTuneSetTunes(0).get(before.size()));
+
+        set.clear();
+        assertTrue(tuneBook.getSnapshot().getTuneSetTunes(0).isEmpty());
+        assertEquals(reversed, third.getTuneSetTunes(0));
+        assertEquals(set.getName(), third.getTuneSetName(0));
+    }
+
+    @Test
+    public void findsATuneByItsHeadersOnceSet() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(TuneBookGenerator.generate(10, 5)), true);
+        Tune tune = tuneBook.getTuneFromId("tarbolton_2");
+        final List<String> puts = new ArrayList<String>();
+        tuneBook.addMutationListener(new TuneBook.MutationListener() {
+            @Override
+            public void onTunePut(Tune tune) {
+                puts.add(tune.getId());
+            }
+
+            @Override
+            public void onTuneRemoved(String id) {
+                puts.add("-" + id);
+            }
+
+            @Override
+            public void onTuneSetPut(int position, TuneSet set) {
+            }
+
+            @Override
+            public void onTuneSetRemoved(int position) {
+            }
+
+            @Override
+            public void onContentsReplaced(TuneBook tuneBook) {
+            }
+        });
+
+        int index = tune.getIndex();
+        tune.setIndex(tuneBook.getMaxTuneIndex() + 10);
+        assertSame(tune, tuneBook.getTuneFromIndex(tune.getIndex()));
+        assertNull(tuneBook.getTuneFromIndex(index));
+        assertEquals(tune.getIndex(), tuneBook.getMaxTuneIndex());
+
+        tune.setId("tarbolton_reel");
+        assertSame(tune, tuneBook.getTuneFromId("tarbolton_reel"));
+        assertNull(tuneBook.getTuneFromId("tarbolton_2"));
+        tune.setId("tarbolton_3");
+        assertEquals("tarbolton_10", tune.getId());
+        assertSame(tune, tuneBook.getTuneFromId("tarbolton_10"));
+        assertEquals("Tarbolton 3", tuneBook.getTuneFromId("tarbolton_3").getTitle());
+
+        Tune jig = tuneBook.getTuneFromId("leckan_mor_0");
+        tune.restore(jig.getSnapshot());
+        assertTrue(tuneBook.getAllTunesWithKey(jig.getKey()).contains(tune));
+        assertTrue(!tuneBook.getAllTunesWithKey("Edor").contains(tune));
+
+        assertTrue(tuneBook.checkIndexes().isEmpty());
+        // The restored snapshot sets the rhythm, name and key
+        assertEquals("[tarbolton_2, -tarbolton_2, tarbolton_reel, -tarbolton_reel, tarbolton_10, "
+                + "tarbolton_10, tarbolton_10, tarbolton_10]", puts.toString());
+    }
+}
@@ -0,0 +1,101 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneBookXmlTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String TUNEBOOK = "RHYTHMS:\n"
+            + "[Jig, 6/8, 2 bpb]\n"
+            + "[Reel, 4/4, 4 bpb]\n"
+            + "\n"
+            + "X:1\n"
+            + "I:leckan_mor\n"
+            + "T:Leckan Mor\n"
+            + "R:Jig\n"
+            + "K:Bm\n"
+            + "A) |: Bm | Bm | A | A :|\n"
+            + "B) | Bm | Em | F#m G | D A |\n"
+            + "\n"
+            + "X:2\n"
+            + "I:tarbolton\n"
+            + "T:Tarbolton\n"
+            + "R:Reel\n"
+            + "K:Edor\n"
+            + "A) |: Em | Em | D | G D :|\n"
+            + "\n"
+            + "SET:Jig and reel\n"
+            + "leckan_mor tarbolton\n";
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    private static TuneBook parse(String xml) throws Exception {
+        return TuneBook.xmlParse(new ByteArrayInputStream(xml.getBytes(UTF8)));
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(TUNEBOOK));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tuneBook.xmlSerialize(out);
+
+        TuneBook read = TuneBook.xmlParse(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(tuneBook.toString(), read.toString());
+    }
+
+    @Test
+    public void readsBackALargeTuneBook() throws Exception {
+        TuneBook tuneBook = new TuneBook(new StringReader(
+                TuneBookGenerator.generate(TuneBookGenerator.LARGE_COPIES, 500)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tuneBook.xmlSerialize(out);
+
+        TuneBook read = TuneBook.xmlParse(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(tuneBook.toString(), read.toString());
+    }
+
+    @Test
+    public void skipsUnknownTagsOfASet() throws Exception {
+        TuneBook tuneBook = parse("<TuneBook>"
+                + "<Rhythms><Rhythm name=\"Jig\" signature=\"6/8\" beatsPerBar=\"2\"/></Rhythms>"
+                + "<Tunes>"
+                + "<Tune id=\"a\" index=\"1\" name=\"A\" rhythm=\"Jig\" key=\"D\"/>"
+                + "<Tune id=\"b\" index=\"2\" name=\"B\" rhythm=\"Jig\" key=\"G\"/>"
+                + "</Tunes>"
+                + "<TuneSets><TuneSet name=\"Both\">"
+                + "<Comment>Played <b>twice</b></Comment>"
+                + "<TuneRef id=\"a\"/>"
+                + "<TuneRef id=\"b\"><Note/></TuneRef>"
+                + "</TuneSet></TuneSets>"
+                + "</TuneBook>");
+
+        assertEquals(1, tuneBook.countTuneSets());
+        TuneSet set = tuneBook.getTuneSets().get(0);
+        assertEquals("Both", set.getName());
+        assertEquals(2, set.size());
+        assertEquals("a", set.get(0).getId());
+        assertEquals("b", set.get(1).getId());
+    }
+}
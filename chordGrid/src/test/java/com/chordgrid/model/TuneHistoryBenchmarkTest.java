@@ -0,0 +1,149 @@
+package com.chordgrid.model;
+
+import android.util.Log;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the undo history built on shared bodies with one keeping a full copy of the tune at
+ * each step: the bytes each step retains, and the time taken to record the steps, undo them all
+ * and redo them all. The figures are logged; only the memory saving is asserted.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneHistoryBenchmarkTest {
+
+    private static final String TAG = "TuneHistoryBenchmark";
+
+    /**
+     * A tune of two parts of eight measures.
+     */
+    private static final String TUNEBOOK = "RHYTHMS:\n"
+            + "[Reel, 4/4, 4 bpb]\n"
+            + "\n"
+            + "X:1\n"
+            + "I:tarbolton\n"
+            + "T:Tarbolton\n"
+            + "R:Reel\n"
+            + "K:Edor\n"
+            + "A) |: E- | E- | D | G D | E- | D E- | G D | E- :|\n"
+            + "B) |: E- | E- | D | G D | E- D | E- | G D | E- :|\n";
+
+    private static final String[] CHORDS = {"Em", "D", "G", "C", "Bm", "A7", "F#m"};
+
+    private static final int STEPS = TuneHistory.DEFAULT_MAX_STEPS;
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    private static Tune parseTune() throws Exception {
+        return new TuneBook(new StringReader(TUNEBOOK)).getTuneFromId("tarbolton");
+    }
+
+    /**
+     * Makes a random edit: most often a measure, sometimes a part label.
+     */
+    private static void edit(Tune tune, Random random) {
+        TunePart part = tune.getPart(random.nextInt(tune.countParts()));
+        if (random.nextInt(5) == 0) {
+            part.setLabel(String.valueOf((char) ('A' + random.nextInt(26))));
+            return;
+        }
+        Line line = part.getLine(random.nextInt(part.countLines()));
+        String[] chords = new String[1 + random.nextInt(2)];
+        for (int i = 0; i < chords.length; i++)
+            chords[i] = CHORDS[random.nextInt(CHORDS.length)];
+        line.getMeasure(random.nextInt(line.countMeasures())).setChords(Arrays.asList(chords));
+    }
+
+    @Test
+    public void sharedSnapshotsRetainLessThanFullCopies() throws Exception {
+        // Shared bodies: the history itself, and the same snapshots for the sizes
+        Tune tune = parseTune();
+        String first = tune.toString();
+        TuneHistory history = new TuneHistory(tune, STEPS);
+        ObjectSizes sharedSizes = new ObjectSizes(Chord.class, Rhythm.class);
+        sharedSizes.add(tune.getSnapshot());
+        long sharedBytes = 0;
+        Random random = new Random(7);
+        long start = System.nanoTime();
+        for (int i = 0; i < STEPS; i++) {
+            edit(tune, random);
+            history.commit();
+        }
+        long sharedRecordTime = System.nanoTime() - start;
+        String last = tune.toString();
+        start = System.nanoTime();
+        while (history.undo()) {
+        }
+        long sharedUndoTime = System.nanoTime() - start;
+        assertEquals(first, tune.toString());
+        start = System.nanoTime();
+        while (history.redo()) {
+        }
+        long sharedRedoTime = System.nanoTime() - start;
+        assertEquals(last, tune.toString());
+
+        Tune replay = parseTune();
+        random = new Random(7);
+        for (int i = 0; i < STEPS; i++) {
+            edit(replay, random);
+            sharedBytes += sharedSizes.add(replay.getSnapshot());
+        }
+
+        // Full copies: a new tune parsed from the text at each step
+        tune = parseTune();
+        List<Tune> copies = new ArrayList<Tune>(STEPS + 1);
+        ObjectSizes copySizes = new ObjectSizes(Chord.class, Rhythm.class);
+        copies.add(new Tune(tune.toString()));
+        copySizes.add(copies.get(0));
+        long copyBytes = 0;
+        random = new Random(7);
+        start = System.nanoTime();
+        for (int i = 0; i < STEPS; i++) {
+            edit(tune, random);
+            copies.add(new Tune(tune.toString()));
+        }
+        long copyRecordTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = STEPS - 1; i >= 0; i--)
+            tune.restore(new Tune(copies.get(i).toString()).getSnapshot());
+        long copyUndoTime = System.nanoTime() - start;
+        assertEquals(first, tune.toString());
+        start = System.nanoTime();
+        for (int i = 1; i <= STEPS; i++)
+            tune.restore(new Tune(copies.get(i).toString()).getSnapshot());
+        long copyRedoTime = System.nanoTime() - start;
+        assertEquals(last, tune.toString());
+        for (int i = 1; i <= STEPS; i++)
+            copyBytes += copySizes.add(copies.get(i));
+
+        Log.i(TAG, String.format(Locale.US, "%d steps, retained per step: shared %d bytes, full copy %d bytes",
+                STEPS, sharedBytes / STEPS, copyBytes / STEPS));
+        Log.i(TAG, String.format(Locale.US, "Shared: record %.1f ms, undo all %.1f ms, redo all %.1f ms",
+                sharedRecordTime / 1e6, sharedUndoTime / 1e6, sharedRedoTime / 1e6));
+        Log.i(TAG, String.format(Locale.US, "Full copy: record %.1f ms, undo all %.1f ms, redo all %.1f ms",
+                copyRecordTime / 1e6, copyUndoTime / 1e6, copyRedoTime / 1e6));
+
+        assertTrue(sharedBytes * 2 < copyBytes);
+    }
+}
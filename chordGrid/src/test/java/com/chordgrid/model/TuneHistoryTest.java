@@ -0,0 +1,98 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneHistoryTest {
+
+    private static final String TUNEBOOK = "RHYTHMS:\n"
+            + "[Reel, 4/4, 4 bpb]\n"
+            + "\n"
+            + "X:1\n"
+            + "I:tarbolton\n"
+            + "T:Tarbolton\n"
+            + "R:Reel\n"
+            + "K:Edor\n"
+            + "A) |: Em | Em | D | G D :|\n";
+
+    private Tune mTune;
+
+    @Before
+    public void setUp() throws Exception {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+        mTune = new TuneBook(new StringReader(TUNEBOOK)).getTuneFromId("tarbolton");
+    }
+
+    private void editFirstMeasure(String... chords) {
+        mTune.getPart(0).getLine(0).getMeasure(0).setChords(Arrays.asList(chords));
+    }
+
+    @Test
+    public void undoAndRedoRestoreTheSteps() {
+        TuneHistory history = new TuneHistory(mTune);
+        String original = mTune.toString();
+        assertFalse(history.canUndo());
+        assertFalse(history.canRedo());
+
+        editFirstMeasure("Am");
+        assertTrue(history.commit());
+        String edited = mTune.toString();
+        assertTrue(history.canUndo());
+
+        assertTrue(history.undo());
+        assertEquals(original, mTune.toString());
+        assertFalse(history.canUndo());
+        assertTrue(history.canRedo());
+
+        assertTrue(history.redo());
+        assertEquals(edited, mTune.toString());
+        assertFalse(history.canRedo());
+    }
+
+    @Test
+    public void anEditDropsTheStepsUndone() {
+        TuneHistory history = new TuneHistory(mTune);
+        editFirstMeasure("Am");
+        history.commit();
+        history.undo();
+
+        editFirstMeasure("C");
+        assertFalse(history.canRedo());
+        history.commit();
+        assertFalse(history.redo());
+        assertEquals(1, history.countUndoSteps());
+    }
+
+    @Test
+    public void keepsAtMostTheMaximumSteps() {
+        TuneHistory history = new TuneHistory(mTune, 2);
+        editFirstMeasure("Am");
+        history.commit();
+        editFirstMeasure("Bm");
+        history.commit();
+        editFirstMeasure("C");
+        history.commit();
+
+        assertEquals(2, history.countUndoSteps());
+        history.undo();
+        history.undo();
+        assertFalse(history.undo());
+        // The step back to the original chord was dropped
+        assertEquals("Am", mTune.getPart(0).getLine(0).getMeasure(0).getChords().get(0).getValue());
+    }
+}
@@ -0,0 +1,58 @@
+package com.chordgrid.model;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class TuneIdAllocatorTest {
+
+    // Only the ids of the tunes matter to the allocator
+    private final HashMap<String, Tune> mTunes = new HashMap<String, Tune>();
+    private final TuneIdAllocator mAllocator = new TuneIdAllocator(mTunes);
+
+    private void add(String id) {
+        mTunes.put(id, null);
+        mAllocator.register(id);
+    }
+
+    @Test
+    public void keepsAFreeId() {
+        add("the_kesh");
+        assertEquals("tarbolton", mAllocator.allocate("tarbolton"));
+    }
+
+    @Test
+    public void suffixesACollidingId() {
+        add("the_kesh");
+        assertEquals("the_kesh_1", mAllocator.allocate("the_kesh"));
+        add("the_kesh_1");
+        assertEquals("the_kesh_2", mAllocator.allocate("the_kesh"));
+        // The prefix of a suffixed id is shared, and the suffix allocated above is not given again
+        assertEquals("the_kesh_3", mAllocator.allocate("the_kesh_1"));
+    }
+
+    @Test
+    public void continuesFromTheHighestSuffixRegistered() {
+        add("the_kesh");
+        add("the_kesh_7");
+        assertEquals("the_kesh_8", mAllocator.allocate("the_kesh"));
+    }
+
+    @Test
+    public void neverReusesASuffix() {
+        add("the_kesh");
+        add("the_kesh_1");
+        mTunes.remove("the_kesh_1");
+        assertEquals("the_kesh_2", mAllocator.allocate("the_kesh"));
+    }
+
+    @Test
+    public void suffixesIdsEndingWithOtherText() {
+        add("reel_b");
+        add("reel_1234567890");
+        assertEquals("reel_b_1", mAllocator.allocate("reel_b"));
+        assertEquals("reel_1234567890_1", mAllocator.allocate("reel_1234567890"));
+    }
+}
@@ -0,0 +1,44 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneSimilarityIndexTest {
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void comparesTheChordsOfLazyBodies() throws Exception {
+        String text = TuneBookGenerator.generate(2, 0);
+        List<TuneSimilarityIndex.Candidate> eager = findDuplicates(new TuneBook(new StringReader(text), false));
+        List<TuneSimilarityIndex.Candidate> lazy = findDuplicates(new TuneBook(new StringReader(text), true));
+
+        assertEquals(eager.toString(), lazy.toString());
+        assertEquals("tarbolton_1", lazy.get(0).getTune().getId());
+        assertEquals(1f, lazy.get(0).getChordSimilarity(), 0f);
+    }
+
+    private static List<TuneSimilarityIndex.Candidate> findDuplicates(TuneBook tuneBook) {
+        TuneSimilarityIndex index = new TuneSimilarityIndex();
+        for (Tune tune : tuneBook.getTunes())
+            index.add(tune);
+        return index.findDuplicates(tuneBook.getTuneFromId("tarbolton_0"),
+                TuneSimilarityIndex.DEFAULT_MIN_SCORE, 5);
+    }
+}
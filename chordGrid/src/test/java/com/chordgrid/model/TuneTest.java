@@ -0,0 +1,101 @@
+package com.chordgrid.model;
+
+import com.chordgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TuneTest {
+
+    private static final String TUNEBOOK = "RHYTHMS:\n"
+            + "[Reel, 4/4, 4 bpb]\n"
+            + "\n"
+            + "X:1\n"
+            + "I:tarbolton\n"
+            + "T:Tarbolton\n"
+            + "R:Reel\n"
+            + "K:Edor\n"
+            + "A) |: Em | Em | D | G D :|\n"
+            + "\n"
+            + "X:2\n"
+            + "I:tarbolton_2\n"
+            + "T:Tarbolton\n"
+            + "R:Reel\n"
+            + "K:Edor\n"
+            + "A) |: Em | Em | D | G D :|\n";
+
+    @Before
+    public void setUp() {
+        Rhythm.initializeKnownRhythms(RuntimeEnvironment.application);
+    }
+
+    private static TuneBook parse(boolean lazyTuneBodies) throws Exception {
+        return new TuneBook(new StringReader(TUNEBOOK), lazyTuneBodies);
+    }
+
+    @Test
+    public void equalsComparesIdsNotContent() throws Exception {
+        TuneBook tuneBook = parse(false);
+        Tune tarbolton = tuneBook.getTuneFromId("tarbolton");
+        Tune other = tuneBook.getTuneFromId("tarbolton_2");
+
+        assertFalse(tarbolton.equals(other));
+        assertTrue(tarbolton.hasSameContent(other));
+        assertEquals(tarbolton, parse(false).getTuneFromId("tarbolton"));
+        assertEquals(tarbolton.hashCode(), parse(false).getTuneFromId("tarbolton").hashCode());
+    }
+
+    @Test
+    public void hashingDoesNotLoadTheBody() throws Exception {
+        Tune tune = parse(true).getTuneFromId("tarbolton");
+
+        new HashSet<Tune>(Arrays.asList(tune)).contains(tune);
+
+        assertFalse(tune.isBodyParsed());
+    }
+
+    @Test
+    public void hashStaysTheSameAcrossEdits() throws Exception {
+        Tune tune = parse(false).getTuneFromId("tarbolton");
+        HashSet<Tune> tunes = new HashSet<Tune>(Arrays.asList(tune));
+
+        tune.getPart(0).getLine(0).getMeasure(0).setChords(Arrays.asList("Am"));
+        tune.addPart(new TunePart(tune, Arrays.asList("B) | G | D |")));
+
+        assertTrue(tunes.contains(tune));
+    }
+
+    @Test
+    public void aTuneWithoutIdOrNameOnlyEqualsItself() {
+        Tune tune = new Tune();
+
+        assertTrue(tune.equals(tune));
+        assertFalse(tune.equals(new Tune()));
+        assertEquals(new Tune().hashCode(), tune.hashCode());
+    }
+
+    @Test
+    public void addingAPartChangesTheFingerprint() throws Exception {
+        Tune tune = parse(false).getTuneFromId("tarbolton");
+        long fingerprint = tune.getFingerprint();
+
+        tune.getParts().add(new TunePart(tune, Arrays.asList("B) | G | D |")));
+
+        assertTrue(fingerprint != tune.getFingerprint());
+        assertFalse(tune.hasSameContent(parse(false).getTuneFromId("tarbolton")));
+    }
+}